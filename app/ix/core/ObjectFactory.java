@@ -4,6 +4,10 @@ import java.util.Arrays;
 import java.util.UUID;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
@@ -46,22 +50,73 @@ public class ObjectFactory {
         return obj;
     }
     
-    public static Object get (final Class kind, final Object id,
-                              final String... fields)
-        throws Exception {
-        final StringBuilder key = new StringBuilder (kind.getName()+":"+id);
+    static String getCacheKey (Class kind, Object id, String... fields) {
+        StringBuilder key = new StringBuilder (kind.getName()+":"+id);
         if (fields != null && fields.length > 0) {
             Arrays.sort(fields);
             key.append(":"+Util.sha1(fields));
         }
-        
-        return IxCache.getOrElse(key.toString(), new Callable () {
+        return key.toString();
+    }
+    
+    public static Object get (final Class kind, final Object id,
+                              final String... fields)
+        throws Exception {
+        return IxCache.getOrElse
+            (getCacheKey (kind, id, fields), new Callable () {
                     public Object call () throws Exception {
                         return find (kind, id, fields);
                     }
                 });
     }
 
+    /**
+     * Batch version of get(); entities not in the cache are loaded with
+     * a single IN query on the id field. The returned map is keyed by
+     * the given ids (in the same order) and only contains entities
+     * that are available in the persistence store.
+     */
+    public static Map<Object, Object> getAll (Class kind, Collection ids,
+                                              String... fields)
+        throws Exception {
+        Map<Object, Object> objs = new HashMap<Object, Object>();
+        Map<String, Object> missed = new HashMap<String, Object>();
+        for (Object id : ids) {
+            Object obj = IxCache.get(getCacheKey (kind, id, fields));
+            if (obj != null)
+                objs.put(id, obj);
+            else
+                missed.put(id.toString(), id);
+        }
+
+        if (!missed.isEmpty()) {
+            Query q = finder(kind).query();
+            if (fields != null)
+                for (String f : fields)
+                    q = q.fetch(f);
+            
+            List list = q.where()
+                .idIn(new ArrayList (missed.values())).findList();
+            for (Object obj : list) {
+                Object id = missed.get(String.valueOf(Util.getId(obj)));
+                if (id != null) {
+                    IxCache.set(getCacheKey (kind, id, fields), obj);
+                    objs.put(id, obj);
+                }
+            }
+        }
+
+        // preserve the order of ids
+        Map<Object, Object> ordered = new LinkedHashMap<Object, Object>();
+        for (Object id : ids) {
+            Object obj = objs.get(id);
+            if (obj != null)
+                ordered.put(id, obj);
+        }
+        
+        return ordered;
+    }
+
     public static Model.Finder finder (Class kind) {
         Model.Finder finder = finders.get(kind);
         if (finder == null) {
@@ -0,0 +1,56 @@
+package ix.core.adapters;
+
+import java.util.Set;
+import javax.persistence.Entity;
+
+import play.Logger;
+import com.avaje.ebean.event.BeanPersistListener;
+
+import ix.core.plugins.CacheGenerations;
+import ix.utils.Util;
+
+/**
+ * Bump the cache generations of committed changes. The persist adapter
+ * already bumps them as beans are written, but that's before the
+ * transaction commits, so a cache entry generated in between (from
+ * the data as it was before the commit) would otherwise outlive the
+ * change. Ebean calls this listener after a successful commit.
+ */
+public class EntityCommitListener implements BeanPersistListener<Object> {
+    public EntityCommitListener () {
+    }
+
+    public boolean isRegisterFor (Class<?> cls) {
+        return cls.isAnnotationPresent(Entity.class);
+    }
+
+    void bump (Object bean) {
+        Object id = null;
+        try {
+            id = Util.getId(bean);
+        }
+        catch (Exception ex) {
+            Logger.trace("Can't retrieve bean id", ex);
+        }
+        CacheGenerations.bump(bean.getClass(), id);
+    }
+
+    public boolean inserted (Object bean) {
+        bump (bean);
+        return false;
+    }
+
+    public boolean updated (Object bean, Set<String> updatedProperties) {
+        bump (bean);
+        return false;
+    }
+
+    public boolean deleted (Object bean) {
+        bump (bean);
+        return false;
+    }
+
+    public void remoteInsert (Object id) {}
+    public void remoteUpdate (Object id) {}
+    public void remoteDelete (Object id) {}
+}
@@ -7,9 +7,13 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.List;
+import java.util.Collections;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.lang.reflect.*;
+import com.avaje.ebean.Ebean;
 import com.avaje.ebean.event.*;
 import com.avaje.ebean.bean.*;
 
@@ -49,9 +53,19 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
     private Map<String, List<Method>> postLoadCallback = 
         new HashMap<String, List<Method>>();
 
-    private List<BeanInterceptor> interceptors = new ArrayList<>();
+    private List<BeanInterceptor> interceptors =
+        new CopyOnWriteArrayList<>();
+    private Map<Class, Field> idFields = new ConcurrentHashMap<>();
+    private final ObjectMapper mapper = new ObjectMapper ();
 
     static EntityPersistAdapter _instance;
+    static final int INDEX_BATCH = 500; // beans loaded per query
+
+    // kind => ids of beans whose indexing is deferred by the current thread
+    static final ThreadLocal<Map<Class, Set<Object>>> deferred =
+        new ThreadLocal<Map<Class, Set<Object>>>();
+    // journal generation of the last index update made by this thread
+    static final ThreadLocal<Long> written = new ThreadLocal<Long>();
 
     public EntityPersistAdapter () {
         if (_instance != null)
@@ -72,6 +86,166 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
         interceptors.remove(interceptor);
     }
 
+    /**
+     * Instead of indexing, record the ids of beans added or updated by
+     * the current thread in the given map until resumeIndexing() is
+     * called; bulk loaders then index them in one go at the end.
+     * Removals are still applied right away. The map (and its sets) has
+     * to be thread-safe when shared across threads.
+     */
+    public static void deferIndexing (Map<Class, Set<Object>> ids) {
+        deferred.set(ids);
+    }
+
+    public static Map<Class, Set<Object>> resumeIndexing () {
+        Map<Class, Set<Object>> ids = deferred.get();
+        deferred.remove();
+        return ids;
+    }
+
+    /**
+     * Index the beans of the given ids (as collected while indexing was
+     * deferred) the same way the persist callbacks would have; this is
+     * for writers whose transactions commit only some of what they
+     * deferred.
+     */
+    public static void index (Map<Class, Set<Object>> ids) throws Exception {
+        if (_instance == null)
+            return;
+        
+        for (Map.Entry<Class, Set<Object>> me : ids.entrySet()) {
+            List<Object> keys = new ArrayList<Object>(me.getValue());
+            for (int i = 0; i < keys.size(); i += INDEX_BATCH) {
+                List beans = Ebean.find(me.getKey()).where().idIn
+                    (keys.subList(i, Math.min(i+INDEX_BATCH, keys.size())))
+                    .findList();
+                for (Object bean : beans)
+                    _instance.index(IndexJournal.Op.UPDATE, bean);
+            }
+        }
+    }
+
+    /**
+     * Wait until index updates made so far by the current thread are
+     * visible to searches; this is for requests that read (or return
+     * to a client that reads) right after a write. Returns false if
+     * timed out.
+     */
+    public static boolean awaitIndexing (long timeout) {
+        Long gen = written.get();
+        if (gen == null)
+            return true;
+
+        IndexJournal journal = _instance != null ? _instance.journal () : null;
+        if (journal == null) {
+            written.remove();
+            return true;
+        }
+
+        try {
+            if (journal.await(gen, timeout)) {
+                written.remove();
+                return true;
+            }
+            Logger.warn("Index generation "+gen+" isn't visible after "
+                        +timeout+"ms");
+        }
+        catch (InterruptedException ex) {
+            Logger.warn("Interrupted while waiting for index generation "
+                        +gen);
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    boolean defer (IndexJournal.Op op, Object bean) {
+        Map<Class, Set<Object>> ids = deferred.get();
+        if (ids == null || op == IndexJournal.Op.REMOVE)
+            return false;
+
+        Class cls = bean.getClass();
+        Indexable indexable = (Indexable)cls.getAnnotation(Indexable.class);
+        if (indexable != null && !indexable.indexed())
+            return true; // nothing to index anyway
+        
+        Object id = getId (bean);
+        if (id == null)
+            return false;
+
+        Set<Object> set = ids.get(cls);
+        if (set == null) {
+            set = Collections.newSetFromMap
+                (new ConcurrentHashMap<Object, Boolean>());
+            Set<Object> old = ids.putIfAbsent(cls, set);
+            if (old != null)
+                set = old;
+        }
+        set.add(id);
+        return true;
+    }
+
+    /**
+     * Index updates go through the plugin's journal when available so
+     * that the persist callbacks don't pay for Lucene analysis
+     */
+    IndexJournal journal () {
+        return plugin != null ? plugin.getJournal() : null;
+    }
+
+    void index (IndexJournal.Op op, Object bean) throws Exception {
+        if (defer (op, bean))
+            return;
+        
+        IndexJournal journal = journal ();
+        if (journal != null) {
+            try {
+                written.set(journal.append(op, bean));
+                return;
+            }
+            catch (IllegalStateException ex) {
+                // journal has been shut down; fall through
+            }
+        }
+
+        if (plugin != null && plugin.getIndexer() != null) {
+            switch (op) {
+            case ADD: plugin.getIndexer().add(bean); break;
+            case UPDATE: plugin.getIndexer().update(bean); break;
+            case REMOVE: plugin.getIndexer().remove(bean); break;
+            }
+        }
+    }
+    
+    Object getId (Object bean) {
+        Class cls = bean.getClass();
+        Field id = idFields.get(cls);
+        if (id == null) {
+            for (Field f : cls.getFields()) {
+                if (f.getAnnotation(Id.class) != null) {
+                    idFields.put(cls, id = f);
+                    break;
+                }
+            }
+        }
+
+        try {
+            return id != null ? id.get(bean) : null;
+        }
+        catch (IllegalAccessException ex) {
+            Logger.trace("Can't retrieve bean id", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Invalidate cache entries that depend on the bean's kind or on the
+     * bean itself; this happens before the transaction commits, so
+     * {@link EntityCommitListener} bumps them again afterward
+     */
+    void bump (Object bean) {
+        CacheGenerations.bump(bean.getClass(), getId (bean));
+    }
+    
     boolean debug (int level) {
         IxContext ctx = Play.application().plugin(IxContext.class);
         return ctx.debug(level);
@@ -149,13 +323,13 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
                 }
             }
 
-            if (plugin != null)
-                plugin.getIndexer().add(bean);
+            index (IndexJournal.Op.ADD, bean);
+            bump (bean);
             
             for (BeanInterceptor bi : interceptors)
                 bi.postInsert(bean);        
         }
-        catch (java.io.IOException ex) {
+        catch (Exception ex) {
             Logger.trace("Can't index bean "+bean, ex);
         }
     }
@@ -188,7 +362,6 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
     @Override
     public void postUpdate (BeanPersistRequest<?> request) {
         Object bean = request.getBean();
-        ObjectMapper mapper = new ObjectMapper ();
         
         Class cls = bean.getClass();
         if (Edit.class.isAssignableFrom(cls)) {
@@ -196,21 +369,25 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
             return;
         }
 
+        IndexJournal journal = journal ();
         for (Field f : cls.getFields()) {
             if (f.getAnnotation(Id.class) != null) {
                 try {
                     Object id = f.get(bean);
-                    if (id != null) {
+                    if (id == null) {
+                        Logger.warn("Entity bean ["+cls.getName()+"]="+id
+                                    +" doesn't have Id annotation!");
+                    }
+                    else if (journal != null && !journal.isDead()) {
+                        journal.edit(cls, id, request.getOldValues(), bean);
+                    }
+                    else {
                         Edit edit = new Edit (cls, id);
                         edit.oldValue = mapper.writeValueAsString
                             (request.getOldValues());
                         edit.newValue = mapper.writeValueAsString(bean);
                         edit.save();
                     }
-                    else {
-                        Logger.warn("Entity bean ["+cls.getName()+"]="+id
-                                    +" doesn't have Id annotation!");
-                    }
                 }
                 catch (Exception ex) {
                     Logger.trace("Can't retrieve bean id", ex);
@@ -239,13 +416,13 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
                 }
             }
 
-            if (plugin != null)
-                plugin.getIndexer().update(bean);
+            index (IndexJournal.Op.UPDATE, bean);
+            bump (bean);
 
             for (BeanInterceptor bi : interceptors)
                 bi.postUpdate(bean);
         }
-        catch (java.io.IOException ex) {
+        catch (Exception ex) {
             Logger.warn("Can't update bean index "+bean, ex);
         }
     }
@@ -272,8 +449,7 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
         }
 
         try {
-            if (plugin != null)
-                plugin.getIndexer().remove(bean);
+            index (IndexJournal.Op.REMOVE, bean);
 
             for (BeanInterceptor bi : interceptors)
                 bi.preDelete(bean);         
@@ -303,6 +479,7 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
             }
         }
 
+        bump (bean);
         for (BeanInterceptor bi : interceptors)
             bi.postDelete(bean);
     }
@@ -324,6 +501,9 @@ public class EntityPersistAdapter extends BeanPersistAdapter {
             }
         }
 
+        if (CacheGenerations.isTracking())
+            CacheGenerations.depends(bean.getClass(), getId (bean));
+
         for (BeanInterceptor bi : interceptors)
             bi.postLoad(bean);
         
@@ -0,0 +1,35 @@
+package ix.core.adapters;
+
+import javax.persistence.Entity;
+
+import com.avaje.ebean.event.BeanQueryAdapter;
+import com.avaje.ebean.event.BeanQueryRequest;
+import com.avaje.ebeaninternal.api.SpiQuery;
+
+import ix.core.plugins.CacheGenerations;
+
+/**
+ * Records the kind (or the entity for queries by id) of every query
+ * run while a cache value is being generated, so that the value is
+ * invalidated when entities of that kind change. This covers count
+ * queries and lazy loading that don't go through postLoad.
+ */
+public class EntityQueryAdapter implements BeanQueryAdapter {
+    public EntityQueryAdapter () {}
+
+    public boolean isRegisterFor (Class<?> cls) {
+        return cls.isAnnotationPresent(Entity.class);
+    }
+
+    public int getExecutionOrder () {
+        return 0;
+    }
+
+    public void preQuery (BeanQueryRequest<?> request) {
+        if (!CacheGenerations.isTracking())
+            return;
+
+        SpiQuery<?> query = (SpiQuery<?>)request.getQuery();
+        CacheGenerations.depends(query.getBeanType(), query.getId());
+    }
+}
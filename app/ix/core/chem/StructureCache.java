@@ -0,0 +1,215 @@
+package ix.core.chem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+import chemaxon.struc.Molecule;
+import play.Logger;
+import play.Play;
+
+import ix.core.models.Keyword;
+import ix.core.models.Structure;
+import ix.core.models.Text;
+import ix.core.models.Value;
+import ix.core.plugins.SleepycatStore;
+
+/**
+ * Instrumented structures (along with their moieties) keyed by the
+ * digest of the input molfile and kept in the {@link SleepycatStore},
+ * so that a structure seen before--in this or an earlier run--is
+ * restored instead of going through StructureProcessor again. The
+ * cache is disabled when there's no running application or when
+ * ix.structure.cache is false.
+ */
+public class StructureCache {
+    static final String DB = StructureCache.class.getName();
+    /**
+     * Entries of a different version are ignored; this has to change
+     * whenever StructureProcessor.instrument produces something else
+     */
+    static final int VERSION = 3;
+
+    static final AtomicLong hits = new AtomicLong ();
+    static final AtomicLong misses = new AtomicLong ();
+    static volatile boolean initialized;
+    static Database db;
+
+    private StructureCache () {}
+
+    static Database db () {
+        if (!initialized) {
+            synchronized (StructureCache.class) {
+                if (!initialized) {
+                    try {
+                        if (Play.application().configuration()
+                            .getBoolean("ix.structure.cache", true)) {
+                            SleepycatStore store = Play.application()
+                                .plugin(SleepycatStore.class);
+                            if (store != null)
+                                db = store.createDbIfAbsent(DB);
+                        }
+                    }
+                    catch (Exception ex) {
+                        // no running application
+                        Logger.warn("Structure cache is disabled; "
+                                    +ex.getMessage());
+                    }
+                    initialized = true;
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Cache key of the given (not yet instrumented) molecule. This is
+     * the full input rather than, say, its canonical SMILES since the
+     * cached molfile keeps the name and coordinates of the input it
+     * was made from. Returns null if the cache is disabled.
+     */
+    static String key (Molecule mol, boolean standardize) {
+        if (db () == null)
+            return null;
+        return (standardize ? "S:" : "N:")+StructureProcessor.digest(mol);
+    }
+
+    /**
+     * Restore the instrumented struc and its moieties; returns false if
+     * it's not in the cache
+     */
+    static boolean get (String cacheKey, Structure struc,
+                        Collection<Structure> components) {
+        Database db = db ();
+        if (db == null || cacheKey == null)
+            return false;
+
+        try {
+            DatabaseEntry key = new DatabaseEntry ();
+            DatabaseEntry val = new DatabaseEntry ();
+            StringBinding.stringToEntry(cacheKey, key);
+            if (db.get(null, key, val, LockMode.READ_UNCOMMITTED)
+                == OperationStatus.SUCCESS) {
+                TupleInput in = TupleBinding.entryToInput(val);
+                if (in.readInt() == VERSION) {
+                    decode (in, struc);
+                    for (int i = in.readInt(); --i >= 0; ) {
+                        Structure moiety = new Structure ();
+                        moiety.digest = in.readString();
+                        decode (in, moiety);
+                        if (components != null)
+                            components.add(moiety);
+                    }
+                    hits.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        catch (Exception ex) {
+            Logger.error("Can't restore structure "+cacheKey, ex);
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    static void put (String cacheKey, Structure struc,
+                     List<Structure> moieties) {
+        Database db = db ();
+        if (db == null || cacheKey == null)
+            return;
+
+        try {
+            TupleOutput out = new TupleOutput ();
+            out.writeInt(VERSION);
+            encode (out, struc);
+            out.writeInt(moieties.size());
+            for (Structure m : moieties) {
+                out.writeString(m.digest);
+                encode (out, m);
+            }
+
+            DatabaseEntry key = new DatabaseEntry ();
+            DatabaseEntry val = new DatabaseEntry ();
+            StringBinding.stringToEntry(cacheKey, key);
+            TupleBinding.outputToEntry(out, val);
+            db.put(null, key, val);
+        }
+        catch (Exception ex) {
+            Logger.error("Can't cache structure "+cacheKey, ex);
+        }
+    }
+
+    static void encode (TupleOutput out, Structure struc) {
+        out.writeString(struc.molfile);
+        out.writeString(struc.smiles);
+        out.writeString(struc.formula);
+        out.writeDouble(struc.mwt);
+        out.writeInt(struc.atomCount);
+        out.writeInt(struc.bondCount);
+        out.writeInt(struc.charge);
+        out.writeInt(struc.stereoCenters);
+        out.writeInt(struc.definedStereo);
+        out.writeInt(struc.ezCenters);
+        out.writeString(struc.stereoChemistry != null
+                        ? struc.stereoChemistry.name() : null);
+        out.writeString(struc.opticalActivity != null
+                        ? struc.opticalActivity.name() : null);
+
+        List<Value> props = new ArrayList<Value>();
+        for (Value v : struc.properties)
+            if (v instanceof Keyword || v instanceof Text)
+                props.add(v);
+        out.writeInt(props.size());
+        for (Value v : props) {
+            if (v instanceof Keyword) {
+                out.writeChar('K');
+                out.writeString(v.label);
+                out.writeString(((Keyword)v).term);
+            }
+            else {
+                out.writeChar('T');
+                out.writeString(v.label);
+                out.writeString(((Text)v).text);
+            }
+        }
+    }
+
+    static void decode (TupleInput in, Structure struc) {
+        struc.molfile = in.readString();
+        struc.smiles = in.readString();
+        struc.formula = in.readString();
+        struc.mwt = in.readDouble();
+        struc.atomCount = in.readInt();
+        struc.bondCount = in.readInt();
+        struc.charge = in.readInt();
+        struc.stereoCenters = in.readInt();
+        struc.definedStereo = in.readInt();
+        struc.ezCenters = in.readInt();
+        String s = in.readString();
+        struc.stereoChemistry = s != null ? Structure.Stereo.valueOf(s) : null;
+        s = in.readString();
+        struc.opticalActivity = s != null
+            ? Structure.Optical.valueOf(s) : null;
+
+        for (int i = in.readInt(); --i >= 0; ) {
+            char type = in.readChar();
+            String label = in.readString();
+            String value = in.readString();
+            struc.properties.add(type == 'K' ? new Keyword (label, value)
+                                 : new Text (label, value));
+        }
+    }
+
+    public static long getHits () { return hits.get(); }
+    public static long getMisses () { return misses.get(); }
+}
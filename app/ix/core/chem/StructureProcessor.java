@@ -6,9 +6,11 @@ import ix.core.models.Text;
 import ix.core.models.Value;
 
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -167,6 +169,9 @@ public class StructureProcessor {
             struc.digest = digest (mol);
         }
 
+        // keyed on the input as given, before it's cleaned up below
+        String cacheKey = StructureCache.key(mol, standardize);
+
         if (mol.getDim() != 2) {
             mol.clean(2, null);
         }
@@ -280,6 +285,12 @@ public class StructureProcessor {
                 }
             }
         }
+
+        // seen this one before? callers still get the mol cleaned up
+        // and atom mapped as above; only the standardization and
+        // moieties are skipped
+        if (StructureCache.get(cacheKey, struc, components))
+            return;
             
         Molecule stdmol = mol.cloneMolecule();
         if (standardize) {
@@ -312,6 +323,7 @@ public class StructureProcessor {
         Molecule[] frags = stdmol.cloneMolecule().convertToFrags();
         // used to not duplicate moieties
         Map<String, Structure> moietiesMap = new HashMap<String,Structure>();
+        List<Structure> moieties = new ArrayList<Structure>();
         //System.err.println("+++++++++ "+frags.length+" components!");
         if (frags.length > 1) {
             for (int i = 0; i < frags.length; ++i) {
@@ -329,6 +341,7 @@ public class StructureProcessor {
                             }else{
                                 //moiety.count=1;
                                 moietiesMap.put(hash,moiety);
+                                moieties.add(moiety);
                                 if (components != null)
                                     components.add(moiety);
                             }
@@ -357,6 +370,36 @@ public class StructureProcessor {
         struc.bondCount = mol.getBondCount();
 
         calcStereo (struc);
+        StructureCache.put(cacheKey, struc, moieties);
+    }
+
+    /**
+     * A new (unsaved) copy of an instrumented structure; only the
+     * properties added by instrument are copied
+     */
+    public static Structure copy (Structure struc) {
+        Structure copy = new Structure ();
+        copy.digest = struc.digest;
+        copy.molfile = struc.molfile;
+        copy.smiles = struc.smiles;
+        copy.formula = struc.formula;
+        copy.mwt = struc.mwt;
+        copy.atomCount = struc.atomCount;
+        copy.bondCount = struc.bondCount;
+        copy.charge = struc.charge;
+        copy.stereoCenters = struc.stereoCenters;
+        copy.definedStereo = struc.definedStereo;
+        copy.ezCenters = struc.ezCenters;
+        copy.stereoChemistry = struc.stereoChemistry;
+        copy.opticalActivity = struc.opticalActivity;
+        for (Value v : struc.properties) {
+            if (v instanceof Keyword)
+                copy.properties.add
+                    (new Keyword (v.label, ((Keyword)v).term));
+            else if (v instanceof Text)
+                copy.properties.add(new Text (v.label, ((Text)v).text));
+        }
+        return copy;
     }
 
     static void calcStereo (Structure struc) {
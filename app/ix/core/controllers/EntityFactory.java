@@ -43,13 +43,13 @@ import com.avaje.ebean.annotation.Transactional;
 import com.avaje.ebean.event.BeanPersistListener;
 
 import ix.core.models.ETag;
-import ix.core.models.ETagRef;
 import ix.core.models.Edit;
 import ix.core.models.Principal;
 import ix.core.models.BeanViews;
 import ix.core.models.Curation;
 import ix.core.search.TextIndexer;
 import ix.core.plugins.TextIndexerPlugin;
+import ix.core.plugins.IxContext;
 import ix.core.adapters.EntityPersistAdapter;
 import ix.core.adapters.BeanInterceptor;
 import ix.utils.Util;
@@ -67,15 +67,42 @@ public class EntityFactory extends Controller {
     static final TextIndexer _textIndexer =
         Play.application().plugin(TextIndexerPlugin.class).getIndexer();
 
+    // max time (ms) a write request waits for its index updates
+    static final long INDEX_WAIT = Play.application().configuration()
+        .getLong("ix.text.journalWait", 5000l);
+
+    /**
+     * Index updates are applied in the background, so a write request
+     * waits for its own before responding; otherwise a client searching
+     * right after might not see what it just wrote.
+     */
+    protected static void awaitIndexing () {
+        EntityPersistAdapter.awaitIndexing(INDEX_WAIT);
+    }
+
     static protected class Reindexer<K,T> implements BeanInterceptor {
         static final ReentrantLock lock = new ReentrantLock ();
         static Reindexer reindexer;
 
+        static final int BATCH_SIZE = 1000;
+        static final int CHECKPOINT = 50000; // docs between commits
+        static final double RAM_BUFFER_MB = 256.;
+
         long start;
         long total;
         AtomicLong count = new AtomicLong ();
         String current;
         Model.Finder<K,T> finder;
+        
+        int batchSize = BATCH_SIZE;
+        int checkpoint = CHECKPOINT;
+        double ramBufferMB = RAM_BUFFER_MB;
+        ForkJoinPool pool;
+        File checkpointFile;
+        String idName = "id"; // keyset column
+        Object lastId; // last id that is committed
+        long resumed; // number of entities skipped due to checkpoint
+        volatile boolean done;
 
         protected Reindexer (Model.Finder<K,T> finder) {
             total = finder.findRowCount();
@@ -84,6 +111,15 @@ public class EntityFactory extends Controller {
                          +": Reindexing started on "+new java.util.Date()
                          +" for "+total+" entities!");
             this.finder = finder;
+
+            Configuration conf = Play.application().configuration();
+            batchSize = conf.getInt("ix.reindex.batchSize", BATCH_SIZE);
+            checkpoint = conf.getInt("ix.reindex.checkpoint", CHECKPOINT);
+            ramBufferMB = conf.getDouble("ix.reindex.ramBufferMB",
+                                         RAM_BUFFER_MB);
+            pool = new ForkJoinPool
+                (conf.getInt("ix.reindex.threads",
+                             Runtime.getRuntime().availableProcessors()));
         }
 
         public static <K,T> Reindexer<K,T>
@@ -121,21 +157,148 @@ public class EntityFactory extends Controller {
         public long start () { return start; }
         public long total () { return total; }
         public String current () { return current; }
+        public boolean done () { return done; }
+        // throughput in docs/s
+        public double rate () {
+            double elapsed = 1e-3*(System.currentTimeMillis() - start);
+            return elapsed > 0. ? (count.get() - resumed)/elapsed : 0.;
+        }
+        // estimated time remaining in seconds
+        public long eta () {
+            double rate = rate ();
+            return rate > 0. ? (long)((total - count.get())/rate + 0.5) : -1l;
+        }
 
-        void reindex () throws Exception {
-            //EntityPersistAdapter.getInstance().add(this);
-            for (T e : finder.all()) {
+        List<T> nextBatch (Object after) {
+            ExpressionList<T> where = finder.where();
+            if (after != null)
+                where = where.gt(idName, after);
+            return where.orderBy(idName+" asc")
+                .setMaxRows(batchSize).findList();
+        }
+
+        /**
+         * The checkpoint file holds the last committed id and the number
+         * of entities indexed up to (and including) that id
+         */
+        void loadCheckpoint (Class kind) {
+            Field f = Util.getIdField(kind);
+            if (f != null)
+                idName = f.getName();
+            checkpointFile = new File
+                (Play.application().plugin(IxContext.class).text,
+                 "reindex_"+kind.getName()+".ckpt");
+            if (checkpointFile.exists()) {
                 try {
-                    // work being done inside postLoad..
-                    _textIndexer.add(e);
-                    count.getAndIncrement();
-                    current = e.getClass().getName()+":"+Util.getId(e);
-                    Logger.info("Reindexing entity "+current+"..."+count.get());
+                    BufferedReader br = new BufferedReader
+                        (new FileReader (checkpointFile));
+                    String id = br.readLine();
+                    String n = br.readLine();
+                    br.close();
+                    Class type = f != null ? f.getType() : String.class;
+                    lastId = Long.class == type || long.class == type
+                        ? Long.parseLong(id) : type == UUID.class
+                        ? toUUID (id) : id;
+                    resumed = Long.parseLong(n);
+                    count.set(resumed);
+                    Logger.info("Resuming reindex of "+kind.getName()
+                                +" after id "+lastId+"; "+resumed
+                                +" entities already indexed!");
                 }
                 catch (Exception ex) {
-                    Logger.error("Can't reindex entity "
-                                 +e.getClass().getName()+" "+Util.getId(e), ex);
+                    Logger.error("Bogus checkpoint "+checkpointFile
+                                 +"; starting from scratch!", ex);
+                    lastId = null;
+                    resumed = 0l;
+                    count.set(0l);
+                }
+            }
+        }
+
+        void saveCheckpoint (Object id) throws IOException {
+            _textIndexer.commit();
+            PrintStream ps = new PrintStream
+                (new FileOutputStream (checkpointFile));
+            ps.println(id);
+            ps.println(count.get());
+            ps.close();
+            lastId = id;
+        }
+
+        void reindex () throws Exception {
+            //EntityPersistAdapter.getInstance().add(this);
+            // any entity will do to tell the kind and its id
+            List<T> batch = finder.where().setMaxRows(1).findList();
+            if (batch.isEmpty()) {
+                done = true;
+                return;
+            }
+            
+            loadCheckpoint (batch.get(0).getClass());
+            _textIndexer.beginBulk(ramBufferMB);
+            Object id = lastId;
+            try {
+                long uncommitted = 0l;
+                while (!(batch = nextBatch (id)).isEmpty()) {
+                    List<Callable<org.apache.lucene.document.Document>>
+                        tasks = new ArrayList<>();
+                    for (final T e : batch) {
+                        tasks.add(new Callable
+                                  <org.apache.lucene.document.Document> () {
+                                public org.apache.lucene.document.Document
+                                    call () throws Exception {
+                                    return _textIndexer.createDoc(e);
+                                }
+                            });
+                    }
+
+                    List<org.apache.lucene.document.Document> docs =
+                        new ArrayList<>();
+                    List<Future<org.apache.lucene.document.Document>>
+                        futures = pool.invokeAll(tasks);
+                    for (int i = 0; i < futures.size(); ++i) {
+                        try {
+                            org.apache.lucene.document.Document doc =
+                                futures.get(i).get();
+                            if (doc != null)
+                                docs.add(doc);
+                        }
+                        catch (ExecutionException ex) {
+                            T e = batch.get(i);
+                            Logger.error("Can't reindex entity "
+                                         +e.getClass().getName()+" "
+                                         +Util.getId(e), ex.getCause());
+                        }
+                    }
+                    _textIndexer.addDocs(docs);
+                    
+                    T last = batch.get(batch.size()-1);
+                    id = Util.getId(last);
+                    count.addAndGet(batch.size());
+                    current = last.getClass().getName()+":"+id;
+                    uncommitted += batch.size();
+                    if (uncommitted >= checkpoint) {
+                        saveCheckpoint (id);
+                        uncommitted = 0l;
+                    }
+                    
+                    Logger.info("Reindexing "+current+"..."+count.get()
+                                +"/"+total+" "+String.format
+                                ("%1$.1f docs/s; ETA %2$ds", rate (), eta ()));
+                }
+                _textIndexer.endBulk();
+                checkpointFile.delete();
+            }
+            finally {
+                if (_textIndexer.isBulk()) {
+                    // whatever has been added so far will get committed
+                    // eventually, so make sure a resume starts after it
+                    if (id != null && !id.equals(lastId))
+                        saveCheckpoint (id);
+                    _textIndexer.endBulk();
                 }
+                pool.shutdown();
+                done = true;
             }
             //EntityPersistAdapter.getInstance().remove(this);
             _textIndexer.flush();
@@ -146,6 +309,10 @@ public class EntityFactory extends Controller {
         public int top;
         public int skip;
         public String filter;
+        // continuation token from a previous page; empty to start a
+        // cursor listing
+        public String cursor;
+        public Object after; // keyset; fetch entities with id > after
         public List<String> expand = new ArrayList<String>();
         public List<String> order = new ArrayList<String>();
         public List<String> select = new ArrayList<String>();
@@ -225,6 +392,9 @@ public class EntityFactory extends Controller {
                                 Logger.warn("Bogus expand field: "+s);
                         }
                     }
+                    else if ("cursor".equalsIgnoreCase(param)) {
+                        cursor = me.getValue()[0];
+                    }
                 }
             } 
             catch (Exception ex) {
@@ -308,14 +478,17 @@ public class EntityFactory extends Controller {
                 }
             }
         }
-        else {
-            //query = query.orderBy("id asc");
+        else if (options.cursor != null) {
+            // stable order so that pages can be continued by keyset
+            query = query.orderBy("id asc");
+            if (options.after != null)
+                query = query.where().gt("id", options.after).query();
         }
 
         try {
             long start = System.currentTimeMillis();
             List<T> results = query
-                .setFirstRow(options.skip)
+                .setFirstRow(options.after != null ? 0 : options.skip)
                 .setMaxRows(options.top)
                 .findList();
             Logger.debug(" => "+results.size()
@@ -329,11 +502,174 @@ public class EntityFactory extends Controller {
         }
     }
 
+    /**
+     * Row counts per entity type and filter; all counts of a type are
+     * dropped whenever an entity of that type (or a subtype) is
+     * inserted, updated or deleted.
+     */
+    static class CountCache implements BeanInterceptor {
+        final ConcurrentMap<Class, ConcurrentMap<String, Integer>> counts =
+            new ConcurrentHashMap<Class, ConcurrentMap<String, Integer>>();
+        // time (ms) of the last change of each type
+        final ConcurrentMap<Class, Long> changed =
+            new ConcurrentHashMap<Class, Long>();
+        volatile boolean registered;
+
+        void register () {
+            if (!registered) {
+                synchronized (this) {
+                    EntityPersistAdapter adapter =
+                        EntityPersistAdapter.getInstance();
+                    if (!registered && adapter != null) {
+                        adapter.add(this);
+                        registered = true;
+                    }
+                }
+            }
+        }
+
+        Integer get (Class type, String filter) {
+            register ();
+            if (type != null) {
+                Map<String, Integer> c = counts.get(type);
+                if (c != null)
+                    return c.get(filter != null ? filter : "");
+            }
+            return null;
+        }
+
+        void put (Class type, String filter, int count) {
+            if (type != null) {
+                ConcurrentMap<String, Integer> c = counts.get(type);
+                if (c == null) {
+                    ConcurrentMap<String, Integer> old = counts.putIfAbsent
+                        (type, c = new ConcurrentHashMap<String, Integer>());
+                    if (old != null)
+                        c = old;
+                }
+                c.put(filter != null ? filter : "", count);
+            }
+        }
+
+        /**
+         * Time of the last change of the given type since startup; 0 if
+         * it hasn't changed (or the type isn't known)
+         */
+        long lastChanged (Class type) {
+            Long t = type != null ? changed.get(type) : null;
+            return t != null ? t : 0l;
+        }
+
+        void invalidate (Object bean) {
+            Long now = System.currentTimeMillis();
+            for (Class c = bean.getClass();
+                 c != null && c != Object.class; c = c.getSuperclass()) {
+                changed.put(c, now);
+                counts.remove(c);
+            }
+        }
+
+        public void postInsert (Object bean) { invalidate (bean); }
+        public void postUpdate (Object bean) { invalidate (bean); }
+        public void postDelete (Object bean) { invalidate (bean); }
+    }
+    static final CountCache _counts = new CountCache ();
+    static final Model.Finder<Long, ETag> etagDb =
+        new Model.Finder(Long.class, ETag.class);
+
+    /**
+     * Latest ETag of the given sha1 that has a total and is newer than
+     * the given time (ms); null if there's none
+     */
+    static ETag getETag (String sha1, long since) {
+        List<ETag> etags = etagDb
+            .where().eq("sha1", sha1).isNotNull("total")
+            .orderBy("modified desc").setMaxRows(1).findList();
+        if (!etags.isEmpty()) {
+            ETag e = etags.iterator().next();
+            if (e.modified == null || e.modified.getTime() > since)
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * Opaque continuation token; it's either keyset (k) based on the
+     * last id when the results are in id order or offset (o) based
+     * otherwise. The request hash ensures a token is only used with
+     * the same filter and order.
+     */
+    static String createCursor (String hash, Object lastId, int skip) {
+        String token;
+        if (lastId != null) {
+            String type = lastId instanceof Number ? "L"
+                : lastId instanceof UUID ? "U" : "S";
+            token = "k|"+hash+"|"+type+"|"+lastId;
+        }
+        else {
+            token = "o|"+hash+"|"+skip;
+        }
+        try {
+            return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(token.getBytes("utf8"));
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException (ex);
+        }
+    }
+
+    /**
+     * Apply the continuation token to the options; returns false if
+     * the token is bogus
+     */
+    static boolean parseCursor (String cursor, String hash,
+                                FetchOptions options) {
+        try {
+            String[] toks = new String (Base64.getUrlDecoder()
+                                        .decode(cursor), "utf8")
+                .split("\\|", 4);
+            if (toks.length < 3 || !hash.equals(toks[1]))
+                return false;
+            
+            if ("k".equals(toks[0]) && toks.length == 4) {
+                options.after = "L".equals(toks[2])
+                    ? Long.parseLong(toks[3]) : "U".equals(toks[2])
+                    ? toUUID (toks[3]) : toks[3];
+                options.skip = 0;
+                return true;
+            }
+            
+            if ("o".equals(toks[0])) {
+                options.skip = Integer.parseInt(toks[2]);
+                return options.skip >= 0;
+            }
+        }
+        catch (Exception ex) {
+            Logger.warn("Bogus cursor: "+cursor);
+        }
+        return false;
+    }
+    
+    /**
+     * Same as below, but the counts of filters aren't cached since the
+     * entity type isn't known
+     */
     protected static <K,T> Result page (int top, int skip, String filter,
+                                        Model.Finder<K, T> finder) {
+        return page (top, skip, filter, null, finder);
+    }
+    
+    protected static <K,T> Result page (int top, int skip, String filter,
+                                        final Class<T> type,
                                         final Model.Finder<K, T> finder) {
 
         //if (select != null) finder.select(select);
         final FetchOptions options = new FetchOptions (top, skip, filter);
+        String hash = Util.sha1(request(), "filter", "order").substring(0, 8);
+        if (options.cursor != null && options.cursor.length() > 0
+            && !parseCursor (options.cursor, hash, options)) {
+            return badRequest ("Invalid cursor: "+options.cursor);
+        }
         List<T> results = filter (options, finder);
         
         
@@ -350,49 +686,54 @@ public class EntityFactory extends Controller {
         etag.method = request().method();
         etag.filter = options.filter;
 
-        if (options.filter == null)
+        final Integer total = _counts.get(type, options.filter);
+        ETag prev = null;
+        if (total != null) {
+            etag.total = total;
+        }
+        else if (options.filter == null) {
             etag.total = finder.findRowCount();
+            _counts.put(type, null, etag.total);
+        }
+        else if ((prev = getETag (etag.sha1,
+                                  _counts.lastChanged(type))) != null) {
+            Logger.debug(">> cached "+etag.sha1+" from ETag "+prev.etag);
+            etag.total = prev.total;
+            _counts.put(type, options.filter, etag.total);
+        }
         else {
-            Model.Finder<Long, ETag> eFinder = 
-                new Model.Finder(Long.class, ETag.class);
-            List<ETag> etags = eFinder
-                .where().eq("sha1", etag.sha1)
-                .orderBy("modified desc").setMaxRows(1).findList();
-
-            if (!etags.isEmpty()) {
-                ETag e = etags.iterator().next();
-                Logger.debug(">> cached "+etag.sha1+" from ETag "+e.etag);
-                etag.total = e.total;
-            }
-            else {
-                // TODO: Need to use Akka here!
-                // execute in the background to determine the actual number
-                // of rows that this query should return
-                _threadPool.submit(new Runnable () {
-                        public void run () {
-                            FutureIds<T> future = 
-                                finder.where(options.filter).findFutureIds();
-                            try {
-                                List<Object> ids = future.get();
-                                etag.total = ids.size();
-                                etag.save();
-                                
-                                for (Object id : ids) {
-                                    ETagRef ref = new ETagRef (etag, (Long)id);
-                                    ref.save();
-                                }
-                                Logger.debug(Thread.currentThread().getName()
-                                             +": "+options.filter+" => "
-                                             +ids.size());
-                            }
-                            catch (Exception ex) {
-                                ex.printStackTrace();
-                                Logger.trace(Thread.currentThread().getName()
-                                             +": ETag "+etag.id, ex);
+            // TODO: Need to use Akka here!
+            // execute in the background to determine the actual number
+            // of rows that this query should return
+            _threadPool.submit(new Runnable () {
+                    public void run () {
+                        FutureIds<T> future = 
+                            finder.where(options.filter).findFutureIds();
+                        try {
+                            List<Object> ids = future.get();
+                            etag.total = ids.size();
+                            _counts.put(type, options.filter, etag.total);
+                            
+                            List<Number> refs = new ArrayList<Number>();
+                            for (Object id : ids) {
+                                if (id instanceof Number)
+                                    refs.add((Number)id);
                             }
+                            if (refs.size() == ids.size())
+                                etag.refs = ETag.toBitmap(refs);
+                            etag.save();
+                            
+                            Logger.debug(Thread.currentThread().getName()
+                                         +": "+options.filter+" => "
+                                         +ids.size());
                         }
-                    });
-            }
+                        catch (Exception ex) {
+                            ex.printStackTrace();
+                            Logger.trace(Thread.currentThread().getName()
+                                         +": ETag "+etag.id, ex);
+                        }
+                    }
+                });
         }
         
         try{
@@ -405,6 +746,20 @@ public class EntityFactory extends Controller {
 
         ObjectMapper mapper = getEntityMapper ();
         ObjectNode obj = (ObjectNode)mapper.valueToTree(etag);
+        if (options.cursor != null
+            && !results.isEmpty() && results.size() >= options.top) {
+            Object lastId = null;
+            if (options.order.isEmpty()) {
+                try {
+                    lastId = Util.getId(results.get(results.size()-1));
+                }
+                catch (Exception ex) {
+                    Logger.trace("Can't get id for keyset cursor", ex);
+                }
+            }
+            obj.put("cursor", createCursor
+                    (hash, lastId, options.skip+results.size()));
+        }
         obj.put("content", mapper.valueToTree(results));
 
         return ok (obj);
@@ -964,6 +1319,7 @@ public class EntityFactory extends Controller {
             JsonNode node = request().body().asJson();
             T inst = mapper.treeToValue(node, type);
             inst.save();
+            awaitIndexing ();
 
             return created ((JsonNode)mapper.valueToTree(inst));
         }
@@ -980,6 +1336,7 @@ public class EntityFactory extends Controller {
             ObjectMapper mapper = getEntityMapper ();
             JsonNode node = mapper.valueToTree(inst);
             inst.delete();
+            awaitIndexing ();
             return ok (node);
         }
         return notFound (request().uri()+" not found");
@@ -1049,6 +1406,7 @@ public class EntityFactory extends Controller {
                     Method m = inst.getClass().getMethod("setId");
                     m.invoke(obj, id);
                     inst.update();
+                    awaitIndexing ();
                 }
                 catch (NoSuchMethodException ex) {
                     return internalServerError (ex.getMessage());
@@ -1254,6 +1612,7 @@ public class EntityFactory extends Controller {
                         Ebean.endTransaction();
                     }   
                 }
+                awaitIndexing ();
 
                 return ok ((JsonNode)mapper.valueToTree(obj));
             }
@@ -1489,10 +1848,14 @@ public class EntityFactory extends Controller {
         json.put("total", idx.total());
         json.put("count", idx.count());
         json.put("current", idx.current());
+        json.put("done", idx.done());
+        json.put("rate", idx.rate());
         if (idx.total() > 0) {
             long pct = (long)(idx.count()*100.0 / idx.total() + 0.5);
             json.put("percent", pct);
         }
+        if (!idx.done())
+            json.put("eta", idx.eta());
         return ok (json);
     }
 }
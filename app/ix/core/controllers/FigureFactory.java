@@ -23,7 +23,7 @@ public class FigureFactory extends EntityFactory {
     public static List<Figure> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Figure.class, finder);
     }
 
     public static Figure getFigure (Long id) {
@@ -30,7 +30,7 @@ public class InvestigatorFactory extends EntityFactory {
     public static List<Investigator> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Investigator.class, finder);
     }
 
     public static Result get (Long id, String select) {
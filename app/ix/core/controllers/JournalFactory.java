@@ -21,7 +21,7 @@ public class JournalFactory extends EntityFactory {
     public static List<Journal> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Journal.class, finder);
     }
 
     public static List<Journal> filter (int top, int skip) {
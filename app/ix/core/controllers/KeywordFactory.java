@@ -25,7 +25,7 @@ public class KeywordFactory extends EntityFactory {
     public static List<Keyword> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Keyword.class, finder);
     }
 
     public static Result get (Long id, String select) {
@@ -22,7 +22,7 @@ public class MeshFactory extends EntityFactory {
     public static List<Mesh> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Mesh.class, finder);
     }
 
     public static Result get (Long id, String select) {
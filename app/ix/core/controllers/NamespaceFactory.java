@@ -20,7 +20,7 @@ public class NamespaceFactory extends EntityFactory {
     public static List<Namespace> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Namespace.class, finder);
     }
 
     public static Namespace get (String name) {
@@ -30,7 +30,7 @@ public class OrganizationFactory extends EntityFactory {
     }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Organization.class, finder);
     }
 
     public static Result get (Long id, String select) {
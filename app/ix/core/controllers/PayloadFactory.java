@@ -30,7 +30,7 @@ public class PayloadFactory extends EntityFactory {
     
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Payload.class, finder);
     }
 
     public static Result get (UUID id, String select) {
@@ -35,7 +35,7 @@ public class PredicateFactory extends EntityFactory {
 
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Predicate.class, finder);
     }
 
     public static List<Predicate> filter (int top, int skip) {
@@ -26,7 +26,7 @@ public class PrincipalFactory extends EntityFactory {
     public static List<Principal> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Principal.class, finder);
     }
 
     public static List<Principal> filter (int top, int skip) {
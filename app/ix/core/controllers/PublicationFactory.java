@@ -36,7 +36,7 @@ public class PublicationFactory extends EntityFactory {
     public static List<Publication> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Publication.class, finder);
     }
 
     public static List<Publication> filter (int top, int skip) {
@@ -31,7 +31,7 @@ public class StructureFactory extends EntityFactory {
     
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Structure.class, finder);
     }
 
     public static Result get (UUID id, String select) {
@@ -27,7 +27,7 @@ public class ValueFactory extends EntityFactory {
     public static List<Value> all () { return all (finder); }
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Value.class, finder);
     }
 
     public static Result get (Long id, String select) {
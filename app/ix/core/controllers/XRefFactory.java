@@ -19,7 +19,7 @@ public class XRefFactory extends EntityFactory {
 
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, XRef.class, finder);
     }
     public static Result get (Long id, String select) {
         return get (id, select, finder);
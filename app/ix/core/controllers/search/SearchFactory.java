@@ -19,7 +19,6 @@ import com.avaje.ebean.*;
 import com.avaje.ebean.event.BeanPersistListener;
 
 import ix.core.models.ETag;
-import ix.core.models.ETagRef;
 import ix.core.models.Edit;
 import ix.core.models.Principal;
 
@@ -235,8 +234,8 @@ public class SearchFactory extends EntityFactory {
         (final Class kind, final String field) {
         try {
             final String key = getTermVectorCacheKey (kind, field);
-            return IxCache.getOrElse
-                (_indexer.lastModified(), key, new Callable<TermVectors> () {
+            return IxCache.getOrElseCurrent
+                (key, new Callable<TermVectors> () {
                     public TermVectors call ()
                         throws Exception {
                         return _indexer.getTermVectors(kind, field);
@@ -281,9 +280,8 @@ public class SearchFactory extends EntityFactory {
         try {
             final String key = getConditionalTermVectorCacheKey
                 (kind, field, conditional);
-            return IxCache.getOrElse
-                (_indexer.lastModified(),
-                 key, new Callable<Map<String, TermVectors>>() {
+            return IxCache.getOrElseCurrent
+                (key, new Callable<Map<String, TermVectors>>() {
                          public Map<String, TermVectors> call ()
                              throws Exception {
                              TermVectors tv = getTermVectors (kind, conditional);
@@ -325,8 +323,8 @@ public class SearchFactory extends EntityFactory {
             final String key = SearchFactory.class.getName()
                 +"/termVectors/"+kind.getName()+"/"+field+"/"
                 +Util.sha1(params.toArray(new String[0]));
-            return IxCache.getOrElse
-                (_indexer.lastModified(), key, new Callable<TermVectors> () {
+            return IxCache.getOrElseCurrent
+                (key, new Callable<TermVectors> () {
                         public TermVectors call ()
                             throws Exception {
                             return _indexer.getTermVectors
@@ -421,8 +419,8 @@ public class SearchFactory extends EntityFactory {
         final String sha1 = Util.sha1(SearchFactory.class.getName()
                                       +"/facets/"+kind.getName()+"/"+fdim);
         try {
-            return IxCache.getOrElse
-                (_indexer.lastModified(), sha1, new Callable<List<Facet>>() {
+            return IxCache.getOrElseCurrent
+                (sha1, new Callable<List<Facet>>() {
                         public List<Facet> call () throws Exception {
                             SearchResult result = search
                                 (kind, null, 0, 0, fdim, null);
@@ -2,8 +2,12 @@ package ix.core.models;
 
 import play.db.ebean.Model;
 
+import java.io.*;
 import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Date;
+import java.util.zip.DeflaterOutputStream;
 import javax.persistence.*;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -36,6 +40,12 @@ public class ETag extends IxModel {
     @Column(length=4000)
     public String filter;
 
+    // ids matching the filter as a compressed bitmap; see toBitmap
+    @JsonIgnore
+    @Lob
+    @Basic(fetch=FetchType.LAZY)
+    public byte[] refs;
+
     public ETag () {
         this (nextETag ());
     }
@@ -57,4 +67,37 @@ public class ETag extends IxModel {
 
         return id.toString();
     }
+
+    /**
+     * Encode the ids as a deflated bitmap relative to the smallest id:
+     * the base id (long), the length of the bitmap in bytes (int) and
+     * the bitmap (BitSet.toByteArray) where bit i is id base+i. This
+     * replaces the ix_core_etagref rows of earlier versions.
+     */
+    public static byte[] toBitmap (Collection<? extends Number> ids)
+        throws IOException {
+        long base = Long.MAX_VALUE;
+        for (Number id : ids)
+            base = Math.min(base, id.longValue());
+
+        BitSet bits = new BitSet ();
+        for (Number id : ids) {
+            long bit = id.longValue() - base;
+            if (bit > Integer.MAX_VALUE)
+                throw new IllegalArgumentException
+                    ("Id range is too large for bitmap: "+base+" "+id);
+            bits.set((int)bit);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+        DataOutputStream dos = new DataOutputStream
+            (new DeflaterOutputStream (bos));
+        byte[] b = bits.toByteArray();
+        dos.writeLong(ids.isEmpty() ? 0l : base);
+        dos.writeInt(b.length);
+        dos.write(b);
+        dos.close();
+        
+        return bos.toByteArray();
+    }
 }
@@ -158,6 +158,24 @@ public abstract class EntityModel extends IxModel {
         return pub;
     }
 
+    /**
+     * Links to instances of the given class, dereferenced in bulk
+     */
+    public List<XRef> resolveLinks (Class kind) {
+        List<XRef> links = new ArrayList<XRef>();
+        for (XRef xref : getLinks ()) {
+            try {
+                if (kind.isAssignableFrom(xref.getKindClass()))
+                    links.add(xref);
+            }
+            catch (Exception ex) {
+                Logger.error("Bogus XRef class: "+xref.kind, ex);
+            }
+        }
+        XRef.deRef(links);
+        return links;
+    }
+
     public XRef getLink (Object inst) {
         for (XRef xref : getLinks ()) {
             if (xref.referenceOf(inst))
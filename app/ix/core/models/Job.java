@@ -62,6 +62,13 @@ public class Job extends Model {
     public Integer processed;
     public Integer failed;
 
+    /**
+     * throughput and backlog of each stage of the processing (json)
+     */
+    @Lob
+    @Basic(fetch=FetchType.EAGER)
+    public String statistics;
+
     public Job () {
     }
 
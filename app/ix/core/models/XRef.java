@@ -3,6 +3,12 @@ package ix.core.models;
 import java.util.UUID;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 
@@ -22,6 +28,33 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 @Entity
 @Table(name="ix_core_xref")
 public class XRef extends IxModel {
+    /**
+     * resolved class and id field of a kind
+     */
+    static class RefType {
+        final Class cls;
+        final Field id;
+
+        RefType (Class cls, Field id) {
+            this.cls = cls;
+            this.id = id;
+        }
+
+        Object parseId (String refid) {
+            Class type = id.getType();
+            if (Long.class.isAssignableFrom(type))
+                return Long.parseLong(refid);
+            if (UUID.class.isAssignableFrom(type))
+                return UUID.fromString(refid);
+            return refid;
+        }
+    }
+
+    static final ConcurrentMap<String, RefType> TYPES =
+        new ConcurrentHashMap<String, RefType>();
+    static final AtomicLong RESOLVED = new AtomicLong ();
+    static final AtomicLong QUERIES = new AtomicLong ();
+    
     /**
      * not id of the XRef instance but id of the instance for which this
      * XRef is pointing to
@@ -99,25 +132,8 @@ public class XRef extends IxModel {
     public Object deRef (boolean force) {
         if (_instance == null || force) {
             try {
-                Class cls = Class.forName(kind);
-                Field fid = Util.getIdField(cls);
-                if (fid != null) {
-                    Class type = fid.getType();
-                    if (Long.class.isAssignableFrom(type))
-                        _instance =
-                            ObjectFactory.get(cls, Long.parseLong(refid));
-                    else if (UUID.class.isAssignableFrom(type))
-                        _instance =
-                            ObjectFactory.get(cls, UUID.fromString(refid));
-                    else
-                        _instance = ObjectFactory.get(cls, refid);
-                    fid = null;
-                }
-                else {
-                    throw new RuntimeException
-                        ("Class "+kind+" doesn't have any fields "
-                         +"annotated with @Id!");
-                }
+                RefType type = getType (kind);
+                _instance = ObjectFactory.get(type.cls, type.parseId(refid));
             }
             catch (Exception ex) {
                 Logger.error("Can't retrieve XRef "+kind+":"+refid, ex);
@@ -126,6 +142,86 @@ public class XRef extends IxModel {
         return _instance;
     }
 
+    /**
+     * Dereference all unresolved references with one query per kind;
+     * returns the number of round trips saved over calling deRef() on
+     * each reference.
+     */
+    public static int deRef (Collection<XRef> refs) {
+        Map<String, List<XRef>> kinds =
+            new LinkedHashMap<String, List<XRef>>();
+        for (XRef ref : refs) {
+            if (ref._instance == null) {
+                List<XRef> group = kinds.get(ref.kind);
+                if (group == null)
+                    kinds.put(ref.kind, group = new ArrayList<XRef>());
+                group.add(ref);
+            }
+        }
+
+        int saved = 0;
+        for (Map.Entry<String, List<XRef>> me : kinds.entrySet()) {
+            try {
+                RefType type = getType (me.getKey());
+                List ids = new ArrayList ();
+                for (XRef ref : me.getValue())
+                    ids.add(type.parseId(ref.refid));
+                
+                Map<Object, Object> objs =
+                    ObjectFactory.getAll(type.cls, ids);
+                for (int i = 0; i < ids.size(); ++i)
+                    me.getValue().get(i)._instance = objs.get(ids.get(i));
+                
+                saved += ids.size() - 1;
+                RESOLVED.addAndGet(ids.size());
+                QUERIES.incrementAndGet();
+            }
+            catch (Exception ex) {
+                Logger.error("Can't resolve "+me.getValue().size()
+                             +" XRef(s) of "+me.getKey(), ex);
+            }
+        }
+        
+        if (saved > 0)
+            Logger.debug(kinds.size()+" batch(es) dereferenced; "
+                         +saved+" round trip(s) saved");
+        return saved;
+    }
+
+    /**
+     * Number of references resolved by deRef(Collection) so far
+     */
+    public static long getResolvedCount () { return RESOLVED.get(); }
+    /**
+     * Number of queries issued by deRef(Collection) so far
+     */
+    public static long getQueryCount () { return QUERIES.get(); }
+
+    static RefType getType (String kind) throws ClassNotFoundException {
+        RefType type = TYPES.get(kind);
+        if (type == null) {
+            Class cls = Class.forName(kind);
+            Field fid = Util.getIdField(cls);
+            if (fid == null)
+                throw new IllegalArgumentException
+                    ("Class "+kind+" doesn't have any fields "
+                     +"annotated with @Id!");
+            RefType prev = TYPES.putIfAbsent
+                (kind, type = new RefType (cls, fid));
+            if (prev != null)
+                type = prev;
+        }
+        return type;
+    }
+
+    /**
+     * Class of the referenced instance
+     */
+    @JsonIgnore
+    public Class getKindClass () throws ClassNotFoundException {
+        return getType(kind).cls;
+    }
+
     public Value addIfAbsent (Value value) {
         if (value != null) {
             if (value.id != null) {
@@ -146,7 +242,7 @@ public class XRef extends IxModel {
 
     public boolean referenceOf (Object instance) {
         try {
-            Class cls = Class.forName(kind);
+            Class cls = getKindClass ();
             Class type = instance.getClass();
             if (cls.isAssignableFrom(type) || type.isAssignableFrom(cls)) {
                 Field fid = Util.getIdField(type);
@@ -0,0 +1,960 @@
+package ix.core.plugins;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import ix.utils.LZ4Block;
+
+/**
+ * Encoding of cache entries for persistence. Every encoded entry is
+ * framed by a short header
+ * <pre>
+ *   'I' 'X' codec version flags [raw length] payload
+ * </pre>
+ * where the payload is optionally compressed, either with LZ4 (fast)
+ * or deflate (smaller; the default for entries persisted to disk),
+ * so that entries written by an older codec (or version) are detected
+ * on read and reported as {@link StaleEntryException} instead of failing
+ * somewhere inside deserialization. Entries that predate the header
+ * (Java serialization, optionally gzip'ed) are still readable.
+ */
+public abstract class CacheCodec {
+    static final byte MAGIC0 = 'I';
+    static final byte MAGIC1 = 'X';
+    static final int HEADER_SIZE = 5;
+    static final int FLAG_LZ4 = 1;
+    static final int FLAG_DEFLATE = 2;
+    static final int COMPRESS_THRESHOLD = 256; // don't bother below this
+
+    // compression of encoded entries
+    public static final int NONE = 0;
+    public static final int LZ4 = FLAG_LZ4;
+    public static final int DEFLATE = FLAG_DEFLATE;
+
+    /**
+     * Entry is readable but was written by a codec (or codec version or
+     * serializer) that is no longer current; it should be discarded.
+     */
+    public static class StaleEntryException extends IOException {
+        public StaleEntryException (String message) {
+            super (message);
+        }
+        public StaleEntryException (String message, Throwable cause) {
+            super (message, cause);
+        }
+    }
+
+    static final ConcurrentMap<Integer, CacheCodec> CODECS =
+        new ConcurrentHashMap<Integer, CacheCodec>();
+
+    public static final JavaCodec JAVA = new JavaCodec ();
+    public static final BinaryCodec BINARY = new BinaryCodec ();
+
+    protected CacheCodec () {
+        CacheCodec codec = CODECS.putIfAbsent(getId (), this);
+        if (codec != null)
+            throw new IllegalArgumentException
+                ("Codec id "+getId ()+" is already taken by "
+                 +codec.getName());
+    }
+
+    /**
+     * Compression of the given name: none, lz4 or deflate
+     */
+    public static int getCompression (String name) {
+        if ("none".equalsIgnoreCase(name))
+            return NONE;
+        if ("lz4".equalsIgnoreCase(name))
+            return LZ4;
+        if ("deflate".equalsIgnoreCase(name))
+            return DEFLATE;
+        throw new IllegalArgumentException
+            ("Bogus compression \""+name+"\"");
+    }
+
+    public static CacheCodec getCodec (String name) {
+        for (CacheCodec codec : CODECS.values())
+            if (codec.getName().equalsIgnoreCase(name))
+                return codec;
+        return null;
+    }
+
+    public abstract int getId ();
+    public abstract String getName ();
+    // bump when the encoding changes; older entries become stale
+    public abstract int getVersion ();
+
+    protected abstract byte[] write (Object obj) throws IOException;
+    protected abstract Object read (byte[] data, int off, int len)
+        throws IOException, ClassNotFoundException;
+
+    public byte[] encode (Object obj) throws IOException {
+        return encode (obj, DEFLATE);
+    }
+
+    public byte[] encode (Object obj, boolean compress) throws IOException {
+        return encode (obj, compress ? LZ4 : NONE);
+    }
+
+    /**
+     * Encode with the given compression (NONE, LZ4 or DEFLATE); small
+     * or incompressible entries are kept as is
+     */
+    public byte[] encode (Object obj, int compression) throws IOException {
+        byte[] raw = write (obj);
+        byte[] body = null;
+        if (compression != NONE && raw.length >= COMPRESS_THRESHOLD) {
+            switch (compression) {
+            case LZ4: body = LZ4Block.compress(raw); break;
+            case DEFLATE: body = deflate (raw); break;
+            default:
+                throw new IllegalArgumentException
+                    ("Bogus compression "+compression);
+            }
+            if (body.length + 4 >= raw.length)
+                body = null; // not worth it
+        }
+
+        int flags = body != null ? compression : 0;
+        int size = HEADER_SIZE + (body != null ? 4 + body.length : raw.length);
+        byte[] data = new byte[size];
+        data[0] = MAGIC0;
+        data[1] = MAGIC1;
+        data[2] = (byte)getId ();
+        data[3] = (byte)getVersion ();
+        data[4] = (byte)flags;
+        if (body != null) {
+            int n = raw.length;
+            data[5] = (byte)(n >>> 24);
+            data[6] = (byte)(n >>> 16);
+            data[7] = (byte)(n >>> 8);
+            data[8] = (byte)n;
+            System.arraycopy(body, 0, data, HEADER_SIZE+4, body.length);
+        }
+        else {
+            System.arraycopy(raw, 0, data, HEADER_SIZE, raw.length);
+        }
+        return data;
+    }
+
+    static byte[] deflate (byte[] raw) {
+        Deflater deflater = new Deflater ();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buf = new byte[raw.length];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == buf.length)
+                    buf = Arrays.copyOf(buf, 2*buf.length);
+                n += deflater.deflate(buf, n, buf.length - n);
+            }
+            return Arrays.copyOf(buf, n);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate (byte[] data, int off, int len, int length)
+        throws IOException {
+        Inflater inflater = new Inflater ();
+        try {
+            inflater.setInput(data, off, len);
+            byte[] raw = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int nb = inflater.inflate(raw, n, length - n);
+                if (nb == 0 && (inflater.needsInput()
+                                || inflater.needsDictionary()))
+                    break;
+                n += nb;
+            }
+            if (n != length || !inflater.finished())
+                throw new IOException ("Expecting "+length
+                                       +" bytes but inflated "+n);
+            return raw;
+        }
+        catch (DataFormatException ex) {
+            throw new IOException ("Corrupted deflate block", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    static void putInt (byte[] data, int off, int v) {
+        data[off] = (byte)(v >>> 24);
+        data[off+1] = (byte)(v >>> 16);
+        data[off+2] = (byte)(v >>> 8);
+        data[off+3] = (byte)v;
+    }
+
+    static int getInt (byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+            | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+    }
+
+    /**
+     * Length of the section starting at off (after its 4-byte length)
+     * within the given len bytes
+     */
+    static int section (byte[] data, int off, int len, String name)
+        throws StreamCorruptedException {
+        if (len < 4)
+            throw new StreamCorruptedException
+                ("Entry is too short for its "+name+" section ("+len+")");
+        int size = getInt (data, off);
+        if (size < 0 || size > len - 4)
+            throw new StreamCorruptedException
+                ("Bogus "+name+" section size "+size);
+        return size;
+    }
+
+    public static boolean isFramed (byte[] data, int off, int len) {
+        return len >= HEADER_SIZE
+            && data[off] == MAGIC0 && data[off+1] == MAGIC1;
+    }
+
+    public static Object decode (byte[] data) throws IOException {
+        return decode (data, 0, data.length);
+    }
+
+    public static Object decode (byte[] data, int off, int len)
+        throws IOException {
+        try {
+            if (!isFramed (data, off, len))
+                return decodeLegacy (data, off, len);
+
+            int id = data[off+2] & 0xff;
+            int version = data[off+3] & 0xff;
+            int flags = data[off+4] & 0xff;
+            CacheCodec codec = CODECS.get(id);
+            if (codec == null)
+                throw new StaleEntryException ("Unknown codec "+id);
+            if (version != codec.getVersion())
+                throw new StaleEntryException
+                    (codec.getName()+" codec version "+version
+                     +" is not current ("+codec.getVersion()+")");
+
+            off += HEADER_SIZE;
+            len -= HEADER_SIZE;
+            if ((flags & (FLAG_LZ4|FLAG_DEFLATE)) != 0) {
+                int n = ((data[off] & 0xff) << 24)
+                    | ((data[off+1] & 0xff) << 16)
+                    | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+                data = (flags & FLAG_LZ4) != 0
+                    ? LZ4Block.decompress(data, off+4, len-4, n)
+                    : inflate (data, off+4, len-4, n);
+                off = 0;
+                len = n;
+            }
+            return codec.read(data, off, len);
+        }
+        catch (InvalidClassException ex) {
+            // serialVersionUID changed
+            throw new StaleEntryException (ex.getMessage(), ex);
+        }
+        catch (ClassNotFoundException ex) {
+            throw new StaleEntryException
+                ("Class not found: "+ex.getMessage(), ex);
+        }
+    }
+
+    static Object decodeLegacy (byte[] data, int off, int len)
+        throws IOException, ClassNotFoundException {
+        if (len < 2)
+            throw new StreamCorruptedException
+                ("Cache entry is too short ("+len+")");
+
+        int magic = ((data[off+1] & 0xff) << 8) | (data[off] & 0xff);
+        InputStream is = new ByteArrayInputStream (data, off, len);
+        if (magic == GZIPInputStream.GZIP_MAGIC)
+            is = new GZIPInputStream (is);
+        ObjectInputStream ois = new ObjectInputStream (is);
+        try {
+            return ois.readObject();
+        }
+        finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Plain Java serialization
+     */
+    public static class JavaCodec extends CacheCodec {
+        JavaCodec () {}
+
+        public int getId () { return 1; }
+        public String getName () { return "java"; }
+        public int getVersion () { return 1; }
+
+        protected byte[] write (Object obj) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+            ObjectOutputStream oos = new ObjectOutputStream (bytes);
+            oos.writeObject(obj);
+            oos.close();
+            return bytes.toByteArray();
+        }
+
+        protected Object read (byte[] data, int off, int len)
+            throws IOException, ClassNotFoundException {
+            ObjectInputStream ois = new ObjectInputStream
+                (new ByteArrayInputStream (data, off, len));
+            try {
+                return ois.readObject();
+            }
+            finally {
+                ois.close();
+            }
+        }
+    }
+
+    /**
+     * Tagged binary encoding. Strings, boxed primitives, byte arrays and
+     * the common collections are encoded natively; classes registered
+     * with {@link #register} are written by their serializer under a
+     * fixed id (no class names or field descriptors); persistent
+     * entities are written as references (class and id) into a table
+     * kept after the main section and looked up again on read, one
+     * query per class, if an {@link EntityResolver} is set; anything else
+     * falls back to Java serialization. Fallback objects of an entry
+     * share a single object stream kept after the main section, so that
+     * class descriptors and shared references are written only once.
+     */
+    public static class BinaryCodec extends CacheCodec {
+        static final int NULL = 0;
+        static final int STRING = 1;
+        static final int INT = 2;
+        static final int LONG = 3;
+        static final int DOUBLE = 4;
+        static final int FLOAT = 5;
+        static final int TRUE = 6;
+        static final int FALSE = 7;
+        static final int SHORT = 8;
+        static final int BYTE = 9;
+        static final int CHAR = 10;
+        static final int BYTES = 11;
+        static final int ARRAY = 12;
+        static final int ARRAYLIST = 13;
+        static final int HASHMAP = 14;
+        static final int LINKEDHASHMAP = 15;
+        static final int TREEMAP = 16;
+        static final int HASHSET = 17;
+        static final int LINKEDHASHSET = 18;
+        static final int TREESET = 19;
+        static final int REGISTERED = 20;
+        static final int REF = 21; // back reference
+        static final int JAVA = 22;
+        static final int ENTITY = 23;
+
+        /**
+         * Serializer for a registered class. Bump the version whenever
+         * the encoding changes; entries with the old version are then
+         * reported as stale.
+         */
+        public static abstract class Serializer<T> {
+            public int getVersion () { return 1; }
+            public abstract void write (Output out, T obj)
+                throws IOException;
+            public abstract T read (Input in)
+                throws IOException, ClassNotFoundException;
+        }
+
+        /**
+         * Registers serializers with a codec; named by ix.cache.serializers
+         * so that modules can register their own cached types when the
+         * cache starts
+         */
+        public interface Registrar {
+            void register (BinaryCodec codec);
+        }
+
+        /**
+         * Persistent entities are encoded as references through this
+         */
+        public interface EntityResolver {
+            // id of the given object if it's a persistent entity, else null
+            Object getId (Object obj);
+            // entities of the given class keyed by the given ids; those
+            // that no longer exist are left out
+            Map<Object, Object> findAll (String cls, Collection ids)
+                throws IOException, ClassNotFoundException;
+        }
+
+        static class Registration {
+            final int id;
+            final Class cls;
+            final Serializer serializer;
+
+            Registration (int id, Class cls, Serializer serializer) {
+                this.id = id;
+                this.cls = cls;
+                this.serializer = serializer;
+            }
+        }
+
+        final ConcurrentMap<Class, Registration> classes =
+            new ConcurrentHashMap<Class, Registration>();
+        final ConcurrentMap<Integer, Registration> ids =
+            new ConcurrentHashMap<Integer, Registration>();
+        volatile EntityResolver resolver;
+
+        BinaryCodec () {}
+
+        public int getId () { return 2; }
+        public String getName () { return "binary"; }
+        public int getVersion () { return 2; }
+
+        /**
+         * Register a serializer for instances of exactly the given
+         * class. Ids are part of the persisted format and must not be
+         * reused for a different class.
+         */
+        public synchronized <T> void register
+            (int id, Class<T> cls, Serializer<T> serializer) {
+            if (id < 0)
+                throw new IllegalArgumentException
+                    ("Bogus registration id "+id);
+
+            Registration r = ids.get(id);
+            if (r != null && r.cls != cls)
+                throw new IllegalArgumentException
+                    ("Registration id "+id+" is already taken by "
+                     +r.cls.getName());
+
+            r = new Registration (id, cls, serializer);
+            ids.put(id, r);
+            classes.put(cls, r);
+        }
+
+        public boolean isRegistered (Class cls) {
+            return classes.containsKey(cls);
+        }
+
+        public void setEntityResolver (EntityResolver resolver) {
+            this.resolver = resolver;
+        }
+        public EntityResolver getEntityResolver () { return resolver; }
+
+        protected byte[] write (Object obj) throws IOException {
+            Output out = new Output ();
+            out.writeObject(obj);
+            return out.toByteArray();
+        }
+
+        protected Object read (byte[] data, int off, int len)
+            throws IOException, ClassNotFoundException {
+            return new Input(data, off, len).readObject();
+        }
+
+        // unsynchronized ByteArrayOutputStream
+        static class Buffer extends OutputStream {
+            byte[] buf = new byte[1024];
+            int count;
+
+            void ensure (int n) {
+                if (count + n > buf.length)
+                    buf = Arrays.copyOf
+                        (buf, Math.max(2*buf.length, count + n));
+            }
+
+            @Override
+            public void write (int b) {
+                ensure (1);
+                buf[count++] = (byte)b;
+            }
+
+            @Override
+            public void write (byte[] b, int off, int len) {
+                ensure (len);
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+            }
+        }
+
+        public class Output extends DataOutputStream {
+            final IdentityHashMap<Object, Integer> refs =
+                new IdentityHashMap<Object, Integer>();
+            // entity class names, written once per entry
+            final Map<Class, Integer> entities = new HashMap<Class, Integer>();
+            final EntityResolver resolver = BinaryCodec.this.resolver;
+            Output table; // entity references, if any
+            int tableSize;
+            final Buffer main;
+            ByteArrayOutputStream side;
+            ObjectOutputStream oos;
+
+            Output () {
+                this (new Buffer ());
+            }
+
+            Output (Buffer main) {
+                super (main);
+                this.main = main;
+            }
+
+            public void writeVarInt (int v) throws IOException {
+                while ((v & ~0x7f) != 0) {
+                    write ((v & 0x7f) | 0x80);
+                    v >>>= 7;
+                }
+                write (v);
+            }
+
+            public void writeVarLong (long v) throws IOException {
+                while ((v & ~0x7fl) != 0l) {
+                    write ((int)(v & 0x7f) | 0x80);
+                    v >>>= 7;
+                }
+                write ((int)v);
+            }
+
+            public void writeString (String s) throws IOException {
+                if (s == null) {
+                    writeVarInt (0);
+                }
+                else {
+                    byte[] b = s.getBytes("utf-8");
+                    writeVarInt (b.length+1);
+                    write (b);
+                }
+            }
+
+            boolean writeRef (Object obj) throws IOException {
+                Integer ref = refs.get(obj);
+                if (ref != null) {
+                    write (REF);
+                    writeVarInt (ref);
+                    return true;
+                }
+                refs.put(obj, refs.size());
+                return false;
+            }
+
+            public void writeObject (Object obj) throws IOException {
+                if (obj == null) {
+                    write (NULL);
+                    return;
+                }
+
+                Class cls = obj.getClass();
+                if (cls == String.class) {
+                    write (STRING);
+                    writeString ((String)obj);
+                }
+                else if (cls == Integer.class) {
+                    int v = (Integer)obj;
+                    write (INT);
+                    writeVarInt ((v << 1) ^ (v >> 31));
+                }
+                else if (cls == Long.class) {
+                    long v = (Long)obj;
+                    write (LONG);
+                    writeVarLong ((v << 1) ^ (v >> 63));
+                }
+                else if (cls == Double.class) {
+                    write (DOUBLE);
+                    writeDouble ((Double)obj);
+                }
+                else if (cls == Float.class) {
+                    write (FLOAT);
+                    writeFloat ((Float)obj);
+                }
+                else if (cls == Boolean.class) {
+                    write ((Boolean)obj ? TRUE : FALSE);
+                }
+                else if (cls == Short.class) {
+                    write (SHORT);
+                    writeShort ((Short)obj);
+                }
+                else if (cls == Byte.class) {
+                    write (BYTE);
+                    writeByte ((Byte)obj);
+                }
+                else if (cls == Character.class) {
+                    write (CHAR);
+                    writeChar ((Character)obj);
+                }
+                else if (cls == byte[].class) {
+                    byte[] b = (byte[])obj;
+                    write (BYTES);
+                    writeVarInt (b.length);
+                    write (b);
+                }
+                else if (writeRef (obj)) {
+                    // already written
+                }
+                else if (classes.containsKey(cls)) {
+                    Registration r = classes.get(cls);
+                    write (REGISTERED);
+                    writeVarInt (r.id);
+                    writeVarInt (r.serializer.getVersion());
+                    r.serializer.write(this, obj);
+                }
+                else if (cls == Object[].class) {
+                    Object[] a = (Object[])obj;
+                    write (ARRAY);
+                    writeVarInt (a.length);
+                    for (Object o : a)
+                        writeObject (o);
+                }
+                else if (cls == ArrayList.class) {
+                    writeCollection (ARRAYLIST, (Collection)obj);
+                }
+                else if (cls == HashSet.class) {
+                    writeCollection (HASHSET, (Collection)obj);
+                }
+                else if (cls == LinkedHashSet.class) {
+                    writeCollection (LINKEDHASHSET, (Collection)obj);
+                }
+                else if (cls == TreeSet.class
+                         && ((TreeSet)obj).comparator() == null) {
+                    writeCollection (TREESET, (Collection)obj);
+                }
+                else if (cls == HashMap.class) {
+                    writeMap (HASHMAP, (Map)obj);
+                }
+                else if (cls == LinkedHashMap.class) {
+                    writeMap (LINKEDHASHMAP, (Map)obj);
+                }
+                else if (cls == TreeMap.class
+                         && ((TreeMap)obj).comparator() == null) {
+                    writeMap (TREEMAP, (Map)obj);
+                }
+                else if (!writeEntity (obj)) {
+                    if (!(obj instanceof Serializable))
+                        throw new NotSerializableException (cls.getName());
+
+                    if (oos == null)
+                        oos = new ObjectOutputStream
+                            (side = new ByteArrayOutputStream ());
+                    write (JAVA);
+                    oos.writeObject(obj);
+                }
+            }
+
+            boolean writeEntity (Object obj) throws IOException {
+                Object id = resolver != null ? resolver.getId(obj) : null;
+                if (id == null)
+                    return false;
+
+                if (table == null)
+                    table = new Output ();
+
+                Class cls = obj.getClass();
+                Integer index = entities.get(cls);
+                if (index != null) {
+                    table.writeVarInt (index);
+                }
+                else {
+                    entities.put(cls, entities.size());
+                    table.writeVarInt (entities.size() - 1);
+                    table.writeString (cls.getName());
+                }
+                table.writeObject (id);
+                write (ENTITY);
+                writeVarInt (tableSize++);
+                return true;
+            }
+
+            void writeCollection (int tag, Collection c) throws IOException {
+                write (tag);
+                writeVarInt (c.size());
+                for (Object o : c)
+                    writeObject (o);
+            }
+
+            void writeMap (int tag, Map<Object, Object> m)
+                throws IOException {
+                write (tag);
+                writeVarInt (m.size());
+                for (Map.Entry<Object, Object> me : m.entrySet()) {
+                    writeObject (me.getKey());
+                    writeObject (me.getValue());
+                }
+            }
+
+            /**
+             * main section length, main section, entity table length,
+             * entity table, java section; the entity table is encoded as
+             * an entry of its own with the class (index, and name when
+             * first seen) and id of each reference
+             */
+            byte[] toByteArray () throws IOException {
+                if (oos != null)
+                    oos.close();
+
+                byte[] entries = table != null ? table.toByteArray() : null;
+                int n = main.count;
+                int t = entries != null ? entries.length : 0;
+                byte[] data = new byte
+                    [8 + n + t + (side != null ? side.size() : 0)];
+                putInt (data, 0, n);
+                System.arraycopy(main.buf, 0, data, 4, n);
+                putInt (data, 4 + n, t);
+                if (entries != null)
+                    System.arraycopy(entries, 0, data, 8 + n, t);
+                if (side != null) {
+                    byte[] b = side.toByteArray();
+                    System.arraycopy(b, 0, data, 8 + n + t, b.length);
+                }
+                return data;
+            }
+        }
+
+        public class Input extends DataInputStream {
+            final List<Object> refs = new ArrayList<Object>();
+            final byte[] data;
+            final int sideOffset, sideLength;
+            final Object[] entities; // resolved entity references
+            ObjectInputStream ois;
+
+            Input (byte[] data, int off, int len) throws IOException {
+                super (new ByteArrayInputStream
+                       (data, off+4, section (data, off, len, "main")));
+                int size = getInt (data, off);
+                int t = section (data, off+4+size, len-4-size, "entity");
+                this.data = data;
+                entities = t > 0 ? resolve (data, off+8+size, t) : null;
+                sideOffset = off + 8 + size + t;
+                sideLength = len - 8 - size - t;
+            }
+
+            /**
+             * Look up the entities of the given table; one query per
+             * entity class rather than per reference
+             */
+            Object[] resolve (byte[] data, int off, int len)
+                throws IOException {
+                Input table = new Input (data, off, len);
+                List<String> names = new ArrayList<String>();
+                List<Integer> classes = new ArrayList<Integer>();
+                List<Object> ids = new ArrayList<Object>();
+                try {
+                    while (table.available() > 0) {
+                        int index = table.readVarInt();
+                        if (index == names.size())
+                            names.add(table.readString());
+                        else if (index > names.size())
+                            throw new StreamCorruptedException
+                                ("Bogus entity class "+index);
+                        classes.add(index);
+                        ids.add(table.readObject());
+                    }
+                }
+                catch (ClassNotFoundException ex) {
+                    throw new StreamCorruptedException
+                        ("Bogus entity id: "+ex.getMessage());
+                }
+
+                EntityResolver resolver = BinaryCodec.this.resolver;
+                if (resolver == null)
+                    throw new StaleEntryException
+                        ("No resolver for "+ids.size()+" entity reference(s)");
+
+                Object[] entities = new Object[ids.size()];
+                try {
+                    for (int c = 0; c < names.size(); ++c) {
+                        Set<Object> keys = new LinkedHashSet<Object>();
+                        for (int i = 0; i < ids.size(); ++i)
+                            if (classes.get(i) == c)
+                                keys.add(ids.get(i));
+
+                        String cls = names.get(c);
+                        Map<Object, Object> found =
+                            resolver.findAll(cls, keys);
+                        for (int i = 0; i < ids.size(); ++i) {
+                            if (classes.get(i) != c)
+                                continue;
+                            Object obj = found != null
+                                ? found.get(ids.get(i)) : null;
+                            if (obj == null)
+                                throw new StaleEntryException
+                                    ("Entity "+cls+":"+ids.get(i)
+                                     +" is gone");
+                            entities[i] = obj;
+                        }
+                    }
+                }
+                catch (ClassNotFoundException ex) {
+                    throw new StaleEntryException
+                        ("Class not found: "+ex.getMessage(), ex);
+                }
+                return entities;
+            }
+
+            public int readVarInt () throws IOException {
+                int v = 0;
+                for (int shift = 0; shift < 35; shift += 7) {
+                    int b = readUnsignedByte ();
+                    v |= (b & 0x7f) << shift;
+                    if ((b & 0x80) == 0)
+                        return v;
+                }
+                throw new StreamCorruptedException ("Malformed varint");
+            }
+
+            public long readVarLong () throws IOException {
+                long v = 0l;
+                for (int shift = 0; shift < 70; shift += 7) {
+                    int b = readUnsignedByte ();
+                    v |= (long)(b & 0x7f) << shift;
+                    if ((b & 0x80) == 0)
+                        return v;
+                }
+                throw new StreamCorruptedException ("Malformed varlong");
+            }
+
+            public String readString () throws IOException {
+                int n = readVarInt ();
+                if (n == 0)
+                    return null;
+                byte[] b = new byte[n-1];
+                readFully (b);
+                return new String (b, "utf-8");
+            }
+
+            int newRef () {
+                refs.add(null);
+                return refs.size() - 1;
+            }
+
+            public Object readObject ()
+                throws IOException, ClassNotFoundException {
+                int tag = readUnsignedByte ();
+                switch (tag) {
+                case NULL: return null;
+                case STRING: return readString ();
+                case INT:
+                    {   int v = readVarInt ();
+                        return (v >>> 1) ^ -(v & 1);
+                    }
+                case LONG:
+                    {   long v = readVarLong ();
+                        return (v >>> 1) ^ -(v & 1l);
+                    }
+                case DOUBLE: return readDouble ();
+                case FLOAT: return readFloat ();
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case SHORT: return readShort ();
+                case BYTE: return readByte ();
+                case CHAR: return readChar ();
+                case BYTES:
+                    {   byte[] b = new byte[readVarInt ()];
+                        readFully (b);
+                        return b;
+                    }
+                case REF:
+                    {   int ref = readVarInt ();
+                        if (ref >= refs.size())
+                            throw new StreamCorruptedException
+                                ("Bogus reference "+ref);
+                        Object obj = refs.get(ref);
+                        if (obj == null) // only registered objects
+                            throw new InvalidObjectException
+                                ("Cyclic reference "+ref
+                                 +" through a registered class");
+                        return obj;
+                    }
+                case REGISTERED:
+                    {   int id = readVarInt ();
+                        int version = readVarInt ();
+                        Registration r = ids.get(id);
+                        if (r == null)
+                            throw new StaleEntryException
+                                ("Unknown registration id "+id);
+                        if (version != r.serializer.getVersion())
+                            throw new StaleEntryException
+                                (r.cls.getName()+" serializer version "
+                                 +version+" is not current ("
+                                 +r.serializer.getVersion()+")");
+                        int ref = newRef ();
+                        Object obj = r.serializer.read(this);
+                        refs.set(ref, obj);
+                        return obj;
+                    }
+                case ARRAY:
+                    {   Object[] a = new Object[readVarInt ()];
+                        refs.add(a);
+                        for (int i = 0; i < a.length; ++i)
+                            a[i] = readObject ();
+                        return a;
+                    }
+                case ARRAYLIST:
+                    {   int n = readVarInt ();
+                        return readCollection (new ArrayList (n), n);
+                    }
+                case HASHSET:
+                    {   int n = readVarInt ();
+                        return readCollection
+                            (new HashSet (Math.max(16, 4*n/3+1)), n);
+                    }
+                case LINKEDHASHSET:
+                    {   int n = readVarInt ();
+                        return readCollection
+                            (new LinkedHashSet (Math.max(16, 4*n/3+1)), n);
+                    }
+                case TREESET:
+                    return readCollection (new TreeSet (), readVarInt ());
+                case HASHMAP:
+                    {   int n = readVarInt ();
+                        return readMap
+                            (new HashMap (Math.max(16, 4*n/3+1)), n);
+                    }
+                case LINKEDHASHMAP:
+                    {   int n = readVarInt ();
+                        return readMap
+                            (new LinkedHashMap (Math.max(16, 4*n/3+1)), n);
+                    }
+                case TREEMAP:
+                    return readMap (new TreeMap (), readVarInt ());
+                case ENTITY:
+                    {   int index = readVarInt ();
+                        if (entities == null || index >= entities.length)
+                            throw new StreamCorruptedException
+                                ("Bogus entity reference "+index);
+                        refs.add(entities[index]);
+                        return entities[index];
+                    }
+                case JAVA:
+                    {   if (ois == null)
+                            ois = new ObjectInputStream
+                                (new ByteArrayInputStream
+                                 (data, sideOffset, sideLength));
+                        Object obj = ois.readObject();
+                        refs.add(obj);
+                        return obj;
+                    }
+                }
+                throw new StreamCorruptedException ("Unknown tag "+tag);
+            }
+
+            Collection readCollection (Collection c, int n)
+                throws IOException, ClassNotFoundException {
+                refs.add(c);
+                for (int i = 0; i < n; ++i)
+                    c.add(readObject ());
+                return c;
+            }
+
+            Map readMap (Map m, int n)
+                throws IOException, ClassNotFoundException {
+                refs.add(m);
+                for (int i = 0; i < n; ++i) {
+                    Object key = readObject ();
+                    m.put(key, readObject ());
+                }
+                return m;
+            }
+        }
+    }
+}
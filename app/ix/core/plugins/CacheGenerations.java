@@ -0,0 +1,224 @@
+package ix.core.plugins;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modification generations of entity kinds and of individual entities,
+ * used by {@link IxCache} to invalidate only the entries that depend on
+ * what changed. A generation is the (wall clock) time of the last change
+ * so it can be compared against an element's creation time. Changing an
+ * entity bumps its id, its class and all superclasses of its class, so
+ * depending on a kind covers its subtypes.
+ *
+ * Dependencies are recorded per thread while a cache value is being
+ * generated, either implicitly (entity queries and loads, index
+ * searches) or explicitly through {@link #depends}.
+ */
+public class CacheGenerations {
+    public static final String ANY = "*"; // depends on everything
+    static final int MAX_IDS = 100000;
+
+    static final ConcurrentMap<String, AtomicLong> kinds =
+        new ConcurrentHashMap<String, AtomicLong>();
+    static final ConcurrentMap<String, AtomicLong> ids =
+        new ConcurrentHashMap<String, AtomicLong>();
+    static final AtomicLong any = new AtomicLong ();
+    // lower bound of every generation, e.g., index modified while down
+    static final AtomicLong floor = new AtomicLong ();
+    // lower bound of id generations that were dropped to bound memory
+    static final AtomicLong idFloor = new AtomicLong ();
+
+    static final ConcurrentMap<String, Class> classes =
+        new ConcurrentHashMap<String, Class>();
+
+    static final ThreadLocal<Set<String>> scope =
+        new ThreadLocal<Set<String>>();
+
+    private CacheGenerations () {}
+
+    static void advance (AtomicLong gen, long time) {
+        for (long t; (t = gen.get()) < time && !gen.compareAndSet(t, time);)
+            ;
+    }
+
+    static void advance (ConcurrentMap<String, AtomicLong> gens,
+                         String key, long time) {
+        AtomicLong gen = gens.get(key);
+        if (gen == null) {
+            AtomicLong g = gens.putIfAbsent(key, gen = new AtomicLong ());
+            if (g != null)
+                gen = g;
+        }
+        advance (gen, time);
+    }
+
+    static String key (Class kind, Object id) {
+        return kind.getName()+"#"+id;
+    }
+
+    /**
+     * Record a change to the given kind
+     */
+    public static void bump (Class kind) {
+        bump (kind, null);
+    }
+
+    /**
+     * Record a change to the entity with the given id (if not null); the
+     * id generations are dropped wholesale once there are too many
+     */
+    public static void bump (Class kind, Object id) {
+        long now = System.currentTimeMillis();
+        if (id != null) {
+            if (ids.size() >= MAX_IDS) {
+                advance (idFloor, now);
+                ids.clear();
+            }
+            advance (ids, key (kind, id), now);
+        }
+        for (Class c = kind; c != null && c != Object.class;
+             c = c.getSuperclass())
+            advance (kinds, c.getName(), now);
+        advance (any, now);
+    }
+
+    /**
+     * Record a change to the named kind, e.g., from the kind field of an
+     * index document
+     */
+    public static void bump (String kind) {
+        Class cls = classes.get(kind);
+        if (cls == null) {
+            try {
+                cls = Class.forName(kind);
+                classes.putIfAbsent(kind, cls);
+            }
+            catch (ClassNotFoundException ex) {
+                long now = System.currentTimeMillis();
+                advance (kinds, kind, now);
+                advance (any, now);
+                return;
+            }
+        }
+        bump (cls, null);
+    }
+
+    /**
+     * Record a change that can't be attributed to a kind
+     */
+    public static void bumpAll () {
+        long now = System.currentTimeMillis();
+        advance (any, now);
+        advance (floor, now);
+    }
+
+    /**
+     * Changes made before the given time (e.g., while the server was
+     * down) invalidate everything generated before it
+     */
+    public static void floor (long time) {
+        advance (floor, time);
+    }
+
+    public static boolean isTracking () {
+        return scope.get() != null;
+    }
+
+    /**
+     * The value being generated depends on all entities of the given
+     * kind (and its subtypes); a null kind means everything
+     */
+    public static void depends (Class kind) {
+        Set<String> deps = scope.get();
+        if (deps != null)
+            deps.add(kind != null ? kind.getName() : ANY);
+    }
+
+    /**
+     * The value being generated depends on the given entity only
+     */
+    public static void depends (Class kind, Object id) {
+        if (id == null) {
+            depends (kind);
+        }
+        else {
+            Set<String> deps = scope.get();
+            if (deps != null)
+                deps.add(key (kind, id));
+        }
+    }
+
+    public static void dependsOnAll () {
+        depends (null);
+    }
+
+    // carry over dependencies of an entry used by the value being generated
+    static void inherit (Set<String> deps) {
+        Set<String> current = scope.get();
+        if (current != null && deps != null)
+            current.addAll(deps);
+    }
+
+    /**
+     * Start recording dependencies on this thread; returns the enclosing
+     * scope (if any) to pass to end()
+     */
+    static Set<String> begin () {
+        Set<String> outer = scope.get();
+        scope.set(new HashSet<String>());
+        return outer;
+    }
+
+    /**
+     * Stop recording and return what was recorded since begin(); the
+     * enclosing scope inherits the dependencies
+     */
+    static Set<String> end (Set<String> outer) {
+        Set<String> deps = scope.get();
+        if (outer != null) {
+            scope.set(outer);
+            outer.addAll(deps);
+        }
+        else {
+            scope.remove();
+        }
+        return Collections.unmodifiableSet(deps);
+    }
+
+    /**
+     * Latest generation of the given dependencies; unknown or empty
+     * dependencies conservatively depend on everything
+     */
+    public static long epoch (Set<String> deps) {
+        long epoch = floor.get();
+        if (deps == null || deps.isEmpty() || deps.contains(ANY))
+            return Math.max(epoch, any.get());
+
+        for (String d : deps) {
+            boolean isId = d.indexOf('#') > 0;
+            AtomicLong gen = (isId ? ids : kinds).get(d);
+            if (gen != null)
+                epoch = Math.max(epoch, gen.get());
+            if (isId)
+                epoch = Math.max(epoch, idFloor.get());
+        }
+        return epoch;
+    }
+
+    public static long getGeneration (Class kind) {
+        AtomicLong gen = kinds.get(kind.getName());
+        return Math.max(floor.get(), gen != null ? gen.get() : 0l);
+    }
+
+    public static long getLastModified () {
+        return Math.max(floor.get(), any.get());
+    }
+
+    public static int getTrackedKindCount () { return kinds.size(); }
+    public static int getTrackedIdCount () { return ids.size(); }
+}
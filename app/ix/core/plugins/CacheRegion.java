@@ -0,0 +1,153 @@
+package ix.core.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.SizeOfPolicyConfiguration;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+import net.sf.ehcache.store.Policy;
+
+/**
+ * A named partition of {@link IxCache} with its own heap and disk
+ * budgets in bytes; heap sizes are estimated per value class by
+ * {@link CacheSizeOfEngine}. Heap eviction is TinyLFU: the sampled entry with
+ * the lowest estimated access frequency is evicted, unless the entry
+ * just added is even less popular, in which case that one is dropped
+ * from the heap instead, so a burst of one-off queries can't flush
+ * hot entries.
+ */
+public class CacheRegion {
+    static final int MAX_SIZEOF_DEPTH = 10000;
+    // ehcache instantiates the SizeOfEngine named by this property
+    // suffixed with the cache name
+    static final String SIZEOF_ENGINE = "net.sf.ehcache.sizeofengine";
+
+    final String name;
+    final String heap;
+    final String disk;
+    final FrequencySketch sketch;
+    Cache cache;
+
+    final AtomicLong hits = new AtomicLong ();
+    final AtomicLong misses = new AtomicLong ();
+    final AtomicLong loads = new AtomicLong (); // from persistence
+    final AtomicLong evictions = new AtomicLong ();
+    final AtomicLong rejections = new AtomicLong ();
+
+    class Admission implements Policy {
+        public String getName () { return "TinyLFU"; }
+
+        public Element selectedBasedOnPolicy (Element[] sampled,
+                                              Element justAdded) {
+            Element victim = null;
+            int vfreq = Integer.MAX_VALUE;
+            for (Element e : sampled) {
+                if (e == null || e == justAdded)
+                    continue;
+                int f = sketch.frequency(e.getObjectKey());
+                if (victim == null || f < vfreq
+                    || (f == vfreq && e.getLastAccessTime()
+                        < victim.getLastAccessTime())) {
+                    victim = e;
+                    vfreq = f;
+                }
+            }
+
+            if (justAdded != null && (victim == null || sketch.frequency
+                                      (justAdded.getObjectKey()) < vfreq)) {
+                rejections.incrementAndGet();
+                return justAdded;
+            }
+            return victim;
+        }
+
+        public boolean compare (Element e1, Element e2) {
+            return sketch.frequency(e2.getObjectKey())
+                < sketch.frequency(e1.getObjectKey());
+        }
+    }
+
+    CacheRegion (String name, String heap, String disk,
+                 int expectedEntries) {
+        this.name = name;
+        this.heap = heap;
+        this.disk = disk;
+        sketch = new FrequencySketch (expectedEntries);
+    }
+
+    CacheConfiguration configuration () {
+        String cacheName = IxCache.CACHE_NAME+"."+name;
+        System.setProperty(SIZEOF_ENGINE+"."+cacheName,
+                           CacheSizeOfEngine.class.getName());
+        CacheConfiguration conf = new CacheConfiguration ()
+            .name(cacheName)
+            .eternal(true)
+            .overflowToDisk(true)
+            .diskPersistent(true)
+            .sizeOfPolicy(new SizeOfPolicyConfiguration ()
+                          .maxDepth(MAX_SIZEOF_DEPTH)
+                          .maxDepthExceededBehavior("continue"));
+        conf.setMaxBytesLocalHeap(heap);
+        conf.setMaxBytesLocalDisk(disk);
+        return conf;
+    }
+
+    void init (Cache cache) {
+        this.cache = cache;
+        cache.setMemoryStoreEvictionPolicy(new Admission ());
+        cache.getCacheEventNotificationService()
+            .registerListener(new CacheEventListenerAdapter () {
+                    @Override
+                    public void notifyElementEvicted (Ehcache cache,
+                                                      Element elm) {
+                        evictions.incrementAndGet();
+                        IxCache.unroute(elm.getObjectKey(),
+                                        CacheRegion.this);
+                    }
+                    @Override
+                    public void notifyElementExpired (Ehcache cache,
+                                                      Element elm) {
+                        IxCache.unroute(elm.getObjectKey(),
+                                        CacheRegion.this);
+                    }
+                    @Override
+                    public void notifyElementRemoved (Ehcache cache,
+                                                      Element elm) {
+                        IxCache.unroute(elm.getObjectKey(),
+                                        CacheRegion.this);
+                    }
+                });
+        cache.setSampledStatisticsEnabled(true);
+        Logger.debug("## cache region "+name+": heap="+heap+" disk="+disk);
+    }
+
+    void access (Object key) {
+        sketch.increment(key);
+    }
+
+    public String getName () { return name; }
+    public Ehcache getCache () { return cache; }
+    public long getHeapBudget () {
+        return cache.getCacheConfiguration().getMaxBytesLocalHeap();
+    }
+    public long getDiskBudget () {
+        return cache.getCacheConfiguration().getMaxBytesLocalDisk();
+    }
+    public long getHeapSize () { return cache.calculateInMemorySize(); }
+    public long getDiskSize () { return cache.calculateOnDiskSize(); }
+    public int getSize () { return cache.getSize(); }
+    public long getHits () { return hits.get(); }
+    public long getMisses () { return misses.get(); }
+    public long getLoads () { return loads.get(); }
+    public long getEvictions () { return evictions.get(); }
+    public long getRejections () { return rejections.get(); }
+    public double getHitRatio () {
+        long h = hits.get() + loads.get(), total = h + misses.get();
+        return total > 0 ? (double)h/total : 0.;
+    }
+}
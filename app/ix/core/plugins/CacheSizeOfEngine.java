@@ -0,0 +1,116 @@
+package ix.core.plugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.ehcache.pool.Size;
+import net.sf.ehcache.pool.SizeOfEngine;
+import net.sf.ehcache.pool.sizeof.ReflectionSizeOf;
+import net.sf.ehcache.pool.sizeof.SizeOf;
+import net.sf.ehcache.pool.sizeof.UnsafeSizeOf;
+
+/**
+ * Heap size of the entries of a {@link CacheRegion}. Ehcache's default
+ * engine walks the whole object graph of every value put in the cache;
+ * here the graph is walked for the first few values of each class (and
+ * then once in a while) only, and their mean size is used for the rest.
+ * Strings and primitive arrays are still measured since that's cheap.
+ */
+public class CacheSizeOfEngine implements SizeOfEngine {
+    // exact measurements of each class before the estimate is used
+    static final int SAMPLES = 4;
+    // after that, measure one in this many values
+    static final int RESAMPLE = 256;
+
+    static class Estimate {
+        long total;
+        int samples;
+        long count;
+
+        synchronized boolean sample () {
+            ++count;
+            return samples < SAMPLES || count % RESAMPLE == 0;
+        }
+
+        synchronized void add (long size) {
+            total += size;
+            ++samples;
+        }
+
+        synchronized long mean () {
+            return samples > 0 ? total / samples : 0l;
+        }
+    }
+
+    final int maxDepth;
+    final boolean abortWhenMaxDepthExceeded;
+    final SizeOf sizeOf;
+    final ConcurrentMap<Class, Estimate> estimates;
+
+    public CacheSizeOfEngine (int maxDepth,
+                              boolean abortWhenMaxDepthExceeded) {
+        this (maxDepth, abortWhenMaxDepthExceeded,
+              new ConcurrentHashMap<Class, Estimate>());
+    }
+
+    CacheSizeOfEngine (int maxDepth, boolean abortWhenMaxDepthExceeded,
+                       ConcurrentMap<Class, Estimate> estimates) {
+        this.maxDepth = maxDepth;
+        this.abortWhenMaxDepthExceeded = abortWhenMaxDepthExceeded;
+        this.estimates = estimates;
+        sizeOf = createSizeOf ();
+    }
+
+    static SizeOf createSizeOf () {
+        try {
+            return new UnsafeSizeOf ();
+        }
+        catch (UnsupportedOperationException ex) {
+            return new ReflectionSizeOf ();
+        }
+    }
+
+    public SizeOfEngine copyWith (int maxDepth,
+                                  boolean abortWhenMaxDepthExceeded) {
+        return new CacheSizeOfEngine
+            (maxDepth, abortWhenMaxDepthExceeded, estimates);
+    }
+
+    long deepSizeOf (Object obj) {
+        return sizeOf.deepSizeOf
+            (maxDepth, abortWhenMaxDepthExceeded, obj).getCalculated();
+    }
+
+    public Size sizeOf (Object key, Object value, Object container) {
+        // the container (element) is measured shallow; a deep walk
+        // would reach the value through it
+        long size = (container != null ? sizeOf.sizeOf(container) : 0l)
+            + (key != null ? deepSizeOf (key) : 0l);
+        if (value == null) {
+        }
+        else if (value instanceof String
+                 || (value.getClass().isArray() && value.getClass()
+                     .getComponentType().isPrimitive())) {
+            size += deepSizeOf (value);
+        }
+        else {
+            Class cls = value.getClass();
+            Estimate est = estimates.get(cls);
+            if (est == null) {
+                Estimate e = estimates.putIfAbsent(cls, est = new Estimate ());
+                if (e != null)
+                    est = e;
+            }
+
+            if (est.sample()) {
+                long s = deepSizeOf (value);
+                est.add(s);
+                size += s;
+            }
+            else {
+                size += est.mean();
+            }
+        }
+        return new Size (size, false);
+    }
+}
@@ -0,0 +1,341 @@
+package ix.core.plugins;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+/**
+ * Warms the cache for a set of keys (e.g., target accessions) with a
+ * bounded number of workers. Keys are visited in order of popularity
+ * as recorded by {@link #hit(String)}, so the most requested pages are
+ * warm first. Completed keys are checkpointed to disk so that a run
+ * interrupted by a restart resumes where it stopped; the checkpoint is
+ * cleared once a run completes. At most {@link #MAX_KEYS} keys are
+ * tracked for popularity; when there are more, the least popular are
+ * forgotten.
+ */
+public class CacheWarmer {
+    public static final int CONCURRENCY = 4;
+    public static final int MAX_KEYS = 100000;
+    static final int CHECKPOINT = 100; // flush every so many keys
+
+    public interface Task {
+        void warm (String key) throws Exception;
+    }
+
+    final String name;
+    final File done; // completed keys of the current run, one per line
+    final File hits; // popularity as "key<tab>count" lines
+    final ConcurrentMap<String, AtomicInteger> popularity =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    final AtomicLong recorded = new AtomicLong ();
+
+    int concurrency = CONCURRENCY;
+    int maxKeys = MAX_KEYS;
+    ExecutorService threadPool;
+    Writer checkpoint;
+
+    final AtomicInteger count = new AtomicInteger ();
+    final AtomicInteger failed = new AtomicInteger ();
+    final AtomicLong start = new AtomicLong ();
+    final AtomicLong stop = new AtomicLong ();
+    volatile int total;
+    volatile int resumed;
+
+    public CacheWarmer (String name, File dir) {
+        dir.mkdirs();
+        this.name = name;
+        done = new File (dir, name+".done");
+        hits = new File (dir, name+".hits");
+        loadPopularity ();
+    }
+
+    public String getName () { return name; }
+
+    public void setConcurrency (int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException
+                ("Bogus concurrency "+concurrency);
+        this.concurrency = concurrency;
+    }
+    public int getConcurrency () { return concurrency; }
+
+    public void setMaxKeys (int maxKeys) {
+        if (maxKeys < 1)
+            throw new IllegalArgumentException ("Bogus maxKeys "+maxKeys);
+        this.maxKeys = maxKeys;
+        if (popularity.size() > maxKeys)
+            prune ();
+    }
+    public int getMaxKeys () { return maxKeys; }
+
+    /**
+     * Record a request for the given key
+     */
+    public void hit (String key) {
+        hit (key, 1);
+    }
+
+    public void hit (String key, int n) {
+        AtomicInteger c = popularity.get(key);
+        if (c == null) {
+            AtomicInteger prev = popularity.putIfAbsent
+                (key, c = new AtomicInteger ());
+            if (prev != null)
+                c = prev;
+            else if (popularity.size() > maxKeys)
+                prune ();
+        }
+        c.addAndGet(n);
+
+        if (recorded.incrementAndGet() % 1000 == 0)
+            savePopularity ();
+    }
+
+    public int getPopularity (String key) {
+        AtomicInteger c = popularity.get(key);
+        return c != null ? c.get() : 0;
+    }
+
+    /**
+     * Snapshot of the current popularity counts
+     */
+    Map<String, Integer> counts () {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> me : popularity.entrySet())
+            counts.put(me.getKey(), me.getValue().get());
+        return counts;
+    }
+
+    /**
+     * Forget the least popular keys so that three quarters of maxKeys
+     * remain; a key just added (with no hit yet) can go too, which only
+     * means its first hit isn't counted
+     */
+    synchronized void prune () {
+        int keep = maxKeys - maxKeys/4;
+        if (popularity.size() <= keep)
+            return;
+        
+        final Map<String, Integer> counts = counts ();
+        String[] keys = counts.keySet().toArray(new String[0]);
+        Arrays.sort(keys, new Comparator<String>() {
+                public int compare (String k1, String k2) {
+                    return counts.get(k2) - counts.get(k1);
+                }
+            });
+        for (int i = keep; i < keys.length; ++i)
+            popularity.remove(keys[i]);
+        Logger.debug(name+": forgot "+(keys.length-keep)
+                     +" least popular key(s)");
+    }
+
+    public synchronized boolean isRunning () {
+        return threadPool != null && !threadPool.isTerminated();
+    }
+
+    /**
+     * Warm the given keys, skipping those completed by an earlier
+     * interrupted run; returns false if a run is already in progress.
+     */
+    public synchronized boolean start (Collection<String> keys,
+                                       final Task task) throws IOException {
+        if (isRunning ())
+            return false;
+
+        Set<String> completed = loadCheckpoint ();
+        List<String> pending = new ArrayList<String>();
+        for (String k : keys)
+            if (!completed.contains(k))
+                pending.add(k);
+
+        final String[] order = pending.toArray(new String[0]);
+        // sort on a snapshot since hits keep coming in; stable, so
+        // equally popular keys keep the given order
+        final Map<String, Integer> counts = counts ();
+        Arrays.sort(order, new Comparator<String>() {
+                public int compare (String k1, String k2) {
+                    Integer c1 = counts.get(k1), c2 = counts.get(k2);
+                    return (c2 != null ? c2 : 0) - (c1 != null ? c1 : 0);
+                }
+            });
+
+        total = keys.size();
+        resumed = keys.size() - order.length;
+        count.set(0);
+        failed.set(0);
+        start.set(System.currentTimeMillis());
+        stop.set(0l);
+        checkpoint = new BufferedWriter (new FileWriter (done, true));
+
+        Logger.debug("## "+name+" cache warmer: "+order.length+" of "
+                     +total+" key(s) to warm with "+concurrency
+                     +" worker(s)");
+
+        final AtomicInteger next = new AtomicInteger ();
+        final AtomicInteger workers = new AtomicInteger (concurrency);
+        threadPool = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; ++i) {
+            threadPool.submit(new Runnable () {
+                    public void run () {
+                        for (int k; (k = next.getAndIncrement())
+                                 < order.length
+                                 && !Thread.currentThread()
+                                 .isInterrupted(); ) {
+                            warm (task, order[k]);
+                        }
+                        if (workers.decrementAndGet() == 0)
+                            finish (next.get() >= order.length);
+                    }
+                });
+        }
+        threadPool.shutdown();
+
+        return true;
+    }
+
+    void warm (Task task, String key) {
+        try {
+            task.warm(key);
+        }
+        catch (Exception ex) {
+            failed.incrementAndGet();
+            Logger.debug(name+": "+key+"...failed: "+ex.getMessage());
+        }
+
+        // failed keys are checkpointed too; they'll be retried on the
+        // next complete run rather than holding up a resume
+        synchronized (this) {
+            try {
+                checkpoint.write(key);
+                checkpoint.write('\n');
+                if (count.incrementAndGet() % CHECKPOINT == 0)
+                    checkpoint.flush();
+            }
+            catch (IOException ex) {
+                Logger.warn("Can't checkpoint "+name+" key "+key, ex);
+            }
+        }
+    }
+
+    synchronized void finish (boolean complete) {
+        stop.set(System.currentTimeMillis());
+        try {
+            checkpoint.close();
+        }
+        catch (IOException ex) {
+            Logger.warn("Can't close checkpoint "+done, ex);
+        }
+
+        if (complete)
+            done.delete();
+        savePopularity ();
+
+        Logger.debug("## "+name+" cache warmer "
+                     +(complete ? "complete" : "stopped")+": "
+                     +count.get()+" key(s) ("+failed.get()+" failed) in "
+                     +String.format("%1$.1fs",
+                                    1e-3*(stop.get()-start.get())));
+    }
+
+    /**
+     * Stop the current run; what's completed so far is kept for resume
+     */
+    public void shutdown () {
+        ExecutorService pool;
+        synchronized (this) {
+            pool = threadPool;
+        }
+
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex) {
+                Logger.warn("Interrupted while stopping "+name+" warmer");
+            }
+        }
+        savePopularity ();
+    }
+
+    Set<String> loadCheckpoint () throws IOException {
+        Set<String> keys = new HashSet<String>();
+        if (done.exists()) {
+            BufferedReader br = new BufferedReader (new FileReader (done));
+            for (String line; (line = br.readLine()) != null; )
+                if (line.length() > 0)
+                    keys.add(line);
+            br.close();
+        }
+        return keys;
+    }
+
+    void loadPopularity () {
+        if (!hits.exists())
+            return;
+
+        try {
+            BufferedReader br = new BufferedReader (new FileReader (hits));
+            for (String line; (line = br.readLine()) != null; ) {
+                int pos = line.lastIndexOf('\t');
+                if (pos > 0) {
+                    try {
+                        popularity.put
+                            (line.substring(0, pos), new AtomicInteger
+                             (Integer.parseInt(line.substring(pos+1))));
+                    }
+                    catch (NumberFormatException ex) {
+                        Logger.warn(hits+": bogus line \""+line+"\"");
+                    }
+                }
+            }
+            br.close();
+        }
+        catch (IOException ex) {
+            Logger.warn("Can't load popularity from "+hits, ex);
+        }
+        
+        if (popularity.size() > maxKeys)
+            prune ();
+    }
+
+    synchronized void savePopularity () {
+        try {
+            File tmp = new File (hits.getParentFile(), hits.getName()+".tmp");
+            PrintWriter pw = new PrintWriter (new FileWriter (tmp));
+            for (Map.Entry<String, AtomicInteger> me : popularity.entrySet())
+                pw.println(me.getKey()+"\t"+me.getValue().get());
+            pw.close();
+            if (!tmp.renameTo(hits))
+                Logger.warn("Can't rename "+tmp+" to "+hits);
+        }
+        catch (IOException ex) {
+            Logger.warn("Can't save popularity to "+hits, ex);
+        }
+    }
+
+    public int getTotal () { return total; }
+    public int getCount () { return count.get() + resumed; }
+    public int getResumed () { return resumed; }
+    public int getFailed () { return failed.get(); }
+    public long getStart () { return start.get(); }
+    public long getStop () { return stop.get(); }
+    public boolean isDone () { return stop.get() > 0l; }
+}
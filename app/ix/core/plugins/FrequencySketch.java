@@ -0,0 +1,104 @@
+/*
+ * Adapted from com.github.benmanes.caffeine.cache.FrequencySketch of
+ * the Caffeine library (https://github.com/ben-manes/caffeine):
+ *
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Changes: the table is sized once from the expected entries and the
+ * updates are synchronized.
+ */
+package ix.core.plugins;
+
+/**
+ * Approximate access frequency of keys as a count-min sketch of 4-bit
+ * counters (TinyLFU). Counters are halved once the number of recorded
+ * accesses reaches ten times the width, so the sketch ages towards
+ * recent popularity. Increments and the halving are synchronized;
+ * frequency reads aren't, so a read racing with an update can see the
+ * count from either side of it.
+ */
+public class FrequencySketch {
+    static final long[] SEEDS = {
+        0xc3a5c85c97cb3127l, 0xb492b66fbe98f273l,
+        0x9ae16a3b2f90404fl, 0xcbf29ce484222325l
+    };
+    static final long RESET_MASK = 0x7777777777777777l;
+
+    final long[] table; // 16 counters per long
+    final int mask;
+    final int sampleSize;
+    int size;
+
+    public FrequencySketch (int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException
+                ("Bogus max entries "+maxEntries);
+        int width = Integer.highestOneBit(Math.max(64, maxEntries) - 1) << 1;
+        table = new long[width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    static int spread (int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+
+    int indexOf (int h, int i) {
+        long hash = (h + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return (int)hash & mask;
+    }
+
+    public int frequency (Object key) {
+        int h = spread (key.hashCode());
+        int start = (h & 3) << 2; // 4 of the 16 counters in a slot
+        int freq = 15;
+        for (int i = 0; i < 4; ++i) {
+            int shift = (start + i) << 2;
+            int count = (int)((table[indexOf (h, i)] >>> shift) & 0xfl);
+            freq = Math.min(freq, count);
+        }
+        return freq;
+    }
+
+    public synchronized void increment (Object key) {
+        int h = spread (key.hashCode());
+        int start = (h & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; ++i) {
+            int index = indexOf (h, i);
+            int shift = (start + i) << 2;
+            long m = 0xfl << shift;
+            if ((table[index] & m) != m) {
+                table[index] += 1l << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++size >= sampleSize)
+            reset ();
+    }
+
+    synchronized void reset () {
+        int odd = 0;
+        for (int i = 0; i < table.length; ++i) {
+            odd += Long.bitCount(table[i] & 0x1111111111111111l);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+}
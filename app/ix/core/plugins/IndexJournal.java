@@ -0,0 +1,486 @@
+package ix.core.plugins;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import play.Logger;
+import org.apache.lucene.document.Document;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ix.core.models.Edit;
+import ix.core.search.TextIndexer;
+import ix.utils.Util;
+
+/**
+ * Journal of pending text index updates. Entity persist callbacks
+ * append to the journal and return immediately; a single background
+ * thread drains it in batches, coalescing repeated updates to the same
+ * entity, and saves any pending edit history in the same pass. The
+ * index document and the edit values are snapshotted on append, so
+ * later changes to the (live) bean don't leak into them. Every append
+ * is assigned a generation so that callers needing to see their own
+ * writes can wait for it with {@link #await(long,long)}. Should the
+ * background thread ever die, the journal refuses further appends so
+ * that callers fall back to indexing directly.
+ */
+public class IndexJournal implements Runnable {
+    public static final int BATCH_SIZE = 500;
+    public static final long LINGER = 50l; // ms
+
+    public enum Op {
+        ADD,
+        UPDATE,
+        REMOVE
+    }
+
+    static class Entry {
+        Op op;
+        Object bean;
+        Document doc; // null for REMOVE or if not indexable
+        long generation;
+
+        Entry (Op op, Object bean, Document doc, long generation) {
+            this.op = op;
+            this.bean = bean;
+            this.doc = doc;
+            this.generation = generation;
+        }
+
+        // fold a later operation on the same entity into this one
+        void merge (Op op, Object bean, Document doc, long generation) {
+            if (op == Op.REMOVE)
+                this.op = Op.REMOVE;
+            else if (this.op == Op.REMOVE)
+                // removed and then reinserted; delete whatever the
+                // index still has before adding
+                this.op = Op.UPDATE;
+            else if (this.op != Op.ADD)
+                this.op = op;
+            // an ADD followed by an UPDATE remains an ADD
+
+            this.bean = bean;
+            this.doc = doc;
+            this.generation = generation;
+        }
+    }
+
+    static class PendingEdit {
+        final Class kind;
+        final Object id;
+        final String oldValue;
+        final String newValue;
+
+        PendingEdit (Class kind, Object id, String oldValue, String newValue) {
+            this.kind = kind;
+            this.id = id;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    final TextIndexer indexer;
+    final ObjectMapper mapper = new ObjectMapper ();
+    final ReentrantLock lock = new ReentrantLock ();
+    final Condition pending = lock.newCondition();
+    final Condition indexed = lock.newCondition();
+
+    Map<Object, Entry> entries = new LinkedHashMap<Object, Entry>();
+    List<PendingEdit> edits = new ArrayList<PendingEdit>();
+    long generation; // last generation appended
+    long applied; // last generation applied to the index
+    long batches;
+    long coalesced;
+    long failures; // entries and edits that couldn't be applied
+    boolean shutdown;
+    boolean dead; // background thread exited without a shutdown
+
+    int batchSize = BATCH_SIZE;
+    long linger = LINGER;
+    ExecutorService threadPool;
+
+    public IndexJournal (TextIndexer indexer) {
+        if (indexer == null)
+            throw new IllegalArgumentException ("Indexer is null");
+        this.indexer = indexer;
+    }
+
+    public void setBatchSize (int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException
+                ("Bogus batch size "+batchSize);
+        this.batchSize = batchSize;
+    }
+    public int getBatchSize () { return batchSize; }
+
+    public void setLinger (long linger) {
+        if (linger < 0l)
+            throw new IllegalArgumentException ("Bogus linger "+linger);
+        this.linger = linger;
+    }
+    public long getLinger () { return linger; }
+
+    public void start () {
+        threadPool = Executors.newSingleThreadExecutor();
+        threadPool.submit(this);
+    }
+
+    /**
+     * Apply whatever is still in the journal and stop the background
+     * thread
+     */
+    public void shutdown () {
+        lock.lock();
+        try {
+            shutdown = true;
+            pending.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        if (threadPool != null) {
+            threadPool.shutdown();
+            try {
+                if (!threadPool.awaitTermination(1, TimeUnit.MINUTES))
+                    Logger.warn("Index journal didn't drain in time; "
+                                +entries.size()+" update(s) dropped!");
+            }
+            catch (InterruptedException ex) {
+                Logger.warn("Interrupted while draining index journal");
+            }
+        }
+    }
+
+    public long add (Object bean) { return append (Op.ADD, bean); }
+    public long update (Object bean) { return append (Op.UPDATE, bean); }
+    public long remove (Object bean) { return append (Op.REMOVE, bean); }
+
+    public long append (Op op, Object bean) {
+        Object key = getKey (bean);
+        // instrument now while the bean still has the state being
+        // persisted; only the analysis is left to the background thread
+        Document doc = op != Op.REMOVE ? indexer.createDoc(bean) : null;
+        lock.lock();
+        try {
+            check ();
+            long gen = ++generation;
+            Entry e = entries.get(key);
+            if (e != null) {
+                e.merge(op, bean, doc, gen);
+                ++coalesced;
+            }
+            else {
+                entries.put(key, new Entry (op, bean, doc, gen));
+            }
+            pending.signal();
+            return gen;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record an edit history for the given bean; oldValues and bean are
+     * serialized right away so that the edit reflects this update only,
+     * whereas saving the edit is left to the background thread.
+     */
+    public long edit (Class kind, Object id, Object oldValues, Object bean)
+        throws IOException {
+        PendingEdit pe = new PendingEdit
+            (kind, id, mapper.writeValueAsString(oldValues),
+             mapper.writeValueAsString(bean));
+        lock.lock();
+        try {
+            check ();
+            edits.add(pe);
+            pending.signal();
+            return generation;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // lock must be held
+    void check () {
+        if (shutdown)
+            throw new IllegalStateException
+                ("Index journal has been shut down!");
+        if (dead)
+            throw new IllegalStateException ("Index journal is dead!");
+    }
+
+    static Object getKey (Object bean) {
+        try {
+            Object id = Util.getId(bean);
+            if (id != null)
+                return bean.getClass().getName()+":"+id;
+        }
+        catch (Exception ex) {
+            Logger.trace("Can't retrieve bean id", ex);
+        }
+        return bean; // can't coalesce
+    }
+
+    public long getGeneration () {
+        lock.lock();
+        try {
+            return generation;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAppliedGeneration () {
+        lock.lock();
+        try {
+            return applied;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPendingCount () {
+        lock.lock();
+        try {
+            return entries.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBatchCount () { return batches; }
+    public long getCoalescedCount () { return coalesced; }
+    public long getFailureCount () { return failures; }
+
+    /**
+     * True if the background thread has exited without a shutdown;
+     * nothing gets applied anymore
+     */
+    public boolean isDead () {
+        lock.lock();
+        try {
+            return dead;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until all updates up to and including the given generation
+     * are visible in the index; returns false if timed out or if the
+     * journal is dead.
+     */
+    public boolean await (long gen, long timeout)
+        throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (applied < gen) {
+                if (nanos <= 0l || dead)
+                    return false;
+                nanos = indexed.awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for everything appended so far
+     */
+    public boolean sync (long timeout) throws InterruptedException {
+        return await (getGeneration (), timeout);
+    }
+
+    public void run () {
+        String thread = Thread.currentThread().getName();
+        Logger.debug("## "+getClass().getName()+" starts thread "+thread);
+        long count = 0;
+        try {
+            for (;;) {
+                List<Entry> batch = new ArrayList<Entry>();
+                List<PendingEdit> history;
+                long gen;
+                lock.lock();
+                try {
+                    while (entries.isEmpty() && edits.isEmpty() && !shutdown)
+                        pending.await();
+
+                    if (entries.isEmpty() && edits.isEmpty())
+                        break; // shutdown
+
+                    // give concurrent writers a chance to coalesce
+                    if (!shutdown && linger > 0l
+                        && entries.size() < batchSize)
+                        pending.await(linger, TimeUnit.MILLISECONDS);
+
+                    Iterator<Entry> it = entries.values().iterator();
+                    while (it.hasNext() && batch.size() < batchSize) {
+                        batch.add(it.next());
+                        it.remove();
+                    }
+                    gen = entries.isEmpty() ? generation : 0l;
+                    for (Entry e : batch)
+                        if (e.generation > gen)
+                            gen = e.generation;
+
+                    history = edits;
+                    edits = new ArrayList<PendingEdit>();
+                }
+                finally {
+                    lock.unlock();
+                }
+
+                int failed = 0;
+                try {
+                    failed += apply (batch);
+                    failed += save (history);
+                    count += batch.size();
+                }
+                catch (Throwable t) {
+                    // whatever is left of this pass is lost, but the
+                    // journal has to keep going
+                    Logger.error("Index journal pass of "+batch.size()
+                                 +" update(s) and "+history.size()
+                                 +" edit(s) failed", t);
+                    failed = batch.size() + history.size();
+                }
+
+                lock.lock();
+                try {
+                    ++batches;
+                    failures += failed;
+                    // entries are drained in generation order except for
+                    // coalesced ones, which carry the latest generation
+                    // of their entity, so everything below the oldest
+                    // remaining entry has been applied
+                    long oldest = gen;
+                    for (Entry e : entries.values())
+                        if (e.generation <= oldest)
+                            oldest = e.generation - 1;
+                    if (oldest > applied)
+                        applied = oldest;
+                    indexed.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Logger.debug("## "+getClass().getName()+": thread "+thread
+                         +" interrupted!", ex);
+        }
+        finally {
+            lock.lock();
+            try {
+                if (!shutdown) {
+                    dead = true;
+                    Logger.error("Index journal thread "+thread+" died with "
+                                 +entries.size()+" pending update(s)!");
+                }
+                // don't leave anyone waiting on updates that won't come
+                indexed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        Logger.debug("## "+getClass().getName()+": thread "+thread
+                     +" applied "+count+" index update(s) in "
+                     +batches+" batch(es); "+coalesced+" coalesced!");
+    }
+
+    /**
+     * Returns the number of entries that failed
+     */
+    int apply (List<Entry> batch) {
+        int failed = 0;
+        for (Entry e : batch) {
+            try {
+                switch (e.op) {
+                case ADD:
+                    if (e.doc != null)
+                        indexer.addDoc(e.doc);
+                    break;
+                case UPDATE:
+                    if (e.doc != null)
+                        indexer.updateDocs(Collections.singletonList(e.bean),
+                                           Collections.singletonList(e.doc));
+                    else
+                        indexer.remove(e.bean);
+                    break;
+                case REMOVE: indexer.remove(e.bean); break;
+                }
+            }
+            catch (Exception ex) {
+                Logger.error("Can't "+e.op+" index for bean "+e.bean, ex);
+                ++failed;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Save the edits in one transaction, each behind its own savepoint
+     * so that a bad one doesn't take the rest down with it; returns the
+     * number of edits that failed
+     */
+    int save (List<PendingEdit> history) {
+        if (history.isEmpty())
+            return 0;
+
+        int failed = 0;
+        Transaction tx = Ebean.beginTransaction();
+        try {
+            Connection con = tx.getConnection();
+            for (PendingEdit pe : history) {
+                Savepoint sp = con.setSavepoint();
+                try {
+                    Edit edit = new Edit (pe.kind, pe.id);
+                    edit.oldValue = pe.oldValue;
+                    edit.newValue = pe.newValue;
+                    edit.save();
+                    con.releaseSavepoint(sp);
+                }
+                catch (Exception ex) {
+                    con.rollback(sp);
+                    Logger.warn("Can't save edit for "
+                                +pe.kind.getName()+":"+pe.id, ex);
+                    ++failed;
+                }
+            }
+            tx.commit();
+        }
+        catch (Exception ex) {
+            Logger.error("Can't save "+history.size()+" edit(s)", ex);
+            failed = history.size();
+        }
+        finally {
+            Ebean.endTransaction();
+        }
+        return failed;
+    }
+}
@@ -4,18 +4,18 @@ import java.io.*;
 import java.nio.*;
 import java.nio.file.*;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.security.MessageDigest;
-import java.security.DigestOutputStream;
 
 import play.Logger;
 import play.Plugin;
 import play.Application;
 import play.mvc.Result;
+import play.mvc.Http;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
@@ -33,37 +33,97 @@ import net.sf.ehcache.config.PersistenceConfiguration;
 import net.sf.ehcache.writer.CacheWriter;
 import net.sf.ehcache.writer.AbstractCacheWriter;
 import net.sf.ehcache.loader.CacheLoader;
-import net.sf.ehcache.constructs.blocking.CacheEntryFactory;
-import net.sf.ehcache.constructs.blocking.SelfPopulatingCache;
 import net.sf.ehcache.writer.writebehind.operations.SingleOperationType;
 import net.sf.ehcache.event.CacheEventListenerAdapter;
 
 import com.sleepycat.je.*;
+import ix.core.ObjectFactory;
+import javax.persistence.Entity;
+import ix.core.search.TextIndexer;
 import ix.utils.Util;
 
 public class IxCache extends Plugin
-    implements CacheWriter, CacheEntryFactory {
+    implements CacheWriter {
     public static final String CACHE_NAME = "IxCache";
     
-    static final int MAX_ELEMENTS = 10000;
+    static final int EXPECTED_ENTRIES = 10000;
     static final int TIME_TO_LIVE = 60*60; // 1hr
     static final int TIME_TO_IDLE = 60*60; // 1hr
     
     public static final String CACHE_MAX_OBJECT_SIZE =
         "ix.cache.maxCacheObjectSize";
+    // obsolete; heap budgets are now in bytes (see ix.cache.regions)
     public static final String CACHE_MAX_ELEMENTS = "ix.cache.maxElements";
+    public static final String CACHE_EXPECTED_ENTRIES =
+        "ix.cache.expectedEntries";
     public static final String CACHE_TIME_TO_LIVE = "ix.cache.timeToLive";
     public static final String CACHE_TIME_TO_IDLE = "ix.cache.timeToIdle";
     public static final String CACHE_QUEUE_SIZE = "ix.cache.queueSize";
+    public static final String CACHE_CODEC = "ix.cache.codec";
+    public static final String CACHE_COMPRESSION = "ix.cache.compression";
+    public static final String CACHE_SERIALIZERS = "ix.cache.serializers";
+    public static final String CACHE_REGIONS = "ix.cache.regions";
+    public static final String CACHE_STALE_WHILE_REVALIDATE =
+        "ix.cache.staleWhileRevalidate";
+    public static final String CACHE_REFRESH_THREADS =
+        "ix.cache.refreshThreads";
+
+    public static final String REGION_RENDER = "render";
+    public static final String REGION_SEARCH = "search";
+    public static final String REGION_ENTITY = "entity"; // default
+    public static final String REGION_FACET = "facet";
+    // name, heap budget, disk budget
+    static final String[][] REGIONS = {
+        { REGION_RENDER, "64M", "1G" },
+        { REGION_SEARCH, "128M", "2G" },
+        { REGION_ENTITY, "256M", "4G" },
+        { REGION_FACET, "32M", "256M" }
+    };
+
+    // value type => region name
+    static final ConcurrentMap<Class, String> ROUTES =
+        new ConcurrentHashMap<Class, String>();
+    static {
+        ROUTES.put(Result.class, REGION_RENDER);
+        ROUTES.put(play.twirl.api.Content.class, REGION_RENDER);
+        ROUTES.put(byte[].class, REGION_RENDER);
+        ROUTES.put(TextIndexer.SearchResult.class, REGION_SEARCH);
+        ROUTES.put(TextIndexer.Facet.class, REGION_FACET);
+        ROUTES.put(TextIndexer.Facet[].class, REGION_FACET);
+    }
 
     private ExecutorService persistencePool;
     private final Application app;
-    private Ehcache cache;
+    private final Map<String, CacheRegion> regions =
+        new LinkedHashMap<String, CacheRegion>();
+    private CacheRegion defaultRegion;
+    // resolved region of each value class
+    private final ConcurrentMap<Class, CacheRegion> classes =
+        new ConcurrentHashMap<Class, CacheRegion>();
+    // region currently holding each key
+    private final ConcurrentMap<Object, CacheRegion> directory =
+        new ConcurrentHashMap<Object, CacheRegion>();
+    // what each generated entry depends on (see CacheGenerations); not
+    // persisted, so entries loaded after a restart depend on everything
+    private final ConcurrentMap<Object, Set<String>> dependencies =
+        new ConcurrentHashMap<Object, Set<String>>();
     private IxContext ctx;
     
     private File payload; // payload for cache that's too big (>5MB)
     private long maxCacheObjectSize;
+    private CacheCodec codec = CacheCodec.BINARY;
+    private int compression = CacheCodec.DEFLATE;
     private AtomicBoolean shuttingDown = new AtomicBoolean (false);
+
+    // computations in progress by key
+    private final ConcurrentMap<String, Flight> inflight =
+        new ConcurrentHashMap<String, Flight>();
+    private boolean staleWhileRevalidate;
+    private ExecutorService refreshPool;
+    private final AtomicLong coalesced = new AtomicLong ();
+    private final AtomicLong staleServed = new AtomicLong ();
+    private final AtomicLong refreshes = new AtomicLong ();
+    private final AtomicLong refreshFailures = new AtomicLong ();
     protected Database db;
     protected Environment env;
 
@@ -81,14 +141,8 @@ public class IxCache extends Plugin
             if (!file.exists())
                 throw new RuntimeException
                     ("Cache file "+file+" is not available!");
-            
-            ObjectInputStream ois = new ObjectInputStream
-                (new GZIPInputStream (Files.newInputStream
-                                      (file.toPath(), 
-                                       StandardOpenOption.READ)));
-            Object obj = ois.readObject();
-            ois.close();
-            return obj;
+            // older payloads are gzip'ed java serialization
+            return CacheCodec.decode(Files.readAllBytes(file.toPath()));
         }
     }
 
@@ -126,6 +180,88 @@ public class IxCache extends Plugin
         }
     }
 
+    static {
+        // these ids are persisted; don't reuse them for other classes
+        CacheCodec.BINARY.register
+            (1, CacheObject.class,
+             new CacheCodec.BinaryCodec.Serializer<CacheObject> () {
+                public void write (CacheCodec.BinaryCodec.Output out,
+                                   CacheObject obj) throws IOException {
+                    out.writeLong(obj.created);
+                    out.writeLong(obj.lastUpdated);
+                    out.writeObject(obj.data);
+                }
+                public CacheObject read (CacheCodec.BinaryCodec.Input in)
+                    throws IOException, ClassNotFoundException {
+                    long created = in.readLong();
+                    long lastUpdated = in.readLong();
+                    return new CacheObject
+                        (created, lastUpdated, in.readObject());
+                }
+            });
+        CacheCodec.BINARY.register
+            (2, CacheAlias.class,
+             new CacheCodec.BinaryCodec.Serializer<CacheAlias> () {
+                public void write (CacheCodec.BinaryCodec.Output out,
+                                   CacheAlias obj) throws IOException {
+                    out.writeString(obj.key);
+                }
+                public CacheAlias read (CacheCodec.BinaryCodec.Input in)
+                    throws IOException {
+                    return new CacheAlias (in.readString());
+                }
+            });
+        CacheCodec.BINARY.register
+            (3, CacheFilePointer.class,
+             new CacheCodec.BinaryCodec.Serializer<CacheFilePointer> () {
+                public void write (CacheCodec.BinaryCodec.Output out,
+                                   CacheFilePointer obj) throws IOException {
+                    out.writeString(obj.file.getPath());
+                }
+                public CacheFilePointer read
+                    (CacheCodec.BinaryCodec.Input in) throws IOException {
+                    return new CacheFilePointer (new File (in.readString()));
+                }
+            });
+    }
+
+    /**
+     * A single computation of a cache value shared by all callers that
+     * miss on the same key while it's running
+     */
+    static class Flight extends FutureTask<Object> {
+        volatile Thread owner;
+
+        Flight (Callable<Object> callable) {
+            super (callable);
+        }
+
+        @Override
+        public void run () {
+            owner = Thread.currentThread();
+            try {
+                super.run();
+            }
+            finally {
+                owner = null;
+            }
+        }
+
+        Object await () throws Exception {
+            try {
+                return get ();
+            }
+            catch (ExecutionException ex) {
+                Throwable t = ex.getCause();
+                if (t instanceof Exception)
+                    throw (Exception)t;
+                if (t instanceof Error)
+                    throw (Error)t;
+                throw ex;
+            }
+        }
+    }
+
     class SerializePayload {
         final Element elm;
         
@@ -210,14 +346,12 @@ public class IxCache extends Plugin
         Logger.info("Loading plugin "+getClass().getName()+"...");
         ctx = app.plugin(IxContext.class);
 
-        int maxElements = app.configuration()
-            .getInt(CACHE_MAX_ELEMENTS, MAX_ELEMENTS);
+        if (app.configuration().getString(CACHE_MAX_ELEMENTS) != null)
+            Logger.warn(CACHE_MAX_ELEMENTS+" is ignored; heap budgets are "
+                        +"set in bytes per region under "+CACHE_REGIONS);
+        int expectedEntries = app.configuration()
+            .getInt(CACHE_EXPECTED_ENTRIES, EXPECTED_ENTRIES);
 
-        cache = new SelfPopulatingCache
-            (CacheManager.getInstance().addCacheIfAbsent(CACHE_NAME), this);
-        //cache = CacheManager.getInstance().addCacheIfAbsent(CACHE_NAME);
-        
-        cache.registerCacheWriter(this);
         CacheWriterConfiguration wconf = new CacheWriterConfiguration ();
         wconf.maxWriteDelay(5)
             .minWriteDelay(1)
@@ -232,57 +366,194 @@ public class IxCache extends Plugin
             .retryAttemptDelaySeconds(2)
             .notifyListenersOnException(true)
             ;
-        
-        cache.getCacheConfiguration()
-            .cacheWriter(wconf)
-            .eternal(true)
-            .overflowToOffHeap(true)
-            .overflowToDisk(true)
-            .maxElementsOnDisk(0)
-            .diskPersistent(true)
-            .maxEntriesLocalHeap(maxElements)            
-            ;
-        /*
-        cache.getCacheEventNotificationService()
-            .registerListener(new CacheEventListenerAdapter () {
-                    @Override
-                    public void notifyElementPut (Ehcache cache, Element elm) {
-                        Logger.debug("PUT: element="+elm);
-                    }
-                });
-        */
+
+        for (String[] r : REGIONS) {
+            String prefix = CACHE_REGIONS+"."+r[0];
+            CacheRegion region = new CacheRegion
+                (r[0], app.configuration().getString(prefix+".heap", r[1]),
+                 app.configuration().getString(prefix+".disk", r[2]),
+                 expectedEntries);
+            CacheConfiguration conf = region.configuration();
+            conf.cacheWriter(wconf);
+            Cache cache = new Cache (conf);
+            CacheManager.getInstance().addCache(cache);
+            cache.registerCacheWriter(this);
+            region.init(cache);
+            regions.put(region.getName(), region);
+        }
+        defaultRegion = regions.get(REGION_ENTITY);
 
         queue = new ArrayBlockingQueue<SerializePayload>
             (app.configuration().getInt(CACHE_QUEUE_SIZE, 10000));
         
         maxCacheObjectSize = app.configuration()
             .getLong(CACHE_MAX_OBJECT_SIZE, 1024*1024*5l);
+        String name = app.configuration().getString(CACHE_CODEC);
+        if (name != null) {
+            codec = CacheCodec.getCodec(name);
+            if (codec == null)
+                throw new IllegalArgumentException
+                    ("Bogus cache codec \""+name+"\"");
+        }
+        String comp = app.configuration()
+            .getString(CACHE_COMPRESSION, "deflate");
+        compression = CacheCodec.getCompression(comp);
+        Logger.debug("## cache codec: "+codec.getName()
+                     +(compression != CacheCodec.NONE ? "+"+comp : ""));
+        registerSerializers ();
 
         ExecutorService es = Executors.newSingleThreadExecutor();
         es.submit(new PersistenceQueue ());
+
+        staleWhileRevalidate = app.configuration()
+            .getBoolean(CACHE_STALE_WHILE_REVALIDATE, false);
+        refreshPool = Executors.newFixedThreadPool
+            (app.configuration().getInt(CACHE_REFRESH_THREADS, 2));
         
-        //CacheManager.getInstance().addCache(cache);     
-        cache.setSampledStatisticsEnabled(true);
         _instance = this;
     }
 
+    /**
+     * Entities are persisted as references and fetched again when read
+     * back; the registrars named by ix.cache.serializers add the
+     * serializers of cached types defined outside of core
+     */
+    void registerSerializers () {
+        final ClassLoader loader = app.classloader();
+        CacheCodec.BINARY.setEntityResolver
+            (new CacheCodec.BinaryCodec.EntityResolver () {
+                    public Object getId (Object obj) {
+                        if (!obj.getClass().isAnnotationPresent(Entity.class))
+                            return null;
+                        try {
+                            return Util.getId(obj);
+                        }
+                        catch (Exception ex) {
+                            return null;
+                        }
+                    }
+                    public Map<Object, Object> findAll
+                        (String cls, Collection ids)
+                        throws IOException, ClassNotFoundException {
+                        Class kind = loader.loadClass(cls);
+                        try {
+                            return ObjectFactory.getAll(kind, ids);
+                        }
+                        catch (Exception ex) {
+                            throw new IOException
+                                ("Can't resolve "+ids.size()+" "+cls, ex);
+                        }
+                    }
+                });
+
+        List<String> registrars =
+            app.configuration().getStringList(CACHE_SERIALIZERS);
+        if (registrars == null)
+            return;
+        
+        for (String name : registrars) {
+            try {
+                CacheCodec.BinaryCodec.Registrar registrar =
+                    (CacheCodec.BinaryCodec.Registrar)
+                    loader.loadClass(name).newInstance();
+                registrar.register(CacheCodec.BINARY);
+                Logger.debug("## cache serializers registered by "+name);
+            }
+            catch (Exception ex) {
+                Logger.error("Can't register cache serializers of "+name, ex);
+            }
+        }
+    }
+
     @Override
     public void onStop () {
         Logger.info("Stopping plugin "+getClass().getName());   
         try {
             shuttingDown.set(true);
             queue.put(POISON_PAYLOAD);
-            cache.dispose();
-            CacheManager.getInstance().removeCache(cache.getName());
+            refreshPool.shutdownNow();
+            for (CacheRegion region : regions.values()) {
+                region.cache.dispose();
+                CacheManager.getInstance().removeCache
+                    (region.cache.getName());
+            }
+            closeStore ();
         }
         catch (Exception ex) {
             Logger.trace("Disposing cache", ex);
         }
     }
 
+    /**
+     * Route the given value type (and its subtypes) to the named region;
+     * values of types not routed anywhere go to the entity region
+     */
+    public static void route (Class cls, String region) {
+        ROUTES.put(cls, region);
+        if (_instance != null)
+            _instance.classes.clear();
+    }
+
+    static String findRoute (Class cls) {
+        for (Class c = cls; c != null; c = c.getSuperclass()) {
+            String name = ROUTES.get(c);
+            if (name != null)
+                return name;
+            for (Class i : c.getInterfaces()) {
+                name = findRoute (i);
+                if (name != null)
+                    return name;
+            }
+        }
+        return null;
+    }
+
+    CacheRegion region (Object value) {
+        if (value == null)
+            return defaultRegion;
+
+        Class cls = value.getClass();
+        CacheRegion region = classes.get(cls);
+        if (region == null) {
+            String name = findRoute (cls);
+            region = name != null ? regions.get(name) : null;
+            if (region == null)
+                region = defaultRegion;
+            classes.put(cls, region);
+        }
+        return region;
+    }
+
+    // region currently holding the key, if any
+    CacheRegion locate (Object key) {
+        CacheRegion region = directory.get(key);
+        if (region == null) {
+            // e.g., disk entries that survived a restart
+            for (CacheRegion r : regions.values())
+                if (r.cache.isKeyInCache(key)) {
+                    directory.put(key, r);
+                    return r;
+                }
+        }
+        return region;
+    }
+
+    static void unroute (Object key, CacheRegion region) {
+        if (_instance != null && _instance.directory.remove(key, region))
+            _instance.dependencies.remove(key);
+    }
+
     static protected void put (Element elm) {
+        CacheRegion region = _instance.region (elm.getObjectValue());
+        CacheRegion prev = _instance.directory.put(elm.getObjectKey(), region);
+        if (prev != null && prev != region) {
+            // value changed type; the new region takes over persistence
+            prev.cache.remove(elm.getObjectKey());
+        }
+        region.access(elm.getObjectKey());
+
         if (elm.isSerializable() /*&& _instance.queue.remainingCapacity() > 0*/) {
-            _instance.cache.putWithWriter(elm);
+            region.cache.putWithWriter(elm);
             if (false) {
                 Logger.debug("caching key="+elm.getKey()
                              +" value="+elm.getObjectValue());
@@ -295,25 +566,54 @@ public class IxCache extends Plugin
         }
         else {
             // not serializable
-            _instance.cache.put(elm);
+            region.cache.put(elm);
         }
     }
 
+    // count a miss against the region of the generated value
+    static void missed (Object value) {
+        _instance.region(value).misses.incrementAndGet();
+    }
+
     public static void clearCache () throws Exception {
         if (_instance == null)
             throw new IllegalStateException ("Cache hasn't been initialized!");
-        _instance.cache.removeAll();
+        for (CacheRegion region : _instance.regions.values())
+            region.cache.removeAll();
+        _instance.directory.clear();
+        _instance.dependencies.clear();
     }
     
+    Element lookup (Object key) {
+        CacheRegion region = locate (key);
+        Element elm = region != null ? region.cache.get(key) : null;
+        if (elm != null) {
+            region.hits.incrementAndGet();
+        }
+        else {
+            elm = load (key);
+            if (elm != null) {
+                region = region (elm.getObjectValue());
+                directory.put(key, region);
+                region.cache.put(elm); // already persisted
+                region.loads.incrementAndGet();
+            }
+        }
+
+        if (elm != null)
+            region.access(key);
+        return elm;
+    }
+
     public static Element getElm (String key) {
         if (_instance == null)
             throw new IllegalStateException ("Cache hasn't been initialized!");
         
-        Element elm = _instance.cache.get(key);
+        Element elm = _instance.lookup(key);
         if (elm != null) {
             Object obj = elm.getObjectValue();
             while (obj instanceof CacheAlias) {
-                elm = _instance.cache.get(((CacheAlias)obj).key);
+                elm = _instance.lookup(((CacheAlias)obj).key);
                 obj = elm != null ? elm.getObjectValue() : null;
             }
         }
@@ -350,21 +650,168 @@ public class IxCache extends Plugin
     }
 
     /**
-     * apply generator if the cache was created before epoch
+     * Callable that generates the value, caches it and returns it; if
+     * the value is null and there's a previous element, the latter is
+     * kept instead. What the generator depends on is recorded along with
+     * the element, which is dated from the start of the generation so
+     * that changes made while it runs make it stale.
+     */
+    static <T> Callable<Object> generate (final String key,
+                                          final Callable<T> generator,
+                                          final Element prev,
+                                          final int seconds) {
+        return new Callable<Object> () {
+            public Object call () throws Exception {
+                long start = System.currentTimeMillis();
+                Set<String> outer = CacheGenerations.begin();
+                Set<String> deps;
+                T v;
+                try {
+                    v = generator.call();
+                }
+                finally {
+                    deps = CacheGenerations.end(outer);
+                }
+                
+                missed (v);
+                if (v == null && prev != null)
+                    return prev.getObjectValue();
+
+                IxCache.put(seconds < 0
+                            ? new Element (key, v, 1l, start, start, start, 0l)
+                            : new Element (key, v, seconds <= 0,
+                                           seconds, seconds));
+                _instance.dependencies.put(key, deps);
+                return v;
+            }
+        };
+    }
+
+    // a generator reusing this entry depends on what the entry depends on
+    static void inherit (Object key) {
+        if (CacheGenerations.isTracking())
+            CacheGenerations.inherit(_instance.dependencies.get(key));
+    }
+
+    /**
+     * Run the generator unless another thread is already computing the
+     * same key, in which case wait for and share its value
+     */
+    static <T> T compute (String key, Callable<T> generator,
+                          Element prev, int seconds) throws Exception {
+        return (T)join (_instance.inflight, _instance.coalesced, key,
+                        generate (key, generator, prev, seconds));
+    }
+
+    /**
+     * Run the task as the flight of the given key or, if there's one
+     * already, wait for its outcome; callers that didn't have to run
+     * the task are counted as coalesced
+     */
+    static Object join (ConcurrentMap<String, Flight> inflight,
+                        AtomicLong coalesced, String key,
+                        Callable<Object> task) throws Exception {
+        Flight flight = new Flight (task);
+        Flight leader = inflight.putIfAbsent(key, flight);
+        if (leader != null) {
+            if (leader.owner == Thread.currentThread()) {
+                // reentrant call from within the task
+                return task.call();
+            }
+            coalesced.incrementAndGet();
+            return leader.await();
+        }
+
+        try {
+            flight.run();
+            return flight.await();
+        }
+        finally {
+            inflight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Regenerate the value in the background unless it's already being
+     * computed
+     */
+    void refresh (final String key, Callable generator, Element prev) {
+        final Flight flight = new Flight (generate (key, generator, prev, -1));
+        if (inflight.putIfAbsent(key, flight) != null)
+            return;
+
+        try {
+            refreshPool.submit(new Runnable () {
+                    public void run () {
+                        try {
+                            flight.run();
+                            flight.await();
+                            refreshes.incrementAndGet();
+                        }
+                        catch (Exception ex) {
+                            refreshFailures.incrementAndGet();
+                            Logger.warn("Can't refresh cache "+key, ex);
+                        }
+                        finally {
+                            inflight.remove(key, flight);
+                        }
+                    }
+                });
+        }
+        catch (RejectedExecutionException ex) {
+            inflight.remove(key, flight);
+        }
+    }
+
+    /**
+     * apply generator if the cache was created before epoch; with
+     * stale-while-revalidate, an outdated value is returned right away
+     * while it's regenerated in the background, except within a request
+     * since its http context (which many generators render pages with)
+     * doesn't outlive the request
      */
     public static <T> T getOrElse (long epoch,
                                    String key, Callable<T> generator)
         throws Exception {
+        return getOrElse (getElm (key), epoch, key, generator);
+    }
+
+    /**
+     * Like getOrElse(epoch, ...) with the latest generation of what the
+     * cached value was generated from as epoch, i.e., the value is only
+     * regenerated when the entity kinds or entities it was built from
+     * (see CacheGenerations) have changed
+     */
+    public static <T> T getOrElseCurrent (String key, Callable<T> generator)
+        throws Exception {
         Element elm = getElm (key);
+        long epoch = elm != null ? CacheGenerations.epoch
+            (_instance.dependencies.get(elm.getObjectKey())) : 0l;
+        return getOrElse (elm, epoch, key, generator);
+    }
+
+    static <T> T getOrElse (Element elm, long epoch,
+                            String key, Callable<T> generator)
+        throws Exception {
         //Logger.debug("key="+key+" epoch="+epoch+" created="+elm.getCreationTime());
-        if (elm == null || elm.getObjectValue() == null
-            || elm.getCreationTime() < epoch) {
-            T v = generator.call();
-            if (v != null || elm == null) {
-                elm = new Element (key, v);
-                IxCache.put(elm);
+        if (elm == null || elm.getObjectValue() == null) {
+            T value = compute (key, generator, elm, -1);
+            inherit (key);
+            return value;
+        }
+
+        if (elm.getCreationTime() < epoch) {
+            if (!_instance.staleWhileRevalidate
+                || Http.Context.current.get() != null) {
+                T value = compute (key, generator, elm, -1);
+                inherit (key);
+                return value;
             }
+
+            _instance.staleServed.incrementAndGet();
+            _instance.refresh(key, generator, elm);
         }
+        inherit (elm.getObjectKey());
         return (T)elm.getObjectValue();
     }
     
@@ -374,9 +821,7 @@ public class IxCache extends Plugin
         if (value == null) {
             if (_instance.ctx.debug(2))
                 Logger.debug("IxCache missed: "+key);
-            T v = generator.call();
-            IxCache.put(new Element (key, v));
-            return v;
+            return compute (key, generator, null, -1);
         }
         return (T)value;
     }
@@ -388,17 +833,33 @@ public class IxCache extends Plugin
         if (value == null) {
             if (_instance.ctx.debug(2))
                 Logger.debug("IxCache missed: "+key);
-            T v = generator.call();
-            IxCache.put(new Element (key, v,
-                                     seconds <= 0, seconds, seconds));
-            return v;
+            return compute (key, generator, null, Math.max(0, seconds));
         }
         return (T)value;
     }
 
+    public static int getInFlightCount () {
+        return _instance != null ? _instance.inflight.size() : 0;
+    }
+    public static long getCoalescedCount () {
+        return _instance != null ? _instance.coalesced.get() : 0l;
+    }
+    public static long getStaleServedCount () {
+        return _instance != null ? _instance.staleServed.get() : 0l;
+    }
+    public static long getRefreshCount () {
+        return _instance != null ? _instance.refreshes.get() : 0l;
+    }
+    public static long getRefreshFailureCount () {
+        return _instance != null ? _instance.refreshFailures.get() : 0l;
+    }
+
     public static List getKeys () {
         try {
-            return new ArrayList (_instance.cache.getKeys());
+            List keys = new ArrayList ();
+            for (CacheRegion region : _instance.regions.values())
+                keys.addAll(region.cache.getKeys());
+            return keys;
         }
         catch (Exception ex) {
             Logger.trace("Can't get cache keys", ex);
@@ -447,19 +908,29 @@ public class IxCache extends Plugin
     public static boolean remove (String key) {
         if (_instance == null)
             throw new IllegalStateException ("Cache hasn't been initialized!");
-        return _instance.cache.removeWithWriter(key);
+        CacheRegion region = _instance.locate(key);
+        if (region != null)
+            return region.cache.removeWithWriter(key);
+
+        try { // only in persistence
+            _instance.deleteEntry(_instance.getKeyEntry(key));
+        }
+        catch (Exception ex) {
+            Logger.error("Deleting cache "+key+" from persistence!", ex);
+        }
+        return false;
     }
     
-    public static Statistics getStatistics () {
+    public static Collection<CacheRegion> getRegions () {
         if (_instance == null)
             throw new IllegalStateException ("Cache hasn't been initialized!");
-        return _instance.cache.getStatistics();
+        return Collections.unmodifiableCollection(_instance.regions.values());
     }
 
     public static boolean contains (String key) {
         if (_instance == null)
             throw new IllegalStateException ("Cache hasn't been initialized!");
-        boolean found = _instance.cache.isKeyInCache(key);
+        boolean found = _instance.locate(key) != null;
         if (!found && _instance.db != null) {
             // try persistence
             try {
@@ -482,14 +953,15 @@ public class IxCache extends Plugin
         return found;
     }
 
-    DatabaseEntry getKeyEntry (Object value) throws Exception {
-        return new DatabaseEntry (value.toString().getBytes("utf-8"));
+    DatabaseEntry getKeyEntry (Object value) {
+        return new DatabaseEntry (value.toString()
+                                  .getBytes(StandardCharsets.UTF_8));
     }
     
     /**
-     * CacheEntryFactory interface
+     * Recreate the entry from persistence
      */
-    public Object createEntry (Object key) throws Exception {
+    Element load (Object key) {
         if (key == null) 
             return null;
         
@@ -526,78 +998,70 @@ public class IxCache extends Plugin
                 tx.commit();
             }
         }
+        catch (CacheCodec.StaleEntryException ex) {
+            // written by an older codec or class version; not an error
+            Logger.debug("Stale cache entry "+key+": "+ex.getMessage());
+            deleteEntry (dkey);
+        }
         catch (Exception ex) {
             Logger.warn("Can't recreate entry for "+key
                         +"; removing this entry from cache!", ex);
-            Transaction tx = env.beginTransaction(null, null);
-            try {
-                db.delete(tx, dkey);
-            }
-            catch (Exception exx) {
-            }
-            finally {
-                tx.commit();
-            }
+            deleteEntry (dkey);
         }
         return elm;
     }
 
+    void deleteEntry (DatabaseEntry dkey) {
+        Transaction tx = env.beginTransaction(null, null);
+        try {
+            db.delete(tx, dkey);
+        }
+        catch (Exception exx) {
+        }
+        finally {
+            tx.commit();
+        }
+    }
+
     protected byte[] serialize (Object obj) throws IOException {
         return serialize (null, null, obj);
     }
     
     protected byte[] serialize (String prefix, String suffix, Object obj)
         throws IOException {
-        Path path = Files.createTempFile(payload.toPath(), prefix, suffix);
-        File file = path.toFile();
-        
-        byte[] ret = null;      
+        byte[] ret = null;
+        File file = null;
         try {
-            MessageDigest md = MessageDigest.getInstance("sha1");
-            ObjectOutputStream oos = new ObjectOutputStream
-                (new DigestOutputStream 
-                 (new GZIPOutputStream (new FileOutputStream (file)), md));
-
-            CacheObject entry = new CacheObject (obj);
-            oos.writeObject(entry);
-            oos.close();
-
-            if (file.length() > maxCacheObjectSize) {
-                // rename this file to something permanent
-                File sha1 = new File (payload, Util.toHex(md.digest()));
+            ret = codec.encode(new CacheObject (obj), compression);
+            if (ret.length > maxCacheObjectSize) {
+                MessageDigest md = MessageDigest.getInstance("sha1");
+                File sha1 = new File (payload, Util.toHex(md.digest(ret)));
                 if (!sha1.exists()) {
-                    if (file.renameTo(sha1)) {
-                        file = sha1;
-                    }
-                    else {
+                    // write to a temp file first so a partial payload
+                    // is never visible under its final name
+                    file = Files.createTempFile
+                        (payload.toPath(), prefix, suffix).toFile();
+                    Files.write(file.toPath(), ret);
+                    if (!file.renameTo(sha1)) {
                         Logger.warn("Can't rename file "+file+" to "+sha1);
+                        sha1 = file;
                     }
+                    file = null;
                     Logger.debug(Thread.currentThread().getName()+": large ("
-                                 +file.length()+") cache "+file.getName()
+                                 +ret.length+") cache "+sha1.getName()
                                  +" saved; "+queue.size()
                                  +" remains in queue!");
                 }
-                else {
-                    file.delete();
-                    file = sha1;
-                }
-                
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
-                oos = new ObjectOutputStream (bytes);
-                oos.writeObject(new CacheFilePointer (file));
-                oos.close();
-                ret = bytes.toByteArray();
-                file = null;
-            }
-            else {
-                ret = Files.readAllBytes(path);
+                ret = codec.encode(new CacheFilePointer (sha1), false);
             }
         }
         catch (ConcurrentModificationException ex) {
             // bean is still lazy loading.. ignore for now
+            ret = null;
         }
         catch (Exception ex) {
             Logger.error("Can't serialize object "+obj, ex);
+            ret = null;
         }
         finally {
             if (file != null)
@@ -612,12 +1076,7 @@ public class IxCache extends Plugin
     
     protected Object deserialize (byte[] data, int offset, int size)
         throws Exception {
-        int magic = ((data[1] & 0xff) << 8) | (data[0] & 0xff);
-        InputStream is = new ByteArrayInputStream (data, offset, size);
-        ObjectInputStream ois = new ObjectInputStream
-             (magic == GZIPInputStream.GZIP_MAGIC 
-              ? new GZIPInputStream (is) : is);
-        Object obj = ois.readObject();
+        Object obj = CacheCodec.decode(data, offset, size);
         if (obj instanceof CacheFilePointer) {
             obj = ((CacheFilePointer)obj).deserialize();
         }
@@ -628,7 +1087,10 @@ public class IxCache extends Plugin
      * CacheWriter interface
      */
     @Override
-    public void init () {
+    public synchronized void init () {
+        if (env != null)
+            return; // shared by all regions
+
         try {
             payload = new File (ctx.cache(), "payload");
             payload.mkdirs();
@@ -670,9 +1132,13 @@ public class IxCache extends Plugin
                              +":"+st.getClassName()+":"+st.getMethodName());
             }
         }
-        else if (db != null) {       
+        // the store is shared by all regions; closed in onStop
+    }
+
+    synchronized void closeStore () {
+        if (db != null) {       
             try {
-                Logger.debug("#### closing cache writer "+cache.getName()
+                Logger.debug("#### closing cache writer "+CACHE_NAME
                              +"; "+db.count()+" entries #####");
                 db.close();
                 env.close();
@@ -680,6 +1146,8 @@ public class IxCache extends Plugin
             catch (Exception ex) {
                 Logger.error("Can't close cache database!", ex);
             }
+            db = null;
+            env = null;
         }
     }
     
@@ -0,0 +1,555 @@
+package ix.core.plugins;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import play.Play;
+import play.Configuration;
+
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.Molecule;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import ix.core.models.Job;
+import ix.core.models.Keyword;
+import ix.core.models.Payload;
+import ix.core.models.Record;
+import ix.core.models.Structure;
+import ix.core.models.XRef;
+import ix.core.chem.StructureProcessor;
+import ix.core.controllers.JobFactory;
+import ix.core.controllers.PayloadFactory;
+
+import tripod.chem.indexer.StructureIndexer;
+
+/**
+ * Processes the structures of a payload in three stages, each with its
+ * own pool of threads and a bounded queue in front of it so that a slow
+ * stage holds back the ones before it:
+ * <ul>
+ * <li>parse: records read off the payload are parsed into molecules;
+ * SD files are split into records as text so that parsing can run in
+ * parallel, other formats are read (and parsed) sequentially
+ * <li>instrument: StructureProcessor.instrument (standardization,
+ * fragments, etc.)
+ * <li>persist: structures, xrefs and records are saved in batched
+ * transactions and the structures indexed
+ * </ul>
+ * The throughput and backlog of each stage are recorded (as json) in
+ * the job's statistics while the payload is processed.
+ */
+public class StructurePipeline implements Runnable {
+    static final ObjectMapper mapper = new ObjectMapper ();
+    static final Item POISON = new Item (-1);
+
+    static class Item {
+        final int index;
+        byte[] raw;
+        Molecule mol;
+        Structure struc;
+        Record rec;
+
+        Item (int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * A stage of the pipeline and its metrics
+     */
+    public class Stage {
+        final String name;
+        final int threads;
+        final BlockingQueue<Item> queue;
+        final AtomicInteger live = new AtomicInteger ();
+        final AtomicLong processed = new AtomicLong ();
+        final AtomicLong failed = new AtomicLong ();
+        final AtomicLong busy = new AtomicLong (); // nanos
+        volatile int maxBacklog;
+        Stage next;
+
+        Stage (String name, int threads, int capacity) {
+            if (threads < 1)
+                throw new IllegalArgumentException
+                    ("Bogus number of threads "+threads+" for stage "+name);
+            this.name = name;
+            this.threads = threads;
+            queue = new ArrayBlockingQueue<Item>(capacity);
+        }
+
+        void put (Item item) throws InterruptedException {
+            // don't block for good on a stage that's no longer taking
+            while (!queue.offer(item, 100l, TimeUnit.MILLISECONDS)) {
+                if (failure != null)
+                    throw new InterruptedException
+                        ("Pipeline of payload "+payload.id+" aborted");
+            }
+            int backlog = queue.size();
+            if (backlog > maxBacklog)
+                maxBacklog = backlog;
+        }
+
+        void start (ExecutorService pool) {
+            live.set(threads);
+            for (int i = 0; i < threads; ++i) {
+                pool.submit(new Runnable () {
+                        public void run () {
+                            try {
+                                work (Stage.this);
+                            }
+                            catch (InterruptedException ex) {
+                                Logger.warn(name+" stage interrupted!");
+                            }
+                            catch (Throwable t) {
+                                Logger.error(name+" stage failed!", t);
+                                abort (Stage.this, t);
+                            }
+                            finally {
+                                finish ();
+                            }
+                        }
+                    });
+            }
+        }
+
+        // the last worker out passes the end of input to the next stage
+        void finish () {
+            if (live.decrementAndGet() == 0 && next != null) {
+                try {
+                    for (int i = 0; i < next.threads; ++i)
+                        next.put(POISON);
+                }
+                catch (InterruptedException ex) {
+                    Logger.warn(name+" stage interrupted!");
+                }
+            }
+        }
+
+        void done (long start, boolean ok) {
+            busy.addAndGet(System.nanoTime() - start);
+            (ok ? processed : failed).incrementAndGet();
+        }
+
+        public String getName () { return name; }
+        public int getThreads () { return threads; }
+        public int getBacklog () { return queue.size(); }
+        public int getMaxBacklog () { return maxBacklog; }
+        public long getProcessed () { return processed.get(); }
+        public long getFailed () { return failed.get(); }
+        public boolean isRunning () { return live.get() > 0; }
+
+        /**
+         * Items per second of busy time of a single thread
+         */
+        public double getThroughput () {
+            long n = processed.get() + failed.get();
+            long t = busy.get();
+            return t > 0 ? 1e9 * n / t : 0.;
+        }
+
+        ObjectNode toJson () {
+            ObjectNode node = mapper.createObjectNode();
+            node.put("stage", name);
+            node.put("threads", threads);
+            node.put("processed", getProcessed ());
+            node.put("failed", getFailed ());
+            node.put("backlog", getBacklog ());
+            node.put("maxBacklog", getMaxBacklog ());
+            node.put("throughput", Math.round(getThroughput ()*10)/10.);
+            return node;
+        }
+    }
+
+    final Payload payload;
+    final String key;
+    final StructureIndexer indexer;
+    final Stage parse, instrument, persist;
+    final int batchSize;
+    final long report; // ms between job updates
+    final AtomicInteger read = new AtomicInteger ();
+    volatile Throwable failure;
+    ExecutorService pool;
+    Job job;
+    long start;
+
+    public StructurePipeline (Payload payload, String key,
+                              StructureIndexer indexer) {
+        this.payload = payload;
+        this.key = key;
+        this.indexer = indexer;
+
+        Configuration conf = Play.application().configuration();
+        int capacity = conf.getInt("ix.structure.pipeline.queue", 1024);
+        parse = new Stage
+            ("parse", conf.getInt("ix.structure.pipeline.parse", 2),
+             capacity);
+        instrument = new Stage
+            ("instrument", conf.getInt
+             ("ix.structure.pipeline.instrument",
+              Runtime.getRuntime().availableProcessors()), capacity);
+        persist = new Stage
+            ("persist", conf.getInt("ix.structure.pipeline.persist", 2),
+             capacity);
+        parse.next = instrument;
+        instrument.next = persist;
+        batchSize = conf.getInt("ix.structure.pipeline.batchSize", 100);
+        report = conf.getInt("ix.structure.pipeline.report", 2000);
+    }
+
+    public Job getJob () { return job; }
+    public Stage[] getStages () {
+        return new Stage[]{parse, instrument, persist};
+    }
+
+    public void run () {
+        for (Job j : JobFactory.getJobsByPayload(payload.id.toString())) {
+            if (j.status != Job.Status.FAILED
+                && j.status != Job.Status.STOPPED) {
+                // already processed
+                job = j;
+                job.keys.add(new Keyword
+                             (StructureProcessorPlugin.class.getName(), key));
+                job.update();
+                return;
+            }
+        }
+
+        job = new Job ();
+        job.keys.add(new Keyword
+                     (StructureProcessorPlugin.class.getName(), key));
+        job.status = Job.Status.RUNNING;
+        job.payload = payload;
+        job.processed = job.failed = 0;
+        job.save();
+
+        start = System.currentTimeMillis();
+        pool = Executors.newFixedThreadPool
+            (parse.threads+instrument.threads+persist.threads);
+        try {
+            persist.start(pool);
+            instrument.start(pool);
+            parse.start(pool);
+
+            Thread reporter = new Thread (new Runnable () {
+                    public void run () {
+                        try {
+                            while (persist.isRunning()) {
+                                Thread.sleep(report);
+                                update (null);
+                            }
+                        }
+                        catch (InterruptedException ex) {
+                        }
+                    }
+                }, "StructurePipeline-"+payload.id);
+            reporter.setDaemon(true);
+            reporter.start();
+
+            try {
+                read ();
+            }
+            catch (Throwable t) {
+                Logger.error("Failed to read payload "+payload.id, t);
+                job.message = t.getMessage();
+                job.status = Job.Status.FAILED;
+            }
+            finally {
+                for (int i = 0; i < parse.threads; ++i)
+                    parse.put(POISON);
+            }
+
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            reporter.interrupt();
+            reporter.join();
+        }
+        catch (InterruptedException ex) {
+            if (failure == null) {
+                Logger.warn("Payload "+payload.id+" interrupted!");
+                job.status = Job.Status.STOPPED;
+            }
+            pool.shutdownNow();
+        }
+
+        if (failure != null) {
+            job.status = Job.Status.FAILED;
+            job.message = failure.getMessage();
+        }
+
+        update (job.status == Job.Status.RUNNING
+                ? Job.Status.COMPLETE : job.status);
+        Logger.debug("Payload "+payload.id+" ("+payload.name+"): "
+                     +read.get()+" records in "+String.format
+                     ("%1$.1fs", 1e-3*(System.currentTimeMillis()-start))
+                     +"; "+job.statistics);
+    }
+
+    /**
+     * A stage died; there's no point in feeding (or waiting for) the
+     * others, so drop whatever is queued and stop all workers
+     */
+    void abort (Stage stage, Throwable t) {
+        synchronized (this) {
+            if (failure != null)
+                return;
+            failure = t;
+        }
+        Logger.error("Payload "+payload.id+" aborted; "+stage.name
+                     +" stage failed!");
+        for (Stage s : getStages ())
+            s.queue.clear();
+        pool.shutdownNow();
+    }
+
+    synchronized void update (Job.Status status) {
+        ObjectNode stats = mapper.createObjectNode();
+        stats.put("read", read.get());
+        stats.put("elapsed", System.currentTimeMillis()-start);
+        ArrayNode stages = mapper.createArrayNode();
+        for (Stage s : getStages ())
+            stages.add(s.toJson());
+        stats.put("stages", stages);
+
+        job.statistics = stats.toString();
+        job.processed = (int)persist.getProcessed();
+        job.failed = (int)(parse.getFailed() + instrument.getFailed()
+                           + persist.getFailed());
+        if (status != null)
+            job.status = status;
+        try {
+            job.update();
+        }
+        catch (Exception ex) {
+            Logger.warn("Can't update job "+job.id, ex);
+        }
+    }
+
+    void read () throws Exception {
+        BufferedInputStream is = new BufferedInputStream
+            (PayloadFactory.getStream(payload), 1<<16);
+        try {
+            if (isSD (is)) {
+                // split the records here and parse them in parallel
+                BufferedReader br = new BufferedReader
+                    (new InputStreamReader (is, "UTF-8"));
+                ByteArrayOutputStream buf = new ByteArrayOutputStream ();
+                for (String line; (line = br.readLine()) != null; ) {
+                    buf.write(line.getBytes("UTF-8"));
+                    buf.write('\n');
+                    if (line.startsWith("$$$$")) {
+                        emit (buf.toByteArray(), null);
+                        buf.reset();
+                    }
+                }
+                if (buf.toString("UTF-8").trim().length() > 0)
+                    emit (buf.toByteArray(), null);
+            }
+            else {
+                MolImporter mi = new MolImporter (is);
+                for (Molecule m; (m = mi.read()) != null; )
+                    emit (null, m);
+                mi.close();
+            }
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    void emit (byte[] raw, Molecule mol) throws InterruptedException {
+        Item item = new Item (read.getAndIncrement());
+        item.raw = raw;
+        item.mol = mol;
+        parse.put(item);
+    }
+
+    // a molfile has its counts line (V2000/V3000) on the fourth line
+    static boolean isSD (BufferedInputStream is) throws IOException {
+        is.mark(1<<16);
+        try {
+            BufferedReader br = new BufferedReader
+                (new InputStreamReader (is, "UTF-8"));
+            String line = null;
+            for (int i = 0; i < 4 && (line = br.readLine()) != null; ++i)
+                ;
+            return line != null
+                && (line.indexOf("V2000") > 0 || line.indexOf("V3000") > 0);
+        }
+        finally {
+            is.reset();
+        }
+    }
+
+    void work (Stage stage) throws Exception {
+        if (stage == persist) {
+            List<Item> batch = new ArrayList<Item>();
+            for (boolean done = false; !done; ) {
+                batch.add(stage.queue.take());
+                stage.queue.drainTo(batch, batchSize-1);
+                done = batch.remove(POISON);
+                // there's one poison per thread
+                while (batch.remove(POISON))
+                    stage.queue.put(POISON);
+                if (!batch.isEmpty())
+                    persists (batch);
+                batch.clear();
+            }
+        }
+        else {
+            for (Item item; (item = stage.queue.take()) != POISON; ) {
+                // records that failed to parse are passed through
+                if (stage == parse || item.mol != null) {
+                    long t = System.nanoTime();
+                    boolean ok = stage == parse ? parse (item)
+                        : instrument (item);
+                    stage.done(t, ok);
+                }
+                stage.next.put(item);
+            }
+        }
+    }
+
+    boolean parse (Item item) {
+        item.rec = new Record ();
+        item.rec.job = Ebean.getReference(Job.class, job.id);
+        try {
+            if (item.mol == null)
+                item.mol = MolImporter.importMol(item.raw);
+            item.raw = null;
+            item.rec.name = item.mol.getName();
+            return true;
+        }
+        catch (Exception ex) {
+            item.rec.name = "record "+(item.index+1);
+            item.rec.status = Record.Status.FAILED;
+            item.rec.message = ex.getMessage();
+            return false;
+        }
+    }
+
+    boolean instrument (Item item) {
+        try {
+            item.struc = StructureProcessor.instrument(item.mol);
+            item.rec.status = Record.Status.OK;
+            return true;
+        }
+        catch (Throwable t) {
+            item.rec.status = Record.Status.FAILED;
+            item.rec.message = t.getMessage();
+            Logger.trace("Can't instrument "+item.rec.name, t);
+            return false;
+        }
+    }
+
+    void persists (List<Item> batch) {
+        long t = System.nanoTime();
+        boolean ok = false;
+        Transaction tx = Ebean.beginTransaction();
+        try {
+            tx.setBatchMode(true);
+            tx.setBatchSize(batchSize);
+            for (Item item : batch)
+                if (item.struc != null)
+                    item.struc.save();
+            tx.flushBatch(); // xrefs need the structure ids
+            for (Item item : batch) {
+                if (item.struc != null) {
+                    item.rec.xref = new XRef (item.struc);
+                    item.rec.xref.save();
+                }
+            }
+            for (Item item : batch)
+                item.rec.save();
+            tx.commit();
+            ok = true;
+        }
+        catch (Exception ex) {
+            Logger.warn("Batch of "+batch.size()+" records failed; "
+                        +"persisting them one at a time", ex);
+        }
+        finally {
+            Ebean.endTransaction();
+        }
+
+        if (!ok) {
+            for (Item item : batch)
+                persists (item);
+            return;
+        }
+
+        long dt = (System.nanoTime() - t) / batch.size();
+        for (Item item : batch)
+            index (item, dt);
+    }
+
+    /**
+     * Save the item on its own after its batch failed; the beans of the
+     * rolled back batch (and the values they cascade to) might already
+     * have ids and are marked as loaded, so they're saved as new copies
+     */
+    void persists (Item item) {
+        long t = System.nanoTime();
+        Record rec = new Record ();
+        rec.name = item.rec.name;
+        rec.status = item.rec.status;
+        rec.message = item.rec.message;
+        rec.job = item.rec.job;
+        item.rec = rec;
+        if (item.struc != null)
+            item.struc = StructureProcessor.copy(item.struc);
+        
+        Transaction tx = Ebean.beginTransaction();
+        try {
+            if (item.struc != null) {
+                item.struc.save();
+                rec.xref = new XRef (item.struc);
+                rec.xref.save();
+            }
+            rec.save();
+            tx.commit();
+        }
+        catch (Exception ex) {
+            Logger.error("Can't persist record "+item.rec.name, ex);
+            persist.done(t, false);
+            return;
+        }
+        finally {
+            Ebean.endTransaction();
+        }
+        index (item, System.nanoTime() - t);
+    }
+
+    void index (Item item, long nanos) {
+        long t = System.nanoTime();
+        boolean ok = true;
+        if (item.struc != null) {
+            try {
+                indexer.add(payload.name, item.struc.id.toString(), item.mol);
+            }
+            catch (Exception ex) {
+                Logger.error("Can't index structure "+item.struc.id, ex);
+                ok = false;
+            }
+        }
+        persist.done(t - nanos, ok);
+    }
+}
@@ -4,6 +4,10 @@ import java.util.*;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import java.io.InputStream;
 import java.io.IOException;
@@ -72,6 +76,10 @@ public class StructureProcessorPlugin extends Plugin {
     private ActorSystem system;
     private ActorRef processor;
     private Inbox inbox;
+    private ExecutorService threadPool;
+    // payloads currently being processed
+    private final ConcurrentMap<UUID, PayloadProcessor> running =
+        new ConcurrentHashMap<UUID, PayloadProcessor>();
     static final Random rand = new Random ();
 
     static String randomKey (int size) {
@@ -178,16 +186,6 @@ public class StructureProcessorPlugin extends Plugin {
         }
     }
 
-    public static class PayloadRecord implements Serializable {
-        public final Job job;
-        public final Molecule mol;
-
-        public PayloadRecord (Job job, Molecule mol) {
-            this.job = job;
-            this.mol = mol;
-        }
-    }
-
     public static class PersistModel implements Serializable {
         public enum Op { SAVE, UPDATE, DELETE };
         public final Op oper;
@@ -235,40 +233,6 @@ public class StructureProcessorPlugin extends Plugin {
         }
     }
 
-    public static class PersistRecord implements Serializable {
-        public final Structure struc;
-        public final Record rec;
-        final Molecule mol;
-        final StructureIndexer indexer;
-        
-        public PersistRecord (Structure struc, Molecule mol,
-                              Record rec, StructureIndexer indexer) {
-            this.struc = struc;
-            this.rec = rec;
-            this.mol = mol;
-            this.indexer = indexer;
-        }
-        
-        @Transactional
-        public void persists () {
-            try {
-                if (struc != null) {
-                    struc.save();
-                    indexer.add(rec.job.payload.name,
-                                struc.id.toString(), mol);
-                    rec.xref = new XRef (struc);
-                    rec.xref.save();
-                }
-                rec.save();
-                Logger.debug("Saved struc "+(struc != null ? struc.id:null)
-                             +" record "+rec.id);
-            }
-            catch (Throwable t) {
-                t.printStackTrace();
-            }
-        }
-    }
-
     /**
      * This actor runs in a bounded queue to ensure we don't have issues
      * with locking due to database persistence
@@ -285,9 +249,6 @@ public class StructureProcessorPlugin extends Plugin {
             if (mesg instanceof PersistModel) {
                 PQ.submit(new PersistModelWorker ((PersistModel)mesg));
             }
-            else if (mesg instanceof PersistRecord) {
-                PQ.submit(new PersistRecordWorker ((PersistRecord)mesg));
-            }
             else if (mesg instanceof ReceiverProcessor) {
                 PQ.submit
                     (new ReceiverProcessorWorker ((ReceiverProcessor)mesg));
@@ -311,18 +272,6 @@ public class StructureProcessorPlugin extends Plugin {
         public Priority priority () { return Priority.MEDIUM; }
     }
     
-    static class PersistRecordWorker
-        implements PersistenceQueue.PersistenceContext {
-        PersistRecord record;
-        PersistRecordWorker (PersistRecord record) {
-            this.record = record;
-        }
-        public void persists () throws Exception {
-            record.persists();
-        }
-        public Priority priority () { return Priority.MEDIUM; }
-    }
-    
     static class ReceiverProcessorWorker
         implements PersistenceQueue.PersistenceContext {
         ReceiverProcessor receiver;
@@ -357,55 +306,7 @@ public class StructureProcessorPlugin extends Plugin {
         }
         
         public void onReceive (Object mesg) {
-            if (mesg instanceof PayloadProcessor) {
-                PayloadProcessor payload = (PayloadProcessor)mesg;
-                log.info("Received payload "+payload.id);
-
-                // now spawn child processor to proces the payload stream
-                ActorRef child = null;
-                Collection<ActorRef> children = JavaConverters
-                    .asJavaCollectionConverter(context().children())
-                    .asJavaCollection();
-                for (ActorRef ref : children) {
-                    if (ref.path().name()
-                        .indexOf(payload.payload.id.toString()) >= 0) {
-                        // this child is current running
-                        child = ref;
-                    }
-                }
-                
-                if (child != null) {
-                    // the given payload is currently processing
-                    // at the moment!
-                    Job job = new Job ();
-                    job.keys.add(new Keyword
-                                 (StructureProcessorPlugin.class.getName(),
-                                  payload.key));
-                    job.status = Job.Status.NOT_RUN;
-                    job.message = "Payload "+payload.payload.id+" is "
-                        +"currently being processed.";
-                    job.payload = payload.payload;
-                    reporter.tell(PersistModel.Save(job), self ());
-                }
-                else {
-                    child = context().actorOf
-                        (Props.create(Processor.class, indexer).withRouter
-                         (new FromConfig().withFallback
-                          (new SmallestMailboxRouter (2))), payload.id);
-                    context().watch(child);
-
-                    try {
-                        Job job = process
-                            (reporter, child, self (), payload);
-                    }
-                    catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                    child.tell(new Broadcast (PoisonPill.getInstance()),
-                               self ());
-                }
-            }
-            else if (mesg instanceof ReceiverProcessor) {
+            if (mesg instanceof ReceiverProcessor) {
                 ReceiverProcessor receiver = (ReceiverProcessor)mesg;
                 switch (receiver.stage()) {
                 case Routing:
@@ -441,55 +342,8 @@ public class StructureProcessorPlugin extends Plugin {
                         +"be running in "+getClass().getName()+"!";
                 }
             }
-            else if (mesg instanceof PayloadRecord) {
-                PayloadRecord pr = (PayloadRecord)mesg;
-                //log.info("processing "+pr.record.getName());
-                Record rec = new Record ();
-                rec.name = pr.mol.getName();
-                rec.job = pr.job;
-                Structure struc = null;
-                try {
-                    struc = StructureProcessor.instrument(pr.mol);
-                    rec.status = Record.Status.OK;
-                }
-                catch (Throwable t) {
-                    rec.status = Record.Status.FAILED;
-                    rec.message = t.getMessage();
-                    t.printStackTrace();
-                }
-                
-                reporter.tell
-                    (new PersistRecord (struc, pr.mol, rec, indexer), self ());
-            }
             else if (mesg instanceof Terminated) {
                 ActorRef actor = ((Terminated)mesg).actor();
-                
-                String id = actor.path().name();
-                int pos = id.indexOf(':');
-                if (pos > 0) {
-                    String jid = id.substring(pos+1);
-                    try {                   
-                        Job job = JobFactory.getJob(jid);
-                        if (job != null) {
-                            job.status = Job.Status.COMPLETE;
-                            reporter.tell
-                                (PersistModel.Update(job), self ());
-                            log.info("done processing job {}!", jid);
-                        }
-                        else {
-                            log.error("Failed to retrieve job "+jid);
-                        }
-                    }
-                    catch (Exception ex) {
-                        ex.printStackTrace();
-                        log.error("Failed to retrieve job "
-                                  +jid+"; "+ex.getMessage());
-                    }
-                }
-                else {
-                    // receiver job
-                    //log.error("Invalid job id: "+id);
-                }
                 context().unwatch(actor);               
             }
             else {
@@ -521,6 +375,7 @@ public class StructureProcessorPlugin extends Plugin {
             throw new IllegalStateException
                 ("Plugin PersistenceQueue is not laoded!");
         
+        threadPool = Executors.newCachedThreadPool();
         system = ActorSystem.create("StructureProcessor");
         Logger.info("Plugin "+getClass().getName()
                     +" initialized; Akka version "+system.Version());
@@ -551,16 +406,44 @@ public class StructureProcessorPlugin extends Plugin {
 
     @Override
     public void onStop () {
+        if (threadPool != null)
+            threadPool.shutdownNow();
         if (system != null)
             system.shutdown();
         Logger.info("Plugin "+getClass().getName()+" stopped!");
     }
 
     public boolean enabled () { return true; }
-    public String submit (Payload payload) {
-        // first see if this payload has already processed..
-        PayloadProcessor pp = new PayloadProcessor (payload);
-        inbox.send(processor, pp);
+    public String submit (final Payload payload) {
+        final PayloadProcessor pp = new PayloadProcessor (payload);
+        if (running.putIfAbsent(payload.id, pp) != null) {
+            // the given payload is currently processing at the moment!
+            Job job = new Job ();
+            job.keys.add(new Keyword
+                         (StructureProcessorPlugin.class.getName(), pp.key));
+            job.status = Job.Status.NOT_RUN;
+            job.message = "Payload "+payload.id+" is "
+                +"currently being processed.";
+            job.payload = payload;
+            PQ.submit(new PersistModelWorker (PersistModel.Save(job)));
+            return pp.key;
+        }
+
+        Logger.info("Received payload "+pp.id);
+        threadPool.submit(new Runnable () {
+                public void run () {
+                    try {
+                        new StructurePipeline (payload, pp.key, indexer).run();
+                    }
+                    catch (Throwable t) {
+                        Logger.error("Failed to process payload "
+                                     +payload.id, t);
+                    }
+                    finally {
+                        running.remove(payload.id);
+                    }
+                }
+            });
         return pp.key;
     }
 
@@ -587,46 +470,4 @@ public class StructureProcessorPlugin extends Plugin {
     public void submit (StructureReceiver receiver) {
         inbox.send(processor, new ReceiverProcessor (null, receiver, indexer));
     }
-
-    /**
-     * batch processing
-     */
-    static Job process (ActorRef reporter,
-                        ActorRef proc, ActorRef sender,
-                        PayloadProcessor pp) throws Exception {
-        List<Job> jobs = JobFactory.getJobsByPayload
-            (pp.payload.id.toString());
-        Job job = null;       
-        if (jobs.isEmpty()) {
-            job = new Job ();
-            job.keys.add(new Keyword
-                         (StructureProcessorPlugin.class.getName(), pp.key));
-            job.status = Job.Status.RUNNING;
-            job.payload = pp.payload;
-            try {
-                InputStream is = PayloadFactory.getStream(pp.payload);      
-                MolImporter mi = new MolImporter (is);
-                int total = 0;
-                for (Molecule m; (m = mi.read()) != null; ++total) {
-                    proc.tell(new PayloadRecord (job, m), sender);
-                }
-                mi.close();
-            }
-            catch (Throwable t) {
-                job.message = t.getMessage();
-                job.status = Job.Status.FAILED;
-                Logger.trace("Failed to process payload "+pp.payload.id, t);
-            }
-            finally {
-                reporter.tell(PersistModel.Save(job), sender);
-            }
-        }
-        else {
-            job = jobs.iterator().next();
-            job.keys.add(new Keyword
-                         (StructureProcessorPlugin.class.getName(), pp.key));
-            reporter.tell(PersistModel.Update(job), sender);
-        }
-        return job;
-    }
 }
@@ -12,6 +12,7 @@ public class TextIndexerPlugin extends Plugin {
     private final Application app;
     private IxContext ctx;
     private TextIndexer indexer;
+    private IndexJournal journal;
 
     public TextIndexerPlugin (Application app) {
         this.app = app;
@@ -26,9 +27,34 @@ public class TextIndexerPlugin extends Plugin {
             indexer = TextIndexer.getInstance(ctx.text());
             int workers = app.configuration()
                 .getInt("ix.text.fetchWorkers", 10);
+            long slice = app.configuration()
+                .getLong("ix.text.fetchSlice", TextIndexer.FETCH_SLICE);
+            int batch = app.configuration()
+                .getInt("ix.text.fetchBatch", TextIndexer.FETCH_BATCH);
+            int ahead = app.configuration()
+                .getInt("ix.text.fetchAhead", TextIndexer.FETCH_AHEAD);
             Logger.info("Loading plugin "
-                        +getClass().getName()+"...fetchWorkers="+workers);
+                        +getClass().getName()+"...fetchWorkers="+workers
+                        +" fetchSlice="+slice+"ms fetchBatch="+batch
+                        +" fetchAhead="+ahead);
             indexer.setFetchWorkers(workers);
+            indexer.setFetchSlice(slice);
+            indexer.setFetchBatch(batch);
+            indexer.setFetchAhead(ahead);
+            indexer.setFacetCacheSize
+                (app.configuration().getInt("ix.text.facetCacheSize",
+                                            TextIndexer.FACET_CACHE_SIZE));
+            
+            if (app.configuration().getBoolean("ix.text.journal", true)) {
+                journal = new IndexJournal (indexer);
+                journal.setBatchSize
+                    (app.configuration().getInt
+                     ("ix.text.journalBatch", IndexJournal.BATCH_SIZE));
+                journal.setLinger
+                    (app.configuration().getLong
+                     ("ix.text.journalLinger", IndexJournal.LINGER));
+                journal.start();
+            }
         }
         catch (IOException ex) {
             Logger.trace("Can't initialize text indexer", ex);
@@ -36,6 +62,9 @@ public class TextIndexerPlugin extends Plugin {
     }
 
     public void onStop () {
+        if (journal != null)
+            journal.shutdown();
+        
         if (indexer != null) {
             indexer.shutdown();
             Logger.info("Plugin "+getClass().getName()+" stopped!");
@@ -44,4 +73,9 @@ public class TextIndexerPlugin extends Plugin {
 
     public boolean enabled () { return true; }
     public TextIndexer getIndexer () { return indexer; }
+    /**
+     * Pending index updates from entity persist callbacks; can be null
+     * when the journal is disabled
+     */
+    public IndexJournal getJournal () { return journal; }
 }
@@ -10,6 +10,7 @@ import ix.core.models.DynamicFacet;
 import ix.core.models.Indexable;
 import ix.core.models.Value;
 import ix.core.plugins.IxCache;
+import ix.core.plugins.CacheGenerations;
 import ix.utils.Global;
 import ix.utils.Util;
 import org.apache.lucene.analysis.Analyzer;
@@ -37,8 +38,9 @@ import org.apache.lucene.facet.range.DoubleRangeFacetCounts;
 import org.apache.lucene.facet.range.LongRange;
 import org.apache.lucene.facet.range.LongRangeFacetCounts;
 import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager.SearcherAndTaxonomy;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
-import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyReader;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
@@ -49,6 +51,7 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.index.LiveIndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -57,7 +60,9 @@ import org.apache.lucene.queries.TermFilter;
 import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.FieldCacheRangeFilter;
 import org.apache.lucene.search.FieldCacheTermsFilter;
 import org.apache.lucene.search.Filter;
@@ -66,7 +71,7 @@ import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
-import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
@@ -81,6 +86,7 @@ import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.NoLockFactory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.reflections.Reflections;
@@ -93,10 +99,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectStreamException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -108,10 +119,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -122,6 +133,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -157,6 +169,10 @@ public class TextIndexer {
      */
     public static final int FETCH_TIMEOUT = 60*60*2; // 2hours
     public static final int FETCH_WORKERS = 4; // number of fetch workers
+    public static final long FETCH_SLICE = 500l; // ms per payload per turn
+    public static final int FETCH_BATCH = 50; // entities loaded per query
+    public static final int FETCH_AHEAD = 500; // matches ahead of a stream
+    public static final int FACET_CACHE_SIZE = 1000; // facet counts cached
 
     /**
      * Make sure to properly update the code when upgrading version
@@ -244,7 +260,8 @@ public class TextIndexer {
                 }
             }
             
-            IndexSearcher searcher = getSearcher ();        
+            SearcherAndTaxonomy st = acquire ();
+            IndexSearcher searcher = st.searcher;
             this.reader = searcher.getIndexReader();
 
             TermQuery tq = new TermQuery
@@ -282,7 +299,7 @@ public class TextIndexer {
                 tvec.terms.put(me.getKey(), map);
             }
             counts = null;
-            releaseSearcher (searcher);
+            release (st);
         }
         
         public void setScorer (Scorer scorer) {
@@ -362,6 +379,10 @@ public class TextIndexer {
         List<FV> values = new ArrayList<FV>();
 
         public Facet (String name) { this.name = name; }
+        public Facet (Facet facet) {
+            this.name = facet.name;
+            this.values.addAll(facet.values);
+        }
         public String getName () { return name; }
         public List<FV> getValues () {
             return values; 
@@ -445,13 +466,88 @@ public class TextIndexer {
         final BlockingQueue matches = new LinkedBlockingQueue ();
         int count;
         SearchOptions options;
+        // matches handed to a ResultStream at a time and how far the
+        // fetch workers may get ahead of the streams; set by the indexer
+        int fetchBatch = FETCH_BATCH;
+        int fetchAhead = FETCH_AHEAD;
         final long timestamp = System.currentTimeMillis();
         AtomicLong stop = new AtomicLong ();
 
         transient ReentrantLock lock = new ReentrantLock ();
         transient ReentrantLock wlck = new ReentrantLock (); // write lock
         transient Condition finished = lock.newCondition();
+        transient Condition changed = lock.newCondition();
         transient Set<String> keys = new HashSet<String>();
+        // guarded by lock: open streams, the furthest match handed to
+        // any of them and the fetch to resume once they catch up
+        transient int streams, consumed;
+        transient Runnable resume;
+
+        /**
+         * A pull-based view of the matches as they are being fetched;
+         * the consumer blocks (up to timeout) until the fetch workers
+         * have produced the next match. The workers in turn get at most
+         * fetchAhead matches ahead of the furthest stream; past that the
+         * fetch is paused until a consumer catches up or the last stream
+         * is exhausted, so a slow consumer doesn't have the whole result
+         * loaded ahead of it. A stream that's dropped before the end
+         * holds the fetch (and anyone waiting for the result to finish)
+         * until the fetch times out.
+         */
+        class ResultStream implements Iterator {
+            final long timeout; // ms
+            final List buffer = new ArrayList ();
+            int pos, next;
+            boolean closed;
+
+            ResultStream (long timeout) {
+                this.timeout = timeout;
+                lock.lock();
+                try {
+                    ++streams;
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            public boolean hasNext () {
+                if (next < buffer.size())
+                    return true;
+                if (closed)
+                    return false;
+
+                buffer.clear();
+                next = 0;
+                lock.lock();
+                try {
+                    long wait = TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (copyTo (buffer, pos, fetchBatch) == 0
+                           && !finished() && wait > 0l)
+                        wait = changed.awaitNanos(wait);
+                    if (buffer.isEmpty())
+                        // one last time in case we finished while waiting
+                        copyTo (buffer, pos, fetchBatch);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    lock.unlock();
+                }
+                pos += buffer.size();
+                closed = buffer.isEmpty();
+                consumed (pos, closed);
+                
+                return !closed;
+            }
+
+            public Object next () {
+                if (!hasNext ())
+                    throw new java.util.NoSuchElementException ();
+                return buffer.get(next++);
+            }
+        }
 
         SearchResult () {}
         SearchResult (SearchOptions options, String query) {
@@ -524,6 +620,19 @@ public class TextIndexer {
             }
         }
 
+        /**
+         * Stream the matches starting with the first one while the
+         * remaining matches are fetched in the background. The iterator
+         * gives up if no new match arrives within the timeout (ms).
+         */
+        public Iterator stream (long timeout) {
+            return new ResultStream (timeout);
+        }
+        
+        public Iterator stream () {
+            return stream (FETCH_TIMEOUT*1000l);
+        }
+
         public void updateCacheWhenComplete (String... keys) {
             for (String key : keys) {
                 this.keys.add(key);
@@ -550,6 +659,84 @@ public class TextIndexer {
             finally {
                 wlck.unlock();
             }
+            signal ();
+        }
+
+        protected void addAll (Collection objs) {
+            if (objs.isEmpty())
+                return;
+            
+            wlck.lock();
+            try {
+                matches.addAll(objs);
+            }
+            finally {
+                wlck.unlock();
+            }
+            signal ();
+        }
+
+        /**
+         * The fetch workers are too far ahead of the streams
+         */
+        boolean lagging () {
+            lock.lock();
+            try {
+                return streams > 0 && matches.size() - consumed >= fetchAhead;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hold the fetch if the streams are lagging; resume is run
+         * once they've caught up
+         */
+        boolean pause (Runnable resume) {
+            lock.lock();
+            try {
+                if (!lagging ())
+                    return false;
+                this.resume = resume;
+                return true;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        void consumed (int pos, boolean close) {
+            Runnable r = null;
+            lock.lock();
+            try {
+                if (close)
+                    --streams;
+                consumed = Math.max(consumed, pos);
+                // only halfway down so the fetch isn't paused and
+                // resumed for every batch consumed
+                if (resume != null && (streams == 0
+                                       || matches.size() - consumed
+                                       <= fetchAhead/2)) {
+                    r = resume;
+                    resume = null;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            if (r != null)
+                r.run();
+        }
+
+        void signal () {
+            lock.lock();
+            try {
+                changed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
         }
         
         protected void done () {
@@ -559,7 +746,8 @@ public class TextIndexer {
                 for (String key : keys) {
                     IxCache.set(key, this);
                 }
-                finished.signal();
+                finished.signalAll();
+                changed.signalAll();
             }
             finally {
                 lock.unlock();
@@ -583,6 +771,7 @@ public class TextIndexer {
                 lock = new ReentrantLock ();
                 wlck = new ReentrantLock ();
                 finished = lock.newCondition();
+                changed = lock.newCondition();
                 keys = new HashSet<String>();
             }
             
@@ -722,63 +911,119 @@ public class TextIndexer {
         }
     }
 
-    final SearchResultPayload POISON_PAYLOAD = new SearchResultPayload ();    
+    /**
+     * Runtime statistics of the background fetch workers
+     */
+    public static class FetchStatistics {
+        final AtomicLong payloads = new AtomicLong ();
+        final AtomicLong requeued = new AtomicLong ();
+        final AtomicLong batches = new AtomicLong ();
+        final AtomicLong fetched = new AtomicLong ();
+        final AtomicLong firstPages = new AtomicLong ();
+        final AtomicLong firstPageTime = new AtomicLong (); // ms
+        final AtomicLong maxFirstPageTime = new AtomicLong (); // ms
+        final AtomicLong pauses = new AtomicLong ();
+        final Collection queue, paused;
+
+        FetchStatistics (Collection queue, Collection paused) {
+            this.queue = queue;
+            this.paused = paused;
+        }
+
+        void firstPage (long elapsed) {
+            firstPages.incrementAndGet();
+            firstPageTime.addAndGet(elapsed);
+            for (long max; elapsed > (max = maxFirstPageTime.get()); )
+                if (maxFirstPageTime.compareAndSet(max, elapsed))
+                    break;
+        }
+        
+        public int getQueueDepth () { return queue.size(); }
+        public int getPaused () { return paused.size(); }
+        public long getPauses () { return pauses.get(); }
+        public long getPayloads () { return payloads.get(); }
+        public long getRequeued () { return requeued.get(); }
+        public long getBatches () { return batches.get(); }
+        public long getFetched () { return fetched.get(); }
+        public long getFirstPages () { return firstPages.get(); }
+        public long getMaxTimeToFirstPage () { return maxFirstPageTime.get(); }
+        public double getAverageTimeToFirstPage () {
+            long n = firstPages.get();
+            return n > 0 ? (double)firstPageTime.get()/n : 0.;
+        }
+    }
+
+    final SearchResultPayload POISON_PAYLOAD = new SearchResultPayload ();
+    /**
+     * Payloads are ordered such that those that still haven't fetched
+     * their first page always come before those that are only fetching
+     * their tail; within the same class, payloads that have been
+     * requeued the least go first (i.e., round robin) and then by age.
+     */
     class SearchResultPayload implements Comparable<SearchResultPayload> {
         SearchResult result;
         TopDocs hits;
+        SearcherAndTaxonomy st;
         IndexSearcher searcher;
         SearchOptions options;
-        int total, offset, requeued = 0;
+        int total, offset, limit, page, next, requeued = 0;
+        // a batch couldn't be fetched; there's nothing more coming
+        boolean failed;
         final long epoch = System.currentTimeMillis();
         
         SearchResultPayload () {}
         SearchResultPayload (SearchResult result, TopDocs hits,
-                             IndexSearcher searcher) {
+                             SearcherAndTaxonomy st) {
             this.result = result;
             this.hits = hits;
-            this.searcher = searcher;
+            this.st = st;
+            this.searcher = st.searcher;
             this.options = result.options;
+            result.fetchBatch = fetchBatch;
+            result.fetchAhead = fetchAhead;
             result.count = hits.totalHits; 
             total = Math.max(0, Math.min(options.max(), result.count));
             offset = Math.min(options.skip, total);
+            limit = Math.min(options.top, total - offset);
+            page = Math.min(limit, options.fetch > 0
+                            ? options.fetch : SearchOptions.DEFAULT_FETCH_SIZE);
+            fetchStats.payloads.incrementAndGet();
         }
 
+        boolean hasFirstPage () { return next >= page; }
+        boolean isDone () { return failed || next >= limit; }
+
         void fetch () throws Exception {
             String thread = Thread.currentThread().getName();
             try {
-                int size = fetch (total);
-                if (size < total) {
-                    // FIXME: make this configurable
-                    if (true || requeued < 20) {
-                        // requeue this payload
-                        Logger.warn(thread
-                                    +": unable to fetch payload "+result
-                                    +" within alotted time; requeuing ("
-                                    +(requeued+1)+") this "
-                                    +"payload "+result.size()+"!");
-                        ++requeued;
-                        if (!fetchQueue.offer(this, 5, TimeUnit.SECONDS)) {
-                            Logger.warn
-                                (thread+": payload "+result+" fails "
-                                 +"to load fully due to fetchQueue timeout!");
-                            result.done();
-                        }
+                fetch (limit);
+                if (!isDone () && hasFirstPage () && pause ()) {
+                    if (DEBUG (1)) {
+                        Logger.debug(thread+": payload "+result
+                                     +" paused at "+next+" until its "
+                                     +"streams catch up");
                     }
-                    else {
-                        Logger.warn(thread
-                                    +": payload "+result+" has been requeued "
-                                    +requeued+" times; it's time to move on "
-                                    +"dude!");
-                        result.done();
+                }
+                else if (!isDone ()) {
+                    // requeue this payload
+                    if (DEBUG (1)) {
+                        Logger.debug(thread
+                                     +": unable to fetch payload "+result
+                                     +" within alotted time; requeuing ("
+                                     +(requeued+1)+") this "
+                                     +"payload "+result.size()+"!");
                     }
+                    ++requeued;
+                    fetchStats.requeued.incrementAndGet();
+                    fetchQueue.put(this);
                 }
                 if (DEBUG (1)) {
                     Logger.debug(thread
                                  +": **** fetchQueue size = "
                                  +fetchQueue.size()+" ("+result.getKey()
                                  +") ****");
-                    if (!fetchQueue.isEmpty()) {
-                        SearchResultPayload res = fetchQueue.peek();
+                    SearchResultPayload res = fetchQueue.peek();
+                    if (res != null && res != POISON_PAYLOAD) {
                         Logger.debug(thread+": **** next in queue: "
                                      +res.result.getKey()+" ("
                                      +res.result.size()+"/"
@@ -787,85 +1032,155 @@ public class TextIndexer {
                 }
             }
             finally {
-                if (result.size() == total) {
+                if (isDone ()) {
                     result.done();
+                    release (st);
                 }
-
-                if (result.finished())
-                    releaseSearcher (searcher);
             }
         }
 
-        Object findObject (IndexableField kind, IndexableField id)
-            throws Exception {
-            
-            Number n = id.numericValue();
-            Object value = ObjectFactory.get
-                (Class.forName(kind.stringValue()),
-                 n != null ? n.longValue() : id.stringValue(),
-                 options.expand.toArray(new String[0]));
-            
-            if (value == null) {
-                Logger.warn
-                    (kind.stringValue()+":"+id
-                     +" not available in persistence store!");
+        /**
+         * Set aside until the streams of the result catch up
+         */
+        boolean pause () {
+            paused.add(this);
+            if (result.pause(new Runnable () {
+                    public void run () {
+                        if (paused.remove(SearchResultPayload.this))
+                            fetchQueue.offer(SearchResultPayload.this);
+                    }
+                })) {
+                fetchStats.pauses.incrementAndGet();
+                return true;
+            }
+            paused.remove(this);
+            return false;
+        }
+
+        /**
+         * Fetch up to size matches; each payload gets a fixed amount of
+         * time (fetchSlice) to do its business. If it isn't done by then,
+         * the caller should push it back into the queue so that other
+         * payloads get their turn.
+         */
+        int fetch (int size) throws IOException {
+            size = Math.min(limit, size);
+            boolean first = !hasFirstPage ();
+            long start = System.currentTimeMillis();
+            try {
+                for (long elapsed = 0l;
+                     next < size && elapsed < fetchSlice
+                         && (!hasFirstPage () || !result.lagging()); ) {
+                    int n = Math.min(fetchBatch, size - next);
+                    fetchBatch (next, n);
+                    next += n;
+                    elapsed = System.currentTimeMillis() - start;
+                }
+            }
+            catch (IOException ex) {
+                // so the result is marked done instead of leaving its
+                // consumers waiting for matches that never come
+                failed = true;
+                throw ex;
             }
 
-            return value;
-        }
-        
+            if (first && hasFirstPage ())
+                fetchStats.firstPage(System.currentTimeMillis() - epoch);
             
-        int fetch (int size)  throws IOException {
-            size = Math.min(options.top, Math.min(total - offset, size));
-            int i = result.size();
-            long start = System.currentTimeMillis();
-            // give each payload a small amount of time to do its business..
-            // if it isn't done by then, we push it back to the end of the
-            // queue!
-            // FIXME: make this configurable!
-            for (long elapsed = 0l; i < size && elapsed < 500l; ++i) {
-                Document doc = searcher.doc(hits.scoreDocs[i+offset].doc);
-                final IndexableField kind = doc.getField(FIELD_KIND);
+            if (DEBUG (1)) {
+                Logger.debug(Thread.currentThread().getName()+": fetched "
+                             +next+"/"+size+" for payload "+result+" in "
+                             +(System.currentTimeMillis()-start)+"ms!");
+            }
+            
+            return next;
+        }
+
+        /**
+         * Load matches [from, from+size) with one query per entity kind
+         */
+        void fetchBatch (int from, int size) throws IOException {
+            Map<String, List> ids = new HashMap<String, List>();
+            Object[][] refs = new Object[size][];
+            for (int i = 0; i < size; ++i) {
+                Document doc = searcher.doc
+                    (hits.scoreDocs[from+i+offset].doc);
+                IndexableField kind = doc.getField(FIELD_KIND);
                 if (kind != null) {
                     String field = kind.stringValue()+"._id";
-                    final IndexableField id = doc.getField(field);
+                    IndexableField id = doc.getField(field);
                     if (id != null) {
                         if (DEBUG (2)) {
                             Logger.debug("++ matched doc "
                                          +field+"="+id.stringValue());
                         }
-                        
-                        try {
-                            Object value = findObject (kind, id);
-                            if (value != null)
-                                result.add(value);
-                        }
-                        catch (Exception ex) {
-                            Logger.trace("Can't locate object "
-                                         +field+":"+id.stringValue(), ex);
-                        }
+                        Number n = id.numericValue();
+                        Object value = n != null
+                            ? (Object)n.longValue() : id.stringValue();
+                        List list = ids.get(kind.stringValue());
+                        if (list == null) 
+                            ids.put(kind.stringValue(),
+                                    list = new ArrayList ());
+                        list.add(value);
+                        refs[i] = new Object[]{kind.stringValue(), value};
                     }
                     else {
                         Logger.error("Index corrupted; document "
                                      +"doesn't have field "+field);
                     }
                 }
-                elapsed = System.currentTimeMillis() - start;
             }
-            
-            if (DEBUG (1)) {
-                Logger.debug(Thread.currentThread().getName()+": fetched "+i
-                             +"/"+size+" for payload "+result+" in "
-                             +(System.currentTimeMillis()-start)+"ms!");
+
+            Map<String, Map<Object, Object>> objs =
+                new HashMap<String, Map<Object, Object>>();
+            String[] expand = options.expand.toArray(new String[0]);
+            for (Map.Entry<String, List> me : ids.entrySet()) {
+                try {
+                    objs.put(me.getKey(), ObjectFactory.getAll
+                             (Class.forName(me.getKey()),
+                              me.getValue(), expand));
+                    fetchStats.batches.incrementAndGet();
+                }
+                catch (Exception ex) {
+                    Logger.trace("Can't locate objects of "+me.getKey(), ex);
+                }
             }
-            
-            return i;
+
+            List matches = new ArrayList ();
+            for (Object[] ref : refs) {
+                if (ref == null)
+                    continue;
+                
+                Map<Object, Object> m = objs.get(ref[0]);
+                Object value = m != null ? m.get(ref[1]) : null;
+                if (value != null)
+                    matches.add(value);
+                else
+                    Logger.warn(ref[0]+":"+ref[1]
+                                +" not available in persistence store!");
+            }
+            result.addAll(matches);
+            fetchStats.fetched.addAndGet(matches.size());
         }
 
         public int compareTo (SearchResultPayload res) {
-            int d0 = result.count - result.size();
-            int d1 = res.result.count - res.result.size();
-            return d0 - d1;
+            if (this == res)
+                return 0;
+            if (this == POISON_PAYLOAD)
+                return -1;
+            if (res == POISON_PAYLOAD)
+                return 1;
+
+            boolean p0 = hasFirstPage (), p1 = res.hasFirstPage();
+            if (p0 != p1)
+                return p0 ? 1 : -1;
+            
+            int d = requeued - res.requeued;
+            if (d == 0) {
+                if (epoch < res.epoch) d = -1;
+                else if (epoch > res.epoch) d = 1;
+            }
+            return d;
         }
     }
         
@@ -882,17 +1197,22 @@ public class TextIndexer {
                          && !Thread.currentThread().isInterrupted(); ) {
                     try {
                         long start = System.currentTimeMillis();
-                        Logger.debug(Thread.currentThread()
-                                     +": fetching payload "
-                                     +payload.hits.totalHits
-                                     +" for "+payload.options);
+                        if (DEBUG (1)) {
+                            Logger.debug(Thread.currentThread()
+                                         +": fetching payload "
+                                         +payload.hits.totalHits
+                                         +" for "+payload.options);
+                        }
                         payload.fetch();
-                        Logger.debug(Thread.currentThread()+": ## fetched "
-                                     +payload.result.size()
-                                     +" for result "+payload.result
-                                     +" in "+String.format
-                                     ("%1$dms", 
-                                      System.currentTimeMillis()-start));
+                        if (DEBUG (1)) {
+                            Logger.debug(Thread.currentThread()
+                                         +": ## fetched "
+                                         +payload.result.size()
+                                         +" for result "+payload.result
+                                         +" in "+String.format
+                                         ("%1$dms", 
+                                          System.currentTimeMillis()-start));
+                        }
                     }
                     catch (IOException ex) {
                         Logger.error("Error in processing payload", ex);
@@ -931,6 +1251,11 @@ public class TextIndexer {
                 if (elapsed > FETCH_TIMEOUT && res != POISON_PAYLOAD)
                     expired.add(res);
             }
+            for (SearchResultPayload res : paused) {
+                double elapsed = (current - res.epoch)/1000.;
+                if (elapsed > FETCH_TIMEOUT && paused.remove(res))
+                    expired.add(res);
+            }
 
             for (SearchResultPayload res : expired) {
                 Logger.debug("Fetch payload "+res.result.getKey()
@@ -939,7 +1264,7 @@ public class TextIndexer {
                              +"); removing from fetchQueue!");
                 fetchQueue.remove(res);
                 res.result.done();
-                releaseSearcher (res.searcher);
+                release (res.st);
             }
             return expired.size();
         }
@@ -964,8 +1289,24 @@ public class TextIndexer {
     
     private Future[] fetchWorkers = new Future[0];
     private BlockingQueue<SearchResultPayload> fetchQueue =
-        new LinkedBlockingQueue<>();
-    private SearcherManager searcherManager;
+        new PriorityBlockingQueue<>();
+    private long fetchSlice = FETCH_SLICE;
+    // payloads waiting for the streams of their result to catch up
+    private Set<SearchResultPayload> paused = Collections.newSetFromMap
+        (new ConcurrentHashMap<SearchResultPayload, Boolean>());
+    private int fetchBatch = FETCH_BATCH;
+    private int fetchAhead = FETCH_AHEAD;
+    private final FetchStatistics fetchStats =
+        new FetchStatistics (fetchQueue, paused);
+    private volatile boolean bulk;
+    private volatile Thread bulkOwner; // the only thread to commit in bulk
+    private double ramBufferMB0;
+    private ConcurrentMap<Class, Filter> kindFilters =
+        new ConcurrentHashMap<Class, Filter>();
+    private Reflections reflections;
+    private SearcherTaxonomyManager searcherManager;
+    private Map<String, List<Facet>> facetCache =
+        createFacetCache (FACET_CACHE_SIZE);
         
     static ConcurrentMap<File, TextIndexer> indexers = 
         new ConcurrentHashMap<File, TextIndexer>();
@@ -1008,6 +1349,9 @@ public class TextIndexer {
                 ("lastModified", IOContext.DEFAULT);
             lastModified.set(input.readLong());
             input.close();
+            // cache entries older than the index are stale regardless
+            // of what they depend on
+            CacheGenerations.floor(lastModified.get());
             Logger.debug("Index "+index+": lastModified "
                          +new Date(lastModified.get()));
         }
@@ -1024,9 +1368,9 @@ public class TextIndexer {
         IndexWriterConfig conf = new IndexWriterConfig 
             (LUCENE_VERSION, indexAnalyzer);
         indexWriter = new IndexWriter (indexDir, conf);
-        searcherManager = new SearcherManager (indexWriter, true, null);
         indexReader = DirectoryReader.open(indexWriter, true);  
         taxonWriter = new DirectoryTaxonomyWriter (taxonDir);
+        searcherManager = createSearcherManager ();
 
         facetsConfig = loadFacetsConfig (new File (dir, FACETS_CONFIG_FILE));
         if (facetsConfig == null) {
@@ -1096,6 +1440,43 @@ public class TextIndexer {
         }
     }
     
+    /**
+     * Maximum amount of time (in ms) a fetch worker spends on a payload
+     * before moving on to the next one in the queue
+     */
+    public void setFetchSlice (long slice) {
+        if (slice < 1l)
+            throw new IllegalArgumentException
+                ("Fetch time slice can't be < 1ms!");
+        fetchSlice = slice;
+    }
+    public long getFetchSlice () { return fetchSlice; }
+
+    /**
+     * Number of entities that are loaded per query by the fetch workers
+     */
+    public void setFetchBatch (int batch) {
+        if (batch < 1)
+            throw new IllegalArgumentException
+                ("Fetch batch size can't be < 1!");
+        fetchBatch = batch;
+    }
+    public int getFetchBatch () { return fetchBatch; }
+
+    /**
+     * Number of matches the fetch workers may get ahead of the
+     * streams of a result before they pause it
+     */
+    public void setFetchAhead (int ahead) {
+        if (ahead < 1)
+            throw new IllegalArgumentException
+                ("Fetch ahead can't be < 1!");
+        fetchAhead = ahead;
+    }
+    public int getFetchAhead () { return fetchAhead; }
+
+    public FetchStatistics getFetchStatistics () { return fetchStats; }
+    
     protected synchronized DirectoryReader getReader () throws IOException {
         DirectoryReader reader = DirectoryReader.openIfChanged(indexReader);
         if (reader != null) {
@@ -1105,13 +1486,50 @@ public class TextIndexer {
         return indexReader;
     }
 
-    protected IndexSearcher getSearcher () throws IOException {
-        //return new IndexSearcher (getReader ());
+    /**
+     * The searcher and taxonomy reader are refreshed together such that
+     * they're always consistent with each other; any cached facet counts
+     * are dropped whenever a refresh picks up a change.
+     */
+    SearcherTaxonomyManager createSearcherManager () throws IOException {
+        SearcherTaxonomyManager manager = new SearcherTaxonomyManager
+            (indexWriter, true, null, taxonWriter);
+        manager.addListener(new ReferenceManager.RefreshListener () {
+                public void beforeRefresh () {}
+                public void afterRefresh (boolean didRefresh) {
+                    if (didRefresh)
+                        facetCache.clear();
+                }
+            });
+        return manager;
+    }
+
+    static Map<String, List<Facet>> createFacetCache (final int size) {
+        return Collections.synchronizedMap
+            (new LinkedHashMap<String, List<Facet>>(16, .75f, true) {
+                    protected boolean removeEldestEntry
+                        (Map.Entry<String, List<Facet>> eldest) {
+                        return size() > size;
+                    }
+                });
+    }
+
+    /**
+     * Number of facet count results kept in memory
+     */
+    public void setFacetCacheSize (int size) {
+        if (size < 1)
+            throw new IllegalArgumentException
+                ("Facet cache size can't be < 1!");
+        facetCache = createFacetCache (size);
+    }
+    
+    protected SearcherAndTaxonomy acquire () throws IOException {
         return searcherManager.acquire();
     }
 
-    protected void releaseSearcher (IndexSearcher searcher) throws IOException {
-        searcherManager.release(searcher);
+    protected void release (SearcherAndTaxonomy st) throws IOException {
+        searcherManager.release(st);
         searcherManager.maybeRefresh();
     }
 
@@ -1160,21 +1578,36 @@ public class TextIndexer {
     }
 
     public Map<String,Integer> getFacetLabelCounts(String facetName) throws IOException {
-        IndexSearcher searcher = new IndexSearcher(indexReader);
-        TaxonomyReader taxoReader = new DirectoryTaxonomyReader(taxonDir);
-        FacetsCollector fc = new FacetsCollector();
-        FacetsCollector.search(searcher, new MatchAllDocsQuery(), 1000000, fc);
-        Facets facets = new FastTaxonomyFacetCounts(taxoReader, facetsConfig, fc);
-        List<FacetResult> frs = facets.getAllDims(999999);
-        Map<String,Integer> facetValues = new HashMap<>();
-        for (FacetResult fr : frs) {
-            if (fr.dim.equals(facetName)) {
-                LabelAndValue[] lavs = fr.labelValues;
-                for (LabelAndValue lav : lavs)
-                    facetValues.put(lav.label, lav.value.intValue());
+        CacheGenerations.dependsOnAll();
+        SearcherAndTaxonomy st = acquire ();
+        try {
+            String key = "__dim__/"+((DirectoryReader)st.searcher
+                                     .getIndexReader()).getVersion()
+                +"/"+facetName;
+            List<Facet> cached = facetCache.get(key);
+            if (cached == null) {
+                FacetsCollector fc = new FacetsCollector();
+                st.searcher.search(new MatchAllDocsQuery(), fc);
+                Facets facets = new FastTaxonomyFacetCounts
+                    (st.taxonomyReader, facetsConfig, fc);
+                Facet f = new Facet (facetName);
+                FacetResult fr = facets.getTopChildren(999999, facetName);
+                if (fr != null) {
+                    for (LabelAndValue lav : fr.labelValues)
+                        f.values.add(new FV (lav.label,
+                                             lav.value.intValue()));
+                }
+                facetCache.put(key, cached = Arrays.asList(f));
             }
+            
+            Map<String,Integer> facetValues = new HashMap<>();
+            for (FV fv : cached.get(0).values)
+                facetValues.put(fv.label, fv.count);
+            return facetValues;
+        }
+        finally {
+            release (st);
         }
-        return facetValues;
     }
 
     protected TextIndexer config (TextIndexer indexer) throws IOException {
@@ -1184,6 +1617,7 @@ public class TextIndexer {
         indexer.indexWriter = new IndexWriter (indexer.indexDir, conf);
         indexer.indexReader = DirectoryReader.open(indexer.indexWriter, true);
         indexer.taxonWriter = new DirectoryTaxonomyWriter (indexer.taxonDir);
+        indexer.searcherManager = indexer.createSearcherManager ();
         indexer.facetsConfig = new FacetsConfig ();
         for (Map.Entry<String, FacetsConfig.DimConfig> me
                  : facetsConfig.getDimConfigs().entrySet()) {
@@ -1271,28 +1705,23 @@ public class TextIndexer {
                 List<Term> terms = getTerms (subset, kinds);
                 //Logger.debug("Filter terms "+subset.size());
                 if (!terms.isEmpty()) {
+                    String key = "terms:"+new TreeSet<String>(kinds)
+                        +":"+digest (terms);
                     if (kinds.size() == 1) {
                         // add an extra security if we have a homogeneous list
-                        f = new ChainedFilter (new Filter[] { 
+                        f = new KeyedFilter (new ChainedFilter (new Filter[] { 
                                 new TermsFilter (terms), new TermFilter 
                                 (new Term (FIELD_KIND, 
                                            kinds.iterator().next()))
-                            }, ChainedFilter.AND);
+                            }, ChainedFilter.AND), key);
                     }
                     else {
-                        f = new TermsFilter (terms);
+                        f = new KeyedFilter (new TermsFilter (terms), key);
                     }
                 }
             }
             else if (options.kind != null) {
-                Set<String> kinds = new TreeSet<String>();
-                kinds.add(options.kind.getName());
-                Reflections reflections = new Reflections("ix");
-                for (Class c : reflections.getSubTypesOf(options.kind)) {
-                    kinds.add(c.getName());
-                }
-                f = new FieldCacheTermsFilter 
-                    (FIELD_KIND, kinds.toArray(new String[0]));
+                f = getKindFilter (options.kind);
             }
             search (searchResult, query, f);
         }
@@ -1300,6 +1729,47 @@ public class TextIndexer {
         return searchResult;
     }
 
+    /**
+     * Return the filter that matches the given entity class and all of
+     * its subclasses. The class hierarchy is scanned only once per
+     * indexer instance (i.e., per application reload) and the filter's
+     * doc id sets are cached per index segment.
+     */
+    protected Filter getKindFilter (Class kind) {
+        Filter filter = kindFilters.get(kind);
+        if (filter == null) {
+            Set<String> kinds = new TreeSet<String>();
+            kinds.add(kind.getName());
+            for (Class c : getReflections().getSubTypesOf(kind)) {
+                kinds.add(c.getName());
+            }
+            Filter old = kindFilters.putIfAbsent
+                (kind, filter = new KeyedFilter
+                 (new CachingWrapperFilter
+                  (new FieldCacheTermsFilter
+                   (FIELD_KIND, kinds.toArray(new String[0]))),
+                  "kind:"+kind.getName()));
+            if (old != null)
+                filter = old;
+            
+            if (DEBUG (1)) {
+                Logger.debug("## Kind filter for "+kind.getName()+": "+kinds);
+            }
+        }
+        return filter;
+    }
+
+    synchronized Reflections getReflections () {
+        if (reflections == null) {
+            long start = System.currentTimeMillis();
+            reflections = new Reflections ("ix");
+            Logger.debug("## Class hierarchy scanned in "
+                         +String.format("%1$.3fs", 1e-3*
+                                        (System.currentTimeMillis()-start)));
+        }
+        return reflections;
+    }
+    
     public SearchResult filter (Collection subset)  throws IOException {
         SearchOptions options = new SearchOptions
             (null, subset.size(), 0, subset.size()/2);
@@ -1330,17 +1800,81 @@ public class TextIndexer {
     
     public SearchResult filter (SearchOptions options, Collection subset)
         throws IOException {
-        return filter (options, getTermsFilter (subset));
+        List<Term> terms = getTerms (subset);
+        return filter (options, new KeyedFilter
+                       (new TermsFilter (terms), "terms:"+digest (terms)));
+    }
+
+    /**
+     * Digest of the terms of a filter, so that the facet cache key of a
+     * large subset doesn't have to spell out every term
+     */
+    static String digest (List<Term> terms) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            for (Term t : terms) {
+                md.update(t.field().getBytes("utf8"));
+                md.update((byte)0);
+                BytesRef b = t.bytes();
+                md.update(b.bytes, b.offset, b.length);
+                md.update((byte)0);
+            }
+            return Util.toHex(md.digest());
+        }
+        catch (Exception ex) {
+            throw new RuntimeException (ex);
+        }
+    }
+
+    /**
+     * A filter with a stable key for the facet cache; the toString of
+     * Lucene's filters either carries an identity hash or spells out
+     * every term.
+     */
+    static class KeyedFilter extends Filter {
+        final Filter filter;
+        final String key;
+
+        KeyedFilter (Filter filter, String key) {
+            this.filter = filter;
+            this.key = key;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet (AtomicReaderContext context,
+                                     Bits acceptDocs) throws IOException {
+            return filter.getDocIdSet(context, acceptDocs);
+        }
+
+        @Override
+        public String toString () { return key; }
+    }
+
+    /**
+     * Stable key of the filter; null if it has none, in which case the
+     * facets aren't cached
+     */
+    static String getFilterKey (Filter filter) {
+        if (filter == null)
+            return "";
+        if (filter instanceof KeyedFilter)
+            return ((KeyedFilter)filter).key;
+        if (filter instanceof TermFilter
+            || filter instanceof FieldCacheRangeFilter)
+            return filter.toString();
+        return null;
     }
 
     public TermVectors getTermVectors (Class kind, String field)
         throws IOException {
+        CacheGenerations.depends(kind);
         return new TermVectorsCollector (kind, field).termVectors();
     }
     
     public TermVectors getTermVectors (Class kind, String field,
                                        Map<String, String> filters)
         throws IOException {
+        CacheGenerations.depends(kind);
         Term[] terms = new Term[0];
         if (filters != null && !filters.isEmpty()) {
             terms = new Term[filters.size()];
@@ -1363,7 +1897,7 @@ public class TextIndexer {
                 (new Term (FIELD_KIND, options.kind.getName()));
         }
         
-        return search (getSearcher (), new SearchResult (options, null),
+        return search (acquire (), new SearchResult (options, null),
                        query, filter);
     }
 
@@ -1378,27 +1912,31 @@ public class TextIndexer {
                 (new Term (FIELD_KIND, options.kind.getName()));
         }
         
-        return search (getSearcher (), new SearchResult (options, null),
+        return search (acquire (), new SearchResult (options, null),
                        query, filter);
     }
     
     protected SearchResult filter (SearchOptions options, Filter filter)
         throws IOException {
-        return search (getSearcher (), new SearchResult (options, null),
+        return search (acquire (), new SearchResult (options, null),
                        new MatchAllDocsQuery (), filter);
     }
 
     protected SearchResult search (SearchResult searchResult, 
                                    Query query, Filter filter)
         throws IOException {
-        return search (getSearcher (), searchResult, query, filter);
+        return search (acquire (), searchResult, query, filter);
     }
     
-    protected SearchResult search (IndexSearcher searcher,
+    protected SearchResult search (SearcherAndTaxonomy st,
                                    SearchResult searchResult, 
                                    Query query, Filter filter)
         throws IOException {
         SearchOptions options = searchResult.getOptions();
+        IndexSearcher searcher = st.searcher;
+        TaxonomyReader taxon = st.taxonomyReader;
+        // a search without kind depends on everything in the index
+        CacheGenerations.depends(options.kind);
         
         if (DEBUG (1)) {
             Logger.debug("## Query: "
@@ -1410,84 +1948,103 @@ public class TextIndexer {
         long start = System.currentTimeMillis();
             
         FacetsCollector fc = new FacetsCollector ();
-        TaxonomyReader taxon = new DirectoryTaxonomyReader (taxonWriter);
         TopDocs hits = null;
         
-        try {
-            Sort sorter = null;
-            if (!options.order.isEmpty()) {
-                List<SortField> fields = new ArrayList<SortField>();
-                for (String f : options.order) {
-                    boolean rev = false;
-                    if (f.charAt(0) == '^') {
-                        // sort in reverse
-                        f = f.substring(1);
-                    }
-                    else if (f.charAt(0) == '$') {
-                        f = f.substring(1);
-                        rev = true;
-                    }
-                    
-                    SortField.Type type = sorters.get(f);
-                    if (type != null) {
-                        SortField sf = new SortField (f, type, rev);
-                        Logger.debug("Sort field (rev="+rev+"): "+sf);
-                        fields.add(sf);
-                    }
-                    else {
-                        Logger.warn("Unknown sort field: \""+f+"\"");
-                    }
+        Sort sorter = null;
+        if (!options.order.isEmpty()) {
+            List<SortField> fields = new ArrayList<SortField>();
+            for (String f : options.order) {
+                boolean rev = false;
+                if (f.charAt(0) == '^') {
+                    // sort in reverse
+                    f = f.substring(1);
+                }
+                else if (f.charAt(0) == '$') {
+                    f = f.substring(1);
+                    rev = true;
                 }
                 
-                if (!fields.isEmpty())
-                    sorter = new Sort (fields.toArray(new SortField[0]));
+                SortField.Type type = sorters.get(f);
+                if (type != null) {
+                    SortField sf = new SortField (f, type, rev);
+                    Logger.debug("Sort field (rev="+rev+"): "+sf);
+                    fields.add(sf);
+                }
+                else {
+                    Logger.warn("Unknown sort field: \""+f+"\"");
+                }
             }
             
-            List<String> drills = options.facets;
-            // remove all range facets
-            Map<String, List<Filter>> filters =
-                new HashMap<String, List<Filter>>();
-            
-            List<String> remove = new ArrayList<String>();
-            for (String f : drills) {
-                int pos = f.indexOf('/');
-                if (pos > 0) {
-                    String facet = f.substring(0, pos);
-                    String value = f.substring(pos+1);
-                    Logger.warn("facet="+facet+" value="+value);
-                    for (SearchOptions.FacetRange fr : options.rangeFacets) {
-                        if (facet.equals(fr.field)) {
-                            List<Filter> fl = new ArrayList<>();
-                            createRangeFilters (fr, value, fl);
-                            if (!fl.isEmpty()) {
-                                List<Filter> old = filters.get(facet);
-                                if (old != null)
-                                    old.addAll(fl);
-                                else
-                                    filters.put(facet, fl);
-                                remove.add(f);
-                            }
+            if (!fields.isEmpty())
+                sorter = new Sort (fields.toArray(new SortField[0]));
+        }
+        
+        List<String> drills = options.facets;
+        // remove all range facets
+        Map<String, List<Filter>> filters =
+            new HashMap<String, List<Filter>>();
+        
+        List<String> remove = new ArrayList<String>();
+        for (String f : drills) {
+            int pos = f.indexOf('/');
+            if (pos > 0) {
+                String facet = f.substring(0, pos);
+                String value = f.substring(pos+1);
+                Logger.warn("facet="+facet+" value="+value);
+                for (SearchOptions.FacetRange fr : options.rangeFacets) {
+                    if (facet.equals(fr.field)) {
+                        List<Filter> fl = new ArrayList<>();
+                        createRangeFilters (fr, value, fl);
+                        if (!fl.isEmpty()) {
+                            List<Filter> old = filters.get(facet);
+                            if (old != null)
+                                old.addAll(fl);
+                            else
+                                filters.put(facet, fl);
+                            remove.add(f);
                         }
                     }
                 }
             }
+        }
 
-            drills.removeAll(remove);
-            if (!filters.isEmpty()) {
-                List<Filter> all = new ArrayList<Filter>();
-                if (filter != null)
-                    all.add(filter);
-                
-                for (Map.Entry<String, List<Filter>> me : filters.entrySet()) {
-                    ChainedFilter cf = new ChainedFilter
-                        (me.getValue().toArray(new Filter[0]),
-                         ChainedFilter.OR);
-                    all.add(cf);
-                }
-                filter = new ChainedFilter (all.toArray(new Filter[0]),
-                                            ChainedFilter.AND);
-            }
+        drills.removeAll(remove);
+        if (!filters.isEmpty()) {
+            List<Filter> all = new ArrayList<Filter>();
+            if (filter != null)
+                all.add(filter);
             
+            for (Map.Entry<String, List<Filter>> me : filters.entrySet()) {
+                ChainedFilter cf = new ChainedFilter
+                    (me.getValue().toArray(new Filter[0]),
+                     ChainedFilter.OR);
+                all.add(cf);
+            }
+            String key = getFilterKey (filter);
+            Collections.sort(remove);
+            filter = new ChainedFilter (all.toArray(new Filter[0]),
+                                        ChainedFilter.AND);
+            if (key != null)
+                filter = new KeyedFilter (filter, key+"&ranges:"+remove);
+        }
+        
+        String facetKey = getFacetKey (st, query, filter, options);
+        List<Facet> cached = facetKey != null
+            ? getCachedFacets (facetKey) : null;
+        if (cached != null) {
+            // facet counts are served from the cache; all we need now
+            // are the top hits
+            Query q = drills.isEmpty()
+                ? query : createDrillDownQuery (query, options);
+            hits = sorter != null
+                ? searcher.search(q, filter, options.max(), sorter)
+                : searcher.search(q, filter, options.max());
+            searchResult.facets.addAll(cached);
+            if (DEBUG (1)) {
+                Logger.debug("## Facets cache hit: "+facetKey);
+            }
+        }
+        else {
             if (drills.isEmpty()) {
                 hits = sorter != null 
                     ? (FacetsCollector.search
@@ -1521,19 +2078,7 @@ public class TextIndexer {
                 }
             }
             else {
-                DrillDownQuery ddq = new DrillDownQuery (facetsConfig, query);
-                // the first term is the drilldown dimension
-                for (String dd : options.facets) {
-                    int pos = dd.indexOf('/');
-                    if (pos > 0) {
-                        String facet = dd.substring(0, pos);
-                        String value = dd.substring(pos+1);
-                        ddq.add(facet, value/*.split("/")*/);
-                    }
-                    else {
-                        Logger.warn("Bogus drilldown syntax: "+dd);
-                    }
-                }
+                DrillDownQuery ddq = createDrillDownQuery (query, options);
                 
                 Facets facets;
                 if (options.sideway) {
@@ -1626,9 +2171,8 @@ public class TextIndexer {
             } // facets is empty
 
             collectRangeFacets (fc, searchResult);
-        }
-        finally {
-            taxon.close();
+            if (facetKey != null)
+                cacheFacets (facetKey, searchResult.facets);
         }
 
         if (DEBUG (1)) {
@@ -1639,42 +2183,112 @@ public class TextIndexer {
                          +"..."+hits.totalHits+" hit(s) found!");
         }
 
+        SearchResultPayload payload = null;
         try {
-            SearchResultPayload payload = new SearchResultPayload
-                (searchResult, hits, searcher);
+            payload = new SearchResultPayload (searchResult, hits, st);
             if (options.fetch <= 0) {
-                payload.fetch();
+                while (!payload.isDone())
+                    payload.fetch(payload.limit);
+                searchResult.done();
+                release (st);
             }
             else {
-                // we first block until we have enough result to show; simulate
-                //  with a random number of fetch
-                int fetch = 20 + new Random().nextInt(options.fetch);
-                payload.fetch(fetch);
-
-                if (hits.totalHits > fetch) {
+                // we first block (up to the fetch time slice) until we
+                // have the first page to show
+                payload.fetch(payload.page);
+                if (!payload.isDone()) {
                     if (DEBUG (1)) {
                         Logger.debug("## Fetching remaining "
-                                     +(hits.totalHits-fetch)
+                                     +(payload.limit-payload.next)
                                      +" in the background; fetchQueue "
                                      +"size is "+fetchQueue.size());
                     }
-                    // now queue the payload so the remainder is fetched in
-                    // the background
+                    // now queue the payload so the remainder (and the rest
+                    // of the first page if we ran out of time) is fetched
+                    // in the background
                     fetchQueue.put(payload);
                 }
                 else {
-                    payload.fetch();
+                    searchResult.done();
+                    release (st);
                 }
             }
         }
         catch (Exception ex) {
             ex.printStackTrace();
             Logger.trace("Can't queue fetch results!", ex);
+            if (payload != null && payload.failed) {
+                searchResult.done();
+                release (st);
+            }
         }
-        
+
         return searchResult;
     }
 
+    DrillDownQuery createDrillDownQuery (Query query, SearchOptions options) {
+        DrillDownQuery ddq = new DrillDownQuery (facetsConfig, query);
+        // the first term is the drilldown dimension
+        for (String dd : options.facets) {
+            int pos = dd.indexOf('/');
+            if (pos > 0) {
+                String facet = dd.substring(0, pos);
+                String value = dd.substring(pos+1);
+                ddq.add(facet, value/*.split("/")*/);
+            }
+            else {
+                Logger.warn("Bogus drilldown syntax: "+dd);
+            }
+        }
+        return ddq;
+    }
+
+    /**
+     * Facet counts only depend on the query, filter, drilldowns and the
+     * reader generation, so the key changes whenever the index does.
+     * Returns null if the filter has no stable key.
+     */
+    static String getFacetKey (SearcherAndTaxonomy st, Query query,
+                               Filter filter, SearchOptions options) {
+        String fkey = getFilterKey (filter);
+        if (fkey == null)
+            return null;
+        
+        StringBuilder key = new StringBuilder ();
+        key.append(((DirectoryReader)st.searcher.getIndexReader())
+                   .getVersion());
+        key.append("|"+query);
+        key.append("|"+fkey);
+        key.append("|"+options.sideway+"|"+options.fdim);
+        for (String f : options.facets)
+            key.append("|"+f);
+        for (SearchOptions.FacetRange fr : options.rangeFacets) {
+            key.append("|"+fr.field);
+            for (SearchOptions.Range r : fr.range)
+                key.append(":"+r.getName());
+        }
+        return Util.sha1(key.toString());
+    }
+
+    List<Facet> getCachedFacets (String key) {
+        List<Facet> facets = facetCache.get(key);
+        if (facets != null) {
+            // callers are free to sort/modify their facets
+            List<Facet> copy = new ArrayList<Facet>();
+            for (Facet f : facets)
+                copy.add(new Facet (f));
+            facets = copy;
+        }
+        return facets;
+    }
+
+    void cacheFacets (String key, List<Facet> facets) {
+        List<Facet> copy = new ArrayList<Facet>();
+        for (Facet f : facets)
+            copy.add(new Facet (f));
+        facetCache.put(key, copy);
+    }
+
     protected void collectRangeFacets (FacetsCollector fc,
                                        SearchResult searchResult)
         throws IOException {
@@ -1824,12 +2438,16 @@ public class TextIndexer {
         Document doc = null;
         Term term = getTerm (entity);
         if (term != null) {
-            IndexSearcher searcher = getSearcher ();
-            TopDocs docs = searcher.search(new TermQuery (term), 1);
-            //Logger.debug("TermQuery: term="+term+" => "+docs.totalHits);
-            if (docs.totalHits > 0)
-                doc = searcher.doc(docs.scoreDocs[0].doc);
-            releaseSearcher (searcher);
+            SearcherAndTaxonomy st = acquire ();
+            try {
+                TopDocs docs = st.searcher.search(new TermQuery (term), 1);
+                //Logger.debug("TermQuery: term="+term+" => "+docs.totalHits);
+                if (docs.totalHits > 0)
+                    doc = st.searcher.doc(docs.scoreDocs[0].doc);
+            }
+            finally {
+                release (st);
+            }
         }
         return doc;
     }
@@ -1880,9 +2498,24 @@ public class TextIndexer {
      * recursively index any object annotated with Entity
      */
     public void add (Object entity) throws IOException {
+        Document doc = createDoc (entity);
+        if (doc != null) {
+            // now index
+            addDoc (doc);
+            if (DEBUG (2))
+                Logger.debug("<<< "+entity);
+        }
+    }
+
+    /**
+     * Instrument the entity into a document without adding it to the
+     * index; returns null if the entity isn't indexable. This method
+     * can be called concurrently.
+     */
+    public Document createDoc (Object entity) {
         if (entity == null 
             || !entity.getClass().isAnnotationPresent(Entity.class)) {
-            return;
+            return null;
         }
 
         Indexable indexable = 
@@ -1893,7 +2526,7 @@ public class TextIndexer {
                 Logger.debug(">>> Not indexable "+entity);
             }
 
-            return;
+            return null;
         }
 
         if (DEBUG (2))
@@ -1917,11 +2550,7 @@ public class TextIndexer {
             }
             doc.add(f);
         }
-        
-        // now index
-        addDoc (doc);
-        if (DEBUG (2))
-            Logger.debug("<<< "+entity);
+        return doc;
     }
 
     public void addDoc (Document doc) throws IOException {
@@ -1931,6 +2560,105 @@ public class TextIndexer {
         
         indexWriter.addDocument(doc);
         lastModified.set(System.currentTimeMillis());   
+        bump (doc);
+    }
+
+    static void bump (Document doc) {
+        String kind = doc.get(FIELD_KIND);
+        if (kind != null)
+            CacheGenerations.bump(kind);
+        else
+            CacheGenerations.bumpAll();
+    }
+
+    /**
+     * Add a batch of documents (as returned by createDoc) in one go
+     */
+    public void addDocs (Collection<Document> docs) throws IOException {
+        List<Document> built = new ArrayList<Document>(docs.size());
+        Map<String, Document> kinds = new HashMap<String, Document>();
+        for (Document doc : docs) {
+            built.add(facetsConfig.build(taxonWriter, doc));
+            kinds.put(doc.get(FIELD_KIND), doc);
+        }
+        indexWriter.addDocuments(built);
+        lastModified.set(System.currentTimeMillis());
+        for (Document doc : kinds.values())
+            bump (doc);
+    }
+
+    /**
+     * Replace the documents of the given entities with the corresponding
+     * documents (as returned by createDoc) in one go; for loaders that
+     * defer indexing until they're done
+     */
+    public void updateDocs (List entities, List<Document> docs)
+        throws IOException {
+        Map<String, Document> kinds = new HashMap<String, Document>();
+        for (int i = 0; i < docs.size(); ++i) {
+            Object entity = entities.get(i);
+            Document doc = docs.get(i);
+            IndexPlan plan = getIndexPlan (entity.getClass());
+            Object id = null;
+            try {
+                id = plan.getId(entity);
+            }
+            catch (IllegalAccessException ex) {
+                Logger.trace("Can't retrieve id of "+entity, ex);
+            }
+            
+            Document built = facetsConfig.build(taxonWriter, doc);
+            if (id != null)
+                indexWriter.updateDocument
+                    (new Term (plan.idTerm, id.toString()), built);
+            else
+                indexWriter.addDocument(built);
+            kinds.put(doc.get(FIELD_KIND), doc);
+        }
+        lastModified.set(System.currentTimeMillis());
+        for (Document doc : kinds.values())
+            bump (doc);
+    }
+
+    /**
+     * In bulk mode the index writer uses the given RAM buffer and no
+     * commits are done (other than explicit calls to commit() from the
+     * thread that started it) until endBulk() is called.
+     */
+    public synchronized void beginBulk (double ramBufferMB) {
+        if (!bulk) {
+            LiveIndexWriterConfig conf = indexWriter.getConfig();
+            ramBufferMB0 = conf.getRAMBufferSizeMB();
+            conf.setRAMBufferSizeMB(ramBufferMB);
+            bulkOwner = Thread.currentThread();
+            bulk = true;
+            Logger.debug("## Bulk indexing started; RAM buffer "
+                         +ramBufferMB+"MB");
+        }
+    }
+
+    public synchronized void endBulk () throws IOException {
+        if (bulk) {
+            indexWriter.getConfig().setRAMBufferSizeMB(ramBufferMB0);
+            bulk = false;
+            bulkOwner = null;
+            commit ();
+            Logger.debug("## Bulk indexing ended");
+        }
+    }
+
+    public boolean isBulk () { return bulk; }
+
+    public void commit () throws IOException {
+        if (bulk && Thread.currentThread() != bulkOwner) {
+            // left to the bulk load's own checkpoints and endBulk()
+            if (DEBUG (1))
+                Logger.debug(Thread.currentThread().getName()
+                             +": commit deferred during bulk indexing");
+            return;
+        }
+        taxonWriter.commit();
+        indexWriter.commit();
     }
 
     public long lastModified () {
@@ -1956,15 +2684,10 @@ public class TextIndexer {
             Logger.debug(">>> Updating "+entity+"...");
 
         try {
-            Object id = null;
-            for (Field f : entity.getClass().getFields()) {
-                if (f.getAnnotation(Id.class) != null) {
-                    id = f.get(entity);
-                }
-            }
-
+            IndexPlan plan = getIndexPlan (entity.getClass());
+            Object id = plan.getId(entity);
             if (id != null) {
-                String field = entity.getClass().getName()+".id";
+                String field = plan.idTerm;
                 indexWriter.deleteDocuments
                     (new Term (field, id.toString()));
                 
@@ -1987,20 +2710,16 @@ public class TextIndexer {
     public void remove (Object entity) throws Exception {
         Class cls = entity.getClass();
         if (cls.isAnnotationPresent(Entity.class)) {
-            Field[] fields = cls.getFields();
-            Object id = null;       
-            for (Field f : fields) {
-                if (f.getAnnotation(Id.class) != null) {
-                    id = f.get(entity);
-                }
-            }
+            IndexPlan plan = getIndexPlan (cls);
+            Object id = plan.getId(entity);
             if (id != null) {
-                String field = entity.getClass().getName()+".id";
+                String field = plan.idTerm;
                 if (DEBUG (2))
                     Logger.debug("Deleting document "+field+"="+id+"...");
                 indexWriter.deleteDocuments
                     (new Term (field, id.toString()));
                 lastModified.set(System.currentTimeMillis());           
+                CacheGenerations.bump(cls);
             }
             else {
                 Logger.warn("Entity "+cls+"'s Id field is null!");
@@ -2020,6 +2739,7 @@ public class TextIndexer {
             Logger.debug("## removing documents: "+query);
             indexWriter.deleteDocuments(query);
             lastModified.set(System.currentTimeMillis());
+            CacheGenerations.bumpAll();
         }
         catch (ParseException ex) {
             Logger.warn("Can't parse query expression: "+text, ex);
@@ -2028,6 +2748,215 @@ public class TextIndexer {
         }
     }
 
+    /**
+     * Immutable snapshot of an Indexable annotation so that its
+     * attributes don't have to go through the annotation proxy for
+     * every value indexed
+     */
+    static final class IndexSpec {
+        final boolean indexed;
+        final boolean sortable;
+        final boolean taxonomy;
+        final boolean facet;
+        final boolean suggest;
+        final String pathsep;
+        final String name;
+        final long[] ranges;
+        final double[] dranges;
+        final String format;
+
+        IndexSpec (Indexable indexable) {
+            indexed = indexable.indexed();
+            sortable = indexable.sortable();
+            taxonomy = indexable.taxonomy();
+            facet = indexable.facet();
+            suggest = indexable.suggest();
+            pathsep = indexable.pathsep();
+            name = indexable.name();
+            ranges = indexable.ranges();
+            dranges = indexable.dranges();
+            format = indexable.format();
+        }
+    }
+    static final IndexSpec defaultSpec = new IndexSpec (defaultIndexable);
+
+    enum FieldKind {
+        ID, DYNAMIC_LABEL, DYNAMIC_VALUE, PRIMITIVE, ARRAY, COLLECTION, OTHER
+    }
+    
+    static final class FieldAccessor {
+        final String name;
+        final Class type;
+        final FieldKind kind;
+        final IndexSpec spec;
+        final MethodHandle getter; // (Object)Object
+
+        FieldAccessor (Field f, IndexSpec spec, DynamicFacet dyna)
+            throws IllegalAccessException {
+            this.name = f.getName();
+            this.type = f.getType();
+            this.spec = spec;
+            this.getter = MethodHandles.lookup().unreflectGetter(f)
+                .asType(MethodType.methodType(Object.class, Object.class));
+            
+            if (f.getAnnotation(Id.class) != null)
+                kind = FieldKind.ID;
+            else if (dyna != null && name.equals(dyna.label()))
+                kind = FieldKind.DYNAMIC_LABEL;
+            else if (dyna != null && name.equals(dyna.value()))
+                kind = FieldKind.DYNAMIC_VALUE;
+            else if (type.isPrimitive())
+                kind = FieldKind.PRIMITIVE;
+            else if (type.isArray())
+                kind = FieldKind.ARRAY;
+            else if (Collection.class.isAssignableFrom(type))
+                kind = FieldKind.COLLECTION;
+            else
+                kind = FieldKind.OTHER;
+        }
+
+        Object get (Object entity) throws Exception {
+            return call (getter, entity);
+        }
+    }
+
+    static final class MethodAccessor {
+        final String name;
+        final IndexSpec spec;
+        final MethodHandle method; // (Object)Object
+
+        MethodAccessor (Method m, IndexSpec spec)
+            throws IllegalAccessException {
+            String name = m.getName();
+            if (name.startsWith("get"))
+                name = name.substring(3);
+            this.name = name;
+            this.spec = spec;
+            this.method = MethodHandles.lookup().unreflect(m)
+                .asType(MethodType.methodType(Object.class, Object.class));
+        }
+
+        Object invoke (Object entity) throws Exception {
+            return call (method, entity);
+        }
+    }
+
+    /**
+     * Invoke the given (Object)Object handle; like reflection, anything
+     * thrown that's neither an Exception nor an Error is wrapped
+     */
+    static Object call (MethodHandle handle, Object entity)
+        throws Exception {
+        try {
+            return (Object)handle.invokeExact(entity);
+        }
+        catch (Exception ex) {
+            throw ex;
+        }
+        catch (Error err) {
+            throw err;
+        }
+        catch (Throwable t) {
+            throw new InvocationTargetException (t);
+        }
+    }
+    
+    /**
+     * Everything instrument() needs to know about an entity class; it's
+     * compiled once per class so that indexing an entity doesn't
+     * involve any reflection or annotation lookups.
+     */
+    static final class IndexPlan {
+        final Class cls;
+        final String kind;
+        final String idField; // kind+"._id"
+        final String idTerm; // kind+".id"
+        final boolean isEntity;
+        final boolean isValue;
+        final Field id;
+        final FieldAccessor[] fields;
+        final MethodAccessor[] methods;
+
+        IndexPlan (Class cls) {
+            this.cls = cls;
+            kind = cls.getName();
+            idField = kind+"._id";
+            idTerm = kind+".id";
+            isEntity = cls.isAnnotationPresent(Entity.class);
+            isValue = Value.class.isAssignableFrom(cls);
+            
+            DynamicFacet dyna = 
+                (DynamicFacet)cls.getAnnotation(DynamicFacet.class);
+            
+            Field idf = null;
+            List<FieldAccessor> fields = new ArrayList<FieldAccessor>();
+            for (Field f : cls.getFields()) {
+                if (f.getAnnotation(Id.class) != null)
+                    idf = f;
+                
+                Indexable ix = (Indexable)f.getAnnotation(Indexable.class);
+                IndexSpec spec = ix != null ? new IndexSpec (ix) : defaultSpec;
+                int mods = f.getModifiers();
+                if (!spec.indexed
+                    || Modifier.isStatic(mods)
+                    || Modifier.isTransient(mods)) {
+                    continue;
+                }
+                
+                try {
+                    fields.add(new FieldAccessor (f, spec, dyna));
+                }
+                catch (IllegalAccessException ex) {
+                    Logger.warn(cls.getName()+": Field "+f
+                                +" is not accessible!");
+                }
+            }
+            this.id = idf;
+            this.fields = fields.toArray(new FieldAccessor[0]);
+
+            List<MethodAccessor> methods = new ArrayList<MethodAccessor>();
+            for (Method m : cls.getMethods()) {
+                Indexable ix = (Indexable)m.getAnnotation(Indexable.class);
+                if (ix != null && ix.indexed()) {
+                    // we only index no arguments methods
+                    if (m.getParameterTypes().length == 0) {
+                        try {
+                            methods.add(new MethodAccessor
+                                        (m, new IndexSpec (ix)));
+                        }
+                        catch (IllegalAccessException ex) {
+                            Logger.warn(cls.getName()+": Method "+m
+                                        +" is not accessible!");
+                        }
+                    }
+                    else {
+                        Logger.warn("Indexable is annotated for non-zero "
+                                    +"arguments method \""+m.getName()+"\""); 
+                    }
+                }
+            }
+            this.methods = methods.toArray(new MethodAccessor[0]);
+        }
+
+        Object getId (Object entity) throws IllegalAccessException {
+            return id != null ? id.get(entity) : null;
+        }
+    }
+
+    static final ConcurrentMap<Class, IndexPlan> indexPlans =
+        new ConcurrentHashMap<Class, IndexPlan>();
+    
+    static IndexPlan getIndexPlan (Class cls) {
+        IndexPlan plan = indexPlans.get(cls);
+        if (plan == null) {
+            IndexPlan old = indexPlans.putIfAbsent
+                (cls, plan = new IndexPlan (cls));
+            if (old != null)
+                plan = old;
+        }
+        return plan;
+    }
+    
     protected void instrument (LinkedList<String> path,
                                Set indexed, Object entity, 
                                List<IndexableField> ixFields) {
@@ -2036,83 +2965,62 @@ public class TextIndexer {
 
         indexed.add(entity);
         try {
-            Class cls = entity.getClass();
-            ixFields.add(new FacetField (DIM_CLASS, cls.getName()));
+            IndexPlan plan = getIndexPlan (entity.getClass());
+            ixFields.add(new FacetField (DIM_CLASS, plan.kind));
 
-            DynamicFacet dyna = 
-                (DynamicFacet)cls.getAnnotation(DynamicFacet.class);
             String facetLabel = null;
             String facetValue = null;
 
-            Field[] fields = cls.getFields();
-            for (Field f : fields) {
-                Indexable indexable = 
-                    (Indexable)f.getAnnotation(Indexable.class);
-                if (indexable == null) {
-                    indexable = defaultIndexable;
-                }
-
-                int mods = f.getModifiers();
-                if (!indexable.indexed()
-                    || Modifier.isStatic(mods)
-                    || Modifier.isTransient(mods)) {
-                    //Logger.debug("** skipping field "+f.getName()+"["+cls.getName()+"]");
-                    continue;
-                }
-
-                path.push(f.getName());
+            for (FieldAccessor f : plan.fields) {
+                path.push(f.name);
                 try {
-                    Class type = f.getType();
                     Object value = f.get(entity);
 
                     if (DEBUG (2)) {
                         Logger.debug
-                            ("++ "+toPath (path)+": type="+type
+                            ("++ "+toPath (path)+": type="+f.type
                              +" value="+value);
                     }
 
-                    if (f.getAnnotation(Id.class) != null) {
+                    if (f.kind == FieldKind.ID) {
                         //Logger.debug("+ Id: "+value);
                         if (value != null) {
                             // the hidden _id field stores the field's value
                             // in its native type whereas the display field id
                             // is used for indexing purposes and as such is
                             // represented as a string
-                            String kind = entity.getClass().getName();
                             if (value instanceof Long) {
                                 ixFields.add(new LongField 
-                                             (kind+"._id", 
+                                             (plan.idField, 
                                               (Long)value, YES));
                             }
                             else {
                                 ixFields.add(new StringField 
-                                             (kind+"._id", 
+                                             (plan.idField, 
                                               value.toString(), YES));
                             }
                             ixFields.add
-                                (new StringField (kind+".id", 
+                                (new StringField (plan.idTerm, 
                                                   value.toString(), NO));
                         }
                         else {
                             if (DEBUG (2))
-                                Logger.warn("Id field "+f+" is null");
+                                Logger.warn("Id field "+f.name+" is null");
                         }
                     }
                     else if (value == null) {
                         // do nothing
                     }
-                    else if (dyna != null 
-                             && f.getName().equals(dyna.label())) {
+                    else if (f.kind == FieldKind.DYNAMIC_LABEL) {
                         facetLabel = value.toString();
                     }
-                    else if (dyna != null
-                             && f.getName().equals(dyna.value())) {
+                    else if (f.kind == FieldKind.DYNAMIC_VALUE) {
                         facetValue = value.toString();
                     }
-                    else if (type.isPrimitive()) {
-                        indexField (ixFields, indexable, path, value);
+                    else if (f.kind == FieldKind.PRIMITIVE) {
+                        indexField (ixFields, f.spec, path, value);
                     }
-                    else if (type.isArray()) {
+                    else if (f.kind == FieldKind.ARRAY) {
                         int len = Array.getLength(value);
                         // recursively evaluate each element in the array
                         for (int i = 0; i < len; ++i) {
@@ -2122,7 +3030,7 @@ public class TextIndexer {
                             path.pop();
                         }
                     }
-                    else if (Collection.class.isAssignableFrom(type)) {
+                    else if (f.kind == FieldKind.COLLECTION) {
                         Iterator it = ((Collection)value).iterator();
                         for (int i = 0; it.hasNext(); ++i) {
                             path.push(String.valueOf(i));
@@ -2131,20 +3039,19 @@ public class TextIndexer {
                         }
                     }
                     // why isn't this the same as using type?
-                    else if (value.getClass()
-                             .isAnnotationPresent(Entity.class)) {
+                    else if (getIndexPlan(value.getClass()).isEntity) {
                         // composite type; recurse
                         instrument (path, indexed, value, ixFields);
                     }
                     else { // treat as string
-                        indexField (ixFields, indexable, path, value);
+                        indexField (ixFields, f.spec, path, value);
                     }
                 }
                 catch (Exception ex) {
                     if (DEBUG (3)) {
-                        Logger.warn(entity.getClass()
-                                    +": Field "+f+" is not indexable due to "
-                                    +ex.getMessage());
+                        Logger.warn(plan.kind
+                                    +": Field "+f.name+" is not indexable "
+                                    +"due to "+ex.getMessage());
                     }
                 }
                 path.pop();
@@ -2152,43 +3059,20 @@ public class TextIndexer {
 
             // dynamic facet if available
             if (facetLabel != null && facetValue != null) {
-                facetsConfig.setMultiValued(facetLabel, true);
-                facetsConfig.setRequireDimCount(facetLabel, true);
-                ixFields.add(new FacetField (facetLabel, facetValue));
-                // allow searching of this field
-                //ixFields.add(new TextField (facetLabel, facetValue, NO));
-                ixFields.add(new TermVectorField (facetLabel, facetValue));
-                // all dynamic facets are suggestable???
-                suggestField (facetLabel, facetValue);
-            }
-            else if (Value.class.isAssignableFrom(cls)) {
+                dynamicFacet (ixFields, facetLabel, facetValue);
+            }
+            else if (plan.isValue) {
                 Value v = (Value)entity;
                 path.push(v.label);
-                indexField (ixFields, defaultIndexable, path, v.getValue());
+                indexField (ixFields, defaultSpec, path, v.getValue());
                 path.pop();
             }
             
-            Method[] methods = entity.getClass().getMethods();
-            for (Method m: methods) {
-                Indexable indexable = 
-                    (Indexable)m.getAnnotation(Indexable.class);
-                if (indexable != null && indexable.indexed()) {
-                    // we only index no arguments methods
-                    Class[] args = m.getParameterTypes();
-                    if (args.length == 0) {
-                        Object value = m.invoke(entity);
-                        if (value != null) {
-                            String name = m.getName();
-                            if (name.startsWith("get"))
-                                name = name.substring(3);
-                            indexField (ixFields, indexable, 
-                                        Arrays.asList(name), value);
-                        }
-                    }
-                    else {
-                        Logger.warn("Indexable is annotated for non-zero "
-                                    +"arguments method \""+m.getName()+"\""); 
-                    }
+            for (MethodAccessor m : plan.methods) {
+                Object value = m.invoke(entity);
+                if (value != null) {
+                    indexField (ixFields, m.spec, 
+                                Arrays.asList(m.name), value);
                 }
             }
 
@@ -2205,12 +3089,29 @@ public class TextIndexer {
         }
     }
 
+    void dynamicFacet (List<IndexableField> ixFields,
+                       String facetLabel, String facetValue) {
+        facetsConfig.setMultiValued(facetLabel, true);
+        facetsConfig.setRequireDimCount(facetLabel, true);
+        ixFields.add(new FacetField (facetLabel, facetValue));
+        // allow searching of this field
+        //ixFields.add(new TextField (facetLabel, facetValue, NO));
+        ixFields.add(new TermVectorField (facetLabel, facetValue));
+        // all dynamic facets are suggestable???
+        suggestField (facetLabel, facetValue);
+    }
+
     void suggestField (String name, String value) {
         try {
             name = name.replaceAll("[\\s/]","_");
             SuggestLookup lookup = lookups.get(name);
             if (lookup == null) {
-                lookups.put(name, lookup = new SuggestLookup (name));
+                // instrument() can be called concurrently
+                synchronized (lookups) {
+                    lookup = lookups.get(name);
+                    if (lookup == null)
+                        lookups.put(name, lookup = new SuggestLookup (name));
+                }
             }
             lookup.add(value);
         }
@@ -2221,21 +3122,21 @@ public class TextIndexer {
     
     void indexField (List<IndexableField> fields, 
                      Collection<String> path, Object value) {
-        indexField (fields, null, path, value, NO);
+        indexField (fields, defaultSpec, path, value, NO);
     }
 
-    void indexField (List<IndexableField> fields, Indexable indexable, 
+    void indexField (List<IndexableField> fields, IndexSpec indexable, 
                      Collection<String> path, Object value) {
         indexField (fields, indexable, path, value, NO);
     }
 
-    void indexField (List<IndexableField> fields, Indexable indexable, 
+    void indexField (List<IndexableField> fields, IndexSpec indexable, 
                      Collection<String> path, Object value, 
                      org.apache.lucene.document.Field.Store store) {
         String name = path.iterator().next();
         String full = toPath (path);
         String fname =
-            "".equals(indexable.name()) ? name : indexable.name();
+            "".equals(indexable.name) ? name : indexable.name;
         
         boolean asText = true;
 
@@ -2243,13 +3144,13 @@ public class TextIndexer {
             //fields.add(new NumericDocValuesField (full, (Long)value));
             Long lval = (Long)value;
             fields.add(new LongField (full, lval, NO));
-            asText = indexable.facet();
+            asText = indexable.facet;
             if (!asText && !name.equals(full)) 
                 fields.add(new LongField (name, lval, store));
-            if (indexable.sortable())
+            if (indexable.sortable)
                 sorters.put(full, SortField.Type.LONG);
 
-            FacetField ff = getRangeFacet (fname, indexable.ranges(), lval);
+            FacetField ff = getRangeFacet (fname, indexable.ranges, lval);
             if (ff != null) {
                 facetsConfig.setMultiValued(fname, true);
                 facetsConfig.setRequireDimCount(fname, true);
@@ -2261,14 +3162,14 @@ public class TextIndexer {
             //fields.add(new IntDocValuesField (full, (Integer)value));
             Integer ival = (Integer)value;
             fields.add(new IntField (full, ival, NO));
-            asText = indexable.facet();
+            asText = indexable.facet;
             if (!asText && !name.equals(full))
                 fields.add(new IntField (name, ival, store));
-            if (indexable.sortable())
+            if (indexable.sortable)
                 sorters.put(full, SortField.Type.INT);
 
             FacetField ff = getRangeFacet 
-                (fname, indexable.ranges(), ival);
+                (fname, indexable.ranges, ival);
             if (ff != null) {
                 facetsConfig.setMultiValued(fname, true);
                 facetsConfig.setRequireDimCount(fname, true);
@@ -2282,11 +3183,11 @@ public class TextIndexer {
             fields.add(new FloatField (name, fval, store));
             if (!full.equals(name))
                 fields.add(new FloatField (full, fval, NO));
-            if (indexable.sortable())
+            if (indexable.sortable)
                 sorters.put(full, SortField.Type.FLOAT);
             
             FacetField ff = getRangeFacet 
-                (fname, indexable.dranges(), fval, indexable.format());
+                (fname, indexable.dranges, fval, indexable.format);
             if (ff != null) {
                 facetsConfig.setMultiValued(fname, true);
                 facetsConfig.setRequireDimCount(fname, true);
@@ -2300,11 +3201,11 @@ public class TextIndexer {
             fields.add(new DoubleField (name, dval, store));
             if (!full.equals(name))
                 fields.add(new DoubleField (full, dval, NO));
-            if (indexable.sortable())
+            if (indexable.sortable)
                 sorters.put(full, SortField.Type.DOUBLE);
 
             FacetField ff = getRangeFacet 
-                (fname, indexable.dranges(), dval, indexable.format());
+                (fname, indexable.dranges, dval, indexable.format);
             if (ff != null) {
                 facetsConfig.setMultiValued(fname, true);
                 facetsConfig.setRequireDimCount(fname, true);
@@ -2317,9 +3218,9 @@ public class TextIndexer {
             fields.add(new LongField (name, date, store));
             if (!full.equals(name))
                 fields.add(new LongField (full, date, NO));
-            if (indexable.sortable())
+            if (indexable.sortable)
                 sorters.put(full, SortField.Type.LONG);
-            asText = indexable.facet();
+            asText = indexable.facet;
             if (asText) {
                 value = YEAR_DATE_FORMAT.format(date);
             }
@@ -2327,19 +3228,19 @@ public class TextIndexer {
 
         if (asText) {
             String text = value.toString();
-            String dim = indexable.name();
+            String dim = indexable.name;
             if ("".equals(dim))
                 dim = toPath (path, true);
 
-            if (indexable.facet() || indexable.taxonomy()) {
+            if (indexable.facet || indexable.taxonomy) {
                 facetsConfig.setMultiValued(dim, true);
                 facetsConfig.setRequireDimCount(dim, true);
                 
-                if (indexable.taxonomy()) {
+                if (indexable.taxonomy) {
                     facetsConfig.setHierarchical(dim, true);
                     fields.add
                         (new FacetField
-                         (dim, text.split(indexable.pathsep())));
+                         (dim, text.split(indexable.pathsep)));
                 }
                 else {
                     fields.add(new FacetField (dim, text));
@@ -2347,11 +3248,11 @@ public class TextIndexer {
                 fields.add(new TermVectorField (dim, text));
             }
 
-            if (indexable.suggest()) {
+            if (indexable.suggest) {
                 // also index the corresponding text field with the 
                 //   dimension name
                 //fields.add(new TextField (dim, text, NO));
-                if (indexable.facet() || indexable.taxonomy()) {
+                if (indexable.facet || indexable.taxonomy) {
                 }
                 else {
                     fields.add(new TermVectorField (dim, text));
@@ -2366,7 +3267,7 @@ public class TextIndexer {
                                 + text + TextIndexer.STOP_WORD, NO));
             }
 
-            if (indexable.sortable() && !sorters.containsKey(name))
+            if (indexable.sortable && !sorters.containsKey(name))
                 sorters.put(name, SortField.Type.STRING);
             fields.add(new TextField
                        (name, TextIndexer.START_WORD
@@ -2624,9 +3525,9 @@ public class TextIndexer {
 
     public void flush () {
         try {            
-            if (indexWriter.hasPendingMerges()) {
+            if (!bulk && indexWriter.hasPendingMerges()) {
                 indexWriter.waitForMerges();
-                indexWriter.commit();
+                commit (); // bulk might have started in the meantime
             }
 
             if (!indexReader.isCurrent()) {
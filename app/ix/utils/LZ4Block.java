@@ -0,0 +1,177 @@
+package ix.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressor and decompressor for the LZ4 block format. Blocks carry
+ * no length header; the caller has to record the uncompressed size.
+ */
+public class LZ4Block {
+    static final int MIN_MATCH = 4;
+    static final int LAST_LITERALS = 5;
+    static final int MF_LIMIT = 12; // no match starts this close to the end
+    static final int MAX_OFFSET = 65535;
+    static final int HASH_LOG = 16;
+    static final int SKIP_TRIGGER = 6;
+
+    private LZ4Block () {}
+
+    public static int maxCompressedLength (int length) {
+        return length + length/255 + 16;
+    }
+
+    static int readInt (byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i+1] & 0xff) << 8)
+            | ((b[i+2] & 0xff) << 16) | ((b[i+3] & 0xff) << 24);
+    }
+
+    static int hash (int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    static int writeLength (byte[] dst, int op, int len) {
+        for (; len >= 255; len -= 255)
+            dst[op++] = (byte)255;
+        dst[op++] = (byte)len;
+        return op;
+    }
+
+    public static byte[] compress (byte[] src) {
+        return compress (src, 0, src.length);
+    }
+
+    public static byte[] compress (byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength (len)];
+        int end = off + len;
+        int op = 0;
+        int anchor = off;
+
+        if (len >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int mflimit = end - MF_LIMIT;
+            int matchlimit = end - LAST_LITERALS;
+
+            int ip = off;
+            int searches = 1 << SKIP_TRIGGER;
+            while (ip < mflimit) {
+                int seq = readInt (src, ip);
+                int h = hash (seq);
+                int ref = table[h];
+                table[h] = ip;
+
+                if (ref < 0 || ip - ref > MAX_OFFSET
+                    || readInt (src, ref) != seq) {
+                    // accelerate over incompressible data
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+
+                // extend backward over the pending literals
+                while (ip > anchor && ref > off && src[ip-1] == src[ref-1]) {
+                    --ip;
+                    --ref;
+                }
+
+                int mlen = MIN_MATCH;
+                while (ip + mlen < matchlimit
+                       && src[ref+mlen] == src[ip+mlen])
+                    ++mlen;
+
+                int lit = ip - anchor;
+                int token = op++;
+                int ml = mlen - MIN_MATCH;
+                dst[token] = (byte)((Math.min(lit, 15) << 4)
+                                    | Math.min(ml, 15));
+                if (lit >= 15)
+                    op = writeLength (dst, op, lit - 15);
+                System.arraycopy(src, anchor, dst, op, lit);
+                op += lit;
+
+                int offset = ip - ref;
+                dst[op++] = (byte)offset;
+                dst[op++] = (byte)(offset >>> 8);
+                if (ml >= 15)
+                    op = writeLength (dst, op, ml - 15);
+
+                ip += mlen;
+                anchor = ip;
+            }
+        }
+
+        // last literals
+        int lit = end - anchor;
+        dst[op++] = (byte)(Math.min(lit, 15) << 4);
+        if (lit >= 15)
+            op = writeLength (dst, op, lit - 15);
+        System.arraycopy(src, anchor, dst, op, lit);
+        op += lit;
+
+        return Arrays.copyOf(dst, op);
+    }
+
+    /**
+     * Decompress the block into exactly length bytes
+     */
+    public static byte[] decompress (byte[] src, int off, int len,
+                                     int length) throws IOException {
+        byte[] dst = new byte[length];
+        int ip = off, end = off + len, op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xff;
+                int lit = token >>> 4;
+                if (lit == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        lit += b;
+                    }
+                    while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, lit);
+                ip += lit;
+                op += lit;
+                if (ip >= end)
+                    break;
+
+                int offset = (src[ip] & 0xff) | ((src[ip+1] & 0xff) << 8);
+                ip += 2;
+                int ml = token & 15;
+                if (ml == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        ml += b;
+                    }
+                    while (b == 255);
+                }
+                ml += MIN_MATCH;
+
+                int ref = op - offset;
+                if (offset == 0 || ref < 0)
+                    throw new IOException ("Bad match offset "+offset
+                                           +" at "+(ip-off));
+                if (offset >= ml) {
+                    System.arraycopy(dst, ref, dst, op, ml);
+                    op += ml;
+                }
+                else {
+                    // overlapping copy
+                    for (int i = 0; i < ml; ++i)
+                        dst[op++] = dst[ref++];
+                }
+            }
+        }
+        catch (IndexOutOfBoundsException ex) {
+            throw new IOException ("Corrupted LZ4 block", ex);
+        }
+
+        if (op != length)
+            throw new IOException ("Expecting "+length
+                                   +" bytes but decompressed "+op);
+        return dst;
+    }
+}
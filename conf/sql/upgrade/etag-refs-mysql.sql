@@ -0,0 +1,8 @@
+-- ETag ids are kept as a bitmap on ix_core_etag (ETag.refs) instead of
+-- as ix_core_etagref rows; run once on an existing database
+ALTER TABLE ix_core_etag
+ADD COLUMN refs LONGBLOB
+;
+
+DROP TABLE IF EXISTS ix_core_etagref
+;
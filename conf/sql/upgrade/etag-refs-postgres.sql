@@ -0,0 +1,10 @@
+-- ETag ids are kept as a bitmap on ix_core_etag (ETag.refs) instead of
+-- as ix_core_etagref rows; run once on an existing database
+ALTER TABLE ix_core_etag
+ADD COLUMN refs bytea
+;
+
+DROP TABLE IF EXISTS ix_core_etagref
+;
+DROP SEQUENCE IF EXISTS ix_core_etagref_seq
+;
@@ -0,0 +1,5 @@
+-- Throughput and backlog of each processing stage are kept as JSON on
+-- ix_core_job (Job.statistics); run once on an existing database
+ALTER TABLE ix_core_job
+ADD COLUMN statistics LONGTEXT
+;
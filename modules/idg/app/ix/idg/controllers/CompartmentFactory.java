@@ -29,7 +29,7 @@ public class CompartmentFactory extends EntityFactory {
         return page (top, skip, null);
     }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Compartment.class, finder);
     }
 
     public static Result edits (Long id) {
@@ -0,0 +1,261 @@
+package ix.idg.controllers;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import ix.core.stats.Histogram;
+
+/**
+ * Descriptors of all entities packed into primitive arrays: each row
+ * is an entity and holds its (column, value) entries sorted by column
+ * (i.e., compressed sparse rows) with values normalized by the
+ * descriptor histograms. All-pairs Tanimoto is computed in blocked
+ * tiles, with each row scattered once into a dense scratch vector per
+ * tile, keeping only the top K neighbors of each row.
+ */
+public class DescriptorMatrix {
+    public static final int TILE = 256;
+
+    /**
+     * Bounded min-heap of the best neighbors of a row
+     */
+    public static class Neighbors {
+        final int[] rows;
+        final float[] sims;
+        int size;
+
+        Neighbors (int k) {
+            rows = new int[k];
+            sims = new float[k];
+        }
+
+        synchronized void offer (int row, float sim) {
+            if (size < rows.length) {
+                int i = size++;
+                // sift up
+                while (i > 0) {
+                    int p = (i - 1) >>> 1;
+                    if (sims[p] <= sim)
+                        break;
+                    rows[i] = rows[p];
+                    sims[i] = sims[p];
+                    i = p;
+                }
+                rows[i] = row;
+                sims[i] = sim;
+            }
+            else if (size > 0 && sim > sims[0]) {
+                // replace the smallest and sift down
+                int i = 0;
+                for (;;) {
+                    int c = 2*i + 1;
+                    if (c >= size)
+                        break;
+                    if (c+1 < size && sims[c+1] < sims[c])
+                        ++c;
+                    if (sim <= sims[c])
+                        break;
+                    rows[i] = rows[c];
+                    sims[i] = sims[c];
+                    i = c;
+                }
+                rows[i] = row;
+                sims[i] = sim;
+            }
+        }
+
+        public int size () { return size; }
+        public int row (int k) { return rows[k]; }
+        public float similarity (int k) { return sims[k]; }
+    }
+
+    final long[] ids;
+    final String[] columns;
+    final int[] offsets; // row i is [offsets[i], offsets[i+1])
+    final int[] cols;
+    final float[] vals;
+    final double[] norms; // sum of squares per row
+
+    DescriptorMatrix (long[] ids, String[] columns, int[] offsets,
+                      int[] cols, float[] vals) {
+        this.ids = ids;
+        this.columns = columns;
+        this.offsets = offsets;
+        this.cols = cols;
+        this.vals = vals;
+        norms = new double[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            double a = 0.;
+            for (int k = offsets[i]; k < offsets[i+1]; ++k)
+                a += (double)vals[k]*vals[k];
+            norms[i] = a;
+        }
+    }
+
+    /**
+     * Pack the descriptors; a descriptor with a histogram is replaced
+     * by its normalized mass, everything else is passed through.
+     */
+    public static DescriptorMatrix create
+        (long[] ids, List<Map<String, Number>> descriptors,
+         Map<String, Histogram> histograms) {
+        if (ids.length != descriptors.size())
+            throw new IllegalArgumentException
+                ("Number of ids and descriptors don't match!");
+
+        // column dictionary in name order
+        SortedSet<String> names = new TreeSet<String>();
+        int nnz = 0;
+        for (Map<String, Number> d : descriptors) {
+            names.addAll(d.keySet());
+            nnz += d.size();
+        }
+        String[] columns = names.toArray(new String[0]);
+        Map<String, Integer> dict = new HashMap<String, Integer>();
+        for (int i = 0; i < columns.length; ++i)
+            dict.put(columns[i], i);
+
+        int[] offsets = new int[ids.length+1];
+        int[] cols = new int[nnz];
+        float[] vals = new float[nnz];
+        int k = 0;
+        for (int i = 0; i < ids.length; ++i) {
+            offsets[i] = k;
+            // TreeMap keeps the columns sorted within the row
+            Map<Integer, Number> row = new TreeMap<Integer, Number>();
+            for (Map.Entry<String, Number> me
+                     : descriptors.get(i).entrySet()) {
+                row.put(dict.get(me.getKey()), me.getValue());
+            }
+            for (Map.Entry<Integer, Number> me : row.entrySet()) {
+                double x = me.getValue().doubleValue();
+                Histogram hist = histograms.get(columns[me.getKey()]);
+                if (hist != null)
+                    x = hist.eval(x) / hist.getWeight();
+                cols[k] = me.getKey();
+                vals[k] = (float)x;
+                ++k;
+            }
+        }
+        offsets[ids.length] = k;
+
+        return new DescriptorMatrix (ids, columns, offsets, cols, vals);
+    }
+
+    public int size () { return ids.length; }
+    public long id (int row) { return ids[row]; }
+    public int columns () { return columns.length; }
+
+    public Map<String, Number> row (int i) {
+        Map<String, Number> row = new TreeMap<String, Number>();
+        for (int k = offsets[i]; k < offsets[i+1]; ++k)
+            row.put(columns[cols[k]], vals[k]);
+        return row;
+    }
+
+    double dot (int i, int j) {
+        double c = 0.;
+        int ki = offsets[i], kj = offsets[j];
+        int ei = offsets[i+1], ej = offsets[j+1];
+        while (ki < ei && kj < ej) {
+            int d = cols[ki] - cols[kj];
+            if (d == 0) {
+                c += (double)vals[ki++]*vals[kj++];
+            }
+            else if (d < 0) ++ki;
+            else ++kj;
+        }
+        return c;
+    }
+
+    public double tanimoto (int i, int j) {
+        double c = dot (i, j);
+        return c / (norms[i] + norms[j] - c);
+    }
+
+    /**
+     * Per descriptor contribution to the similarity between the rows;
+     * same as EntityDescriptor.tanimoto
+     */
+    public Map<String, Double> contribution (int i, int j) {
+        double z = norms[i] + norms[j] - dot (i, j);
+        Map<String, Double> contrib = new TreeMap<String, Double>();
+        int ki = offsets[i], kj = offsets[j];
+        int ei = offsets[i+1], ej = offsets[j+1];
+        while (ki < ei && kj < ej) {
+            int d = cols[ki] - cols[kj];
+            if (d == 0) {
+                contrib.put(columns[cols[ki]],
+                            (double)vals[ki]*vals[kj] / z);
+                ++ki;
+                ++kj;
+            }
+            else if (d < 0) ++ki;
+            else ++kj;
+        }
+        return contrib;
+    }
+
+    /**
+     * Top K neighbors of every row over all pairs
+     */
+    public Neighbors[] topK (final int K, ForkJoinPool pool)
+        throws InterruptedException, ExecutionException {
+        if (K <= 0)
+            throw new IllegalArgumentException ("Bogus K value "+K);
+
+        final Neighbors[] neighbors = new Neighbors[ids.length];
+        for (int i = 0; i < neighbors.length; ++i)
+            neighbors[i] = new Neighbors (K);
+
+        final ThreadLocal<float[]> scratch = new ThreadLocal<float[]>() {
+                @Override
+                protected float[] initialValue () {
+                    return new float[columns.length];
+                }
+            };
+
+        List<Callable<Void>> tiles = new ArrayList<Callable<Void>>();
+        for (int bi = 0; bi < ids.length; bi += TILE) {
+            for (int bj = bi; bj < ids.length; bj += TILE) {
+                final int i0 = bi, i1 = Math.min(bi+TILE, ids.length);
+                final int j0 = bj, j1 = Math.min(bj+TILE, ids.length);
+                tiles.add(new Callable<Void> () {
+                        public Void call () {
+                            tile (i0, i1, j0, j1, scratch.get(), neighbors);
+                            return null;
+                        }
+                    });
+            }
+        }
+
+        for (Future<Void> f : pool.invokeAll(tiles))
+            f.get(); // propagate any exception
+
+        return neighbors;
+    }
+
+    void tile (int i0, int i1, int j0, int j1,
+               float[] dense, Neighbors[] neighbors) {
+        for (int i = i0; i < i1; ++i) {
+            int ei = offsets[i+1];
+            for (int k = offsets[i]; k < ei; ++k)
+                dense[cols[k]] = vals[k];
+
+            for (int j = Math.max(j0, i+1); j < j1; ++j) {
+                double c = 0.;
+                for (int k = offsets[j], ej = offsets[j+1]; k < ej; ++k)
+                    c += (double)vals[k]*dense[cols[k]];
+                double z = norms[i] + norms[j] - c;
+                if (z > 0.) {
+                    float sim = (float)(c / z);
+                    neighbors[i].offer(j, sim);
+                    neighbors[j].offer(i, sim);
+                }
+            }
+
+            for (int k = offsets[i]; k < ei; ++k)
+                dense[cols[k]] = 0.f;
+        }
+    }
+}
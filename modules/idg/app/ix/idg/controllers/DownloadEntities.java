@@ -11,16 +11,20 @@ import play.Play;
 import play.Logger;
 import play.mvc.Controller;
 import play.mvc.Result;
+import play.mvc.Results;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import java.util.concurrent.Callable;
@@ -46,13 +50,164 @@ public class DownloadEntities extends Controller {
     public static final ThreadPoolPlugin _pool =
         Play.application().plugin(ThreadPoolPlugin.class);
 
+    static final int BATCH_SIZE = 200; // targets per fetch
+    static final int CHUNK_SIZE = 64*1024; // bytes per http chunk
+
     static class DownloadStatus {
         public String key;
-        public int count;
+        public int count; // targets written so far
         public int total;
         public String status;
         public String query;
         public String url;
+        public String entry; // zip entry being written
+        public long rows; // csv rows written so far
+    }
+
+    /**
+     * Targets a batch at a time; either slices of a given list or, when
+     * only ids are given, fetched from the database in ascending id
+     * order so that only one batch is in memory at any time
+     */
+    static class TargetBatches implements Iterable<List<Target>> {
+        final List<Target> targets;
+        final List<Long> ids;
+
+        TargetBatches (List<Target> targets) {
+            this.targets = targets;
+            this.ids = null;
+        }
+
+        TargetBatches (Collection<Long> ids) {
+            this.targets = null;
+            this.ids = new ArrayList<Long>(new TreeSet<Long>(ids));
+        }
+
+        int size () {
+            return targets != null ? targets.size() : ids.size();
+        }
+
+        public Iterator<List<Target>> iterator () {
+            return new Iterator<List<Target>> () {
+                int pos = 0;
+                
+                public boolean hasNext () { return pos < size (); }
+                public List<Target> next () {
+                    int end = Math.min(pos+BATCH_SIZE, size ());
+                    List<Target> batch = targets != null
+                        ? targets.subList(pos, end)
+                        : TargetFactory.finder.where()
+                        .idIn(ids.subList(pos, end))
+                        .orderBy("id asc").findList();
+                    pos = end;
+                    return batch;
+                }
+                public void remove () {
+                    throw new UnsupportedOperationException
+                        ("remove not supported");
+                }
+            };
+        }
+    }
+
+    /**
+     * A csv file of the target export; rows() returns the (newline
+     * terminated) rows of a target or null if the file has no rows
+     */
+    static class Section {
+        final String name;
+        final String header;
+        final Class[] links; // links to dereference in bulk per batch
+
+        Section (String name, String header, Class... links) {
+            this.name = name;
+            this.header = header;
+            this.links = links;
+        }
+
+        String rows (Target t) throws Exception { return null; }
+    }
+
+    static final Section[] TARGET_SECTIONS = new Section[] {
+        new Section ("targets.csv", "URL,Uniprot ID,GeneSymbol,Name,"
+                     +"Description,Development Level,DTOClass,PantherClass,"
+                     +"ChemblClass,Novelty,Target Family,Function,"
+                     +"GrantCount,R01Count,PatentCount,AntibodyCount,"
+                     +"PubmedCount,PMIDs") {
+            String rows (Target t) { return csvFromTarget (t)+"\n"; }
+        },
+        new Section ("goterms.csv", "URL,Uniprot ID,GOTerm,GOType") {
+            String rows (Target t) { return goFromTarget (t); }
+        },
+        new Section ("pathways.csv", "URL,Uniprot ID,Name,Source,Link") {
+            String rows (Target t) { return pathwayFromTarget (t); }
+        },
+        new Section ("uniprot-keywords.csv",
+                     "URL,Uniprot ID,Keyword,Link") {
+            String rows (Target t) { return upkwdFromTarget (t); }
+        },
+        // ligands aren't exported for now; header only
+        new Section ("ligands.csv", "URL,Uniprot ID,Name,Type,Description,"
+                     +"SMILES,Link,ChEMBL Activity,ChEMBL Activity Type"),
+        new Section ("generifs.csv", "URL,Uniprot ID,PMID,Abstract") {
+            String rows (Target t) { return generifFromTarget (t); }
+        },
+        new Section ("publications.csv",
+                     "URL,Uniprot ID,PMID,Title,Abstract") {
+            String rows (Target t) throws Exception {
+                return pubsFromTarget (t);
+            }
+        },
+        new Section ("expression.csv", "URL,Uniprot ID,Source,Tissue,"
+                     +"NumericValue,QualitativeValue,Confidence,Evidence",
+                     Expression.class) {
+            String rows (Target t) { return exprFromTarget (t); }
+        },
+        new Section ("diseases.csv", "URL,Uniprot ID,DOID,Name,Description,"
+                     +"ZScore,Confidence,Link", Disease.class) {
+            String rows (Target t) throws Exception {
+                return diseaseFromTarget (t);
+            }
+        },
+        new Section ("harmonizome.csv", "URL,Uniprot ID,Data Source,"
+                     +"Data Source URL,Data Type,Attribute Group,"
+                     +"Attribute Type,CDF") {
+            String rows (Target t) { return harmonizomeFromTarget (t); }
+        }
+    };
+
+    /**
+     * Buffers writes into http chunks
+     */
+    static class ChunkedOutputStream extends OutputStream {
+        final Results.Chunks.Out<byte[]> out;
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream ();
+
+        ChunkedOutputStream (Results.Chunks.Out<byte[]> out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write (int b) {
+            buf.write(b);
+            if (buf.size() >= CHUNK_SIZE)
+                flush ();
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) {
+            buf.write(b, off, len);
+            if (buf.size() >= CHUNK_SIZE)
+                flush ();
+        }
+
+        @Override
+        public void flush () {
+            if (buf.size() > 0) {
+                out.write(buf.toByteArray());
+                buf.reset();
+            }
+        }
     }
 
     static class DownloadWorker implements Runnable {
@@ -68,13 +223,9 @@ public class DownloadEntities extends Controller {
         }
 
         void save () throws Exception {
-            List matches = result.getMatchesAndWaitIfNotFinished();
-            status.total = matches.size();
-            List<Target> targets = new ArrayList<>();
-            if (!matches.isEmpty()) {
-                for (int i = 0; i < matches.size(); i++)
-                    targets.add((Target) matches.get(i));
-
+            TargetBatches targets = new TargetBatches (getTargetIds (result));
+            status.total = targets.size();
+            if (targets.size() > 0) {
                 String suffix = getDownloadMimeType(Target.class)
                     .endsWith("zip") ? ".zip" : ".csv";
                 File file = getDownloadFile
@@ -82,9 +233,26 @@ public class DownloadEntities extends Controller {
                 if (!file.exists()) {
                     Logger.debug("Preparing to generate file "+file+" for "
                                  +targets.size()+" target(s)...");
-                    FileOutputStream fos = new FileOutputStream (file);
-                    downloadTargets (fos, targets);
-                    fos.close();
+                    // write to a temp file so that a partial export is
+                    // never served
+                    File tmp = new File (file.getParentFile(),
+                                         file.getName()+".tmp");
+                    OutputStream os = new BufferedOutputStream
+                        (new FileOutputStream (tmp));
+                    try {
+                        downloadTargets (os, targets, status);
+                    }
+                    catch (Exception ex) {
+                        os.close();
+                        tmp.delete();
+                        throw ex;
+                    }
+                    os.close();
+                    if (!tmp.renameTo(file)) {
+                        tmp.delete();
+                        throw new IOException
+                            ("Can't rename "+tmp+" to "+file);
+                    }
                     Logger.debug("File complete!");
                 }
                 status.url = routes.DownloadEntities.download
@@ -128,12 +296,9 @@ public class DownloadEntities extends Controller {
 
         StringBuilder sb2 = new StringBuilder();
         String delimiter = "";
-        List<XRef> links = l.getLinks();
-        for (XRef xref : links) {
-            if (Target.class.isAssignableFrom(Class.forName(xref.kind))) {
-                sb2.append(delimiter).append(IDGApp.getId((Target) xref.deRef()));
-                delimiter = "|";
-            }
+        for (Target t : IDGApp.getLinkedObjects(l, Target.class)) {
+            sb2.append(delimiter).append(IDGApp.getId(t));
+            delimiter = "|";
         }
 
 
@@ -390,12 +555,9 @@ public class DownloadEntities extends Controller {
     static String csvFromDisease(Disease d) throws ClassNotFoundException {
         StringBuilder sb2 = new StringBuilder();
         String delimiter = "";
-        List<XRef> links = d.getLinks();
-        for (XRef xref : links) {
-            if (Target.class.isAssignableFrom(Class.forName(xref.kind))) {
-                sb2.append(delimiter).append(IDGApp.getId((Target) xref.deRef()));
-                delimiter = "|";
-            }
+        for (Target t : IDGApp.getLinkedObjects(d, Target.class)) {
+            sb2.append(delimiter).append(IDGApp.getId(t));
+            delimiter = "|";
         }
         StringBuilder sb = new StringBuilder();
         sb.append(routes.IDGApp.disease(IDGApp.getId(d))).append(",").
@@ -441,187 +603,111 @@ public class DownloadEntities extends Controller {
 
     static void downloadTargets(OutputStream os, List<Target> targets)
         throws Exception {
+        downloadTargets (os, new TargetBatches (targets), null);
+    }
 
-        StringBuilder sb = new StringBuilder();
+    static String csvHeader (String header) {
+        return "\"" + header.replace(",", "\",\"") + "\"\n";
+    }
 
-        Logger.debug("generating target info...");
-        // basic target info
-        String tmp = "URL,Uniprot ID,GeneSymbol,Name,Description,Development Level,DTOClass,PantherClass,ChemblClass,Novelty,Target Family,Function," +
-                "GrantCount,R01Count,PatentCount,AntibodyCount,PubmedCount,PMIDs";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(csvFromTarget(t)).append("\n");
-        }
-        byte[] targetFile = sb.toString().getBytes();
-
-        Logger.debug("generating GO terms...");
-        // GO terms
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,GOTerm,GOType";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(goFromTarget(t));
-        }
-        byte[] goFile = sb.toString().getBytes();
-
-        Logger.debug("generating pathways...");
-        // Pathways
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,Name,Source,Link";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(pathwayFromTarget(t));
-        }
-        byte[] pathwayFile = sb.toString().getBytes();
-
-        // Uniprot Keywords
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,Keyword,Link";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(upkwdFromTarget(t));
-        }
-        byte[] upkwdFile = sb.toString().getBytes();
-
-        Logger.debug("generating ligands...");
-        // Ligands
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,Name,Type,Description,SMILES,Link,ChEMBL Activity,ChEMBL Activity Type";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-//        for (Target t : targets) {
-//            sb.append(ligandFromTarget(t));
-//        }
-        byte[] ligandFile = sb.toString().getBytes();
-
-        Logger.debug("generating geneRIF...");
-        // Gene RIFs
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,PMID,Abstract";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(generifFromTarget(t));
-        }
-        byte[] generifFile = sb.toString().getBytes();
-
-        Logger.debug("generating publications...");
-        // Publications
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,PMID,Title,Abstract";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(pubsFromTarget(t));
-        }
-        byte[] pubsFile = sb.toString().getBytes();
-
-        Logger.debug("generating expression...");
-        // Expression
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,Source,Tissue,NumericValue,QualitativeValue,Confidence,Evidence";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(exprFromTarget(t));
-        }
-        byte[] exprFile = sb.toString().getBytes();
-
-        Logger.debug("generating diseases...");
-        // Diseases
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,DOID,Name,Description,ZScore,Confidence,Link";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(diseaseFromTarget(t));
-        }
-        byte[] diseaseFile = sb.toString().getBytes();
-
-        Logger.debug("generating harmonizome");
-        // Harmonizome
-        sb = new StringBuilder();
-        tmp = "URL,Uniprot ID,Data Source,Data Source URL,Data Type,Attribute Group,Attribute Type,CDF";
-        tmp = tmp.replace(",", "\",\"");
-        tmp = "\"" + tmp + "\"\n";
-        sb.append(tmp);
-        for (Target t : targets) {
-            sb.append(harmonizomeFromTarget(t));
-        }
-        byte[] harmonizomeFile = sb.toString().getBytes();
-
-        // Generate zip file with the components
+    /**
+     * Write the target export as a zip of csv files. Targets are
+     * fetched once, a batch at a time, and each batch goes through
+     * every section: the rows of the first section go straight into its
+     * zip entry, those of the others are spooled to temp files that are
+     * copied into their entries at the end. Nothing but the current
+     * batch is held in memory. The stream is finished but not closed.
+     */
+    static void downloadTargets(OutputStream os, TargetBatches targets,
+                                DownloadStatus status) throws Exception {
         ZipOutputStream zip = new ZipOutputStream(os);
-        ZipEntry entry = new ZipEntry("targets.csv");
-        zip.putNextEntry(entry);
-        zip.write(targetFile);
-        zip.closeEntry();
-
-        entry = new ZipEntry("goterms.csv");
-        zip.putNextEntry(entry);
-        zip.write(goFile);
-        zip.closeEntry();
-
-        entry = new ZipEntry("pathways.csv");
-        zip.putNextEntry(entry);
-        zip.write(pathwayFile);
-        zip.closeEntry();
-
-        entry = new ZipEntry("uniprot-keywords.csv");
-        zip.putNextEntry(entry);
-        zip.write(upkwdFile);
-        zip.closeEntry();
-
-        entry = new ZipEntry("ligands.csv");
-        zip.putNextEntry(entry);
-        zip.write(ligandFile);
-        zip.closeEntry();
-
-        entry = new ZipEntry("generifs.csv");
-        zip.putNextEntry(entry);
-        zip.write(generifFile);
-        zip.closeEntry();
-
-        entry = new ZipEntry("publications.csv");
-        zip.putNextEntry(entry);
-        zip.write(pubsFile);
-        zip.closeEntry();
+        Writer[] writers = new Writer[TARGET_SECTIONS.length];
+        File[] spools = new File[TARGET_SECTIONS.length];
+        boolean[] headerOnly = new boolean[TARGET_SECTIONS.length];
+        Set<Class> links = new HashSet<Class>();
+        for (Section section : TARGET_SECTIONS)
+            links.addAll(Arrays.asList(section.links));
+        
+        try {
+            zip.putNextEntry(new ZipEntry (TARGET_SECTIONS[0].name));
+            writers[0] = new OutputStreamWriter (zip, "utf-8");
+            for (int s = 1; s < TARGET_SECTIONS.length; ++s) {
+                spools[s] = File.createTempFile
+                    ("export-", "-"+TARGET_SECTIONS[s].name);
+                writers[s] = new BufferedWriter
+                    (new OutputStreamWriter
+                     (new FileOutputStream (spools[s]), "utf-8"));
+            }
+            for (int s = 0; s < TARGET_SECTIONS.length; ++s)
+                writers[s].write(csvHeader (TARGET_SECTIONS[s].header));
+            if (status != null) {
+                status.entry = TARGET_SECTIONS[0].name;
+                status.count = 0;
+            }
 
-        entry = new ZipEntry("expression.csv");
-        zip.putNextEntry(entry);
-        zip.write(exprFile);
-        zip.closeEntry();
+            long rows = 0;
+            for (List<Target> batch : targets) {
+                if (!links.isEmpty()) {
+                    List<XRef> refs = new ArrayList<XRef>();
+                    for (Target t : batch)
+                        for (Class kind : links)
+                            refs.addAll(IDGApp.getLinks(t, kind));
+                    XRef.deRef(refs);
+                }
 
-        entry = new ZipEntry("diseases.csv");
-        zip.putNextEntry(entry);
-        zip.write(diseaseFile);
-        zip.closeEntry();
+                for (Target t : batch) {
+                    for (int s = 0; s < TARGET_SECTIONS.length; ++s) {
+                        if (headerOnly[s])
+                            continue;
+                        String r = TARGET_SECTIONS[s].rows(t);
+                        if (r == null) {
+                            headerOnly[s] = true;
+                            continue;
+                        }
+                        writers[s].write(r);
+                        for (int i = r.indexOf('\n'); i >= 0;
+                             i = r.indexOf('\n', i+1))
+                            ++rows;
+                    }
+                }
+                
+                if (status != null) {
+                    status.count += batch.size();
+                    status.rows = rows;
+                }
+            }
+            writers[0].flush();
+            zip.closeEntry();
 
-        entry = new ZipEntry("harmonizome.csv");
-        zip.putNextEntry(entry);
-        zip.write(harmonizomeFile);
-        zip.closeEntry();
+            byte[] buf = new byte[CHUNK_SIZE];
+            for (int s = 1; s < TARGET_SECTIONS.length; ++s) {
+                writers[s].close();
+                if (status != null)
+                    status.entry = TARGET_SECTIONS[s].name;
+                zip.putNextEntry(new ZipEntry (TARGET_SECTIONS[s].name));
+                try (InputStream is = new FileInputStream (spools[s])) {
+                    for (int nb; (nb = is.read(buf)) > 0; )
+                        zip.write(buf, 0, nb);
+                }
+                zip.closeEntry();
+            }
+        }
+        finally {
+            for (int s = 1; s < TARGET_SECTIONS.length; ++s) {
+                if (spools[s] != null) {
+                    if (writers[s] != null)
+                        writers[s].close();
+                    spools[s].delete();
+                }
+            }
+        }
 
-        entry = new ZipEntry("README.txt");
-        zip.putNextEntry(entry);
+        zip.putNextEntry(new ZipEntry("README.txt"));
         zip.write(getREADME());
         zip.closeEntry();
 
         zip.finish();
-        zip.close();
+        zip.flush();
     }
 
     static byte[] downloadDiseases(List<Disease> diseases) throws ClassNotFoundException {
@@ -675,7 +761,10 @@ public class DownloadEntities extends Controller {
             String suffix = mimetype.endsWith("zip") ? ".zip" : ".csv";
             entry = new ZipEntry("targets" + suffix);
             zip.putNextEntry(entry);
-            zip.write(downloadEntities (t));
+            if (suffix.equals(".zip"))
+                downloadTargets (zip, new TargetBatches (t), null);
+            else
+                zip.write(downloadEntities (t));
             zip.closeEntry();
         }
 
@@ -748,6 +837,48 @@ public class DownloadEntities extends Controller {
         }
     }
 
+    static List<Long> getTargetIds (SearchResult result) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Object obj : result.getMatchesAndWaitIfNotFinished())
+            if (obj instanceof Target)
+                ids.add(((Target)obj).id);
+        return ids;
+    }
+
+    /**
+     * Stream the target export of the search result as a chunked
+     * response; the client starts receiving the zip as soon as the
+     * first rows are written.
+     */
+    public static Result stream (final SearchResult result) {
+        Results.Chunks<byte[]> chunks = new Results.ByteChunks () {
+                public void onReady (final Results.Chunks.Out<byte[]> out) {
+                    _pool.submit(new Runnable () {
+                            public void run () {
+                                OutputStream os = new ChunkedOutputStream (out);
+                                try {
+                                    downloadTargets
+                                        (os, new TargetBatches
+                                         (getTargetIds (result)), null);
+                                    os.flush();
+                                }
+                                catch (Exception ex) {
+                                    Logger.error("Can't stream export for "
+                                                 +result.getKey(), ex);
+                                }
+                                finally {
+                                    out.close();
+                                }
+                            }
+                        });
+                }
+            };
+        response().setHeader("Content-Disposition",
+                             "attachment;filename=export-target-"
+                             +result.getKey()+".zip");
+        return ok(chunks).as("application/zip");
+    }
+
     public static Result download (String  name) {
         File file = getDownloadFile (name);
         if (file.exists()) {
@@ -18,6 +18,8 @@ import ix.core.controllers.search.SearchFactory;
 import static ix.core.search.TextIndexer.TermVectors;
 import static ix.core.search.TextIndexer.Facet;
 import ix.core.plugins.SleepycatStore;
+import ix.core.adapters.BeanInterceptor;
+import ix.core.adapters.EntityPersistAdapter;
 
 import com.sleepycat.je.*;
 import com.sleepycat.bind.ByteArrayBinding;
@@ -27,6 +29,9 @@ import com.sleepycat.bind.serial.SerialBinding;
 import com.sleepycat.bind.tuple.IntegerBinding;
 import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
 
 import play.Logger;
 import play.Play;
@@ -35,8 +40,9 @@ import com.avaje.ebean.Query;
 import com.avaje.ebean.QueryIterator;
 import play.db.ebean.Model;
 
-public class EntityDescriptor<T extends EntityModel> implements Commons {
-    static final int NUM_SIM_WORKERS = 4;
+public class EntityDescriptor<T extends EntityModel>
+    implements Commons, BeanInterceptor {
+    static final int TOP_K = 100; // neighbors kept per entity
     static final public int DIM = 50;
     
     static final SleepycatStore STORE =
@@ -66,95 +72,80 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
         }
     }
 
-    public static class SimKey {
-        byte[] key = new byte[16];
+    /**
+     * Nearest neighbors of an entity, best first; stored as a count
+     * followed by (id, score) pairs
+     */
+    public static class NeighborList {
+        final public long[] ids;
+        final public float[] scores;
 
-        public SimKey () {}
-        public SimKey (byte[] key) {
-            this.key = key;
-        }
-        public SimKey (long k1, long k2) {
-            encode (k1, k2);
+        NeighborList (long[] ids, float[] scores) {
+            this.ids = ids;
+            this.scores = scores;
         }
 
-        public void encode (long k1, long k2) {
-            if (k1 > k2) {
-                long t = k1;
-                k1 = k2;
-                k2 = t;
-            }
+        public int size () { return ids.length; }
 
-            encode (0, key, k1);
-            encode (8, key, k2);
-        }
+        /**
+         * Insert or rescore the given neighbor, keeping at most max
+         * entries; returns this instance if nothing changed
+         */
+        NeighborList update (long id, float score, int max) {
+            int pos = -1;
+            for (int i = 0; i < ids.length && pos < 0; ++i)
+                if (ids[i] == id)
+                    pos = i;
+            
+            if (pos < 0 && ids.length >= max
+                && score <= scores[ids.length-1])
+                return this;
+            if (pos >= 0 && scores[pos] == score)
+                return this;
 
-        public long key1 () { return decode (0, key); }
-        public long key2 () { return decode (8, key); }
+            int n = Math.min(max, pos < 0 ? ids.length+1 : ids.length);
+            long[] nids = new long[n];
+            float[] nscores = new float[n];
+            boolean added = false;
+            for (int i = 0, k = 0; k < n; ) {
+                if (!added && (i >= ids.length || score > scores[i])) {
+                    nids[k] = id;
+                    nscores[k++] = score;
+                    added = true;
+                }
+                else {
+                    if (ids[i] != id) {
+                        nids[k] = ids[i];
+                        nscores[k++] = scores[i];
+                    }
+                    ++i;
+                }
+            }
+            return new NeighborList (nids, nscores);
+        }
 
         public void encode (DatabaseEntry entry) {
-            new ByteArrayBinding().objectToEntry(key, entry);
-        }
-        
-        public static SimKey decode (DatabaseEntry entry) {
-            return new SimKey (new ByteArrayBinding().entryToObject(entry));
-        }
-        
-        static void encode (int i, byte[] b, long x) {
-            b[i++] = (byte)((x >> 56) & 0xff);
-            b[i++] = (byte)((x >> 48) & 0xff);
-            b[i++] = (byte)((x >> 40) & 0xff);
-            b[i++] = (byte)((x >> 32) & 0xff);
-            b[i++] = (byte)((x >> 24) & 0xff);
-            b[i++] = (byte)((x >> 16) & 0xff);
-            b[i++] = (byte)((x >> 8) & 0xff);
-            b[i++] = (byte)(x & 0xff);        
-        }
-        
-        static long decode (int i, byte[] b) {
-            return ((b[i++] & 0xff) << 56l)
-                | ((b[i++] & 0xff) << 48l)
-                | ((b[i++] & 0xff) << 40l)
-                | ((b[i++] & 0xff) << 32l)
-                | ((b[i++] & 0xff) << 24l)
-                | ((b[i++] & 0xff) << 16l)
-                | ((b[i++] & 0xff) << 8l)
-                | (b[i++] & 0xff);
-        }
-
-        public void createSecondaryKeys (SecondaryDatabase secondary,
-                                         DatabaseEntry key,
-                                         DatabaseEntry data,
-                                         Set<DatabaseEntry> results) {
-            SimKey sk = SimKey.decode(key);
-            DatabaseEntry key1 = new DatabaseEntry ();
-            DatabaseEntry key2 = new DatabaseEntry ();
-            LongBinding.longToEntry(sk.key1(), key1);
-            LongBinding.longToEntry(sk.key2(), key2);
-            results.add(key1);
-            results.add(key2);
-        }
-
-        public String toString () {
-            return "("+key1()+","+key2()+")";
+            TupleOutput out = new TupleOutput ();
+            out.writeInt(ids.length);
+            for (int i = 0; i < ids.length; ++i) {
+                out.writeLong(ids[i]);
+                out.writeFloat(scores[i]);
+            }
+            TupleBinding.outputToEntry(out, entry);
         }
-    }
-
-    static class SimPayload {
-        public final long ki, kj;
-        public final Map di, dj;
 
-        SimPayload () {
-            this (0, null, 0, null);
-        }
-        SimPayload (long ki, Map di, long kj, Map dj) {
-            this.ki = ki;
-            this.kj = kj;
-            this.di = di;
-            this.dj = dj;
+        public static NeighborList decode (DatabaseEntry entry) {
+            TupleInput in = TupleBinding.entryToInput(entry);
+            int n = in.readInt();
+            long[] ids = new long[n];
+            float[] scores = new float[n];
+            for (int i = 0; i < n; ++i) {
+                ids[i] = in.readLong();
+                scores[i] = in.readFloat();
+            }
+            return new NeighborList (ids, scores);
         }
     }
-    
-    static final SimPayload POISON = new SimPayload ();
 
     class InitDbs implements Runnable {
         public void run () {
@@ -181,6 +172,7 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
                     }
                 }
                 tx.commit();
+                histograms = createHistograms ();
                 Logger.debug(name+": DONE!");
             }
             catch (Exception ex) {
@@ -190,6 +182,11 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
             finally {
                 lock.unlock();
             }
+
+            // neighbors are only as good as the descriptors they're
+            // based on, so rebuild them too
+            if (histograms != null)
+                new CalculatePairwiseSimilarity().run();
         }
 
         void generateDescriptors () throws Exception {
@@ -260,8 +257,8 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
             try {
                 long start = System.currentTimeMillis();
                 calcPairwise ();
-                Logger.debug("## calc "+simDb.count()
-                             +" pairwise similarity took "
+                Logger.debug("## calc "+nbrDb.count()
+                             +" neighbor lists took "
                              +String.format("%1$.1fs",
                                             1e-3*(System.currentTimeMillis()
                                                   -start)));
@@ -276,163 +273,227 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
 
         void calcPairwise () throws Exception {
             String name = Thread.currentThread().getName();
-            Logger.debug(name+": ## calculating all pairwise "
-                         +"similarity matrix for "+descDb.count()
+            Logger.debug(name+": ## calculating top "+topK
+                         +" similarity for "+descDb.count()
                          +" descriptors!");
-            
-            DatabaseEntry key = new DatabaseEntry ();
-            
-            List<Long> keys = new ArrayList<>(); // load all keys in memory
+
+            Map<String, Histogram> histogram = getHistograms ();
+            if (histogram == null) {
+                throw new RuntimeException
+                    ("Descriptors haven't been extracted!");
+            }
+
+            // deserialize each descriptor exactly once
+            List<Long> keys = new ArrayList<>();
+            List<Map<String, Number>> descriptors = new ArrayList<>();
             Transaction tx = STORE.createTx();
             try {
-                DatabaseEntry partial = new DatabaseEntry ();
-                partial.setPartial(0, 0, true);
+                DatabaseEntry key = new DatabaseEntry ();
+                DatabaseEntry val = new DatabaseEntry ();
+                SerialBinding<Map> serial = STORE.getSerialBinding(Map.class);
                 Cursor cursor = descDb.openCursor(tx, null);
                 for (OperationStatus status =
-                         cursor.getFirst(key, partial, null);
+                         cursor.getFirst(key, val, null);
                      status == OperationStatus.SUCCESS; ) {
-                    long id = LongBinding.entryToLong(key);
-                    keys.add(id);
-                    status = cursor.getNext(key, partial, null);
+                    keys.add(LongBinding.entryToLong(key));
+                    descriptors.add(serial.entryToObject(val));
+                    status = cursor.getNext(key, val, null);
                 }
                 cursor.close();
-                
-                Logger.debug(keys.size()+" keys loaded; preparing "
-                             +"to calculate "+(keys.size()*(keys.size()-1)/2)
-                             +" pairwise similarity!");
-                
-                DatabaseEntry val = new DatabaseEntry ();
-                SerialBinding<Map> serial = STORE.getSerialBinding(Map.class);
-                SerialBinding<Similarity> simserial =
-                    STORE.getSerialBinding(Similarity.class);
-                
-                OperationStatus status;
-                for (int i = 0; i < keys.size(); ++i) {
-                    LongBinding.longToEntry(keys.get(i), key);
-                    status = descDb.get(tx, key, val, null);
-                    if (status == OperationStatus.SUCCESS) {
-                        Map di = serial.entryToObject(val);
-                        for (int j = i+1; j < keys.size(); ++j) {
-                            LongBinding.longToEntry(keys.get(j), key);
-                            status = descDb.get(tx, key, val, null);
-                            if (status == OperationStatus.SUCCESS) {
-                                Map dj = serial.entryToObject(val);
-                                queue.put(new SimPayload (keys.get(i), di,
-                                                          keys.get(j), dj));
-                            }
-                            else {
-                                Logger.warn
-                                    ("Retrieving descriptors for "+keys.get(j)
-                                     +" returns status="+status);
-                            }
-                        }
-                    }
-                    else {
-                        Logger.warn("Retrieving descriptors for "+keys.get(i)
-                                    +" returns status="+status);
-                    }
-                }
-
-                // stop the sim worker
-                for (int i = 0; i < NUM_SIM_WORKERS; ++i)
-                    queue.put(POISON);
-            }
-            catch (Exception ex) {
-                Logger.error("Calculating pairwise similarity", ex);
             }
             finally {
                 tx.commit();
             }
-        } // calcPairwise
-    } // CalculatePairwiseSimilarity
 
-    class SimWorker implements Runnable {
-        SerialBinding<Similarity> simserial =
-            STORE.getSerialBinding(Similarity.class);
-        DatabaseEntry key = new DatabaseEntry ();
-        DatabaseEntry val = new DatabaseEntry ();
-        Transaction tx;
-        Map<String, Histogram> histogram;
-        
-        public void run () {
-            String name = Thread.currentThread().getName();
+            long[] ids = new long[keys.size()];
+            for (int i = 0; i < ids.length; ++i)
+                ids[i] = keys.get(i);
+            DescriptorMatrix matrix =
+                DescriptorMatrix.create(ids, descriptors, histogram);
+            descriptors = null; // no longer needed
+            Logger.debug(name+": "+matrix.size()+" x "+matrix.columns()
+                         +" descriptor matrix packed");
+
+            ForkJoinPool pool = new ForkJoinPool ();
+            DescriptorMatrix.Neighbors[] neighbors;
             try {
-                long count = 0;
-                for (SimPayload p; (p = queue.take()) != POISON; ) {
-                    if (tx == null)
-                        tx = STORE.createTx();
+                neighbors = matrix.topK(topK, pool);
+            }
+            finally {
+                pool.shutdown();
+            }
 
-                    process (p);
-                    if (++count % 1000 == 0) {
-                        Logger.debug(name+": "+count);
+            DatabaseEntry key = new DatabaseEntry ();
+            DatabaseEntry val = new DatabaseEntry ();
+            tx = STORE.createTx();
+            try {
+                for (int i = 0; i < neighbors.length; ++i) {
+                    toNeighborList(ids, neighbors[i]).encode(val);
+                    LongBinding.longToEntry(ids[i], key);
+                    OperationStatus status = nbrDb.put(tx, key, val);
+                    if (status != OperationStatus.SUCCESS)
+                        Logger.warn("Putting neighbors for "+ids[i]
+                                    +" yields status="+status);
+                    
+                    if ((i+1) % 1000 == 0) {
+                        Logger.debug(name+": "+(i+1));
                         tx.commit();
                         tx = STORE.createTx();
                     }
                 }
-                
-                if (tx != null)
-                    tx.commit();
-                Logger.debug(name+": processed "+count);
             }
-            catch (Exception ex) {
-                Logger.error(name+" interrupted", ex);
+            finally {
+                tx.commit();
             }
+            Logger.debug(name+": stored neighbors for "
+                         +neighbors.length+" entities");
+        } // calcPairwise
+    } // CalculatePairwiseSimilarity
+
+    // rows of the given neighbors are indexes into keys
+    static NeighborList toNeighborList (long[] keys,
+                                        final DescriptorMatrix.Neighbors nb) {
+        Integer[] order = new Integer[nb.size()];
+        for (int k = 0; k < order.length; ++k)
+            order[k] = k;
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare (Integer k1, Integer k2) {
+                    return Float.compare(nb.similarity(k2),
+                                         nb.similarity(k1));
+                }
+            });
+        
+        long[] ids = new long[order.length];
+        float[] scores = new float[order.length];
+        for (int k = 0; k < order.length; ++k) {
+            ids[k] = keys[nb.row(order[k])];
+            scores[k] = nb.similarity(order[k]);
         }
+        return new NeighborList (ids, scores);
+    }
 
-        Map<String, Number> toVector (Map<String, Number> descriptor) {
-            if (histogram == null) {
-                if (vectors.isEmpty()) {
-                    throw new RuntimeException
-                        ("Descriptors haven't been extracted!");
+    /**
+     * Recompute the descriptor of a changed entity and fold its new
+     * scores into the neighbor lists; lists aren't rebuilt, so an
+     * entity whose score drops stays in the lists it was already in
+     * until the next full calculation.
+     */
+    class RefreshNeighbors implements Runnable {
+        public void run () {
+            do {
+                lock.lock();
+                try {
+                    for (Long id : stale.keySet()) {
+                        stale.remove(id);
+                        try {
+                            refresh (id);
+                        }
+                        catch (Exception ex) {
+                            Logger.error("Can't refresh neighbors for "
+                                         +kind.getName()+"/"+id, ex);
+                        }
+                    }
                 }
-                
-                histogram = new TreeMap<String, Histogram>();           
-                for (Map.Entry<String, Vector> me : vectors.entrySet()) {
-                    Histogram h = me.getValue().createHistogram(DIM);
-                    histogram.put(me.getKey(), h);
+                finally {
+                    lock.unlock();
                 }
+                refreshing.set(false);
             }
+            while (!stale.isEmpty() && refreshing.compareAndSet(false, true));
+        }
+
+        void refresh (long id) throws Exception {
+            if (getHistograms () == null)
+                return; // all neighbors are rebuilt with the descriptors
             
-            Map<String, Number> vector = new TreeMap<String, Number>();
-            for (Map.Entry<String, Number> me : descriptor.entrySet()) {
-                Histogram hist = histogram.get(me.getKey());
-                if (hist != null) {
-                    double mass = hist.eval(me.getValue().doubleValue());
-                    vector.put(me.getKey(), mass/hist.getWeight());
+            DatabaseEntry key = new DatabaseEntry ();
+            DatabaseEntry val = new DatabaseEntry ();
+            SerialBinding<Map> serial = STORE.getSerialBinding(Map.class);
+            LongBinding.longToEntry(id, key);
+
+            EntityModel model = (EntityModel) ObjectFactory.get(kind, id);
+            Map<String, Number> desc = null;
+            Transaction tx = STORE.createTx();
+            try {
+                if (model == null) {
+                    // lists still referring to it are filtered on read
+                    descDb.delete(tx, key);
+                    nbrDb.delete(tx, key);
                 }
                 else {
-                    // pass through
-                    vector.put(me.getKey(), me.getValue());
+                    desc = instrument (model);
+                    serial.objectToEntry(desc, val);
+                    descDb.put(tx, key, val);
                 }
             }
-            return vector;
-        }
-
-        void process (SimPayload p) throws Exception {      
-            Similarity sim = new Similarity (toVector (p.di), toVector (p.dj));
-            SimKey simkey = new SimKey (p.ki, p.kj);
-            simkey.encode(key);
-            simserial.objectToEntry(sim, val);
+            finally {
+                tx.commit();
+            }
             
-            OperationStatus status = simDb.put(tx, key, val);
-            if (status != OperationStatus.SUCCESS)
-                Logger.warn("Putting similarity value "
-                            +"for keypair "+simkey
-                            +" yields status="+status);
-            else
-                Logger.debug(String.format("%1$10d", simDb.count())
-                             + ": similarity "+simkey+" = "
-                             +sim.similarity);
+            if (desc == null)
+                return;
+
+            Map<String, Number> vi = normalize (desc);
+            List<Long> others = new ArrayList<Long>();
+            DescriptorMatrix.Neighbors nb =
+                new DescriptorMatrix.Neighbors (topK);
+            DatabaseEntry nkey = new DatabaseEntry ();
+            DatabaseEntry nval = new DatabaseEntry ();
+            tx = STORE.createTx();
+            try {
+                Cursor cursor = descDb.openCursor(tx, null);
+                for (OperationStatus status =
+                         cursor.getFirst(nkey, val, null);
+                     status == OperationStatus.SUCCESS;
+                     status = cursor.getNext(nkey, val, null)) {
+                    long other = LongBinding.entryToLong(nkey);
+                    if (other == id)
+                        continue;
+                    
+                    float sim = (float)tanimoto
+                        (vi, normalize (serial.entryToObject(val)));
+                    if (Float.isNaN(sim))
+                        continue;
+                    
+                    nb.offer(others.size(), sim);
+                    others.add(other);
+                    
+                    if (nbrDb.get(tx, nkey, nval, null)
+                        == OperationStatus.SUCCESS) {
+                        NeighborList list = NeighborList.decode(nval);
+                        NeighborList updated = list.update(id, sim, topK);
+                        if (updated != list) {
+                            updated.encode(nval);
+                            nbrDb.put(tx, nkey, nval);
+                        }
+                    }
+                }
+                cursor.close();
+
+                long[] ids = new long[others.size()];
+                for (int i = 0; i < ids.length; ++i)
+                    ids[i] = others.get(i);
+                toNeighborList(ids, nb).encode(val);
+                nbrDb.put(tx, key, val);
+            }
+            finally {
+                tx.commit();
+            }
+            Logger.debug(kind.getName()+"/"+id+": neighbors refreshed");
         }
-    }
+    } // RefreshNeighbors
 
     final Class<T> kind;
     final Map<String, Vector> vectors = new TreeMap<String, Vector>();
-    Database vecDb, descDb, simDb;
-    // upper and lower (respectively) triangle of the sim matrix
-    SecondaryDatabase simIndex1Db, simIndex2Db;
+    Database vecDb, descDb, nbrDb;
+    volatile Map<String, Histogram> histograms;
+    // entities whose descriptors need to be refreshed
+    final ConcurrentMap<Long, Boolean> stale =
+        new ConcurrentHashMap<Long, Boolean>();
+    final AtomicBoolean refreshing = new AtomicBoolean ();
 
-    final BlockingQueue<SimPayload> queue = new ArrayBlockingQueue<>(10000);
+    int topK = Play.application().configuration()
+        .getInt("ix.idg.similarity.topK", TOP_K);
     final ReentrantLock lock = new ReentrantLock ();
     
     protected EntityDescriptor (Class<T> kind) throws IOException {
@@ -446,33 +507,17 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
         Logger.debug("Database "+descDb.getDatabaseName()+" initialized; "
                      +descDb.count()+" entries...");
 
-        simDb = STORE.createDbIfAbsent(BASE+"$"+kind.getName()+"$Similarity");
-        simIndex1Db = createSecondaryIndex
-            (simDb, "Index1", new SecondaryKeyCreator () {
-                    public boolean createSecondaryKey
-                        (SecondaryDatabase db, DatabaseEntry key,
-                         DatabaseEntry data, DatabaseEntry result) {
-                        SimKey skey = SimKey.decode(key);
-                        LongBinding.longToEntry(skey.key1(), result);
-                        return true;
-                    }
-                });
-        simIndex2Db = createSecondaryIndex
-            (simDb, "Index2", new SecondaryKeyCreator () {
-                    public boolean createSecondaryKey
-                        (SecondaryDatabase db, DatabaseEntry key,
-                         DatabaseEntry data, DatabaseEntry result) {
-                        SimKey skey = SimKey.decode(key);
-                        LongBinding.longToEntry(skey.key2(), result);
-                        return true;
-                    }
-                });
-        
-        for (int i = 0; i < NUM_SIM_WORKERS; ++i)
-            THREAD.submit(new SimWorker ());
-        
-        Logger.debug("Database "+simDb.getDatabaseName()+" initialized; "
-                     +simDb.count()+" entries...");
+        nbrDb = STORE.createDbIfAbsent(BASE+"$"+kind.getName()+"$Neighbors");
+        Logger.debug("Database "+nbrDb.getDatabaseName()+" initialized; "
+                     +nbrDb.count()+" entries...");
+        dropPairwiseDbs ();
+
+        EntityPersistAdapter adapter = EntityPersistAdapter.getInstance();
+        if (adapter != null)
+            adapter.add(this);
+        else
+            Logger.warn("No persist adapter; neighbors of "+kind.getName()
+                        +" won't be refreshed on update!");
         
         if (vecDb.count() == 0l || descDb.count() == 0l) {
             // initialize this in the background..
@@ -500,30 +545,60 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
             finally {
                 tx.commit();
             }
+            histograms = createHistograms ();
+
+            if (nbrDb.count() == 0l) {
+                // e.g., upgraded from the per-pair store
+                THREAD.submit(new CalculatePairwiseSimilarity ());
+            }
         }
     }
 
-    static SecondaryDatabase createSecondaryIndex
-        (Database db, String name, SecondaryKeyCreator keyCreator)
-        throws IOException {
-        Transaction tx = STORE.createTx();
+    /**
+     * Remove the per-pair similarity store (and its secondary indexes)
+     * of earlier versions; it's superseded by the neighbor lists, which
+     * are then (re)built from the descriptors.
+     */
+    void dropPairwiseDbs () {
+        String sim = BASE+"$"+kind.getName()+"$Similarity";
         try {
-            SecondaryConfig config = new SecondaryConfig();
-            config.setAllowCreate(true);
-            config.setTransactional(true);
-            config.setSortedDuplicates(true);
-            config.setKeyCreator(keyCreator);
-            return db.getEnvironment()
-                .openSecondaryDatabase(tx, name, db, config);
+            List<String> names = STORE.getEnv().getDatabaseNames();
+            if (names.contains(sim)) {
+                for (String index : new String[]{"Index1", "Index2"})
+                    if (names.contains(index))
+                        STORE.delete(index);
+                STORE.delete(sim);
+                Logger.info("Database "+sim+" removed");
+            }
         }
         catch (Exception ex) {
-            Logger.error("Can't create secondary database for "
-                         +db.getDatabaseName(), ex);
-            return null;
+            Logger.error("Can't remove database "+sim, ex);
         }
-        finally {
-            tx.commit();
+    }
+
+    public void postInsert (Object bean) { touch (bean); }
+    public void postUpdate (Object bean) { touch (bean); }
+    public void postDelete (Object bean) { touch (bean); }
+
+    void touch (Object bean) {
+        if (!kind.isInstance(bean))
+            return;
+        
+        Long id = ((EntityModel)bean).id;
+        try {
+            // nothing to refresh until the neighbors have been built
+            if (id == null || nbrDb.count() == 0l)
+                return;
+        }
+        catch (Exception ex) {
+            Logger.error("Can't retrieve count for "
+                         +nbrDb.getDatabaseName(), ex);
+            return;
         }
+        
+        if (stale.putIfAbsent(id, Boolean.TRUE) == null
+            && refreshing.compareAndSet(false, true))
+            THREAD.submit(new RefreshNeighbors ());
     }
 
     public synchronized static <T extends EntityModel> EntityDescriptor<T>
@@ -707,7 +782,8 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
 
     public static <T extends EntityModel> Map<String, Histogram>
         getDescriptorHistograms (final Class<T> kind) throws Exception {
-        return getDescriptorHistograms (kind, DIM);
+        Map<String, Histogram> hist = getInstance(kind).getHistograms();
+        return hist != null ? hist : getDescriptorHistograms (kind, DIM);
     }
     
     public static <T extends EntityModel> Map<String, Histogram>
@@ -723,16 +799,58 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
     }
 
     public Map<String, Vector> getVectors () { return vectors; }
+
+    /**
+     * Histograms (of DIM bins) of the descriptor vectors; null while
+     * the vectors are still being generated
+     */
+    public Map<String, Histogram> getHistograms () {
+        return histograms;
+    }
+
+    // only called once the vectors are complete
+    Map<String, Histogram> createHistograms () {
+        if (vectors.isEmpty())
+            return null;
+        
+        Map<String, Histogram> hist = new TreeMap<String, Histogram>();
+        for (Map.Entry<String, Vector> me : vectors.entrySet())
+            hist.put(me.getKey(), me.getValue().createHistogram(DIM));
+        return hist;
+    }
+
+    /**
+     * Replace each descriptor with its normalized mass under the
+     * descriptor histogram; descriptors without one are passed through
+     */
+    public Map<String, Number> normalize (Map<String, Number> descriptor) {
+        Map<String, Histogram> histogram = getHistograms ();
+        Map<String, Number> vector = new TreeMap<String, Number>();
+        for (Map.Entry<String, Number> me : descriptor.entrySet()) {
+            Histogram hist = histogram != null
+                ? histogram.get(me.getKey()) : null;
+            if (hist != null) {
+                double mass = hist.eval(me.getValue().doubleValue());
+                vector.put(me.getKey(), mass/hist.getWeight());
+            }
+            else {
+                // pass through
+                vector.put(me.getKey(), me.getValue());
+            }
+        }
+        return vector;
+    }
+    
     public long allPairwiseSimilarity () {
         try {
-            if (!lock.isLocked() && simDb.count() == 0) {
+            if (!lock.isLocked() && nbrDb.count() == 0) {
                 THREAD.submit(new CalculatePairwiseSimilarity ());
             }
-            return simDb.count();
+            return nbrDb.count();
         }
         catch (Exception ex) {
             Logger.error("Can't retrieve count for "
-                         +simDb.getDatabaseName(), ex);
+                         +nbrDb.getDatabaseName(), ex);
             return -1;
         }
     }
@@ -817,61 +935,43 @@ public class EntityDescriptor<T extends EntityModel> implements Commons {
         }
     }
 
-    public Map<Long, Similarity> similarity (Long id, int topK)
-        throws IOException {
+    public NeighborList neighbors (Long id) throws IOException {
         Transaction tx = STORE.createTx();
         try {
             DatabaseEntry key = new DatabaseEntry ();
-            DatabaseEntry pkey = new DatabaseEntry ();
             DatabaseEntry data = new DatabaseEntry ();
-
-            SerialBinding<Similarity> serial =
-                STORE.getSerialBinding(Similarity.class);
-
-            Map<Long, Similarity> results = new TreeMap<>();
             LongBinding.longToEntry(id, key);
-
-            // upper triangle
-            SecondaryCursor cursor = simIndex2Db.openCursor(tx, null);      
-            OperationStatus status =
-                cursor.getSearchKey(key, pkey, data, null);
-            Logger.debug("similarity for "+id+"...");
-            while (status == OperationStatus.SUCCESS) {
-                Similarity sim = serial.entryToObject(data);
-                SimKey skey = SimKey.decode(pkey);
-                if (skey.key2() == id) {
-                    Logger.debug(".."+skey+" "+sim.similarity);
-                    results.put(skey.key1(), sim);
-                }
-                else 
-                    break;
-                status = cursor.getNext(key, pkey, data, null);
-            }
-            cursor.close();
-
-            // lower triangle
-            LongBinding.longToEntry(id, key);
-            cursor = simIndex1Db.openCursor(tx, null);
-            status = cursor.getSearchKey(key, pkey, data, null);
-            while (status == OperationStatus.SUCCESS) {
-                Similarity sim = serial.entryToObject(data);
-                SimKey skey = SimKey.decode(pkey);
-                if (skey.key1() == id) {
-                    Logger.debug(".."+skey+" "+sim.similarity);
-                    results.put(skey.key2(), sim);
-                }
-                else 
-                    break;
-                status = cursor.getNext(key, pkey, data, null);         
-            }
-            cursor.close();
-            
-            return results;
+            OperationStatus status = nbrDb.get(tx, key, data, null);
+            return status == OperationStatus.SUCCESS
+                ? NeighborList.decode(data) : null;
         }
         finally {
             tx.commit();
         }
     }
+
+    /**
+     * Similarity of the given entity to its topK (all if topK <= 0)
+     * nearest neighbors; descriptor contributions are only calculated
+     * for the pairs returned
+     */
+    public Map<Long, Similarity> similarity (Long id, int topK)
+        throws IOException {
+        Map<Long, Similarity> results = new TreeMap<>();
+        NeighborList nb = neighbors (id);
+        Map<String, Number> desc = get (id);
+        if (nb == null || desc == null)
+            return results;
+
+        Map<String, Number> vi = normalize (desc);
+        for (int k = 0; k < nb.size()
+                 && (topK <= 0 || results.size() < topK); ++k) {
+            Map<String, Number> dj = get (nb.ids[k]);
+            if (dj != null) // removed since the list was built
+                results.put(nb.ids[k], new Similarity (vi, normalize (dj)));
+        }
+        return results;
+    }
     
     public static <T extends EntityModel> Map<String, Vector>
         getDescriptorVectors (final Class<T> kind) throws Exception {
@@ -26,7 +26,7 @@ public class GeneFactory extends EntityFactory {
         return page (top, skip, null);
     }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Gene.class, finder);
     }
 
     public static Result edits (Long id) {
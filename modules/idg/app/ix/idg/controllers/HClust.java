@@ -1,60 +1,101 @@
 package ix.idg.controllers;
 
-import com.apporiented.algorithm.clustering.AverageLinkageStrategy;
 import com.apporiented.algorithm.clustering.Cluster;
-import com.apporiented.algorithm.clustering.ClusteringAlgorithm;
-import com.apporiented.algorithm.clustering.DefaultClusteringAlgorithm;
+import com.apporiented.algorithm.clustering.Distance;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
+ * Hierarchical clustering of the rows and columns of a data matrix.
+ * Distances are kept in condensed (upper triangular) float arrays and
+ * computed in parallel; the trees are built with the nearest-neighbor
+ * chain algorithm, which gives the same dendrogram as the average
+ * linkage of the clustering library (the linkage of a merged cluster is
+ * the mean of the linkages of its two children) in quadratic time.
+ *
  * @author Rajarshi Guha
  */
 public class HClust {
-    double[][] cdm, rdm;
+    static final int STRIPE = 64; // rows per distance task
+
+    float[] cdm, rdm; // condensed distance matrices
     String[] colNames, rowNames;
     Cluster rcluster, ccluster;
 
     public HClust() {
     }
 
-    Double[] getColumn(Double[][] matrix, int col) {
-        Double[] ret = new Double[matrix.length];
-        for (int i = 0; i < matrix.length; i++) ret[i] = matrix[i][col];
-        return ret;
+    public void setData(Double[][] matrix, String[] colNames, String[] rowNames) {
+        int nc = colNames.length;
+        float[] values = new float[matrix.length * nc];
+        for (int i = 0; i < matrix.length; i++)
+            for (int j = 0; j < nc; j++)
+                if (matrix[i][j] != null) values[i * nc + j] = matrix[i][j].floatValue();
+        setData(values, colNames, rowNames);
     }
 
-    public void setData(Double[][] matrix, String[] colNames, String[] rowNames) {
+    public void setData(HarmonogramStore.Slice slice) {
+        setData(slice.values, slice.columns, slice.rows);
+    }
+
+    /**
+     * Row-major data matrix with missing values as 0
+     */
+    public void setData(float[] values, String[] colNames, String[] rowNames) {
         this.colNames = colNames;
         this.rowNames = rowNames;
 
-        // compute distance matrix for rows
-        rdm = new double[rowNames.length][rowNames.length];
-        for (int i = 0; i < matrix.length - 1; i++) {
-            rdm[i][i] = 0.0;
-            for (int j = i + 1; j < matrix.length; j++)
-                rdm[i][j] = distance(matrix[i], matrix[j]) ;
-        }
+        int nr = rowNames.length, nc = colNames.length;
+        float[] transposed = new float[values.length];
+        for (int i = 0; i < nr; i++)
+            for (int j = 0; j < nc; j++)
+                transposed[j * nr + i] = values[i * nc + j];
 
-        cdm = new double[colNames.length][colNames.length];
-        for (int i = 0; i < matrix[0].length - 1; i++) {
-            cdm[i][i] = 0.0;
-            for (int j = i + 1; j < matrix[0].length; j++)
-                cdm[i][j] = distance(getColumn(matrix, i),getColumn(matrix, j)) ;
-        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        rdm = distances(pool, values, nr, nc);
+        cdm = distances(pool, transposed, nc, nr);
+    }
 
+    static int index(int n, int i, int j) {
+        return (int) ((long) i * n - (long) i * (i + 1) / 2 + (j - i - 1));
     }
 
-    double distance(Double[] x, Double[] y) {
-        double sum = 0;
-        for (int i = 0; i < x.length; i++) {
-            double xx = x[i] == null ? 0 : x[i];
-            double yy = y[i] == null ? 0 : y[i];
-            sum += (xx - yy) * (xx - yy);
+    // euclidean distances between the n rows (of length m) of x
+    static float[] distances(ForkJoinPool pool, final float[] x,
+                             final int n, final int m) {
+        final float[] dm = new float[(int) ((long) n * (n - 1) / 2)];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int s = 0; s < n; s += STRIPE) {
+            final int i0 = s, i1 = Math.min(s + STRIPE, n);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = i0; i < i1; i++) {
+                        int k = index(n, i, i + 1);
+                        for (int j = i + 1; j < n; j++) {
+                            double sum = 0;
+                            for (int a = i * m, b = j * m, e = a + m; a < e; a++, b++) {
+                                double d = x[a] - x[b];
+                                sum += d * d;
+                            }
+                            dm[k++] = (float) Math.sqrt(sum);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) f.get();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
         }
-        return Math.sqrt(sum);
+        return dm;
     }
 
     public double[] getColumnClusteringHeights() {
@@ -87,27 +128,94 @@ public class HClust {
     }
 
     public void run() throws Exception {
-        ClusteringAlgorithm alg = new DefaultClusteringAlgorithm();
-        rcluster = alg.performClustering(rdm, rowNames, new AverageLinkageStrategy());
-        ccluster = alg.performClustering(cdm, colNames, new AverageLinkageStrategy());
-
-//        DendrogramPanel dp = new DendrogramPanel();
-//        dp.setModel(rcluster);
-//        JFrame f = new JFrame();
-//        f.setContentPane(dp);
-//        f.pack();
-//        f.setVisible(true);
-
-//        List<Cluster> disjoint = new ArrayList<Cluster>();
-//        recurse(rcluster, 0.12 * 100, disjoint);
-//        System.out.println("disjoint = " + disjoint.size());
-//        for (Cluster c : disjoint) {
-//            System.out.println("c = " + c + " " + c.getName() + " " + c.isLeaf());
-//
-//            List<String> n = getLeafsForCluster(c);
-//            for (String s : n) System.out.print(s + " ");
-//            System.out.println();
-//        }
+        rcluster = cluster(rdm, rowNames);
+        ccluster = cluster(cdm, colNames);
+    }
+
+    /**
+     * Nearest-neighbor chain agglomeration over the condensed distance
+     * matrix dm (which is overwritten) of the given leaves
+     */
+    static Cluster cluster(float[] dm, String[] names) {
+        int n = names.length;
+        if (n == 0)
+            throw new IllegalArgumentException("Bogus empty data matrix");
+
+        Cluster[] nodes = new Cluster[n];
+        // to order children as the library does: leaves by index come
+        // before merged clusters, which come in order of their linkage
+        float[] heights = new float[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new Cluster(names[i]);
+            heights[i] = -1f;
+        }
+
+        boolean[] merged = new boolean[n];
+        int[] chain = new int[n];
+        int top = 0, next = 0; // next is the lowest unmerged index
+        long id = 0;
+        for (int remaining = n; remaining > 1; remaining--) {
+            if (top == 0) {
+                while (merged[next]) next++;
+                chain[top++] = next;
+            }
+
+            int a, b;
+            for (;;) {
+                a = chain[top - 1];
+                int prev = top > 1 ? chain[top - 2] : -1;
+                int best = prev;
+                float min = prev >= 0 ? get(dm, n, a, prev) : Float.MAX_VALUE;
+                for (int k = 0; k < n; k++) {
+                    if (k == a || merged[k]) continue;
+                    float d = get(dm, n, a, k);
+                    if (d < min) {
+                        min = d;
+                        best = k;
+                    }
+                }
+                if (best == prev) {
+                    b = prev;
+                    break;
+                }
+                chain[top++] = best;
+            }
+            top -= 2;
+
+            // keep the merged cluster in the slot of the lower index
+            int i = Math.min(a, b), j = Math.max(a, b);
+            float h = get(dm, n, i, j);
+            Cluster left = heights[j] < heights[i] ? nodes[j] : nodes[i];
+            Cluster right = left == nodes[i] ? nodes[j] : nodes[i];
+            Cluster c = new Cluster("clstr#" + (++id));
+            c.setDistance(new Distance((double) h));
+            c.addChild(left);
+            c.addChild(right);
+            left.setParent(c);
+            right.setParent(c);
+            c.getDistance().setWeight(left.getWeightValue() + right.getWeightValue());
+
+            for (int k = 0; k < n; k++) {
+                if (k == i || k == j || merged[k]) continue;
+                set(dm, n, i, k, (get(dm, n, i, k) + get(dm, n, j, k)) / 2f);
+            }
+            merged[j] = true;
+            nodes[i] = c;
+            nodes[j] = null;
+            heights[i] = h;
+        }
+
+        while (merged[next]) next++;
+        return nodes[next];
+    }
+
+    static float get(float[] dm, int n, int i, int j) {
+        return i < j ? dm[index(n, i, j)] : dm[index(n, j, i)];
+    }
+
+    static void set(float[] dm, int n, int i, int j, float d) {
+        if (i < j) dm[index(n, i, j)] = d;
+        else dm[index(n, j, i)] = d;
     }
 
     List<String> getLeafsForCluster(Cluster c) {
@@ -117,42 +117,26 @@ public class HarmonogramApp extends App {
         }
     }
 
-    static String _hgmapToTsv(Map<String, Map<String, HarmonogramCDF>> map, String[] header) {
+    static String _hgToTsv(HarmonogramStore.Slice hg) {
         StringBuilder sb = new StringBuilder();
         sb.append("Sym");
-        for (String aHeader : header) sb.append("\t").append(aHeader);
+        for (String aHeader : hg.columns) sb.append("\t").append(aHeader);
         sb.append("\n");
 
-        for (String asym : map.keySet()) {
-            sb.append(asym).append("\t").append(_hgmapToTsvRow(map.get(asym), header));
+        for (int row = 0; row < hg.rowCount(); row++) {
+            sb.append(hg.rows[row]);
+            for (int col = 0; col < hg.columnCount(); col++) {
+                sb.append("\t");
+                if (hg.isPresent(row, col))
+                    sb.append(hg.get(row, col));
+                else
+                    sb.append(0); // TODO what is a good value ot indicate missingness?
+            }
             sb.append("\n");
         }
         return sb.toString();
     }
 
-    static String _hgmapToTsvRow(Map<String, HarmonogramCDF> map, String[] keys) {
-        StringBuilder sb = new StringBuilder();
-        String delimiter = "";
-        for (String akey : keys) {
-            HarmonogramCDF cdf = map.get(akey);
-            if (cdf == null)
-                sb.append(delimiter).append(0); // TODO what is a good value ot indicate missingness?
-            else
-                sb.append(delimiter).append(map.get(akey).getCdf());
-            delimiter = "\t";
-        }
-        return sb.toString();
-    }
-
-    static int getKeyIndex(Set<String> keys, String key) {
-        int i = 0;
-        for (String k : keys) {
-            if (k.equals(key)) return i;
-            i++;
-        }
-        return -1;
-    }
-
     static ArrayNode arrayToArrayNode(Integer[] a) {
         ArrayNode node = mapper.createArrayNode();
         for (Integer elem : a) node.add(elem);
@@ -496,56 +480,25 @@ public class HarmonogramApp extends App {
     
     public static Content _hgForTargetsContent
         (String[] accs, String format) throws Exception {
-        List<HarmonogramCDF> hg = new ArrayList<>();
-        for (String a : accs) {
-            List<HarmonogramCDF> cdf = HarmonogramFactory.finder
-                .where().eq("uniprotId", a).findList();
-            hg.addAll(cdf);
-        }
-        
-        if (hg.isEmpty()) {
+        HarmonogramStore.Slice hg =
+            HarmonogramStore.getInstance().slice(accs);
+        if (hg.rowCount() == 0) {
             return null;
         }
+        Logger.debug("Retrieved Harmonogram data for " + hg.rowCount() + " targets");
 
-        Map<String, Map<String, HarmonogramCDF>> allValues = new TreeMap<>();
-        Set<String> colNames = new HashSet<>();
-        for (HarmonogramCDF acdf : hg) {
-            String sym = acdf.getSymbol();
-            Map<String, HarmonogramCDF> values;
-            if (!allValues.containsKey(sym)) values = new HashMap<>();
-            else values = allValues.get(sym);
-            values.put(acdf.getDataSource(), acdf);
-            allValues.put(sym, values);
-            colNames.add(acdf.getDataSource());
-        }
-        Logger.debug("Retrieved Harmonogram data for " + allValues.size() + " targets");
-
-        // Arrange column names in a default ordering - needs to be updated
-        String[] header = colNames.toArray(new String[]{});
-        Arrays.sort(header);
+        // columns are data sources in sorted order
+        String[] header = hg.columns;
 
         if (format != null && format.toLowerCase().equals("tsv")) {
-            return new play.twirl.api.Txt(_hgmapToTsv(allValues, header));
+            return new play.twirl.api.Txt(_hgToTsv(hg));
         } else {
 
-            // Construct data matrix for clustering
-            int r = 0;
-            Double[][] matrix = new Double[allValues.size()][header.length];
-            for (String sym : allValues.keySet()) {
-                Double[] row = new Double[header.length];
-                Map<String, HarmonogramCDF> cdfs = allValues.get(sym);
-                for (int i = 0; i < header.length; i++) {
-                    HarmonogramCDF cdf = cdfs.get(header[i]);
-                    row[i] = cdf == null ? null : cdf.getCdf();
-                }
-                matrix[r++] = row;
-            }
-            
             Logger.debug("Clustering harmanogram matrix "
-                         +r+"x"+header.length+"...");
+                         +hg.rowCount()+"x"+header.length+"...");
             long start = System.currentTimeMillis();
             HClust hc = new HClust();
-            hc.setData(matrix, header, allValues.keySet().toArray(new String[]{}));
+            hc.setData(hg);
             hc.run();
             Logger.debug("Clustering completes in "
                          +String.format
@@ -554,78 +507,46 @@ public class HarmonogramApp extends App {
             // construct the membership matrix, each column is cluster membership
             // for a given height. Each row is a target. So [i,j] indicates cluster
             // id for target i at the j'th height. Thus the group parameter in the
-            // hgram json is simply the row of the matrix for that target
+            // hgram json is simply the row of the matrix for that target. Rows
+            // and memberships are both sorted by symbol.
             double[] rowHeights = hc.getRowClusteringHeights();
-            Integer[][] clusmem = new Integer[matrix.length][rowHeights.length];
+            Integer[][] clusmem = new Integer[hg.rowCount()][rowHeights.length];
             for (int i = 0; i < rowHeights.length; i++) {
                 TreeMap<String, Integer> memberships = hc.getClusterMemberships(hc.rcluster, rowHeights[i]);
                 int j = 0;
-                for (String key : memberships.keySet()) clusmem[j++][i] = memberships.get(key);
+                for (Integer m : memberships.values()) clusmem[j++][i] = m;
             }
 
-
-//            for (int i = 0; i < clusmem.length; i++) {
-//                for (int j = 0; j < clusmem[0].length; j++) {
-//                    System.out.print(clusmem[i][j]+" ");
-//                }
-//                System.out.println();
-//            }
-
             ArrayNode rowNodes = mapper.createArrayNode();
             ArrayNode colNodes = mapper.createArrayNode();
             ArrayNode links = mapper.createArrayNode();
 
-            int rank = 1;
-            for (String sym : allValues.keySet()) {
+            for (int idx = 0; idx < hg.rowCount(); idx++) {
                 ObjectNode aRowNode = mapper.createObjectNode();
-                Map<String, HarmonogramCDF> cdfs = allValues.get(sym);
-                // get any CDF object for this symbol - they all have the same target info
-                HarmonogramCDF acdf = cdfs.values().iterator().next();
-
-                // extract the group vector
-                int idx = getKeyIndex(allValues.keySet(), sym);
                 aRowNode.put("group", arrayToArrayNode(clusmem[idx]));
                 aRowNode.put("clust", clusmem[idx][0]);
-                aRowNode.put("rank", rank++);
-                aRowNode.put("name", sym);
-//                aRowNode.put("cl", acdf.getIDGFamily());
-
+                aRowNode.put("rank", idx + 1);
+                aRowNode.put("name", hg.rows[idx]);
                 rowNodes.add(aRowNode);
             }
 
-            // create a map of column name to data type
-            Map<String, String> colNameTypeMap = new HashMap<>();
-            for (String col : header) {
-                for (String key : allValues.keySet()) {
-                    Map<String, HarmonogramCDF> cdfs = allValues.get(key);
-                    HarmonogramCDF cdf = cdfs.get(col);
-                    if (cdf != null) {
-                        colNameTypeMap.put(col, cdf.getDataType());
-                        break;
-                    }
-                }
-            }
-            rank = 1;
+            int rank = 1;
             for (String aColName : header) {
                 ObjectNode aColNode = mapper.createObjectNode();
                 aColNode.put("name", aColName);
                 aColNode.put("cluster", 1);
                 aColNode.put("rank", rank++);
-//                aColNode.put("cl", colNameTypeMap.get(aColName));
                 colNodes.add(aColNode);
             }
 
-            int row = 0;
-            for (String sym : allValues.keySet()) {
+            for (int row = 0; row < hg.rowCount(); row++) {
                 for (int col = 0; col < header.length; col++) {
-                    HarmonogramCDF cdf = allValues.get(sym).get(header[col]);
                     ObjectNode node = mapper.createObjectNode();
                     node.put("source", row);
                     node.put("target", col);
-                    node.put("value", cdf == null ? null : cdf.getCdf());
+                    node.put("value", hg.getValue(row, col));
                     links.add(node);
                 }
-                row++;
             }
 
             ObjectNode root = mapper.createObjectNode();
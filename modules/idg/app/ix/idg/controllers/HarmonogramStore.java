@@ -0,0 +1,258 @@
+package ix.idg.controllers;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+import play.Logger;
+import play.db.DB;
+
+import ix.core.plugins.CacheGenerations;
+import ix.idg.models.HarmonogramCDF;
+
+/**
+ * The harmonogram CDF matrix (target x data source) of all targets held
+ * as one float array per data source with a bitmap of the values
+ * present. It's loaded with a single scan of the harmonogram table and
+ * reloaded whenever a HarmonogramCDF is modified after that.
+ */
+public class HarmonogramStore {
+    static final String SQL = "select uniprot_id, symbol, data_source, "
+        +"data_type, cdf from ix_idg_harmonogram";
+
+    /**
+     * The matrix restricted to a set of targets (rows, sorted by symbol)
+     * and the data sources (columns, sorted by name) with at least one
+     * value for them
+     */
+    public static class Slice {
+        public final String[] rows; // symbols
+        public final String[] columns; // data sources
+        public final String[] dataTypes; // of each column
+        final float[] values; // row-major
+        final BitSet present;
+
+        Slice (String[] rows, String[] columns, String[] dataTypes,
+               float[] values, BitSet present) {
+            this.rows = rows;
+            this.columns = columns;
+            this.dataTypes = dataTypes;
+            this.values = values;
+            this.present = present;
+        }
+
+        public int rowCount () { return rows.length; }
+        public int columnCount () { return columns.length; }
+        public boolean isPresent (int r, int c) {
+            return present.get(r*columns.length+c);
+        }
+
+        /**
+         * The value at row r and column c, or 0 if it's missing
+         */
+        public float get (int r, int c) {
+            return values[r*columns.length+c];
+        }
+
+        public Float getValue (int r, int c) {
+            return isPresent (r, c) ? values[r*columns.length+c] : null;
+        }
+    }
+
+    static HarmonogramStore instance;
+
+    final long loaded; // time of the load
+    final String[] sources; // sorted
+    final String[] dataTypes;
+    final String[] uniprots;
+    final String[] symbols;
+    final Map<String, Integer> rows; // uniprot => row
+    final float[][] columns; // data source => value of each row
+    final BitSet[] present; // rows with a value in each column
+
+    HarmonogramStore (long loaded, String[] sources, String[] dataTypes,
+                      String[] uniprots, String[] symbols,
+                      float[][] columns, BitSet[] present) {
+        this.loaded = loaded;
+        this.sources = sources;
+        this.dataTypes = dataTypes;
+        this.uniprots = uniprots;
+        this.symbols = symbols;
+        this.columns = columns;
+        this.present = present;
+        rows = new HashMap<String, Integer>(uniprots.length*2);
+        for (int i = 0; i < uniprots.length; ++i)
+            rows.put(uniprots[i], i);
+    }
+
+    /**
+     * The current store, loaded (again) if necessary
+     */
+    public static synchronized HarmonogramStore getInstance ()
+        throws SQLException {
+        if (instance == null || instance.isStale()) {
+            if (instance != null)
+                Logger.debug("Harmonogram data modified; reloading...");
+            instance = load ();
+        }
+        return instance;
+    }
+
+    public boolean isStale () {
+        return CacheGenerations
+            .getGeneration(HarmonogramCDF.class) >= loaded;
+    }
+
+    static HarmonogramStore load () throws SQLException {
+        long start = System.currentTimeMillis();
+        Map<String, Integer> rows = new HashMap<String, Integer>();
+        Map<String, Integer> cols = new HashMap<String, Integer>();
+        List<String> uniprots = new ArrayList<String>();
+        List<String> symbols = new ArrayList<String>();
+        List<String> sources = new ArrayList<String>();
+        Map<String, String> types = new HashMap<String, String>();
+
+        int n = 0;
+        int[] ri = new int[1024], ci = new int[1024];
+        float[] vi = new float[1024];
+        try (Connection con = DB.getConnection();
+             Statement stm = con.createStatement();
+             ResultSet rset = stm.executeQuery(SQL)) {
+            while (rset.next()) {
+                double cdf = rset.getDouble("cdf");
+                if (rset.wasNull())
+                    continue;
+
+                String acc = rset.getString("uniprot_id");
+                Integer r = rows.get(acc);
+                if (r == null) {
+                    rows.put(acc, r = uniprots.size());
+                    uniprots.add(acc);
+                    symbols.add(rset.getString("symbol"));
+                }
+
+                String ds = rset.getString("data_source");
+                Integer c = cols.get(ds);
+                if (c == null) {
+                    cols.put(ds, c = sources.size());
+                    sources.add(ds);
+                    types.put(ds, rset.getString("data_type"));
+                }
+
+                if (n == ri.length) {
+                    ri = Arrays.copyOf(ri, 2*n);
+                    ci = Arrays.copyOf(ci, 2*n);
+                    vi = Arrays.copyOf(vi, 2*n);
+                }
+                ri[n] = r;
+                ci[n] = c;
+                vi[n] = (float)cdf;
+                ++n;
+            }
+        }
+
+        // columns in sorted order
+        String[] header = sources.toArray(new String[0]);
+        Arrays.sort(header);
+        int[] order = new int[header.length];
+        String[] dataTypes = new String[header.length];
+        for (int i = 0; i < header.length; ++i) {
+            order[cols.get(header[i])] = i;
+            dataTypes[i] = types.get(header[i]);
+        }
+
+        float[][] columns = new float[header.length][uniprots.size()];
+        BitSet[] present = new BitSet[header.length];
+        for (int i = 0; i < present.length; ++i)
+            present[i] = new BitSet (uniprots.size());
+        for (int k = 0; k < n; ++k) {
+            int c = order[ci[k]];
+            columns[c][ri[k]] = vi[k];
+            present[c].set(ri[k]);
+        }
+
+        Logger.debug("Harmonogram store loaded: "+uniprots.size()+" x "
+                     +header.length+" ("+n+" values) in "+String.format
+                     ("%1$dms", System.currentTimeMillis()-start));
+
+        return new HarmonogramStore
+            (start, header, dataTypes, uniprots.toArray(new String[0]),
+             symbols.toArray(new String[0]), columns, present);
+    }
+
+    public int size () { return uniprots.length; }
+    public int getDataSourceCount () { return sources.length; }
+
+    /**
+     * The matrix for the given targets (by accession); targets without
+     * any harmonogram data are ignored and targets sharing a symbol are
+     * merged
+     */
+    public Slice slice (String... accs) {
+        CacheGenerations.depends(HarmonogramCDF.class);
+        
+        // symbol => row in the store
+        TreeMap<String, int[]> selected = new TreeMap<String, int[]>();
+        for (String acc : accs) {
+            Integer r = rows.get(acc);
+            if (r == null)
+                continue;
+            int[] rs = selected.get(symbols[r]);
+            if (rs == null) {
+                selected.put(symbols[r], new int[]{r});
+            }
+            else if (Arrays.binarySearch(rs, r) < 0) {
+                rs = Arrays.copyOf(rs, rs.length+1);
+                rs[rs.length-1] = r;
+                Arrays.sort(rs);
+                selected.put(symbols[r], rs);
+            }
+        }
+
+        // columns with at least one value
+        List<Integer> used = new ArrayList<Integer>();
+        for (int c = 0; c < sources.length; ++c) {
+            BitSet bits = present[c];
+            for (int[] rs : selected.values()) {
+                boolean found = false;
+                for (int r : rs)
+                    if (bits.get(r)) {
+                        found = true;
+                        break;
+                    }
+                if (found) {
+                    used.add(c);
+                    break;
+                }
+            }
+        }
+
+        int nr = selected.size(), nc = used.size();
+        String[] header = new String[nc];
+        String[] types = new String[nc];
+        for (int j = 0; j < nc; ++j) {
+            header[j] = sources[used.get(j)];
+            types[j] = dataTypes[used.get(j)];
+        }
+
+        float[] values = new float[nr*nc];
+        BitSet bits = new BitSet (nr*nc);
+        int i = 0;
+        for (int[] rs : selected.values()) {
+            for (int j = 0; j < nc; ++j) {
+                int c = used.get(j);
+                for (int r : rs) // the last one wins
+                    if (present[c].get(r)) {
+                        values[i*nc+j] = columns[c][r];
+                        bits.set(i*nc+j);
+                    }
+            }
+            ++i;
+        }
+
+        return new Slice (selected.keySet().toArray(new String[0]),
+                          header, types, values, bits);
+    }
+}
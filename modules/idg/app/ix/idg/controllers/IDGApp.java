@@ -6,7 +6,6 @@ import akka.actor.UntypedActor;
 import chemaxon.struc.MolAtom;
 import com.avaje.ebean.Expr;
 import com.avaje.ebean.QueryIterator;
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -32,6 +31,7 @@ import ix.core.models.VInt;
 import ix.core.models.VNum;
 import ix.core.models.Value;
 import ix.core.models.XRef;
+import ix.core.plugins.CacheWarmer;
 import ix.core.plugins.IxCache;
 import ix.core.plugins.ThreadPoolPlugin;
 import ix.core.search.SearchOptions;
@@ -53,6 +53,8 @@ import play.api.mvc.AnyContent;
 import play.cache.Cached;
 import play.db.ebean.Model;
 import play.libs.Akka;
+import play.libs.ws.WS;
+import play.libs.ws.WSResponse;
 import play.mvc.BodyParser;
 import play.mvc.Call;
 import play.mvc.Result;
@@ -89,11 +91,7 @@ import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static ix.core.search.TextIndexer.Facet;
@@ -560,64 +558,42 @@ public class IDGApp extends App implements Commons {
         }
     }
 
-    static class TargetCacheWarmer implements Runnable {
-        final AtomicLong start = new AtomicLong ();
-        final AtomicLong stop = new AtomicLong ();
-        
-        @JsonIgnore
-        final ExecutorService threadPool;
-        @JsonIgnore
-        final Future task;
-
-        @JsonIgnore
-        final List<String> targets;
-        final Map<String, Long> complete =
-            new ConcurrentHashMap<String, Long>();
-        
-        TargetCacheWarmer (List<String> targets) {
-            this.targets = targets;
-            threadPool = Executors.newSingleThreadExecutor();
-            task = threadPool.submit(this);
-        }
+    static final CacheWarmer TARGET_WARMER =
+        new CacheWarmer ("targets", new File (_ix.home(), "warmer"));
+    static final long WARM_TIMEOUT = 5*60*1000l; // ms per target page
+    // marks the warmer's own page requests so they don't count as hits;
+    // the value is known only to this process so clients can't opt out
+    static final String WARMER_HEADER = "X-IX-Warmer";
+    static final String WARMER_TOKEN = UUID.randomUUID().toString();
 
-        public void run () {
-            Logger.debug
-                (Thread.currentThread().getName()
-                 +": preparing to warm cache for "+targets.size()+" targets!");
-            start.set(System.currentTimeMillis());
-            for (String name : targets) {
-                long s = System.currentTimeMillis();
-                try {
-                    List<Target> tar = TargetResult.find(name);
-                    for (Target t : tar) {
-                        List<DiseaseRelevance> dr = getDiseases (t); // cache
-                        Logger.debug(name+": id="+t.id
-                                     +" #syns="+t.synonyms.size()
-                                     +" #pubs="+t.publications.size()
-                                     +" #links="+t.links.size()
-                                     +" #props="+t.properties.size()
-                                     +" #diseases="+dr.size()
-                                     );
-                    }
-                    complete.put(name, System.currentTimeMillis()-s);
-                }
-                catch (Exception ex) {
-                    Logger.debug(name+"...failed: "+ex.getMessage());
-                }
-            }
-            stop.set(System.currentTimeMillis());
-            Logger.debug
-                (Thread.currentThread().getName()
-                 +": target cache warmer complete..."+new java.util.Date());
-            threadPool.shutdown();
+    /**
+     * Warm the entity graph of a target and its rendered page; the page
+     * is fetched through this server so that the cached content is
+     * keyed and rendered exactly as it is for users
+     */
+    static class TargetWarmTask implements CacheWarmer.Task {
+        final String base;
+
+        TargetWarmTask (String base) {
+            this.base = base;
         }
 
-        public Map<String, Long> getComplete () { return complete; }
-        public boolean isDone () { return task.isDone(); }
-        public int getTotal () { return targets.size(); }
-        public int getCount () { return complete.size(); }
-        public long getStart () { return start.get(); }
-        public long getStop () { return stop.get(); }
+        public void warm (String name) throws Exception {
+            long s = System.currentTimeMillis();
+            List<Target> targets = TargetFactory.finder
+                .where().eq("synonyms.term", name).findList();
+            for (Target t : targets)
+                getDiseases (t);
+
+            WSResponse res = WS.url(base+routes.IDGApp.target(name).url())
+                .setHeader(WARMER_HEADER, WARMER_TOKEN)
+                .get().get(WARM_TIMEOUT);
+            if (res.getStatus() != 200)
+                throw new IllegalStateException
+                    ("Target page returns status "+res.getStatus());
+            Logger.debug(name+": warmed in "
+                         +(System.currentTimeMillis()-s)+"ms");
+        }
     }
 
     public static final String[] TARGET_FACETS = {
@@ -1261,7 +1237,12 @@ public class IDGApp extends App implements Commons {
             return ok(targetDownload)
                 .as(DownloadEntities.getDownloadMimeType(Target.class));
         }
-        return TargetResult.get(name);
+        Result result = TargetResult.get(name);
+        // only count requests by users for targets that resolve
+        if (result.toScala().header().status() == OK
+            && !WARMER_TOKEN.equals(request().getHeader(WARMER_HEADER)))
+            TARGET_WARMER.hit(name);
+        return result;
     }
 
     static List<DiseaseRelevance> getDiseases (final Target t)
@@ -1303,6 +1284,20 @@ public class IDGApp extends App implements Commons {
             .targetdetails.render(t, diseases, breadcrumb);
     }
 
+    /**
+     * Where the warmer fetches target pages from; this is configured
+     * rather than taken from the request, whose Host header is up to
+     * the client
+     */
+    static String getWarmerBase () {
+        String base = Play.application().configuration()
+            .getString("ix.idg.warmer.base");
+        if (base == null)
+            base = "http://localhost:"
+                +System.getProperty("http.port", "9000");
+        return base.endsWith("/") ? base.substring(0, base.length()-1) : base;
+    }
+
     public static Result targetWarmCache (String secret) {
         if (secret == null || secret.length() == 0
             || !secret.equals(Play.application()
@@ -1311,31 +1306,50 @@ public class IDGApp extends App implements Commons {
                 ("You do not have permission to access this resource!");
         }
 
+        int concurrency = Play.application().configuration()
+            .getInt("ix.idg.warmer.threads", CacheWarmer.CONCURRENCY);
+        String threads = request().getQueryString("threads");
+        if (threads != null) {
+            try {
+                concurrency = Integer.parseInt(threads);
+            }
+            catch (NumberFormatException ex) {
+                concurrency = 0;
+            }
+            if (concurrency < 1)
+                return _badRequest ("Bogus threads: "+threads);
+        }
+        
         try {
-            TargetCacheWarmer cache = getOrElse
-                ("IDGApp.targetWarmCache", new Callable<TargetCacheWarmer> () {
-                        public TargetCacheWarmer call () throws Exception {
-                            Logger.debug("Warming up target cache...");
-                            QueryIterator<Keyword> kiter = KeywordFactory
-                            .finder.where()
-                            .eq("label", UNIPROT_ACCESSION)
-                            .findIterate();
-                            
-                            List<String> targets = new ArrayList<String>();
-                            while (kiter.hasNext()) {
-                                Keyword kw = kiter.next();
-                                targets.add(kw.term);
-                            }
-                            
-                            return new TargetCacheWarmer (targets);
-                        }
-                    });
+            TARGET_WARMER.setConcurrency(concurrency);
+            
+            if (!TARGET_WARMER.isRunning()) {
+                Logger.debug("Warming up target cache...");
+                QueryIterator<Keyword> kiter = KeywordFactory
+                    .finder.where()
+                    .eq("label", UNIPROT_ACCESSION)
+                    .findIterate();
+                
+                List<String> targets = new ArrayList<String>();
+                try {
+                    while (kiter.hasNext()) {
+                        Keyword kw = kiter.next();
+                        targets.add(kw.term);
+                    }
+                }
+                finally {
+                    kiter.close();
+                }
+                
+                TARGET_WARMER.start
+                    (targets, new TargetWarmTask (getWarmerBase ()));
+            }
+            
             ObjectMapper mapper = new ObjectMapper ();
-            return ok ((JsonNode)mapper.valueToTree(cache));
+            return ok ((JsonNode)mapper.valueToTree(TARGET_WARMER));
         }
         catch (Exception ex) {
-            ex.printStackTrace();
-            Logger.error("Can't retrieve target cache", ex);
+            Logger.error("Can't warm target cache", ex);
             return _internalServerError (ex);
         }
     }
@@ -1414,22 +1428,7 @@ public class IDGApp extends App implements Commons {
     }
 
     public static List<Ligand> getLigandsWithActivity(EntityModel e) {
-        List<Ligand> ligands = new ArrayList<Ligand>();
-        for (XRef xref : e.getLinks()) {
-            try {
-                Class cls = Class.forName(xref.kind);
-                if (Ligand.class.isAssignableFrom(cls)) {
-                    Ligand lig = (Ligand) xref.deRef();
-
-                    ligands.add((Ligand) xref.deRef());
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                Logger.error("Can't resolve XRef "
-                        + xref.kind + ":" + xref.refid, ex);
-            }
-        }
-        return ligands;
+        return getLinkedObjects (e, Ligand.class);
     }
 
     public static List<Value> getLinkedProperties
@@ -1493,7 +1492,7 @@ public class IDGApp extends App implements Commons {
         List<XRef> links = new ArrayList<XRef>();
         for (XRef ref : e.getLinks()) {
             try {
-                Class cls = Class.forName(ref.kind);
+                Class cls = ref.getKindClass();
                 if (klass.isAssignableFrom(cls)) {
                     links.add(ref);
                 }
@@ -1509,7 +1508,7 @@ public class IDGApp extends App implements Commons {
 
     public static <T> List<T> getLinkedObjects (EntityModel e, Class<T> klass) {
         List<T> objects = new ArrayList<T>();
-        for (XRef xref : getLinks (e, klass)) {
+        for (XRef xref : e.resolveLinks(klass)) {
             try {
                 objects.add((T)xref.deRef());
             }
@@ -1557,6 +1556,7 @@ public class IDGApp extends App implements Commons {
         Map<Long, DiseaseRelevance> diseaseRel =
             new HashMap<Long, DiseaseRelevance>();
         long start = System.currentTimeMillis();
+        XRef.deRef(getLinks (t, Disease.class));
         for (XRef xref : t.links) {
             if (Disease.class.getName().equals(xref.kind)) {
                 DiseaseRelevance dr = new DiseaseRelevance ();
@@ -1833,9 +1833,12 @@ public class IDGApp extends App implements Commons {
                 getSearchResult (Target.class, q, total, query);
             
             String action = request().getQueryString("action");
-            if (action != null && action.equalsIgnoreCase("download")
-                && result.size() < 500) {
-                return DownloadEntities.download(result);
+            if (action != null && action.equalsIgnoreCase("download")) {
+                // streamed exports aren't bounded by the result size
+                if (request().getQueryString("stream") != null)
+                    return DownloadEntities.stream(result);
+                if (result.size() < 500)
+                    return DownloadEntities.download(result);
             }
             
             return createTargetResult (result, rows, page);
@@ -31,7 +31,7 @@ public class LigandFactory extends EntityFactory {
         return page (top, skip, null);
     }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Ligand.class, finder);
     }
 
     public static Result edits (Long id) {
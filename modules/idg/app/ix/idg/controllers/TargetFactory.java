@@ -43,7 +43,7 @@ public class TargetFactory extends EntityFactory implements Commons {
         return page (top, skip, null);
     }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Target.class, finder);
     }
 
     public static Result edits (Long id) {
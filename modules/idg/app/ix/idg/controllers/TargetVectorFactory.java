@@ -37,21 +37,8 @@ public class TargetVectorFactory extends Controller implements Commons {
             descriptor = EntityDescriptor.get(Target.class, id);
             if (descriptor == null)
                 throw new IllegalArgumentException ("Unknown target "+id);
-            Map<String, Histogram> histogram =
-                EntityDescriptor.getDescriptorHistograms(Target.class);
-            
-            vector = new TreeMap<String, Number>();
-            for (Map.Entry<String, Number> me : descriptor.entrySet()) {
-                Histogram hist = histogram.get(me.getKey());
-                if (hist != null) {
-                    double mass = hist.eval(me.getValue().doubleValue());
-                    vector.put(me.getKey(), mass/hist.getWeight());
-                }
-                else {
-                    // pass through
-                    vector.put(me.getKey(), me.getValue());
-                }
-            }
+            vector = EntityDescriptor.getInstance(Target.class)
+                .normalize(descriptor);
         }
 
         @JsonProperty("target")
@@ -173,12 +160,16 @@ public class TargetVectorFactory extends Controller implements Commons {
             if (targets.isEmpty())
                 return badRequest ("Not a valid target id list: "+ids);
 
+            List<TargetVector> vectors = new ArrayList<TargetVector>();
+            for (Long id : targets)
+                vectors.add(new TargetVector (id));
+
             ObjectMapper mapper = new ObjectMapper ();
             ArrayNode json = mapper.createArrayNode();
-            for (int i = 0; i < targets.size(); ++i) {
-                TargetVector ti = new TargetVector (targets.get(i));
-                for (int j = i+1; j < targets.size(); ++j) {
-                    TargetVector tj = new TargetVector (targets.get(j));
+            for (int i = 0; i < vectors.size(); ++i) {
+                TargetVector ti = vectors.get(i);
+                for (int j = i+1; j < vectors.size(); ++j) {
+                    TargetVector tj = vectors.get(j);
                     TanimotoSimilarity sim = new TanimotoSimilarity (ti, tj);
                     json.add(mapper.valueToTree(sim));
                 }
@@ -0,0 +1,330 @@
+package ix.idg.controllers;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+
+import org.apache.lucene.document.Document;
+
+import com.avaje.ebean.Ebean;
+
+import play.Configuration;
+import play.Logger;
+import play.Play;
+import play.mvc.Http;
+
+import ix.core.adapters.EntityPersistAdapter;
+import ix.core.controllers.KeywordFactory;
+import ix.core.controllers.PublicationFactory;
+import ix.core.models.Keyword;
+import ix.core.models.Publication;
+import ix.idg.models.Ligand;
+import ix.core.plugins.PersistenceQueue;
+import ix.core.search.TextIndexer;
+
+/**
+ * Loads TCRD targets with a number of workers, each with its own JDBC
+ * connection and PersistRegistration over a shard of the targets. The
+ * child rows of a chunk of targets are prefetched with one query per
+ * table, keywords and publications are interned across workers, and
+ * text indexing is deferred to a bulk phase at the end.
+ */
+class TcrdLoader extends PersistenceQueue.AbstractPersistenceContext {
+    static final int INDEX_BATCH = 500;
+    static final double RAM_BUFFER_MB = 256.;
+
+    /**
+     * Keywords, publications and ligands shared by the workers so that
+     * each is looked up (and registered) once per load
+     */
+    static class Intern {
+        final ConcurrentMap<String, Keyword> keywords =
+            new ConcurrentHashMap<String, Keyword>();
+        final ConcurrentMap<Long, Publication> publications =
+            new ConcurrentHashMap<Long, Publication>();
+        // ligand ids by ChEMBL id (or drug name)
+        final ConcurrentMap<String, Long> ligands =
+            new ConcurrentHashMap<String, Long>();
+        final Object[] locks = new Object[64];
+
+        Intern () {
+            for (int i = 0; i < locks.length; ++i)
+                locks[i] = new Object ();
+        }
+
+        Object lock (Object key) {
+            return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+        }
+
+        public Keyword keyword (String label, String term, String href) {
+            String key = label+"\u0000"+term;
+            Keyword kw = keywords.get(key);
+            if (kw == null) {
+                synchronized (lock (key)) {
+                    kw = keywords.get(key);
+                    if (kw == null) {
+                        kw = KeywordFactory.registerIfAbsent
+                            (label, term, href);
+                        keywords.put(key, kw);
+                    }
+                }
+            }
+            return kw;
+        }
+
+        /**
+         * The publication with the given pmid if it's already registered
+         */
+        public Publication publication (long pmid) {
+            Publication pub = publications.get(pmid);
+            if (pub == null) {
+                pub = PublicationFactory.byPMID(pmid);
+                if (pub != null) {
+                    Publication p = publications.putIfAbsent(pmid, pub);
+                    if (p != null)
+                        pub = p;
+                }
+            }
+            return pub;
+        }
+
+        /**
+         * Save the given publication unless another worker got there
+         * first; returns the registered publication
+         */
+        public Publication register (Publication pub) {
+            synchronized (lock (pub.pmid)) {
+                Publication p = publication (pub.pmid);
+                if (p == null) {
+                    pub.save();
+                    publications.put(pub.pmid, p = pub);
+                }
+                return p;
+            }
+        }
+
+        /**
+         * Lock held by a worker while it looks up, registers or updates
+         * the ligand with the given ChEMBL id (or drug name)
+         */
+        public Object ligandLock (String key) {
+            return lock ("ligand:"+key);
+        }
+
+        /**
+         * The ligand registered by any worker under the given key
+         */
+        public Ligand ligand (String key) {
+            Long id = ligands.get(key);
+            return id != null ? LigandFactory.finder.byId(id) : null;
+        }
+
+        public void register (String key, Ligand ligand) {
+            if (ligand.id != null)
+                ligands.put(key, ligand.id);
+        }
+
+        public String toString () {
+            return getClass().getSimpleName()+"{keywords="+keywords.size()
+                +",publications="+publications.size()
+                +",ligands="+ligands.size()+"}";
+        }
+    }
+
+    final DataSource ds;
+    final Http.Context ctx;
+    final Collection<TcrdRegistry.TcrdTarget> targets;
+    final Intern intern = new Intern ();
+    final ConcurrentMap<Class, Set<Object>> deferred =
+        new ConcurrentHashMap<Class, Set<Object>>();
+    final AtomicInteger processed = new AtomicInteger ();
+    int threads;
+    int chunkSize;
+    int batchSize;
+
+    TcrdLoader (DataSource ds, Http.Context ctx,
+                Collection<TcrdRegistry.TcrdTarget> targets, int threads) {
+        this.ds = ds;
+        this.ctx = ctx;
+        this.targets = targets;
+
+        Configuration conf = Play.application().configuration();
+        if (threads <= 0)
+            threads = conf.getInt("ix.idg.tcrd.threads",
+                                  Runtime.getRuntime().availableProcessors());
+        this.threads = Math.max(1, Math.min(threads, targets.size()));
+        chunkSize = conf.getInt("ix.idg.tcrd.chunkSize", 32);
+        batchSize = conf.getInt("ix.idg.tcrd.batchSize", 100);
+    }
+
+    public void persists () throws Exception {
+        long start = System.currentTimeMillis();
+        Logger.debug("#### TCRD load of "+targets.size()+" targets with "
+                     +threads+" workers started on "+new java.util.Date());
+
+        List<List<TcrdRegistry.TcrdTarget>> shards =
+            new ArrayList<List<TcrdRegistry.TcrdTarget>>();
+        for (int i = 0; i < threads; ++i)
+            shards.add(new ArrayList<TcrdRegistry.TcrdTarget>());
+        int i = 0;
+        for (TcrdRegistry.TcrdTarget t : targets)
+            shards.get(i++ % threads).add(t);
+
+        List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+        for (final List<TcrdRegistry.TcrdTarget> shard : shards) {
+            workers.add(new Callable<Integer> () {
+                    public Integer call () throws Exception {
+                        return load (shard);
+                    }
+                });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Integer> f : pool.invokeAll(workers)) {
+                try {
+                    f.get();
+                }
+                catch (ExecutionException ex) {
+                    Logger.error("TCRD worker failed!", ex.getCause());
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+        Logger.debug("#### "+processed.get()+"/"+targets.size()
+                     +" targets loaded in "+String.format
+                     ("%1$ds; ", (System.currentTimeMillis()-start)/1000)
+                     +intern);
+
+        Connection con = ds.getConnection();
+        try {
+            TcrdRegistry.PersistRegistration regis =
+                new TcrdRegistry.PersistRegistration
+                (con, ctx, Collections.<TcrdRegistry.TcrdTarget>emptyList(),
+                 intern);
+            EntityPersistAdapter.deferIndexing(deferred);
+            try {
+                regis.finish(false);
+            }
+            finally {
+                EntityPersistAdapter.resumeIndexing();
+                regis.shutdown();
+            }
+        }
+        finally {
+            con.close();
+        }
+
+        index ();
+        Logger.debug("#### TCRD load complete in "+String.format
+                     ("%1$ds", (System.currentTimeMillis()-start)/1000)
+                     +" on "+new java.util.Date());
+    }
+
+    int load (List<TcrdRegistry.TcrdTarget> shard) throws Exception {
+        Http.Context.current.set(ctx);
+        Connection con = ds.getConnection();
+        TcrdRegistry.PersistRegistration regis = null;
+        EntityPersistAdapter.deferIndexing(deferred);
+        try {
+            regis = new TcrdRegistry.PersistRegistration
+                (con, ctx, shard, intern);
+            regis.batchSize = batchSize;
+            for (int i = 0; i < shard.size(); i += chunkSize) {
+                List<TcrdRegistry.TcrdTarget> chunk = shard.subList
+                    (i, Math.min(i+chunkSize, shard.size()));
+                regis.prefetch(chunk);
+                for (TcrdRegistry.TcrdTarget t : chunk) {
+                    try {
+                        regis.persists(t);
+                    }
+                    catch (Exception ex) {
+                        Logger.error("Can't load target "+t.acc, ex);
+                    }
+                    processed.incrementAndGet();
+                }
+                regis.prefetch.clear();
+            }
+            Logger.debug(Thread.currentThread().getName()+": "
+                         +shard.size()+" targets; "+regis.prefetch);
+            return shard.size();
+        }
+        finally {
+            EntityPersistAdapter.resumeIndexing();
+            if (regis != null)
+                regis.shutdown();
+            con.close();
+            Http.Context.current.remove();
+        }
+    }
+
+    /**
+     * Index everything that was added or updated during the load
+     */
+    void index () throws Exception {
+        final TextIndexer indexer = TcrdRegistry.INDEXER;
+        ForkJoinPool pool = new ForkJoinPool
+            (Runtime.getRuntime().availableProcessors());
+        indexer.beginBulk(RAM_BUFFER_MB);
+        try {
+            for (Map.Entry<Class, Set<Object>> me : deferred.entrySet()) {
+                Class kind = me.getKey();
+                List<Object> ids = new ArrayList<Object>(me.getValue());
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < ids.size(); i += INDEX_BATCH) {
+                    List<Object> batch = Ebean.find(kind).where().idIn
+                        (ids.subList(i, Math.min(i+INDEX_BATCH, ids.size())))
+                        .findList();
+                    index (pool, indexer, batch);
+                }
+                Logger.debug("## "+ids.size()+" "+kind.getName()
+                             +" indexed in "+String.format
+                             ("%1$dms", System.currentTimeMillis()-start));
+            }
+        }
+        finally {
+            indexer.endBulk();
+            pool.shutdown();
+        }
+    }
+
+    static void index (ForkJoinPool pool, final TextIndexer indexer,
+                       List<Object> batch) throws Exception {
+        List<Callable<Document>> tasks = new ArrayList<Callable<Document>>();
+        for (final Object e : batch) {
+            tasks.add(new Callable<Document> () {
+                    public Document call () throws Exception {
+                        return indexer.createDoc(e);
+                    }
+                });
+        }
+
+        List<Object> entities = new ArrayList<Object>();
+        List<Document> docs = new ArrayList<Document>();
+        List<Future<Document>> futures = pool.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                Document doc = futures.get(i).get();
+                if (doc != null) {
+                    entities.add(batch.get(i));
+                    docs.add(doc);
+                }
+            }
+            catch (ExecutionException ex) {
+                Logger.error("Can't index "+batch.get(i), ex.getCause());
+            }
+        }
+        indexer.updateDocs(entities, docs);
+    }
+}
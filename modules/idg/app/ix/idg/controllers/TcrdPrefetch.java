@@ -0,0 +1,162 @@
+package ix.idg.controllers;
+
+import java.sql.*;
+import java.util.*;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+/**
+ * Child rows of a chunk of TCRD targets fetched with one set-based query
+ * per table instead of one query per target. The rows of each target
+ * are handed out as disconnected CachedRowSets so that the code parsing
+ * them doesn't have to care whether they were prefetched or come from
+ * the per-target statement.
+ */
+class TcrdPrefetch {
+    static class Table {
+        final String sql; // %s is the list of keys
+        final String key; // key column
+        final boolean byTarget; // keyed by target rather than protein id
+        final Set<Long> keys = new HashSet<Long>();
+        final Map<Long, CachedRowSet> rows =
+            new HashMap<Long, CachedRowSet>();
+        RowSetMetaDataImpl metadata;
+
+        Table (String sql, String key, boolean byTarget) {
+            this.sql = sql;
+            this.key = key;
+            this.byTarget = byTarget;
+        }
+    }
+
+    final Connection con;
+    final RowSetFactory factory;
+    final Map<PreparedStatement, Table> tables =
+        new HashMap<PreparedStatement, Table>();
+    long queries, rows;
+
+    TcrdPrefetch (Connection con) throws SQLException {
+        this.con = con;
+        factory = RowSetProvider.newFactory();
+    }
+
+    /**
+     * Prefetch the rows of table for the statement pstm, which has to be
+     * the equivalent single key query "select * from table where key = ?
+     * order by order"
+     */
+    void register (PreparedStatement pstm, String table, String key,
+                   String order, boolean byTarget) {
+        tables.put(pstm, new Table
+                   ("select * from "+table+" where "+key+" in (%s)"
+                    +(order != null ? " order by "+order : ""),
+                    key, byTarget));
+    }
+
+    void prefetch (Collection<Long> proteins, Collection<Long> targets)
+        throws SQLException {
+        for (Table t : tables.values()) {
+            t.keys.clear();
+            t.rows.clear();
+
+            Collection<Long> keys = t.byTarget ? targets : proteins;
+            if (keys.isEmpty())
+                continue;
+
+            StringBuilder in = new StringBuilder ();
+            for (Long k : keys) {
+                if (in.length() > 0) in.append(',');
+                in.append(k);
+            }
+
+            try (Statement stm = con.createStatement();
+                 ResultSet rset = stm.executeQuery
+                 (String.format(t.sql, in.toString()))) {
+                fill (t, rset);
+            }
+            t.keys.addAll(keys);
+            ++queries;
+        }
+    }
+
+    void fill (Table t, ResultSet rset) throws SQLException {
+        if (t.metadata == null)
+            t.metadata = metadata (rset.getMetaData());
+
+        int ncols = t.metadata.getColumnCount();
+        while (rset.next()) {
+            long key = rset.getLong(t.key);
+            CachedRowSet crs = t.rows.get(key);
+            if (crs == null)
+                t.rows.put(key, crs = create (t));
+
+            crs.moveToInsertRow();
+            for (int c = 1; c <= ncols; ++c) {
+                Object value = rset.getObject(c);
+                if (value instanceof Boolean) // e.g., tinyint(1)
+                    value = (Boolean)value ? 1 : 0;
+                
+                if (value == null)
+                    crs.updateNull(c);
+                else
+                    crs.updateObject(c, value);
+            }
+            crs.insertRow();
+            crs.moveToCurrentRow();
+            crs.last(); // otherwise rows are inserted in reverse
+            ++rows;
+        }
+
+        for (CachedRowSet crs : t.rows.values())
+            crs.beforeFirst();
+    }
+
+    static RowSetMetaDataImpl metadata (ResultSetMetaData rsmd)
+        throws SQLException {
+        RowSetMetaDataImpl md = new RowSetMetaDataImpl ();
+        md.setColumnCount(rsmd.getColumnCount());
+        for (int c = 1; c <= rsmd.getColumnCount(); ++c) {
+            // columns are looked up by name
+            md.setColumnName(c, rsmd.getColumnLabel(c));
+            md.setColumnLabel(c, rsmd.getColumnLabel(c));
+            md.setColumnType(c, rsmd.getColumnType(c));
+            md.setColumnTypeName(c, rsmd.getColumnTypeName(c));
+            md.setNullable(c, ResultSetMetaData.columnNullable);
+        }
+        return md;
+    }
+
+    CachedRowSet create (Table t) throws SQLException {
+        CachedRowSet crs = factory.createCachedRowSet();
+        crs.setMetaData(t.metadata != null
+                        ? t.metadata : new RowSetMetaDataImpl ());
+        return crs;
+    }
+
+    /**
+     * Rows of the given statement for the given key, or null if they
+     * haven't been prefetched; rows are handed out only once
+     */
+    ResultSet get (PreparedStatement pstm, long key) throws SQLException {
+        Table t = tables.get(pstm);
+        if (t == null || !t.keys.remove(key))
+            return null;
+
+        CachedRowSet crs = t.rows.remove(key);
+        return crs != null ? crs : create (t);
+    }
+
+    void clear () {
+        for (Table t : tables.values()) {
+            t.keys.clear();
+            t.rows.clear();
+        }
+    }
+
+    public String toString () {
+        return getClass().getSimpleName()+"{tables="+tables.size()
+            +",queries="+queries+",rows="+rows+"}";
+    }
+}
@@ -1,6 +1,8 @@
 package ix.idg.controllers;
 
+import com.avaje.ebean.Ebean;
 import com.avaje.ebean.Expr;
+import com.avaje.ebean.Transaction;
 import com.jolbox.bonecp.BoneCPDataSource;
 import ix.core.chem.StructureProcessor;
 import ix.core.controllers.KeywordFactory;
@@ -54,6 +56,11 @@ public class TcrdRegistry extends Controller implements Commons {
 
     static final DrugTargetOntology dto = new DrugTargetOntology();
 
+    // serialize the parts of concurrent target loads that register
+    // entities shared across targets
+    static final Object DISEASES = new Object ();
+    static final Object PREDICATES = new Object ();
+
     public static Namespace namespace;
     static public class LigandStructureReceiver implements StructureReceiver {
         final Ligand ligand;
@@ -171,13 +178,25 @@ public class TcrdRegistry extends Controller implements Commons {
         Map<String, Keyword> famKeywords = new HashMap<String, Keyword>();
         Map<String, Map<String, Keyword>> keywords =
             new HashMap<String, Map<String, Keyword>>();
+        // keywords and publications shared with the other loader workers
+        final TcrdLoader.Intern intern;
+        final TcrdPrefetch prefetch;
+        int batchSize = 100;
         
         PersistRegistration (Connection con, Http.Context ctx,
                              Collection<TcrdTarget> targets)
             throws SQLException {
+            this (con, ctx, targets, new TcrdLoader.Intern ());
+        }
+        
+        PersistRegistration (Connection con, Http.Context ctx,
+                             Collection<TcrdTarget> targets,
+                             TcrdLoader.Intern intern)
+            throws SQLException {
             this.con = con;
             this.ctx = ctx;
             this.targets = targets;
+            this.intern = intern;
 
             List<Keyword> keywords = KeywordFactory.finder
                 .where().eq("label", IDG_DEVELOPMENT).findList();
@@ -294,12 +313,66 @@ public class TcrdRegistry extends Controller implements Commons {
                 ("select * from feature where protein_id = ? ");
             pstm31 = con.prepareStatement
                 ("select * from locsig where protein_id = ?");
+
+            prefetch = new TcrdPrefetch (con);
+            prefetch.register(pstm4, "generif", "protein_id", null, false);
+            prefetch.register
+                (pstm5, "dto_classification", "protein_id", "id", false);
+            prefetch.register(pstm6, "tdl_info", "protein_id", null, false);
+            prefetch.register(pstm7, "phenotype", "protein_id", null, false);
+            prefetch.register(pstm8, "expression", "protein_id", null, false);
+            prefetch.register(pstm12, "xref", "protein_id", null, false);
+            prefetch.register
+                (pstm13, "patent_count", "protein_id", "year", false);
+            prefetch.register(pstm14, "protein", "id", null, false);
+            prefetch.register(pstm15, "alias", "protein_id", null, false);
+            prefetch.register
+                (pstm16, "chembl_activity", "target_id", null, true);
+            prefetch.register
+                (pstm17, "drug_activity", "target_id", null, true);
+            prefetch.register(pstm19, "`grant`", "target_id", null, true);
+            prefetch.register(pstm20, "disease", "target_id", null, true);
+            prefetch.register
+                (pstm21, "mlp_assay_info", "protein_id", "aid", false);
+            prefetch.register(pstm25, "pmscore", "protein_id", "year", false);
+            prefetch.register
+                (pstm27, "compartment", "protein_id", null, false);
+            prefetch.register(pstm29, "ptscore", "protein_id", null, false);
+            prefetch.register(pstm30, "feature", "protein_id", null, false);
+            prefetch.register(pstm31, "locsig", "protein_id", null, false);
+        }
+
+        /**
+         * Fetch the rows of the single key statements for the given
+         * targets with one query per table
+         */
+        void prefetch (Collection<TcrdTarget> chunk) throws SQLException {
+            Set<Long> proteins = new HashSet<Long>();
+            Set<Long> ids = new HashSet<Long>();
+            for (TcrdTarget t : chunk) {
+                proteins.add(t.protein);
+                ids.add(t.id);
+            }
+            prefetch.prefetch(proteins, ids);
+        }
+
+        /**
+         * Rows of the given single key statement, prefetched if possible
+         */
+        ResultSet query (PreparedStatement pstm, long key)
+            throws SQLException {
+            ResultSet rset = prefetch.get(pstm, key);
+            if (rset == null) {
+                pstm.setLong(1, key);
+                rset = pstm.executeQuery();
+            }
+            return rset;
         }
 
         Keyword getTdlKw (Target.TDL tdl) {
             Keyword kw = tdlKeywords.get(tdl);
             if (kw == null) {
-                kw = KeywordFactory.registerIfAbsent(IDG_DEVELOPMENT, tdl.name, null);
+                kw = getKeyword(IDG_DEVELOPMENT, tdl.name, null);
                 tdlKeywords.put(tdl, kw);
             }
             return kw;
@@ -308,7 +381,7 @@ public class TcrdRegistry extends Controller implements Commons {
         Keyword getFamKw (String fam) {
             Keyword kw = famKeywords.get(fam);
             if (kw == null) {
-                kw = KeywordFactory.registerIfAbsent(IDG_FAMILY, fam, null);
+                kw = getKeyword(IDG_FAMILY, fam, null);
                 famKeywords.put(fam, kw);
             }
             return kw;
@@ -327,11 +400,11 @@ public class TcrdRegistry extends Controller implements Commons {
             
             Keyword kw = keys.get(value);
             if (kw == null) {
-                keys.put(value, kw = KeywordFactory.registerIfAbsent
+                keys.put(value, kw = getKeyword
                          (label, value, href));
             }
             */
-            return KeywordFactory.registerIfAbsent(label, value, href);
+            return intern.keyword(label, value, href);
         }
 
         public void persists () throws Exception {
@@ -339,13 +412,26 @@ public class TcrdRegistry extends Controller implements Commons {
             for (TcrdTarget t : targets) {
                 persists (t);
             }
-            
-            for (Ligand l : LigandFactory.finder.all()) {
-                try {
-                    INDEXER.update(l);
-                }
-                catch (Exception ex) {
-                    ex.printStackTrace();
+            finish (true);
+            Logger.debug("\n#### PERSISTENCE STARTED ON "+start+" ####"
+                         +"\n#### AND COMPLETE AT "
+                         +new java.util.Date()+"! #####");
+        }
+
+        /**
+         * Link diseases to their drugs once all targets are loaded;
+         * ligands and diseases are (re)indexed here unless the caller
+         * indexes them itself
+         */
+        void finish (boolean index) {
+            if (index) {
+                for (Ligand l : LigandFactory.finder.all()) {
+                    try {
+                        INDEXER.update(l);
+                    }
+                    catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
                 }
             }
 
@@ -369,15 +455,13 @@ public class TcrdRegistry extends Controller implements Commons {
                         }
                     }
                     //d.update();             
-                    INDEXER.update(d);              
+                    if (index)
+                        INDEXER.update(d);              
                 }
                 catch (Exception ex) {
                     ex.printStackTrace();
                 }
             }
-            Logger.debug("\n#### PERSISTENCE STARTED ON "+start+" ####"
-                         +"\n#### AND COMPLETE AT "
-                         +new java.util.Date()+"! #####");
         }
 
         public void shutdown () throws SQLException {
@@ -427,8 +511,7 @@ public class TcrdRegistry extends Controller implements Commons {
             String value;
             
             xrefs.clear();
-            pstm12.setLong(1, t.protein);
-            ResultSet rset = pstm12.executeQuery();
+            ResultSet rset = query (pstm12, t.protein);
             Map<String, Integer> counts = new TreeMap<String, Integer>();
             while (rset.next()) {
                 String xtype = rset.getString("xtype");
@@ -444,7 +527,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 if ("uniprot keyword".equalsIgnoreCase(xtype)) {
                     String term = rset.getString("xtra");
                     if (term != null) {
-                        Keyword kw = KeywordFactory.registerIfAbsent
+                        Keyword kw = getKeyword
                             (UNIPROT_KEYWORD, term/*.replaceAll("/","-")*/,
                              "http://www.uniprot.org/keywords/"+value);
 
@@ -452,7 +535,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     }
                 }
                 else if ("pdb".equalsIgnoreCase(xtype)) {
-                    Keyword kw = KeywordFactory.registerIfAbsent
+                    Keyword kw = getKeyword
                         (PDB_ID, value,
                          "http://www.rcsb.org/pdb/explore/explore.do?structureId="
                          +value);
@@ -479,25 +562,25 @@ public class TcrdRegistry extends Controller implements Commons {
             }
             rset.close();
 
-            Keyword source =  KeywordFactory.registerIfAbsent
+            Keyword source =  getKeyword
                 (SOURCE, "UniProt", "http://www.uniprot.org");
             datasources.put("UniProt", source);
 
             if (t.idg2) {
                 Keyword collection = null;
                 if ("gpcr".equalsIgnoreCase(t.family)) {
-                    collection = KeywordFactory.registerIfAbsent
+                    collection = getKeyword
                         (COLLECTION, "Eligible non-olfactory GPCR Proteins",
                          // abuse url with the description.. 
                          "The non-olfactory GPCRs that constitute the initial list of candidate protein targets eligible to be studied in the Implementation Phase of the Common Fund IDG program as per RFA-RM-16-026");
                 }
                 else if ("kinase".equalsIgnoreCase(t.family)) {
-                    collection = KeywordFactory.registerIfAbsent
+                    collection = getKeyword
                         (COLLECTION, "Eligible Kinase Proteins",
                          "The Kinases that constitute the initial list of candidate protein targets eligible to be studied in the Implementation Phase of the Common Fund IDG program as per RFA-RM-16-026");
                 }
                 else if ("ion channel".equalsIgnoreCase(t.family)) {
-                    collection = KeywordFactory.registerIfAbsent
+                    collection = getKeyword
                         (COLLECTION, "Eligible Ion Channel Proteins",
                          "The ion channel proteins that constitute the initial list of candidate protein targets eligible to be studied in the Implementation Phase of the Common Fund IDG program as per RFA-RM-16-026");
                 }
@@ -507,8 +590,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 }
             }
 
-            pstm14.setLong(1, t.protein);
-            rset = pstm14.executeQuery();
+            rset = query (pstm14, t.protein);
             while (rset.next()) {
                 target.name = rset.getString("description");
                 value = rset.getString("uniprot");
@@ -561,8 +643,7 @@ public class TcrdRegistry extends Controller implements Commons {
             }
             rset.close();
 
-            pstm15.setLong(1, t.protein);
-            rset = pstm15.executeQuery();
+            rset = query (pstm15, t.protein);
             while (rset.next()) {
                 String type = rset.getString("type");
                 value = rset.getString("value");
@@ -588,8 +669,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
                          
         void addPatent (Target target, long protein) throws Exception {
-            pstm13.setLong(1, protein);
-            ResultSet rset = pstm13.executeQuery();
+            ResultSet rset = query (pstm13, protein);
             Timeline timeline = null;
             int np = 0;
             while (rset.next()) {
@@ -615,8 +695,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addPubTator (Target target, long protein) throws Exception {
-            pstm29.setLong(1, protein);
-            ResultSet rset = pstm29.executeQuery();
+            ResultSet rset = query (pstm29, protein);
             try {
                 Timeline timeline = null;
                 int count = 0;
@@ -646,8 +725,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addPMScore (Target target, long protein) throws Exception {
-            pstm25.setLong(1, protein);
-            ResultSet rset = pstm25.executeQuery();
+            ResultSet rset = query (pstm25, protein);
             Timeline timeline = null;
             while (rset.next()) {
                 long year = rset.getLong("year");
@@ -670,8 +748,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addAssay (Target target, long protein) throws Exception {
-            pstm21.setLong(1, protein);
-            ResultSet rset = pstm21.executeQuery();
+            ResultSet rset = query (pstm21, protein);
             int count = 0;
             while (rset.next()) {
                 Assay assay = new Assay (rset.getString("assay_name"));
@@ -693,7 +770,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 tref.addIfAbsent((Value)getFamKw (target.idgFamily));
                 
                 XRef aref = target.addIfAbsent(new XRef (assay));
-                aref.addIfAbsent((Value)KeywordFactory.registerIfAbsent
+                aref.addIfAbsent((Value)getKeyword
                                  (MLP_ASSAY_TYPE, assay.type, null));
                 // 
                 aref.properties.add(new Text (MLP_ASSAY, assay.name));
@@ -714,8 +791,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addGrant (Target target, long tid) throws Exception {
-            pstm19.setLong(1, tid);
-            ResultSet rset = pstm19.executeQuery();
+            ResultSet rset = query (pstm19, tid);
             Set<String> fundingICs = new HashSet<String>();
             Map<String, Integer> activity = new HashMap<String, Integer>();
             int count = 0;
@@ -750,14 +826,14 @@ public class TcrdRegistry extends Controller implements Commons {
             rset.close();
 
             for (String a : activity.keySet()) {
-                Keyword kw = KeywordFactory.registerIfAbsent
+                Keyword kw = getKeyword
                     (GRANT_ACTIVITY, a, null);
                 target.properties.add(kw);
             }
             target.r01Count = activity.get("R01");
 
             for (String ic : fundingICs) {
-                Keyword kw = KeywordFactory.registerIfAbsent
+                Keyword kw = getKeyword
                     (GRANT_FUNDING_IC, ic, null);
                 target.properties.add(kw);
             }
@@ -782,7 +858,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     name = name.substring(0, 246)+"..."
                         +name.substring(name.length()-6);
                 }
-                Keyword term = KeywordFactory.registerIfAbsent
+                Keyword term = getKeyword
                     (source+" Pathway", name, rset.getString("url"));
                 target.addIfAbsent((Value)term);
                 /*
@@ -794,7 +870,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     List<String> refs = xrefs.get("Reactome");
                     if (refs != null) {
                         String id = refs.iterator().next();
-                        Keyword kw = KeywordFactory.registerIfAbsent
+                        Keyword kw = getKeyword
                             (REACTOME_REF, id,
                              "http://www.reactome.org/content/query?cluster=true&q="+id);
                         target.addIfAbsent((Value)kw);
@@ -852,17 +928,17 @@ public class TcrdRegistry extends Controller implements Commons {
                 
                 switch (kind) {
                 case 'C': // component
-                    go = KeywordFactory.registerIfAbsent
+                    go = getKeyword
                         (GO_COMPONENT, term, href);
                     break;
                     
                 case 'F': // function
-                    go = KeywordFactory.registerIfAbsent
+                    go = getKeyword
                         (GO_FUNCTION, term, href);
                     break;
                     
                 case 'P': // process
-                    go = KeywordFactory.registerIfAbsent
+                    go = getKeyword
                         (GO_PROCESS, term, href);
                     break;
                     
@@ -882,8 +958,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
         
         void addExpression (Target target, long protein) throws Exception {
-            pstm8.setLong(1, protein);
-            ResultSet rset = pstm8.executeQuery();
+            ResultSet rset = query (pstm8, protein);
             Map<String, Integer> counts = new TreeMap<String, Integer>();
             Map<String, Keyword> sources = new HashMap<String, Keyword>();
             while (rset.next()) {
@@ -907,14 +982,14 @@ public class TcrdRegistry extends Controller implements Commons {
                 if (expr.source.startsWith("GTEx")) {
                     sourceUrl = "http://www.gtexportal.org/";
                     expr.sourceid = GTEx_EXPR;
-                    tissue = KeywordFactory.registerIfAbsent
+                    tissue = getKeyword
                         (GTEx_TISSUE, expr.tissue, null);
                     target.addIfAbsent((Value)tissue);
                 }
                 else if (expr.source.startsWith("Consensus")) {
                     sourceUrl = "http://targetcentral.ws";
                     expr.sourceid = IDG_EXPR;
-                    tissue = KeywordFactory.registerIfAbsent
+                    tissue = getKeyword
                             (IDG_TISSUE, expr.tissue, null);
                     target.addIfAbsent((Value)tissue);
                 }
@@ -923,7 +998,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 else if (expr.source.startsWith("HPM Protein")) {
                     sourceUrl = "http://www.humanproteomemap.org";
                     expr.sourceid = HPM_EXPR;
-                    tissue = KeywordFactory.registerIfAbsent
+                    tissue = getKeyword
                         (HPM_TISSUE, expr.tissue, null);
                     target.addIfAbsent((Value)tissue);
                 }
@@ -940,12 +1015,12 @@ public class TcrdRegistry extends Controller implements Commons {
                            ("JensenLab Knowledge UniProtKB-RC")) {
                     sourceUrl = "http://tissues.jensenlab.org";
                     expr.sourceid = JENSEN_KB_EXPR;
-                    tissue = KeywordFactory.registerIfAbsent
+                    tissue = getKeyword
                         (JENSEN_KB_TISSUE, expr.tissue, null);
                     target.addIfAbsent((Value)tissue);
                 }
                 else if (expr.source.equals("UniProt Tissue")) {
-                    tissue = KeywordFactory.registerIfAbsent
+                    tissue = getKeyword
                         (expr.source, expr.tissue, null);
                     expr.sourceid = UNIPROT_EXPR;
                     target.addIfAbsent((Value)tissue);              
@@ -953,14 +1028,14 @@ public class TcrdRegistry extends Controller implements Commons {
                 else if (expr.source.startsWith("HPA")) {
                     sourceUrl = "http://tissues.jensenlab.org";
                     expr.sourceid = expr.source+" Expression";
-                    tissue = KeywordFactory.registerIfAbsent
+                    tissue = getKeyword
                         (expr.source+" Tissue", expr.tissue, null);
                     target.addIfAbsent((Value)tissue);
 
                     String toks[] = expr.tissue.split("-");
                     if (toks.length == 2) {
                         expr.cellType = toks[1].trim();
-                        Keyword cellType = KeywordFactory.registerIfAbsent(expr.source+" Cell Type",
+                        Keyword cellType = getKeyword(expr.source+" Cell Type",
                                 expr.cellType, null);
                         target.addIfAbsent((Value)cellType);
                     }
@@ -989,7 +1064,7 @@ public class TcrdRegistry extends Controller implements Commons {
 
                 Keyword source = datasources.get(expr.source);
                 if (source == null) {
-                    source = KeywordFactory.registerIfAbsent
+                    source = getKeyword
                             (SOURCE, expr.source, sourceUrl);
                     datasources.put(expr.source, source);
                 }
@@ -1021,7 +1096,7 @@ public class TcrdRegistry extends Controller implements Commons {
             int pos = tokens[0].indexOf(':');
             if (pos > 0) {
                 String mim = tokens[0].substring(pos+1).trim();
-                Keyword kw = KeywordFactory.registerIfAbsent
+                Keyword kw = getKeyword
                     (OMIM_GENE, "MIM:"+mim,"http://omim.org/entry/"+mim);
                 target.addIfAbsent(kw);
             }
@@ -1060,7 +1135,7 @@ public class TcrdRegistry extends Controller implements Commons {
                                 ("OMIM: "+disorder+" ["+id+"] ("+key+")");
                             if (key.charAt(0) == '3') {
                                 //disorder = disorder.replaceAll("/", "-");
-                                Keyword kw = KeywordFactory.registerIfAbsent
+                                Keyword kw = getKeyword
                                     (OMIM_TERM, disorder,
                                      "http://omim.org/entry/"+id);
                                 target.addIfAbsent((Value)kw);
@@ -1072,8 +1147,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
         
         void addPhenotype (Target target, long protein) throws Exception {
-            pstm7.setLong(1, protein);
-            ResultSet rset = pstm7.executeQuery();
+            ResultSet rset = query (pstm7, protein);
             Set<Keyword> terms = new HashSet<>();
             Map<String, Keyword> sources = new TreeMap<String, Keyword>();
             int phenoCount = 0;
@@ -1082,7 +1156,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 if ("impc".equalsIgnoreCase(type)) {
                     Keyword source = datasources.get(type);
                     if (source == null) {
-                        source = KeywordFactory.registerIfAbsent
+                        source = getKeyword
                             (SOURCE, type,
                              "http://www.mousephenotype.org/data/secondaryproject/idg");
                         datasources.put(type, source);
@@ -1091,7 +1165,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     String term = rset.getString("term_name");
                     String termId = rset.getString("term_id");
                     if (term != null) {
-                        Keyword kw = KeywordFactory.registerIfAbsent
+                        Keyword kw = getKeyword
                             (IMPC_TERM, term/*.replaceAll("/","-")*/,
                              "http://www.informatics.jax.org/searches/Phat.cgi?id=" + termId);
                         terms.add(kw);
@@ -1100,7 +1174,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 else if ("gwas catalog".equalsIgnoreCase(type)) {
                     Keyword source = datasources.get(type);
                     if (source == null) {
-                        source = KeywordFactory.registerIfAbsent
+                        source = getKeyword
                             (SOURCE, type,
                              "https://www.genome.gov/26525384");
                         datasources.put(type, source);
@@ -1109,7 +1183,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     if (trait != null) {
                         sources.put(type, source);                      
                         //trait = trait.replaceAll("/", "-");
-                        Keyword gwas = KeywordFactory.registerIfAbsent
+                        Keyword gwas = getKeyword
                                 (GWAS_TRAIT, trait, null);
                         XRef ref = target.addIfAbsent(new XRef (gwas));
                         ref.addIfAbsent(source);
@@ -1122,7 +1196,7 @@ public class TcrdRegistry extends Controller implements Commons {
                                 PublicationFactory.registerIfAbsent(pmid);
                             if (pub != null) {
                                 XRef ref = target.getLink(pub);
-                                Keyword t = KeywordFactory.registerIfAbsent
+                                Keyword t = getKeyword
                                     (GWAS_TRAIT, trait, null);
                                 if (ref == null) {
                                     ref = new XRef (pub);
@@ -1159,7 +1233,7 @@ public class TcrdRegistry extends Controller implements Commons {
                          .equalsIgnoreCase(type)) {
                     Keyword source = datasources.get(type);             
                     if (source == null) {
-                        source = KeywordFactory.registerIfAbsent
+                        source = getKeyword
                             (SOURCE, type,
                              "http://www.informatics.jax.org/");
                         datasources.put(type, source);
@@ -1169,7 +1243,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     if (pheno != null) {
                         //pheno = pheno.replaceAll("/", "-");
                         sources.put(type, source);
-                        Keyword kw = KeywordFactory.registerIfAbsent
+                        Keyword kw = getKeyword
                             (MGI_TERM, pheno,
                              "http://www.informatics.jax.org/searches/Phat.cgi?id="+termId);
                         target.addIfAbsent((Value)kw);
@@ -1179,7 +1253,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 else if ("OMIM".equalsIgnoreCase(type)) {
                     Keyword source = datasources.get(type);             
                     if (source == null) {
-                        source = KeywordFactory.registerIfAbsent
+                        source = getKeyword
                             (SOURCE, type, "http://omim.org/");
                         datasources.put(type, source);
                     }
@@ -1208,17 +1282,16 @@ public class TcrdRegistry extends Controller implements Commons {
             }
 
             if (!terms.isEmpty() || phenoCount > 0) {
-                Keyword pheno = KeywordFactory.registerIfAbsent
+                Keyword pheno = getKeyword
                     (IDG_TOOLS, IDG_TOOLS_PHENOTYPES, null);
                 target.addIfAbsent((Value)pheno);
             }
         }
         
         void addTDL (Target target, long protein) throws Exception {
-            pstm6.setLong(1, protein);
-            ResultSet rset = pstm6.executeQuery();
+            ResultSet rset = query (pstm6, protein);
             int selective = 0;
-            Keyword mice = KeywordFactory.registerIfAbsent
+            Keyword mice = getKeyword
                 ("IMPC Mice Produced", "YES", null);
             Map<String, Integer> counts = new TreeMap<String, Integer>();
             while (rset.next()) {
@@ -1249,7 +1322,7 @@ public class TcrdRegistry extends Controller implements Commons {
                         else if (field.equals("boolean_value")) {
                             int b = rset.getInt(field);
                             if (!rset.wasNull() && b != 0) {
-                                val = KeywordFactory.registerIfAbsent
+                                val = getKeyword
                                     (type, "YES", null);
                             }
                         }
@@ -1312,7 +1385,7 @@ public class TcrdRegistry extends Controller implements Commons {
             rset.close();
 
             if (selective > 0) {
-                Keyword kw = KeywordFactory.registerIfAbsent
+                Keyword kw = getKeyword
                     (IDG_TOOLS, IDG_TOOLS_SELECTIVE_COMPOUNDS, null);
                 target.properties.add(kw);
             }
@@ -1320,7 +1393,7 @@ public class TcrdRegistry extends Controller implements Commons {
             if ((target.antibodyCount != null && target.antibodyCount > 0)
                 || (target.monoclonalCount != null
                     && target.monoclonalCount > 0)) {
-                Keyword kw = KeywordFactory.registerIfAbsent
+                Keyword kw = getKeyword
                     (IDG_TOOLS, IDG_TOOLS_ANTIBODIES, null);
                 target.properties.add(kw);
             }
@@ -1361,7 +1434,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     // ignore this lineage!
                 }
                 else {
-                    Keyword kw = KeywordFactory.registerIfAbsent
+                    Keyword kw = getKeyword
                         (PANTHER_PROTEIN_CLASS + " ("+d+")",
                          me.getValue(), "http://pantherdb.org/panther/category.do?categoryAcc="+me.getKey());
                     target.properties.add(kw);
@@ -1433,7 +1506,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 }
                 
                 for (DTOParser.Node n : nodes) {
-                    Keyword kw = KeywordFactory.registerIfAbsent
+                    Keyword kw = getKeyword
                         (DTO_PROTEIN_CLASS+" ("+path.size()+")",
                          n.name/*.replaceAll("/", "-")*/,
                          // not a real url.. 
@@ -1452,13 +1525,12 @@ public class TcrdRegistry extends Controller implements Commons {
                 }
             }
             else if (false) { // this is the older version
-                Keyword kw = KeywordFactory.registerIfAbsent
+                Keyword kw = getKeyword
                     (DTO_PROTEIN_CLASS + " (0)", target.idgFamily, null);
                 target.properties.add(kw);
                 path.add(kw);
                 
-                pstm5.setLong(1, protein);
-                ResultSet rset = pstm5.executeQuery();
+                ResultSet rset = query (pstm5, protein);
                 while (rset.next()) {
                     String label = rset.getString("name").trim();
                     if (target.idgFamily.equals("GPCR")) {
@@ -1483,7 +1555,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     //value = value.replaceAll("/", "-");
                     Logger.debug("  name=\""+label+"\" value="+value);
                     
-                    kw = KeywordFactory.registerIfAbsent
+                    kw = getKeyword
                         (DTO_PROTEIN_CLASS+" ("+path.size()+")", value, null);
                     target.properties.add(kw);
                     path.add(kw);
@@ -1525,170 +1597,177 @@ public class TcrdRegistry extends Controller implements Commons {
 
         void addDrugs (Target target, long tid, Keyword tcrd)
             throws Exception {
-            pstm17.setLong(1, tid);
-            ResultSet rset = pstm17.executeQuery();
+            ResultSet rset = query (pstm17, tid);
             int count = 0;
             while (rset.next()) {
                 String chemblId = rset.getString("cmpd_chemblid");
                 String drug = rset.getString("drug");
+                // drugs without a ChEMBL id are interned by name
+                String key = chemblId != null ? chemblId : drug;
 
-                List<Ligand> ligands = LigandFactory.finder.where()
-                    .in("synonyms.term", drug, chemblId).findList();
+                synchronized (intern.ligandLock(key)) {
+                    Ligand ligand = intern.ligand(key);
+                    List<Ligand> ligands = ligand != null
+                        ? Collections.<Ligand>emptyList()
+                        : LigandFactory.finder.where()
+                        .in("synonyms.term", drug, chemblId).findList();
 
-                Ligand ligand = null;
-                if (ligands.isEmpty()) {
-                }
-                else {
-                    Set<Long> uniq = new HashSet<>();
-                    for (Ligand lig : ligands) {
-                        uniq.add(lig.id);
-                        if (drug.equalsIgnoreCase(lig.name))
-                            ligand = lig;
+                    if (ligands.isEmpty()) {
                     }
+                    else {
+                        Set<Long> uniq = new HashSet<>();
+                        for (Ligand lig : ligands) {
+                            uniq.add(lig.id);
+                            if (drug.equalsIgnoreCase(lig.name))
+                                ligand = lig;
+                        }
                     
-                    if (uniq.size() > 1) {
-                        Logger.warn("Drug \""+drug+"\" and ligand \""+chemblId
-                                    +"\" are different instances: "+uniq);
+                        if (uniq.size() > 1) {
+                            Logger.warn("Drug \""+drug+"\" and ligand \""+chemblId
+                                        +"\" are different instances: "+uniq);
+                        }
+                        if (ligand == null)
+                            ligand = ligands.get(0); // just get one
                     }
-                    if (ligand == null)
-                        ligand = ligands.get(0); // just get one
-                }
 
-                if (ligand == null) {
-                    // new ligand
-                    String smiles = rset.getString("smiles");
-                    String ref = rset.getString("reference");
-                    String source = rset.getString("source");
+                    if (ligand == null) {
+                        // new ligand
+                        String smiles = rset.getString("smiles");
+                        String ref = rset.getString("reference");
+                        String source = rset.getString("source");
                     
-                    ligand = new Ligand (drug);
-                    ligand.addIfAbsent(KeywordFactory.registerIfAbsent
-                                       (IDG_DRUG, drug, ref));
-                    ligand.properties.add(tcrd);
-                    if (source != null) {
-                        if (chemblId == null) {
-                            Keyword ds = datasources.get(source);
-                            if (ds == null) {
-                                ds = KeywordFactory.registerIfAbsent
-                                    (SOURCE, source, source.equalsIgnoreCase
-                                     (ChEMBL) ? "https://www.ebi.ac.uk/chembl"
-                                     : null);
-                                datasources.put(source, ds);
+                        ligand = new Ligand (drug);
+                        ligand.addIfAbsent(getKeyword
+                                           (IDG_DRUG, drug, ref));
+                        ligand.properties.add(tcrd);
+                        if (source != null) {
+                            if (chemblId == null) {
+                                Keyword ds = datasources.get(source);
+                                if (ds == null) {
+                                    ds = getKeyword
+                                        (SOURCE, source, source.equalsIgnoreCase
+                                         (ChEMBL) ? "https://www.ebi.ac.uk/chembl"
+                                         : null);
+                                    datasources.put(source, ds);
+                                }
+                                // property
+                                ligand.addIfAbsent((Value)ds);
                             }
-                            // property
-                            ligand.addIfAbsent((Value)ds);
-                        }
 
-                        // add as property
-                        Keyword kw = new Keyword (LIGAND_SOURCE, source);
-                        kw.href = ref;
-                        ligand.properties.add(kw);
-                    }
+                            // add as property
+                            Keyword kw = new Keyword (LIGAND_SOURCE, source);
+                            kw.href = ref;
+                            ligand.properties.add(kw);
+                        }
 
-                    ligand.description = rset.getString("nlm_drug_info");
-                    if (smiles != null) {
-                        ligand.properties.add
-                            (new Text (ChEMBL_SMILES, smiles));
-                        Structure struc = StructureProcessor.instrument
-                            (smiles, null, false);
-                        struc.save();
-                        XRef xref = new XRef (struc);
-                        ligand.links.add(xref);
-                        MOLIDX.add(null, struc.id.toString(), struc.molfile);
-                    }
+                        ligand.description = rset.getString("nlm_drug_info");
+                        if (smiles != null) {
+                            ligand.properties.add
+                                (new Text (ChEMBL_SMILES, smiles));
+                            Structure struc = StructureProcessor.instrument
+                                (smiles, null, false);
+                            struc.save();
+                            XRef xref = new XRef (struc);
+                            ligand.links.add(xref);
+                            MOLIDX.add(null, struc.id.toString(), struc.molfile);
+                        }
 
-                    pstm23.setString(1, drug);
-                    ResultSet rs = pstm23.executeQuery();
-                    while (rs.next()) {
-                        String syn = rs.getString(1);
-                        if (syn != null) {
-                            if (syn.startsWith("CHEMBL")) {
-                                ligand.addIfAbsent
-                                    (KeywordFactory.registerIfAbsent
-                                     (ChEMBL_ID, syn,
-                                      "https://www.ebi.ac.uk/chembl/compound/inspect/" +syn));
-                            }
-                            else {
-                                ligand.addIfAbsent
-                                    (KeywordFactory.registerIfAbsent
-                                     (ChEMBL_SYNONYM, syn, null));
+                        pstm23.setString(1, drug);
+                        ResultSet rs = pstm23.executeQuery();
+                        while (rs.next()) {
+                            String syn = rs.getString(1);
+                            if (syn != null) {
+                                if (syn.startsWith("CHEMBL")) {
+                                    ligand.addIfAbsent
+                                        (getKeyword
+                                         (ChEMBL_ID, syn,
+                                          "https://www.ebi.ac.uk/chembl/compound/inspect/" +syn));
+                                }
+                                else {
+                                    ligand.addIfAbsent
+                                        (getKeyword
+                                         (ChEMBL_SYNONYM, syn, null));
+                                }
                             }
                         }
-                    }
-                    rs.close();
+                        rs.close();
                     
-                    ligand.save();
+                        ligand.save();
                     
-                    Logger.debug("New ligand "+ligand.id+" "
-                                 +ligand.getName()+" added!");
-                }
-                else if (ligand.name.startsWith("CHEMBL")) {
-                    ligand.description = rset.getString("nlm_drug_info");
-                    ligand.name = drug;
-                    ligand.addIfAbsent
-                        (KeywordFactory.registerIfAbsent
-                         (IDG_DRUG, drug, rset.getString("reference")));
-                }
+                        Logger.debug("New ligand "+ligand.id+" "
+                                     +ligand.getName()+" added!");
+                    }
+                    else if (ligand.name.startsWith("CHEMBL")) {
+                        ligand.description = rset.getString("nlm_drug_info");
+                        ligand.name = drug;
+                        ligand.addIfAbsent
+                            (getKeyword
+                             (IDG_DRUG, drug, rset.getString("reference")));
+                    }
+                    intern.register(key, ligand);
 
-                ligand.addIfAbsent((Value)KeywordFactory.registerIfAbsent
-                                   (LIGAND_DRUG, "YES", null));
+                    ligand.addIfAbsent((Value)getKeyword
+                                       (LIGAND_DRUG, "YES", null));
                 
-                if (chemblId != null) {
-                    Keyword kw = KeywordFactory.registerIfAbsent
-                        (ChEMBL_ID, chemblId,
-                         "https://www.ebi.ac.uk/chembl/compound/inspect/"
-                         +chemblId);
-                    ligand.addIfAbsent(kw);
+                    if (chemblId != null) {
+                        Keyword kw = getKeyword
+                            (ChEMBL_ID, chemblId,
+                             "https://www.ebi.ac.uk/chembl/compound/inspect/"
+                             +chemblId);
+                        ligand.addIfAbsent(kw);
 
-                    Keyword ds = datasources.get(ChEMBL);
-                    if (ds == null) {
-                        ds = KeywordFactory.registerIfAbsent
-                            (SOURCE, ChEMBL, "https://www.ebi.ac.uk/chembl");
-                        datasources.put(ChEMBL, ds);
+                        Keyword ds = datasources.get(ChEMBL);
+                        if (ds == null) {
+                            ds = getKeyword
+                                (SOURCE, ChEMBL, "https://www.ebi.ac.uk/chembl");
+                            datasources.put(ChEMBL, ds);
+                        }
+                        ligand.addIfAbsent((Value)ds);
                     }
-                    ligand.addIfAbsent((Value)ds);
-                }
 
-                XRef tref = ligand.addIfAbsent(new XRef (target));
-                tref.addIfAbsent((Value)getTdlKw (target.idgTDL));
-                tref.addIfAbsent((Value)getFamKw (target.idgFamily));
-                Keyword acc = target.getSynonym(UNIPROT_GENE);
-                if (acc != null)
-                    tref.addIfAbsent((Value)getKeyword
-                                     (IDG_TARGET, acc.term, acc.href));
+                    XRef tref = ligand.addIfAbsent(new XRef (target));
+                    tref.addIfAbsent((Value)getTdlKw (target.idgTDL));
+                    tref.addIfAbsent((Value)getFamKw (target.idgFamily));
+                    Keyword acc = target.getSynonym(UNIPROT_GENE);
+                    if (acc != null)
+                        tref.addIfAbsent((Value)getKeyword
+                                         (IDG_TARGET, acc.term, acc.href));
                 
-                XRef lref = target.addIfAbsent(new XRef (ligand));
-                lref.addIfAbsent((Value)getKeyword
-                                 (IDG_LIGAND, ligand.getName()));
-
-                String actType = rset.getString("act_type");
-                if (actType != null) {
-                    double act = rset.getDouble("act_value");
-                    VNum val = new VNum (actType, act);
-                    tref.properties.add(val);
-                    lref.properties.add(val);
-                }
-
-                String action = rset.getString("action_type");
-                if (action != null) {
-                    String source = rset.getString("source");
-                    Keyword kw = new Keyword (PHARMALOGICAL_ACTION, action);
-                    kw.href = rset.getString("reference");
-                    kw.save();
+                    XRef lref = target.addIfAbsent(new XRef (ligand));
+                    lref.addIfAbsent((Value)getKeyword
+                                     (IDG_LIGAND, ligand.getName()));
+
+                    String actType = rset.getString("act_type");
+                    if (actType != null) {
+                        double act = rset.getDouble("act_value");
+                        VNum val = new VNum (actType, act);
+                        tref.properties.add(val);
+                        lref.properties.add(val);
+                    }
+
+                    String action = rset.getString("action_type");
+                    if (action != null) {
+                        String source = rset.getString("source");
+                        Keyword kw = new Keyword (PHARMALOGICAL_ACTION, action);
+                        kw.href = rset.getString("reference");
+                        kw.save();
                     
-                    tref.addIfAbsent((Value)kw);
-                    lref.addIfAbsent((Value)kw);
-                }
+                        tref.addIfAbsent((Value)kw);
+                        lref.addIfAbsent((Value)kw);
+                    }
 
-                try {
-                    tref.save();
-                    lref.save();
-                    ligand.update();
-                    //target.update();
-                }
-                catch (Exception ex) {
-                    ex.printStackTrace();
+                    try {
+                        tref.save();
+                        lref.save();
+                        ligand.update();
+                        //target.update();
+                    }
+                    catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
                 }
 
+
                 ++count;
             }
             rset.close();
@@ -1718,13 +1797,12 @@ public class TcrdRegistry extends Controller implements Commons {
             throws Exception {
             Keyword source = datasources.get(ChEMBL);
             if (source == null) {
-                source = KeywordFactory.registerIfAbsent
+                source = getKeyword
                     (SOURCE, ChEMBL, "https://www.ebi.ac.uk/chembl");
                 datasources.put(ChEMBL, source);
             }
             
-            pstm16.setLong(1, tid);
-            ResultSet rset = pstm16.executeQuery();
+            ResultSet rset = query (pstm16, tid);
             int count = 0;
             Set<String> seen = new HashSet<String>();
             long start = System.currentTimeMillis();        
@@ -1736,143 +1814,149 @@ public class TcrdRegistry extends Controller implements Commons {
                 seen.add(chemblId);
                 String syn = rset.getString("cmpd_name_in_ref");
                 
-                List<Ligand> ligands = LigandFactory.finder.where()
-                    .eq("synonyms.term", chemblId).findList();
+                synchronized (intern.ligandLock(chemblId)) {
+                    Ligand ligand = intern.ligand(chemblId);
+                    List<Ligand> ligands = ligand != null
+                        ? Collections.<Ligand>singletonList(ligand)
+                        : LigandFactory.finder.where()
+                        .eq("synonyms.term", chemblId).findList();
                 
-                Ligand ligand = null;
-                if (ligands.isEmpty()) {
-                    ligand = new Ligand (chemblId);
-                    ligand.properties.add(source);
-                    ligand.properties.add(tcrd);
-                    ligand.synonyms.add
-                        (KeywordFactory.registerIfAbsent
-                         (ChEMBL_SYNONYM, chemblId,
-                          "https://www.ebi.ac.uk/chembl/compound/inspect/"
-                          +chemblId));
+                    if (ligands.isEmpty()) {
+                        ligand = new Ligand (chemblId);
+                        ligand.properties.add(source);
+                        ligand.properties.add(tcrd);
+                        ligand.synonyms.add
+                            (getKeyword
+                             (ChEMBL_SYNONYM, chemblId,
+                              "https://www.ebi.ac.uk/chembl/compound/inspect/"
+                              +chemblId));
                     
-                    Keyword kw = new Keyword (LIGAND_SOURCE, source.term);
-                    kw.href = source.href;
-                    ligand.properties.add(kw);
+                        Keyword kw = new Keyword (LIGAND_SOURCE, source.term);
+                        kw.href = source.href;
+                        ligand.properties.add(kw);
                     
-                    String smiles = rset.getString("smiles");
-                    if (smiles != null && smiles.length() > 0) {
-                        long t0 = System.currentTimeMillis();
-                        ligand.properties.add
-                            (new Text (ChEMBL_SMILES, smiles));
-                        Structure struc = StructureProcessor.instrument
-                            (smiles, null, false);
-                        struc.save();
-                        XRef xref = new XRef (struc);
-                        ligand.links.add(xref);
-                        // now index the structure for searching
+                        String smiles = rset.getString("smiles");
+                        if (smiles != null && smiles.length() > 0) {
+                            long t0 = System.currentTimeMillis();
+                            ligand.properties.add
+                                (new Text (ChEMBL_SMILES, smiles));
+                            Structure struc = StructureProcessor.instrument
+                                (smiles, null, false);
+                            struc.save();
+                            XRef xref = new XRef (struc);
+                            ligand.links.add(xref);
+                            // now index the structure for searching
 
-                        try {
-                            MOLIDX.add(null,
-                                       struc.id.toString(), struc.molfile);
-                        }
-                        catch (IllegalArgumentException e) {
-                            Logger.debug(e.toString());
+                            try {
+                                MOLIDX.add(null,
+                                           struc.id.toString(), struc.molfile);
+                            }
+                            catch (IllegalArgumentException e) {
+                                Logger.debug(e.toString());
+                            }
+                            /*
+                            Logger.debug("... "+chemblId+": structure "
+                            +struc.id+" indexed in "
+                                         +(System.currentTimeMillis()-t0)+"ms");
+                            */
                         }
-                        /*
-                        Logger.debug("... "+chemblId+": structure "
-                        +struc.id+" indexed in "
-                                     +(System.currentTimeMillis()-t0)+"ms");
-                        */
-                    }
 
-                    pstm24.setString(1, chemblId);
-                    ResultSet rs = pstm24.executeQuery();
-                    while (rs.next()) {
-                        String s = rs.getString(1);
-                        if (s != null && s.length() <= 255) {
-                            ligand.addIfAbsent
-                                (KeywordFactory.registerIfAbsent
-                                 (ChEMBL_SYNONYM, s,
-                                  "https://www.ebi.ac.uk/chembl/compound/inspect/"+chemblId));
+                        pstm24.setString(1, chemblId);
+                        ResultSet rs = pstm24.executeQuery();
+                        while (rs.next()) {
+                            String s = rs.getString(1);
+                            if (s != null && s.length() <= 255) {
+                                ligand.addIfAbsent
+                                    (getKeyword
+                                     (ChEMBL_SYNONYM, s,
+                                      "https://www.ebi.ac.uk/chembl/compound/inspect/"+chemblId));
+                            }
                         }
+                        rs.close();
+                    
+                        ligand.save();
                     }
-                    rs.close();
+                    else {
+                        if (ligands.size() > 1)
+                            Logger.warn("Ligand "+chemblId+" has "+ligands.size()
+                                        +"instances!");
+                        ligand = ligands.get(0);
+                    }
+                    intern.register(chemblId, ligand);
+
+                    if (syn != null && syn.length() <= 255) {
+                        Keyword found = null;
+                        for (Keyword kw : ligand.getSynonyms())
+                            if (syn.equalsIgnoreCase(kw.term)) {
+                                found = kw;
+                                break;
+                            }
                     
-                    ligand.save();
-                }
-                else {
-                    if (ligands.size() > 1)
-                        Logger.warn("Ligand "+chemblId+" has "+ligands.size()
-                                    +"instances!");
-                    ligand = ligands.get(0);
-                }
-
-                if (syn != null && syn.length() <= 255) {
-                    Keyword found = null;
-                    for (Keyword kw : ligand.getSynonyms())
-                        if (syn.equalsIgnoreCase(kw.term)) {
-                            found = kw;
-                            break;
+                        if (found == null) {
+                            Keyword kw = getKeyword 
+                                (ChEMBL_SYNONYM, syn,
+                                 "https://www.ebi.ac.uk/chembl/compound/inspect/"
+                                 +chemblId);
+                            ligand.addIfAbsent(kw);
                         }
-                    
-                    if (found == null) {
-                        Keyword kw = getKeyword 
-                            (ChEMBL_SYNONYM, syn,
-                             "https://www.ebi.ac.uk/chembl/compound/inspect/"
-                             +chemblId);
-                        ligand.addIfAbsent(kw);
                     }
-                }
-
-                VNum act = new VNum (rset.getString("act_type"),
-                                     rset.getDouble("act_value"));
-                act.save();
 
-                long pmid = rset.getLong("pubmed_id");
-                if (pmid != 0) {
-                    /*
-                    Publication pub = PublicationFactory.registerIfAbsent(pmid);
-                    XRef ref = new XRef (pub);
-                    ref.properties.add(act);
-                    ligand.addIfAbsent(ref);
-                    ligand.addIfAbsent(pub);
-                    */
-                    ligand.properties.add(new VInt (PUBMED_ID, pmid));
-                }
+                    VNum act = new VNum (rset.getString("act_type"),
+                                         rset.getDouble("act_value"));
+                    act.save();
 
-                Keyword endpoint = getKeyword (LIGAND_ACTIVITY, act.label);
-                XRef tref = ligand.addIfAbsent(new XRef (target));
-                tref.addIfAbsent((Value)getTdlKw (target.idgTDL));
-                tref.addIfAbsent((Value)getFamKw (target.idgFamily));
-                Keyword acc = target.getSynonym(UNIPROT_GENE);
-                if (acc != null)
-                    tref.addIfAbsent((Value)getKeyword
-                                     (IDG_TARGET, acc.term, acc.href));
-                tref.addIfAbsent(endpoint);
+                    long pmid = rset.getLong("pubmed_id");
+                    if (pmid != 0) {
+                        /*
+                        Publication pub = PublicationFactory.registerIfAbsent(pmid);
+                        XRef ref = new XRef (pub);
+                        ref.properties.add(act);
+                        ligand.addIfAbsent(ref);
+                        ligand.addIfAbsent(pub);
+                        */
+                        ligand.properties.add(new VInt (PUBMED_ID, pmid));
+                    }
+
+                    Keyword endpoint = getKeyword (LIGAND_ACTIVITY, act.label);
+                    XRef tref = ligand.addIfAbsent(new XRef (target));
+                    tref.addIfAbsent((Value)getTdlKw (target.idgTDL));
+                    tref.addIfAbsent((Value)getFamKw (target.idgFamily));
+                    Keyword acc = target.getSynonym(UNIPROT_GENE);
+                    if (acc != null)
+                        tref.addIfAbsent((Value)getKeyword
+                                         (IDG_TARGET, acc.term, acc.href));
+                    tref.addIfAbsent(endpoint);
                 
-                XRef lref = target.addIfAbsent(new XRef (ligand));
-                lref.addIfAbsent(getKeyword (IDG_LIGAND, ligand.getName()));
-                lref.addIfAbsent(endpoint);
+                    XRef lref = target.addIfAbsent(new XRef (ligand));
+                    lref.addIfAbsent(getKeyword (IDG_LIGAND, ligand.getName()));
+                    lref.addIfAbsent(endpoint);
                 
-                tref.properties.add(act);
-                lref.properties.add(act);
+                    tref.properties.add(act);
+                    lref.properties.add(act);
                 
-                try {
-                    if (tref.id == null)
-                        tref.save();
-                    else
-                        tref.update();
-                    ligand.update();
+                    try {
+                        if (tref.id == null)
+                            tref.save();
+                        else
+                            tref.update();
+                        ligand.update();
                     
-                    if (lref.id == null) {
-                        lref.save();
-                        if (((count+1) % 100) == 0)
-                            target.update();
-                    }
-                    else
-                        lref.update();
+                        if (lref.id == null) {
+                            lref.save();
+                            if (((count+1) % 100) == 0)
+                                target.update();
+                        }
+                        else
+                            lref.update();
                     
-                    Logger.debug("..."+count+" ligand "
-                                 +ligand.name+" "+act.label+"="+act.numval);
-                }
-                catch (Exception ex) {
-                    ex.printStackTrace();
+                        Logger.debug("..."+count+" ligand "
+                                     +ligand.name+" "+act.label+"="+act.numval);
+                    }
+                    catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
                 }
+
                 ++count;
             }
             rset.close();
@@ -1912,27 +1996,27 @@ public class TcrdRegistry extends Controller implements Commons {
                     // add this temporary for now and we
                     //  resolve it later..
                     d.properties.add
-                        (KeywordFactory.registerIfAbsent
+                        (getKeyword
                          (IDG_DRUG, drugName, null));
                 }
                 
                 if (did != null && did.length() > 0) {
                     if (did.startsWith("DOI")) {
                         d.synonyms.add
-                            (KeywordFactory.registerIfAbsent
+                            (getKeyword
                              ("DOID", did,
                               "http://www.disease-ontology.org/term/" + did));
                     }
                     else if (did.startsWith("MIM")) {
                         d.synonyms.add
-                            (KeywordFactory.registerIfAbsent
+                            (getKeyword
                              (UNIPROT_DISEASE, did,
                               "http://omim.org/entry/"
                               + did.substring(did.indexOf(':') + 1)));
                     }
                     else if (did.startsWith("umls")) {
                         d.synonyms.add
-                            (KeywordFactory.registerIfAbsent
+                            (getKeyword
                              (DISGENET_DISEASE, did,
                               "http://linkedlifedata.com/resource/umls/id/"
                               + did.substring(did.indexOf(':') + 1)));
@@ -1944,7 +2028,7 @@ public class TcrdRegistry extends Controller implements Commons {
                         // UniProt Disease
                         did = ref.replaceAll("[\\s]+", "");
                         d.synonyms.add
-                            (KeywordFactory.registerIfAbsent
+                            (getKeyword
                              (UNIPROT_DISEASE, did,
                               "http://omim.org/entry/"
                               + did.substring(did.indexOf(':') + 1)));
@@ -1960,7 +2044,7 @@ public class TcrdRegistry extends Controller implements Commons {
                         Keyword kw =
                             datasources.get("DrugCentral");
                         if (kw == null) {
-                            kw = KeywordFactory.registerIfAbsent
+                            kw = getKeyword
                                 (SOURCE, "DrugCentral", null);
                             datasources.put("DrugCentral", kw);
                         }
@@ -1984,13 +2068,12 @@ public class TcrdRegistry extends Controller implements Commons {
             final String type = "DiseaseOntology";
             Keyword ds = datasources.get(type);
             if (ds == null) {
-                ds = KeywordFactory.registerIfAbsent
+                ds = getKeyword
                     (SOURCE, type, "http://www.disease-ontology.org");
                 datasources.put(type, ds);
             }
             
-            pstm20.setLong(1, tid);
-            final ResultSet rset = pstm20.executeQuery();
+            final ResultSet rset = query (pstm20, tid);
             try {
                 int cnt = 0;
                 while (rset.next()) {
@@ -2017,7 +2100,7 @@ public class TcrdRegistry extends Controller implements Commons {
                         else if ("Expression Atlas".equalsIgnoreCase(dtype))
                             url = "https://www.ebi.ac.uk/gxa/";
 
-                        source = KeywordFactory.registerIfAbsent
+                        source = getKeyword
                             (SOURCE, dtype, url);
                         datasources.put(dtype, source);
                     }
@@ -2028,7 +2111,7 @@ public class TcrdRegistry extends Controller implements Commons {
                     XRef xref = target.addIfAbsent(new XRef (d));
                     if ("JensenLab Knowledge UniProtKB-KW"
                         .equalsIgnoreCase(dtype)) {
-                        xref.addIfAbsent(KeywordFactory.registerIfAbsent
+                        xref.addIfAbsent(getKeyword
                                          (IDG_DISEASE, d.name, null));
                     }
                     else if ("Expression Atlas".equalsIgnoreCase(dtype)) {
@@ -2045,7 +2128,7 @@ public class TcrdRegistry extends Controller implements Commons {
                         String sources = rset.getString("source");
                         if (sources != null) {
                             for (String s : sources.split(",")) {
-                                Keyword kw = KeywordFactory.registerIfAbsent
+                                Keyword kw = getKeyword
                                     (DISGENET_SOURCE, s, null);
                                 d.addIfAbsent((Value)kw);
                             }
@@ -2066,7 +2149,7 @@ public class TcrdRegistry extends Controller implements Commons {
                         xref.properties.add(new Text (IDG_EVIDENCE, evidence));
                     }
 
-                    Keyword kw = KeywordFactory.registerIfAbsent
+                    Keyword kw = getKeyword
                         (IDG_DISEASE, d.name, xref.getHRef());
                     xref.addIfAbsent(kw);
                     
@@ -2111,8 +2194,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addGeneRIF (Target target, long protein) throws Exception {
-            pstm4.setLong(1, protein);
-            ResultSet rset = pstm4.executeQuery();
+            ResultSet rset = query (pstm4, protein);
             try {
                 while (rset.next()) {
                     String desc = rset.getString("text");
@@ -2135,8 +2217,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addCompartment (Target target, long protein) throws Exception {
-            pstm27.setLong(1, protein);
-            ResultSet rset = pstm27.executeQuery();
+            ResultSet rset = query (pstm27, protein);
             try {
                 int count = 0;
                 long start = System.currentTimeMillis();
@@ -2188,19 +2269,18 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addLocalization (Target target, long protein) throws Exception {
-            pstm31.setLong(1, protein);
-            ResultSet rset = pstm31.executeQuery();
+            ResultSet rset = query (pstm31, protein);
             try {
                 int count = 0;
                 long start= System.currentTimeMillis();
                 while (rset.next()) {
-                    Keyword signal = KeywordFactory.registerIfAbsent
+                    Keyword signal = getKeyword
                         ("Localization Signal", rset.getString("signal"),
                          "http://genome.unmc.edu/LocSigDB");
                     XRef ref = new XRef (signal);
                     String location = rset.getString("location");
                     if (location != null) {
-                        Keyword loc = KeywordFactory.registerIfAbsent
+                        Keyword loc = getKeyword
                             ("Localization Location", location, null);
                         ref.properties.add(loc);
                     }
@@ -2246,7 +2326,7 @@ public class TcrdRegistry extends Controller implements Commons {
                 long start = System.currentTimeMillis();
                 while (rset.next()) {
                     long pmid = rset.getLong("id");
-                    Publication pub = PublicationFactory.byPMID(pmid);
+                    Publication pub = intern.publication(pmid);
                     if (pub == null) {
                         pub = new Publication ();
                         pub.pmid = pmid;
@@ -2259,7 +2339,7 @@ public class TcrdRegistry extends Controller implements Commons {
                             year = Integer.parseInt(date.split("-")[0]);
                         }
                         pub.year = year;
-                        pub.save();
+                        pub = intern.register(pub);
                     }
 
                     target.addIfAbsent(pub);
@@ -2288,8 +2368,7 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         void addFeatures (Target target, long protein) throws Exception {
-            pstm30.setLong(1, protein);
-            ResultSet rset = pstm30.executeQuery();
+            ResultSet rset = query (pstm30, protein);
             try {
                 Timeline features = new Timeline ("Protein Features");
                 Map<String, Long> counts = new TreeMap<>();
@@ -2345,9 +2424,9 @@ public class TcrdRegistry extends Controller implements Commons {
 
                         XRef ref = new XRef (dev);
                         // add these for target facets
-                        ref.properties.add(KeywordFactory.registerIfAbsent
+                        ref.properties.add(getKeyword
                                            (TECHDEV_PI, dev.pi, null));
-                        ref.properties.add(KeywordFactory.registerIfAbsent
+                        ref.properties.add(getKeyword
                                            (TECHDEV_GRANT, dev.grantNum, null));
                         ref.save();
                         target.links.add(ref);
@@ -2403,13 +2482,17 @@ public class TcrdRegistry extends Controller implements Commons {
             }
 
             try {
-                addDTO (target, t.protein, t.dtoNode);
+                synchronized (PREDICATES) {
+                    addDTO (target, t.protein, t.dtoNode);
+                }
                 addTDL (target, t.protein);
                 addPhenotype (target, t.protein);
                 addExpression (target, t.protein);
                 addGO (target, t.protein);
                 addPathway (target, t.protein);
-                addPanther (target, t.protein);
+                synchronized (PREDICATES) {
+                    addPanther (target, t.protein);
+                }
                 addPatent (target, t.protein);
                 addPubTator (target, t.protein);
                 addPMScore (target, t.protein);
@@ -2417,7 +2500,9 @@ public class TcrdRegistry extends Controller implements Commons {
                 addDrugs (target, t.id, t.source);
                 addAssay (target, t.protein);
                 addChembl (target, t.id, t.source);
-                addDisease (target, t.id, t.source);
+                synchronized (DISEASES) {
+                    addDisease (target, t.id, t.source);
+                }
                 addHarmonogram (target, t.protein);
                 addGeneRIF (target, t.protein);
                 addTINX (target, t.id);
@@ -2432,14 +2517,22 @@ public class TcrdRegistry extends Controller implements Commons {
                 ex.printStackTrace();
             }
 
+            // the cascade of new values and links is written in batches
+            Transaction tx = Ebean.beginTransaction();
             try {
+                tx.setBatchMode(true);
+                tx.setBatchSize(batchSize);
                 target.update();
+                tx.commit();
             }
             catch (Exception ex) {
                 Logger.error("Can't update target "+target.id+" ("
                              +IDGApp.getId(target)+")", ex);
                 ex.printStackTrace();
             }
+            finally {
+                Ebean.endTransaction();
+            }
 
             Logger.debug("####### Target "+t.acc+" processed in "
                          +String.format("%1$dms!", 
@@ -2512,6 +2605,7 @@ public class TcrdRegistry extends Controller implements Commons {
 
         String maxRows = requestData.get("max-rows");
         Logger.debug("Max Rows: "+maxRows);
+        String nthreads = requestData.get("threads");
 
         int count = 0;
         try {
@@ -2524,7 +2618,18 @@ public class TcrdRegistry extends Controller implements Commons {
                     Logger.warn("Bogus maxRows \""+maxRows+"\"; default to 0!");
                 }
             }
-            count = load (ds, 1, rows);
+            
+            int threads = 0; // ix.idg.tcrd.threads
+            if (nthreads != null && nthreads.length() > 0) {
+                try {
+                    threads = Integer.parseInt(nthreads);
+                }
+                catch (NumberFormatException ex) {
+                    Logger.warn("Bogus threads \""+nthreads+"\"; "
+                                +"default to configuration!");
+                }
+            }
+            count = load (ds, threads, rows);
         }
         catch (Exception ex) {
             ex.printStackTrace();
@@ -2662,10 +2767,8 @@ public class TcrdRegistry extends Controller implements Commons {
         }
 
         Logger.debug("Preparing to process "+targets.size()+" targets...");
-        PersistRegistration regis = new PersistRegistration
-            (ds.getConnection(), Http.Context.current(), targets);
-        PQ.submit(regis);
-        //regis.persists();
+        PQ.submit(new TcrdLoader (ds, Http.Context.current(),
+                                  targets, threads));
         
         return count;
     }
@@ -28,7 +28,7 @@ public class TechdevFactory extends EntityFactory {
         return page (top, skip, null);
     }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Techdev.class, finder);
     }
 
     public static Result edits (Long id) {
@@ -0,0 +1,167 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.*;
+
+import ix.core.stats.Histogram;
+import ix.idg.controllers.DescriptorMatrix;
+
+import static org.junit.Assert.*;
+
+/**
+ * The packed descriptor matrix against the descriptor maps it's built
+ * from, and its blocked top K against all pairs
+ */
+public class DescriptorMatrixTest {
+    static final String[] NAMES = {
+        "GWAS", "GTEx", "HPA", "IDG Disease", "KEGG Pathway",
+        "OMIM", "Reactome", "UniProt Keyword", "GO Component", "DTO"
+    };
+
+    static List<Map<String, Number>> descriptors (Random rand, int n) {
+        List<Map<String, Number>> descs =
+            new ArrayList<Map<String, Number>>();
+        for (int i = 0; i < n; ++i) {
+            Map<String, Number> d = new HashMap<String, Number>();
+            for (String name : NAMES)
+                if (rand.nextInt(3) > 0)
+                    d.put(name, rand.nextInt(50));
+            descs.add(d);
+        }
+        return descs;
+    }
+
+    static long[] ids (int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; ++i)
+            ids[i] = 1000 + i;
+        return ids;
+    }
+
+    static double tanimoto (Map<String, Number> a, Map<String, Number> b) {
+        double c = 0., x = 0., y = 0.;
+        for (Number v : a.values())
+            x += v.doubleValue()*v.doubleValue();
+        for (Number v : b.values())
+            y += v.doubleValue()*v.doubleValue();
+        for (Map.Entry<String, Number> me : a.entrySet()) {
+            Number v = b.get(me.getKey());
+            if (v != null)
+                c += me.getValue().doubleValue()*v.doubleValue();
+        }
+        return c / (x + y - c);
+    }
+
+    @Test
+    public void packedRows () {
+        Random rand = new Random (1l);
+        List<Map<String, Number>> descs = descriptors (rand, 50);
+        Histogram hist = new Histogram (10, 0., 50.);
+        for (Map<String, Number> d : descs) {
+            Number v = d.get("GTEx");
+            if (v != null)
+                hist.increment(v.doubleValue());
+        }
+        Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+        histograms.put("GTEx", hist);
+
+        DescriptorMatrix matrix =
+            DescriptorMatrix.create(ids (50), descs, histograms);
+        assertEquals(50, matrix.size());
+        assertEquals(1042l, matrix.id(42));
+        for (int i = 0; i < descs.size(); ++i) {
+            Map<String, Number> row = matrix.row(i);
+            assertEquals(descs.get(i).keySet(), row.keySet());
+            for (Map.Entry<String, Number> me : descs.get(i).entrySet()) {
+                double x = me.getValue().doubleValue();
+                if ("GTEx".equals(me.getKey()))
+                    x = hist.eval(x) / hist.getWeight();
+                assertEquals(x, row.get(me.getKey()).doubleValue(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void tanimotoAndContribution () {
+        Random rand = new Random (2l);
+        List<Map<String, Number>> descs = descriptors (rand, 40);
+        DescriptorMatrix matrix = DescriptorMatrix.create
+            (ids (40), descs, new HashMap<String, Histogram>());
+        for (int i = 0; i < descs.size(); ++i)
+            for (int j = 0; j < descs.size(); ++j) {
+                double expected = tanimoto (descs.get(i), descs.get(j));
+                if (Double.isNaN(expected))
+                    continue; // both empty
+                assertEquals(expected, matrix.tanimoto(i, j), 1e-6);
+
+                double sum = 0.;
+                for (Double c : matrix.contribution(i, j).values())
+                    sum += c;
+                assertEquals(expected, sum, 1e-6);
+            }
+    }
+
+    @Test
+    public void topK () throws Exception {
+        Random rand = new Random (3l);
+        // more than one tile each way
+        int n = 2*DescriptorMatrix.TILE + 37, K = 5;
+        List<Map<String, Number>> descs = descriptors (rand, n);
+        DescriptorMatrix matrix = DescriptorMatrix.create
+            (ids (n), descs, new HashMap<String, Histogram>());
+
+        ForkJoinPool pool = new ForkJoinPool (4);
+        try {
+            DescriptorMatrix.Neighbors[] neighbors = matrix.topK(K, pool);
+            assertEquals(n, neighbors.length);
+            for (int i = 0; i < n; ++i) {
+                List<Float> all = new ArrayList<Float>();
+                for (int j = 0; j < n; ++j)
+                    if (j != i)
+                        all.add((float)matrix.tanimoto(i, j));
+                Collections.sort(all, Collections.reverseOrder());
+
+                DescriptorMatrix.Neighbors nb = neighbors[i];
+                assertEquals(K, nb.size());
+                List<Float> top = new ArrayList<Float>();
+                for (int k = 0; k < nb.size(); ++k) {
+                    assertTrue(nb.row(k) != i);
+                    assertEquals(matrix.tanimoto(i, nb.row(k)),
+                                 nb.similarity(k), 1e-5);
+                    top.add(nb.similarity(k));
+                }
+                Collections.sort(top, Collections.reverseOrder());
+                for (int k = 0; k < K; ++k)
+                    assertEquals(all.get(k), top.get(k), 1e-5);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void bogusArguments () throws Exception {
+        try {
+            DescriptorMatrix.create(ids (2), descriptors (new Random (), 3),
+                                    new HashMap<String, Histogram>());
+            fail ("Matrix with more descriptors than ids");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+
+        DescriptorMatrix matrix = DescriptorMatrix.create
+            (ids (3), descriptors (new Random (), 3),
+             new HashMap<String, Histogram>());
+        ForkJoinPool pool = new ForkJoinPool (1);
+        try {
+            matrix.topK(0, pool);
+            fail ("Top K with K = 0");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ix.idg.controllers;
+
+import java.util.*;
+
+import com.apporiented.algorithm.clustering.AverageLinkageStrategy;
+import com.apporiented.algorithm.clustering.Cluster;
+import com.apporiented.algorithm.clustering.DefaultClusteringAlgorithm;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The nearest-neighbor chain clustering of HClust against the average
+ * linkage of the clustering library it replaces
+ */
+public class HClustTest {
+    static float[] random (Random rand, int nr, int nc) {
+        float[] values = new float[nr * nc];
+        for (int i = 0; i < values.length; i++)
+            // some missing values
+            values[i] = rand.nextInt(5) == 0 ? 0f : rand.nextFloat();
+        return values;
+    }
+
+    static String[] names (String prefix, int n) {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++)
+            names[i] = prefix + i;
+        return names;
+    }
+
+    // euclidean distances between the rows of the data matrix
+    static double[][] distances (float[] values, int nr, int nc) {
+        double[][] dm = new double[nr][nr];
+        for (int i = 0; i < nr; i++)
+            for (int j = 0; j < nr; j++) {
+                double sum = 0;
+                for (int k = 0; k < nc; k++) {
+                    double d = values[i * nc + k] - values[j * nc + k];
+                    sum += d * d;
+                }
+                dm[i][j] = Math.sqrt(sum);
+            }
+        return dm;
+    }
+
+    static float[] transpose (float[] values, int nr, int nc) {
+        float[] t = new float[values.length];
+        for (int i = 0; i < nr; i++)
+            for (int j = 0; j < nc; j++)
+                t[j * nr + i] = values[i * nc + j];
+        return t;
+    }
+
+    static Cluster reference (float[] values, int nr, int nc, String[] names) {
+        return new DefaultClusteringAlgorithm().performClustering
+            (distances(values, nr, nc), names, new AverageLinkageStrategy());
+    }
+
+    // leaves of each internal node in dendrogram order along with its height
+    static String leaves (Cluster c, List<String> nodes) {
+        if (c.isLeaf())
+            return c.getName();
+        StringBuilder sb = new StringBuilder();
+        for (Cluster child : c.getChildren()) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(leaves(child, nodes));
+        }
+        nodes.add(sb.toString());
+        return sb.toString();
+    }
+
+    static Map<String, Double> heights (Cluster c, Map<String, Double> heights) {
+        if (!c.isLeaf()) {
+            List<String> leaves = new ArrayList<>();
+            collect(c, leaves);
+            Collections.sort(leaves);
+            heights.put(leaves.toString(), c.getDistanceValue());
+            for (Cluster child : c.getChildren())
+                heights(child, heights);
+        }
+        return heights;
+    }
+
+    static void collect (Cluster c, List<String> leaves) {
+        if (c.isLeaf()) leaves.add(c.getName());
+        else for (Cluster child : c.getChildren()) collect(child, leaves);
+    }
+
+    static void assertSameTree (Cluster expected, Cluster actual) {
+        assertEquals(expected.countLeafs(), actual.countLeafs());
+
+        // same merges at the same heights
+        Map<String, Double> eh = heights(expected, new HashMap<String, Double>());
+        Map<String, Double> ah = heights(actual, new HashMap<String, Double>());
+        assertEquals(eh.keySet(), ah.keySet());
+        for (Map.Entry<String, Double> me : eh.entrySet())
+            assertEquals(me.getKey(), me.getValue(), ah.get(me.getKey()), 1e-4);
+
+        // and the same leaf order
+        List<String> en = new ArrayList<>(), an = new ArrayList<>();
+        assertEquals(leaves(expected, en), leaves(actual, an));
+        assertEquals(en, an);
+    }
+
+    @Test
+    public void sameAsAverageLinkage() throws Exception {
+        Random rand = new Random(1l);
+        for (int t = 0; t < 20; t++) {
+            int nr = 2 + rand.nextInt(60), nc = 2 + rand.nextInt(30);
+            float[] values = random(rand, nr, nc);
+            String[] rows = names("r", nr), cols = names("c", nc);
+
+            HClust hc = new HClust();
+            hc.setData(values, cols, rows);
+            hc.run();
+
+            assertSameTree(reference(values, nr, nc, rows), hc.rcluster);
+            assertSameTree(reference(transpose(values, nr, nc), nc, nr, cols),
+                           hc.ccluster);
+        }
+    }
+
+    @Test
+    public void sameMemberships() throws Exception {
+        Random rand = new Random(2l);
+        int nr = 40, nc = 12;
+        float[] values = random(rand, nr, nc);
+        String[] rows = names("r", nr), cols = names("c", nc);
+
+        HClust hc = new HClust();
+        hc.setData(values, cols, rows);
+        hc.run();
+
+        Cluster expected = reference(values, nr, nc, rows);
+        double[] heights = hc.getRowClusteringHeights();
+        assertEquals(10, heights.length);
+        for (double h : heights)
+            assertEquals(hc.getClusterMemberships(expected, h),
+                         hc.getClusterMemberships(hc.rcluster, h));
+    }
+
+    @Test
+    public void boxedMatrix() throws Exception {
+        Random rand = new Random(3l);
+        int nr = 15, nc = 7;
+        float[] values = random(rand, nr, nc);
+        Double[][] matrix = new Double[nr][nc];
+        for (int i = 0; i < nr; i++)
+            for (int j = 0; j < nc; j++)
+                // missing values are the same as 0
+                matrix[i][j] = values[i * nc + j] == 0f
+                    ? null : (double) values[i * nc + j];
+
+        HClust hc = new HClust();
+        hc.setData(matrix, names("c", nc), names("r", nr));
+        hc.run();
+        assertSameTree(reference(values, nr, nc, names("r", nr)), hc.rcluster);
+    }
+
+    @Test
+    public void condensedIndex() {
+        int n = 7, k = 0;
+        for (int i = 0; i < n; i++)
+            for (int j = i + 1; j < n; j++)
+                assertEquals(k++, HClust.index(n, i, j));
+    }
+}
@@ -0,0 +1,100 @@
+package ix.idg.controllers;
+
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Incremental updates of the persisted neighbor lists against sorting
+ * the neighbors from scratch
+ */
+public class NeighborListTest {
+    static EntityDescriptor.NeighborList empty () {
+        return new EntityDescriptor.NeighborList (new long[0], new float[0]);
+    }
+
+    // the expected list after replacing (or adding) the given neighbor
+    static List<String> expected (EntityDescriptor.NeighborList nb,
+                                  long id, float score, int max) {
+        List<Object[]> entries = new ArrayList<Object[]>();
+        for (int i = 0; i < nb.size(); ++i)
+            if (nb.ids[i] == id && nb.scores[i] == score)
+                return list (nb); // stays where it is
+        for (int i = 0; i < nb.size(); ++i)
+            if (nb.ids[i] != id)
+                entries.add(new Object[]{ nb.ids[i], nb.scores[i] });
+        entries.add(new Object[]{ id, score });
+        // stable, so ties stay in their current order
+        Collections.sort(entries, new Comparator<Object[]> () {
+                public int compare (Object[] a, Object[] b) {
+                    return Float.compare((Float)b[1], (Float)a[1]);
+                }
+            });
+
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < Math.min(max, entries.size()); ++i)
+            list.add(entries.get(i)[0]+"="+entries.get(i)[1]);
+        return list;
+    }
+
+    static List<String> list (EntityDescriptor.NeighborList nb) {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < nb.size(); ++i)
+            list.add(nb.ids[i]+"="+nb.scores[i]);
+        return list;
+    }
+
+    @Test
+    public void insertInOrder () {
+        EntityDescriptor.NeighborList nb = empty ();
+        nb = nb.update(1l, .5f, 3);
+        nb = nb.update(2l, .9f, 3);
+        nb = nb.update(3l, .1f, 3);
+        assertEquals(Arrays.asList("2=0.9", "1=0.5", "3=0.1"), list (nb));
+
+        // better than the last one; it drops off
+        nb = nb.update(4l, .3f, 3);
+        assertEquals(Arrays.asList("2=0.9", "1=0.5", "4=0.3"), list (nb));
+    }
+
+    @Test
+    public void rescore () {
+        EntityDescriptor.NeighborList nb = empty ()
+            .update(1l, .5f, 3).update(2l, .9f, 3).update(3l, .1f, 3);
+        assertEquals(Arrays.asList("1=0.95", "2=0.9", "3=0.1"),
+                     list (nb.update(1l, .95f, 3)));
+        assertEquals(Arrays.asList("1=0.5", "3=0.1", "2=0.05"),
+                     list (nb.update(2l, .05f, 3)));
+    }
+
+    @Test
+    public void unchanged () {
+        EntityDescriptor.NeighborList nb = empty ()
+            .update(1l, .5f, 2).update(2l, .9f, 2);
+        // not good enough for a full list
+        assertSame(nb, nb.update(3l, .5f, 2));
+        assertSame(nb, nb.update(3l, .1f, 2));
+        // same score
+        assertSame(nb, nb.update(1l, .5f, 2));
+    }
+
+    @Test
+    public void randomUpdates () {
+        Random rand = new Random (1l);
+        for (int max : new int[]{ 1, 5, 20 }) {
+            EntityDescriptor.NeighborList nb = empty ();
+            for (int t = 0; t < 2000; ++t) {
+                long id = rand.nextInt(50);
+                float score = rand.nextInt(100) / 100.f;
+                List<String> exp = expected (nb, id, score, max);
+                EntityDescriptor.NeighborList next =
+                    nb.update(id, score, max);
+                assertEquals(exp, list (next));
+                assertEquals(next.ids.length, next.scores.length);
+                nb = next;
+            }
+        }
+    }
+}
@@ -53,6 +53,7 @@ import ix.core.plugins.StructureIndexerPlugin;
 import ix.core.plugins.SequenceIndexerPlugin;
 import ix.core.plugins.IxContext;
 import ix.core.plugins.IxCache;
+import ix.core.plugins.CacheCodec;
 import ix.core.plugins.PersistenceQueue;
 import ix.core.plugins.PayloadPlugin;
 import ix.core.controllers.search.SearchFactory;
@@ -139,6 +140,11 @@ public class App extends Authentication {
     public static final PersistenceQueue _pq =
         Play.application().plugin(PersistenceQueue.class);
 
+    static {
+        IxCache.route(SearchResultContext.class, IxCache.REGION_SEARCH);
+        IxCache.route(SequenceIndexer.Result.class, IxCache.REGION_SEARCH);
+    }
+
     /**
      * interface for rendering a result page
      */
@@ -1154,9 +1160,13 @@ public class App extends Authentication {
         return getOrElse_ (key, callable);
     }
     
+    /**
+     * Cached value that's regenerated only when the entities it was
+     * generated from have changed
+     */
     public static <T> T getOrElse (String key, Callable<T> callable)
         throws Exception {
-        return getOrElse (_textIndexer.lastModified(), key, callable);
+        return IxCache.getOrElseCurrent(key, callable);
     }
 
     public static <T> T getOrElse_ (String key, Callable<T> callable)
@@ -1169,7 +1179,7 @@ public class App extends Authentication {
             IxCache.remove(key);
         }
         
-        return getOrElse (_textIndexer.lastModified(), key, callable);
+        return IxCache.getOrElseCurrent(key, callable);
     }
     
     public static <T> T getOrElse (long modified,
@@ -1726,6 +1736,80 @@ public class App extends Authentication {
         }
     }
 
+    /**
+     * Serializers of the cached types defined here; registered by
+     * IxCache on start (see ix.cache.serializers) so they're in place
+     * before any cached entry is read back. The ids are persisted; bump
+     * a serializer's version whenever its encoding changes.
+     */
+    public static class CacheSerializers
+        implements CacheCodec.BinaryCodec.Registrar {
+        public CacheSerializers () {
+        }
+        
+        public void register (CacheCodec.BinaryCodec codec) {
+            // rendered pages are the bulk of the cache
+            codec.register
+                (16, CachableContent.class,
+                 new CacheCodec.BinaryCodec.Serializer<CachableContent> () {
+                    @Override
+                    public int getVersion () { return 2; }
+                    public void write (CacheCodec.BinaryCodec.Output out,
+                                       CachableContent c)
+                        throws IOException {
+                        out.writeString(c.type);
+                        out.writeString(c.body);
+                        out.writeString(c.sha1);
+                    }
+                    public CachableContent read
+                        (CacheCodec.BinaryCodec.Input in)
+                        throws IOException {
+                        return new CachableContent
+                            (in.readString(), in.readString(),
+                             in.readString());
+                    }
+                });
+            
+            // the results are entities, which are written as references
+            codec.register
+                (17, SearchResultContext.class,
+                 new CacheCodec.BinaryCodec.Serializer<SearchResultContext> () {
+                    public void write (CacheCodec.BinaryCodec.Output out,
+                                       SearchResultContext ctx)
+                        throws IOException {
+                        ctx.lock.lock();
+                        try {
+                            out.writeString(ctx.status.name());
+                            out.writeString(ctx.mesg);
+                            out.writeObject(ctx.start);
+                            out.writeObject(ctx.stop);
+                            out.writeString(ctx.id);
+                            out.writeObject(ctx.total);
+                            out.writeObject(new ArrayList (ctx.results));
+                        }
+                        finally {
+                            ctx.lock.unlock();
+                        }
+                    }
+                    public SearchResultContext read
+                        (CacheCodec.BinaryCodec.Input in)
+                        throws IOException, ClassNotFoundException {
+                        SearchResultContext ctx = new SearchResultContext ();
+                        ctx.status = SearchResultContext.Status
+                            .valueOf(in.readString());
+                        ctx.mesg = in.readString();
+                        ctx.start = (Long)in.readObject();
+                        ctx.stop = (Long)in.readObject();
+                        ctx.id = in.readString();
+                        ctx.total = (Integer)in.readObject();
+                        ctx.results = new CopyOnWriteArrayList
+                            ((List)in.readObject());
+                        return ctx;
+                    }
+                });
+        }
+    }
+
     static public class CachableContent implements Content, Serializable {
         // change this value when the class evolve so as to invalidate
         // any cached instance
@@ -1740,6 +1824,12 @@ public class App extends Authentication {
             sha1 = Util.sha1(body);
         }
 
+        CachableContent (String type, String body, String sha1) {
+            this.type = type;
+            this.body = body;
+            this.sha1 = sha1;
+        }
+
         public String contentType () { return type; }
         public String body () { return body; }
         public String etag () { return sha1; }
@@ -2164,7 +2254,7 @@ public class App extends Authentication {
     @Security.Authenticated(Secured.class)    
     public static Result serverStatistics () {
         return ok (ix.ncats.views.html.serverstats.render
-                   (IxCache.getStatistics()));
+                   (IxCache.getRegions()));
     }
 
     @Security.Authenticated(Secured.class)    
@@ -92,18 +92,12 @@ create table ix_core_etag (
   status                    integer,
   query                     varchar(2048),
   filter                    varchar(4000),
+  refs                      blob,
   version                   bigint not null,
   constraint uq_ix_core_etag_etag unique (etag),
   constraint pk_ix_core_etag primary key (id))
 ;
 
-create table ix_core_etagref (
-  id                        bigint not null,
-  etag_id                   bigint,
-  ref_id                    bigint,
-  constraint pk_ix_core_etagref primary key (id))
-;
-
 create table ix_core_edit (
   id                        varchar(40) not null,
   created                   timestamp,
@@ -794,8 +788,6 @@ create sequence ix_core_curation_seq;
 
 create sequence ix_core_etag_seq;
 
-create sequence ix_core_etagref_seq;
-
 create sequence ix_ncats_clinical_eligibility_seq;
 
 create sequence ix_core_event_seq;
@@ -858,8 +850,6 @@ alter table ix_core_curation add constraint fk_ix_core_curation_curator_3 foreig
 create index ix_ix_core_curation_curator_3 on ix_core_curation (curator_id);
 alter table ix_core_etag add constraint fk_ix_core_etag_namespace_4 foreign key (namespace_id) references ix_core_namespace (id) on delete restrict on update restrict;
 create index ix_ix_core_etag_namespace_4 on ix_core_etag (namespace_id);
-alter table ix_core_etagref add constraint fk_ix_core_etagref_etag_5 foreign key (etag_id) references ix_core_etag (id) on delete restrict on update restrict;
-create index ix_ix_core_etagref_etag_5 on ix_core_etagref (etag_id);
 alter table ix_core_edit add constraint fk_ix_core_edit_editor_6 foreign key (editor_id) references ix_core_principal (id) on delete restrict on update restrict;
 create index ix_ix_core_edit_editor_6 on ix_core_edit (editor_id);
 alter table ix_core_figure add constraint fk_ix_core_figure_parent_7 foreign key (parent_id) references ix_core_figure (id) on delete restrict on update restrict;
@@ -1129,8 +1119,6 @@ drop table if exists ix_core_curation;
 
 drop table if exists ix_core_etag;
 
-drop table if exists ix_core_etagref;
-
 drop table if exists ix_core_edit;
 
 drop table if exists ix_ncats_clinical_eligibility;
@@ -1271,8 +1259,6 @@ drop sequence if exists ix_core_curation_seq;
 
 drop sequence if exists ix_core_etag_seq;
 
-drop sequence if exists ix_core_etagref_seq;
-
 drop sequence if exists ix_ncats_clinical_eligibility_seq;
 
 drop sequence if exists ix_core_event_seq;
@@ -40,7 +40,7 @@ public class EntityFactory extends ix.core.controllers.EntityFactory {
     
     public static Result count () { return count (finder); }
     public static Result page (int top, int skip, String filter) {
-        return page (top, skip, filter, finder);
+        return page (top, skip, filter, Entity.class, finder);
     }
 
     public static Result get (Long id, String select) {
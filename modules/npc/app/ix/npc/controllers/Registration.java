@@ -4,8 +4,10 @@ import chemaxon.struc.MolAtom;
 import chemaxon.struc.Molecule;
 import chemaxon.formats.MolImporter;
 
+import com.avaje.ebean.Ebean;
 import com.avaje.ebean.Expr;
 import com.avaje.ebean.QueryIterator;
+import com.avaje.ebean.Transaction;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -17,6 +19,7 @@ import ix.core.controllers.search.SearchFactory;
 import ix.core.models.*;
 import ix.core.plugins.*;
 import ix.core.search.*;
+import ix.core.adapters.EntityPersistAdapter;
 import ix.core.chem.StructureProcessor;
 import ix.ncats.controllers.App;
 import ix.utils.Global;
@@ -37,8 +40,11 @@ import tripod.chem.indexer.StructureIndexer;
 import java.io.*;
 import java.nio.file.Files;
 import java.net.URLEncoder;
+import java.sql.Connection;
+import java.sql.Savepoint;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -58,23 +64,93 @@ public class Registration extends NPCApp {
         .plugin(StructureIndexerPlugin.class).getIndexer();
     static final ObjectMapper JSON = new ObjectMapper ();
     
+    /**
+     * A compound of the dataset as it moves from the reader through the
+     * workers (chemistry) to the writer (database)
+     */
+    static class Compound {
+        final int index;
+        final Molecule mol;
+        final String input; // original record
+        Entity ent;
+        Structure original;
+        int moieties;
+        List<Fragment> fragments = new ArrayList<>();
+        Structure standardized;
+        Exception error;
+        // ids of what's saved for this compound, indexed after commit
+        Map<Class, Set<Object>> saved;
+
+        Compound (int index, Molecule mol, String input) {
+            this.index = index;
+            this.mol = mol;
+            this.input = input;
+        }
+    }
+
+    static class Fragment {
+        final String name;
+        final String amap; // atom mapping to the parent
+        final Structure struc;
+        final Keyword scaffold;
+        Structure clone; // structure of the scaffold entity (if new)
+
+        Fragment (String name, String amap, Structure struc,
+                  Keyword scaffold) {
+            this.name = name;
+            this.amap = amap;
+            this.struc = struc;
+            this.scaffold = scaffold;
+        }
+    }
+    
+    /**
+     * Registers the compounds of a dataset. Compounds are read one at a
+     * time by a reader thread, instrumented (standardization, scaffolds,
+     * properties) by a number of workers and saved by this thread in
+     * transactions of batchSize compounds; a compound that fails is
+     * rolled back to its savepoint and recorded as a failed record
+     * without affecting the rest of its batch. Progress is kept in
+     * memory and written to the job every report ms, which is also when
+     * we find out whether the job has been deleted.
+     */
     static class MolJobPersistence
         extends PersistenceQueue.AbstractPersistenceContext {
+        static final Compound POISON = new Compound (-1, null, null);
 
         final Job job;
         final JsonNode config;
         final Keyword ds;
+        final Keyword original, standardized;
         final String source;
         final String sep;
         final String name;
         final Map<String, JsonNode> props = new HashMap<>();
-        final MolecularFramework mf;
+        // the caches below are bounded; anything evicted is simply
+        // looked up (or generated) again
+        final Map<String, Keyword> keywords;
+        // scaffolds whose structure is (being) generated by a worker
+        final Set<String> claimed;
+        // scaffolds that are known to exist
+        final Set<String> scaffolds;
+        final AtomicInteger processed = new AtomicInteger ();
+        final AtomicInteger failed = new AtomicInteger ();
+        final int threads;
+        final int batchSize;
+        final int capacity;
+        final long report;
+        volatile boolean cancelled;
+        long checkpoint;
         
         MolJobPersistence (Job job, JsonNode config) {
             this.job = job;
             this.config = config;
             ds = KeywordFactory.registerIfAbsent
                 (DATASET, job.payload.name, null);
+            original = KeywordFactory.registerIfAbsent
+                (STRUCTURE_TYPE, STRUCTURE_ORIGINAL, null);
+            standardized = KeywordFactory.registerIfAbsent
+                (STRUCTURE_TYPE, STRUCTURE_STANDARDIZED, null);
             source = job.payload.sha1.substring(0,9);
             if (config != null) {
                 sep = config.hasNonNull("separator")
@@ -97,151 +173,364 @@ public class Registration extends NPCApp {
                 sep = "\n";
                 name = null;
             }
-            
-            mf = MolecularFramework.createMurckoInstance();
-            mf.setGenerateAtomMapping(true);
-            mf.setAllowBenzene(false);      
+
+            Configuration conf = Play.application().configuration();
+            threads = conf.getInt("ix.npc.registration.threads",
+                                  Runtime.getRuntime().availableProcessors());
+            batchSize = conf.getInt("ix.npc.registration.batchSize", 100);
+            capacity = conf.getInt("ix.npc.registration.queue", 256);
+            report = conf.getInt("ix.npc.registration.report", 2000);
+            int cacheSize = conf.getInt
+                ("ix.npc.registration.cacheSize", 10000);
+            if (threads < 1 || batchSize < 1 || cacheSize < 1)
+                throw new IllegalArgumentException
+                    ("Bogus registration threads ("+threads
+                     +"), batch size ("+batchSize+") or cache size ("
+                     +cacheSize+")");
+            keywords = createCache (cacheSize);
+            claimed = Collections.newSetFromMap
+                (MolJobPersistence.<Boolean>createCache(cacheSize));
+            scaffolds = Collections.newSetFromMap
+                (MolJobPersistence.<Boolean>createCache(cacheSize));
+        }
+
+        static <V> Map<String, V> createCache (final int size) {
+            return Collections.synchronizedMap
+                (new LinkedHashMap<String, V>(16, .75f, true) {
+                        protected boolean removeEldestEntry
+                            (Map.Entry<String, V> eldest) {
+                            return size() > size;
+                        }
+                    });
+        }
+
+        /**
+         * Keywords are registered once per job; this is called by the
+         * workers outside of any transaction
+         */
+        synchronized Keyword keyword (String label, String term) {
+            String key = label+"\u0000"+term;
+            Keyword kw = keywords.get(key);
+            if (kw == null) {
+                kw = KeywordFactory.registerIfAbsent(label, term, null);
+                keywords.put(key, kw);
+            }
+            return kw;
         }
 
         public void persists () throws Exception {
-            int count = 0;          
+            long start = System.currentTimeMillis();
+            final BlockingQueue<Compound> input =
+                new ArrayBlockingQueue<>(capacity);
+            final BlockingQueue<Compound> output =
+                new ArrayBlockingQueue<>(capacity);
+            
+            job.status = Job.Status.RUNNING;
+            job.processed = job.failed = 0;
+            ExecutorService pool = Executors.newFixedThreadPool(threads+1);
             try {
-                MolImporter mi = new MolImporter
-                    (PayloadFactory.getStream(job.payload));
-                mi.setGrabbingEnabled(true);
-                job.status = Job.Status.RUNNING;        
-                job.processed = job.failed = 0;
+                pool.submit(new Runnable () {
+                        public void run () {
+                            try {
+                                read (input);
+                            }
+                            catch (Exception ex) {
+                                job.message = ex.getMessage();
+                                job.status = Job.Status.FAILED;
+                                Logger.error("Job "+job.id+" for payload "
+                                             +job.payload.name
+                                             +" failed!", ex);
+                            }
+                            finally {
+                                try {
+                                    for (int i = 0; i < threads; ++i)
+                                        input.put(POISON);
+                                }
+                                catch (InterruptedException ex) {
+                                    Logger.warn("Reader interrupted!");
+                                }
+                            }
+                        }
+                    });
+                
+                for (int i = 0; i < threads; ++i) {
+                    pool.submit(new Runnable () {
+                            public void run () {
+                                MolecularFramework mf =
+                                    MolecularFramework.createMurckoInstance();
+                                mf.setGenerateAtomMapping(true);
+                                mf.setAllowBenzene(false);
+                                try {
+                                    for (Compound c; (c = input.take())
+                                             != POISON; ) {
+                                        if (!cancelled)
+                                            prepare (mf, c);
+                                        output.put(c);
+                                    }
+                                }
+                                catch (InterruptedException ex) {
+                                    Logger.warn("Worker interrupted!");
+                                }
+                                catch (Throwable t) {
+                                    Logger.error("Job "+job.id
+                                                 +": worker failed!", t);
+                                }
+                                finally {
+                                    // the writer waits for one per worker
+                                    try {
+                                        output.put(POISON);
+                                    }
+                                    catch (InterruptedException ex) {
+                                        Logger.warn("Worker interrupted!");
+                                    }
+                                }
+                            }
+                        });
+                }
+
+                write (output);
+            }
+            finally {
+                pool.shutdownNow();
+            }
+
+            job.processed = processed.get();
+            job.failed = failed.get();
+            if (cancelled) {
+                // job deleted, we remove any leftover from this job
+                job.id = null;
+                MOLIDX.remove(source);          
+                deleteDataset (job.payload);
+            }
+            else {
+                if (job.status == Job.Status.RUNNING) {
+                    job.status = Job.Status.COMPLETE;
+                    job.message = null;
+                }
+                job.update();
+                Logger.debug("Job "+job.id+"/"+job.payload.name
+                             +" finished processing "+job.processed
+                             +" entities ("+job.failed+" failed) in "
+                             +String.format("%1$.1fs", 1e-3*(System
+                             .currentTimeMillis()-start)));
+            }
+            CacheGenerations.bump(Keyword.class, ds.id);
+            
+            INDEXER.flush();
+        }
+
+        void read (BlockingQueue<Compound> input) throws Exception {
+            MolImporter mi = new MolImporter
+                (PayloadFactory.getStream(job.payload));
+            mi.setGrabbingEnabled(true);
+            try {
+                int index = 0;
                 do {
                     try {
-                        process (mi);
+                        for (Molecule mol = new Molecule ();
+                             !cancelled && mi.read(mol);
+                             mol = new Molecule ()) {
+                            input.put(new Compound
+                                      (index++, mol,
+                                       mi.getGrabbedMoleculeString()));
+                        }
+                    }
+                    catch (InterruptedException ex) {
+                        throw ex;
                     }
                     catch (Exception ex) {
-                        ++job.failed;
+                        failed.incrementAndGet();
                         Logger.error("Can't process payload: "
                                      +job.payload.name, ex);
-                        ex.printStackTrace();
                     }
                 }
-                while (mi.skipToNext());
-
+                while (!cancelled && mi.skipToNext());
+            }
+            finally {
                 mi.close();
-                job.status = Job.Status.COMPLETE;
-                job.message = null;
             }
-            catch (Exception ex) {
-                job.message = ex.getMessage();
-                job.status = Job.Status.FAILED;
-                Logger.error("Job "+job.id+" for payload "+job.payload.name
-                             +" failed!", ex);
-                ex.printStackTrace();
+        }
+
+        void write (BlockingQueue<Compound> output) throws Exception {
+            List<Compound> batch = new ArrayList<>();
+            checkpoint = System.currentTimeMillis();
+            for (int done = 0; done < threads; ) {
+                Compound c = output.poll(report, TimeUnit.MILLISECONDS);
+                if (c == POISON)
+                    ++done;
+                else if (c != null && !cancelled)
+                    batch.add(c);
+
+                if (!batch.isEmpty() && (c == null || c == POISON
+                                         || batch.size() >= batchSize)) {
+                    persists (batch);
+                    batch.clear();
+                }
+                
+                if (System.currentTimeMillis() - checkpoint >= report)
+                    checkpoint ();
             }
-            
-            if (job.id != null) {
+        }
+
+        /*
+         * a job could be deleted while we're still processing; the
+         * update fails if so, which is when we stop and clean up
+         */
+        void checkpoint () {
+            checkpoint = System.currentTimeMillis();
+            job.processed = processed.get();
+            job.failed = failed.get();
+            try {
                 job.update();
-                Logger.debug("Job "+job.id+"/"+job.payload.name
-                             +" finished processing "+job.processed
-                             +" entities!");
+                Logger.debug(job.payload.name+": "+job.processed);
             }
-            else {
-                // job deleted, we remove any leftover from this job
-                MOLIDX.remove(source);          
-                deleteDataset (job.payload);
+            catch (Exception ex) {
+                if (null == JobFactory.getJob(job.id)) {
+                    Logger.warn("Job "+job.id+" no longer available!");
+                    cancelled = true;
+                }
+                else {
+                    Logger.error("Can't update job "+job.id, ex);
+                }
             }
-            
-            INDEXER.flush();
+            // only what depends on this dataset has to be refreshed
+            CacheGenerations.bump(Keyword.class, ds.id);
         }
 
-        void process (MolImporter mi) throws Exception {
-            for (Molecule mol = new Molecule (); mi.read(mol); ) {
-                Logger.debug("processing "
-                             +job.processed+"..."+mol.getName());
-                Text input = new Text
-                    (ORIGINAL_INPUT, mi.getGrabbedMoleculeString());
-                
-                try {
-                    Entity ent = instrument (source, mol);
-                    input.save();
-                    ent.properties.add(input);
-                    
-                    XRef xref = new XRef (job.payload);
-                    xref.properties.add(ds);
-                    xref.save();
-                    
-                    ent.links.add(xref);
-                    ent.save();
-                    /*
-                     * a job could be delete while we're still processing;
-                     * this checkpointing mechanism allows us to sync with
-                     * the database and act accordingly if the job has been
-                     * deleted.
-                     */
-                    if (job.processed++ % 100 == 0) {
+        /**
+         * All of the chemistry for a compound; nothing is saved here
+         */
+        void prepare (MolecularFramework mf, Compound c) {
+            try {
+                c.ent = instrument (mf, c);
+            }
+            catch (Exception ex) {
+                c.error = ex;
+            }
+        }
+        
+        void persists (List<Compound> batch) {
+            List<Compound> saved = new ArrayList<>();
+            List<Compound> rejected = new ArrayList<>();
+            // indexing is deferred until we know what's committed; a
+            // rollback to a savepoint doesn't undo the index updates
+            Map<Class, Set<Object>> records = new HashMap<>();
+            boolean committed = false;
+            Transaction tx = Ebean.beginTransaction();
+            try {
+                Connection con = tx.getConnection();
+                for (Compound c : batch) {
+                    if (c.error == null) {
+                        Savepoint sp = con.setSavepoint();
+                        EntityPersistAdapter.deferIndexing
+                            (c.saved = new HashMap<>());
                         try {
-                            IxCache.clearCache();
+                            persists (c);
+                            con.releaseSavepoint(sp);
+                            saved.add(c);
+                            continue;
                         }
                         catch (Exception ex) {
-                            Logger.error("Can't clear cache", ex);
-                        }
-                        
-                        if (null != JobFactory.getJob(job.id)) {
-                            job.update();
-                            Logger.debug(job.payload.name+": "+job.processed);
-                        }
-                        else {
-                            Logger.warn("Job "+job.id+" no longer available!");
-                            job.id = null;
-                            mi.close();
-                            break;
+                            con.rollback(sp);
+                            c.error = ex;
+                            c.saved = null;
                         }
                     }
+                    rejected.add(c);
+                    EntityPersistAdapter.deferIndexing(records);
+                    failed (c);
+                }
+                tx.commit();
+                committed = true;
+            }
+            catch (Exception ex) {
+                Logger.error("Job "+job.id+": batch of "+batch.size()
+                             +" compounds failed!", ex);
+                for (Compound c : saved)
+                    c.error = ex;
+                rejected.addAll(saved);
+                saved.clear();
+            }
+            finally {
+                EntityPersistAdapter.resumeIndexing();
+                Ebean.endTransaction();
+            }
+
+            if (committed) {
+                for (Compound c : saved)
+                    for (Map.Entry<Class, Set<Object>> me
+                             : c.saved.entrySet()) {
+                        Set<Object> ids = records.get(me.getKey());
+                        if (ids == null)
+                            records.put(me.getKey(), ids = new HashSet<>());
+                        ids.addAll(me.getValue());
+                    }
+                try {
+                    EntityPersistAdapter.index(records);
                 }
                 catch (Exception ex) {
-                    ++job.failed;
-                    Record rec = new Record ();
-                    rec.status = Record.Status.FAILED;
-                    rec.message = ex.getMessage();
-                    rec.properties.add(input);
-                    rec.job = job;
-                    rec.save();
-                    
-                    Logger.warn("Job "+job.id+": record "+rec.id
-                                +" failed: "+ex.getMessage());
-                    ex.printStackTrace();
+                    Logger.error("Job "+job.id+": can't index batch of "
+                                 +batch.size()+" compounds", ex);
                 }
             }
-        }
 
-        Entity instrument (String source, Molecule mol) throws Exception {
-            String name = this.name != null
-                ? mol.getProperty(this.name) : mol.getName();
-            int pos = name.indexOf(sep);
-            if (pos > 0) {
-                name = name.substring(0, pos);
+            failed.addAndGet(rejected.size());
+            if (!committed) {
+                // failed records written in the batch were rolled back
+                for (Compound c : rejected) {
+                    try {
+                        failed (c);
+                    }
+                    catch (Exception ex) {
+                        Logger.error("Job "+job.id+": can't save failed "
+                                     +"record #"+(c.index+1), ex);
+                    }
+                }
             }
-            Entity ent = new Entity (Entity.Type.Compound, name);
-        
-            List<Structure> moieties = new ArrayList<>();
-            Structure struc =
-                StructureProcessor.instrument(mol, moieties, false);
-            struc.save();
 
-            if (mol.getAtomCount() > 0) {
-                Map<String, Structure> fragments = generateFragments (struc);
-                for (Map.Entry<String, Structure> me : fragments.entrySet()) {
-                    addxref (ent, me.getValue(),
-                             KeywordFactory.registerIfAbsent
-                             (STRUCTURE_SCAFFOLD, me.getKey(), null));
-                    createScaffoldIfAbsent (me.getKey(), me.getValue());
+            for (Compound c : saved) {
+                for (Fragment f : c.fragments)
+                    scaffolds.add(f.name);
+                try {
+                    if (c.mol.getAtomCount() > 0)
+                        MOLIDX.add(source, c.original.id.toString(),
+                                   c.original.molfile);
                 }
-                
-                MOLIDX.add(source, struc.id.toString(), struc.molfile);
-            }           
+                catch (Exception ex) {
+                    Logger.error("Can't index structure "
+                                 +c.original.id, ex);
+                }
+                processed.incrementAndGet();
+            }
+        }
+
+        void persists (Compound c) {
+            Entity ent = c.ent;
+            Text input = new Text (ORIGINAL_INPUT, c.input);
+            input.save();
+            ent.properties.add(input);
+            
+            XRef xref = new XRef (job.payload);
+            xref.properties.add(ds);
+            xref.save();
+            ent.links.add(xref);
 
-            addxref (ent, struc, KeywordFactory.registerIfAbsent
-                     (STRUCTURE_TYPE, STRUCTURE_ORIGINAL, null),
+            Structure struc = c.original;
+            struc.save();
+            for (Fragment f : c.fragments) {
+                XRef ref = new XRef (struc);
+                ref.properties.add(new Text (STRUCTURE_PARENT, f.amap));
+                ref.save();
+                f.struc.links.add(ref);
+                f.struc.save();
+                addxref (ent, f.struc, f.scaffold);
+                if (!scaffolds.contains(f.name))
+                    createScaffoldIfAbsent (f);
+            }
+
+            addxref (ent, struc, original,
                      new VInt (MOIETY_COUNT,
-                               (long)(moieties.isEmpty()
-                                      ? 1 : moieties.size())),
+                               (long)(c.moieties == 0 ? 1 : c.moieties)),
                      new VInt (ATOM_COUNT, (long)struc.atomCount),
                      new VInt (BOND_COUNT, (long)struc.bondCount),
                      new VInt (STEREOCENTERS, struc.definedStereo != null ?
@@ -249,13 +538,46 @@ public class Registration extends NPCApp {
                      new VNum (MOLWT, struc.mwt)
                      );
 
+            if (c.standardized != null) {
+                c.standardized.save();
+                addxref (ent, c.standardized, standardized);
+            }
+            ent.save();
+        }
+
+        void failed (Compound c) {
+            Record rec = new Record ();
+            rec.status = Record.Status.FAILED;
+            rec.message = c.error.getMessage();
+            rec.properties.add(new Text (ORIGINAL_INPUT, c.input));
+            rec.job = Ebean.getReference(Job.class, job.id);
+            rec.save();
+            
+            Logger.warn("Job "+job.id+": record "+rec.id+" (#"+(c.index+1)
+                        +") failed: "+c.error.getMessage());
+        }
+
+        Entity instrument (MolecularFramework mf, Compound c)
+            throws Exception {
+            Molecule mol = c.mol;
+            String name = this.name != null
+                ? mol.getProperty(this.name) : mol.getName();
+            int pos = name.indexOf(sep);
+            if (pos > 0) {
+                name = name.substring(0, pos);
+            }
+            Entity ent = new Entity (Entity.Type.Compound, name);
+        
+            List<Structure> moieties = new ArrayList<>();
+            c.original = StructureProcessor.instrument(mol, moieties, false);
+            c.moieties = moieties.size();
+
+            if (mol.getAtomCount() > 0)
+                c.fragments = generateFragments (mf, c.original);
+
             if (mol.getAtomCount() < 500) {
                 // only standardize if we a small molecule
-                struc = StructureProcessor.instrument(mol);
-                struc.save();
-                addxref (ent, struc, 
-                         KeywordFactory.registerIfAbsent
-                         (STRUCTURE_TYPE, STRUCTURE_STANDARDIZED, null));
+                c.standardized = StructureProcessor.instrument(mol);
             }
 
             properties (ent, mol);
@@ -273,17 +595,16 @@ public class Registration extends NPCApp {
             return xref;
         }
 
-        Entity createScaffoldIfAbsent (String key, Structure struc) {
+        Entity createScaffoldIfAbsent (Fragment f) {
             List<Entity> entities = EntityFactory
-                .finder.where().eq("name", key).findList();
+                .finder.where().eq("name", f.name).findList();
             Entity ent;
             if (entities.isEmpty()) {
-                ent = new Entity (Entity.Type.Scaffold, key);
-                struc = StructureProcessor.clone(struc);
+                ent = new Entity (Entity.Type.Scaffold, f.name);
+                Structure struc = f.clone != null && f.clone.id == null
+                    ? f.clone : StructureProcessor.clone(f.struc);
                 struc.save();
-                addxref (ent, struc, 
-                         KeywordFactory.registerIfAbsent
-                         (STRUCTURE_TYPE, STRUCTURE_ORIGINAL, null),
+                addxref (ent, struc, original,
                          new VInt (ATOM_COUNT, (long)struc.atomCount),
                          new VInt (BOND_COUNT, (long)struc.bondCount),
                          new VInt (STEREOCENTERS, struc.definedStereo != null ?
@@ -303,6 +624,7 @@ public class Registration extends NPCApp {
             return ent;
         }
         
+
         void properties (Entity ent, Molecule mol) {
             for (int i = 0; i < mol.getPropertyCount(); ++i) {
                 String prop = mol.getPropertyKey(i);
@@ -356,8 +678,7 @@ public class Registration extends NPCApp {
                         else {
                             Logger.debug("Adding synonym \""+v+"\"");
                             if (v.length() < 64) {
-                                ent.addIfAbsent(KeywordFactory.registerIfAbsent
-                                                (name, v, null));
+                                ent.addIfAbsent(keyword (name, v));
                             }
                             else
                                 ent.addIfAbsent(new Text (name, v));
@@ -370,9 +691,7 @@ public class Registration extends NPCApp {
                         if (v == null)
                             ;
                         else if (v.length() < 255) {
-                            ent.addIfAbsent
-                                ((Value)KeywordFactory.registerIfAbsent
-                                 (name, v, null));
+                            ent.addIfAbsent((Value)keyword (name, v));
                         }
                         else
                             ent.addIfAbsent(new Text (name, v));
@@ -429,8 +748,9 @@ public class Registration extends NPCApp {
             }
         } // parse ()
 
-        Map<String, Structure> generateFragments (Structure parent) {
-            Map<String, Structure> fragments = new HashMap<>();
+        List<Fragment> generateFragments (MolecularFramework mf,
+                                          Structure parent) {
+            Map<String, Fragment> fragments = new LinkedHashMap<>();
 
             mf.setMolecule(parent.molfile);
             mf.run();
@@ -451,21 +771,19 @@ public class Registration extends NPCApp {
                         sb.append(amap[i]);
                     }
                         
-                    XRef ref = new XRef (parent);
-                    ref.properties.add
-                        (new Text (STRUCTURE_PARENT, sb.toString()));
-                    ref.save();
-                    
                     Structure struc =
                         StructureProcessor.instrument(f, null, false);
-                    struc.links.add(ref);
-                    struc.save();
-                    
-                    fragments.put(f.getName(), struc);
+                    Fragment frag = new Fragment
+                        (f.getName(), sb.toString(), struc,
+                         keyword (STRUCTURE_SCAFFOLD, f.getName()));
+                    // the first to see a scaffold prepares its entity
+                    if (claimed.add(frag.name))
+                        frag.clone = StructureProcessor.clone(struc);
+                    fragments.put(frag.name, frag);
                 }
             }
             
-            return fragments;
+            return new ArrayList<>(fragments.values());
         } // generateFragments ()
     } // MolJobPersistence
 
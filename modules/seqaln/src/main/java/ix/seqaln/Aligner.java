@@ -0,0 +1,353 @@
+package ix.seqaln;
+
+/**
+ * Banded global alignment of the subsequences implied by an HSP
+ * segment. Only the cells within a fixed band around the segment's
+ * diagonal are scored, using rolling rows and traceback buffers that
+ * are reused by each thread. Sequences are scored from upper cased
+ * byte arrays through a flat substitution table. Gaps are affine
+ * (Gotoh); a linear gap penalty is the special case of gap open
+ * equals gap extend.
+ */
+public class Aligner {
+    static final int NEG_INF = Integer.MIN_VALUE / 4;
+    public static final int BAND = 8;
+
+    // traceback bits
+    static final byte H_DIAG = 0;
+    static final byte H_UP = 1; // from F
+    static final byte H_LEFT = 2; // from E
+    static final byte F_EXTEND = 4;
+    static final byte E_EXTEND = 8;
+
+    static final String BLOSUM62_ALPHABET = "ARNDCQEGHILKMFPSTWYVBZX*";
+    static final int[][] BLOSUM62 = {
+        { 4,-1,-2,-2, 0,-1,-1, 0,-2,-1,-1,-1,-1,-2,-1, 1, 0,-3,-2, 0,-2,-1, 0,-4},
+        {-1, 5, 0,-2,-3, 1, 0,-2, 0,-3,-2, 2,-1,-3,-2,-1,-1,-3,-2,-3,-1, 0,-1,-4},
+        {-2, 0, 6, 1,-3, 0, 0, 0, 1,-3,-3, 0,-2,-3,-2, 1, 0,-4,-2,-3, 3, 0,-1,-4},
+        {-2,-2, 1, 6,-3, 0, 2,-1,-1,-3,-4,-1,-3,-3,-1, 0,-1,-4,-3,-3, 4, 1,-1,-4},
+        { 0,-3,-3,-3, 9,-3,-4,-3,-3,-1,-1,-3,-1,-2,-3,-1,-1,-2,-2,-1,-3,-3,-2,-4},
+        {-1, 1, 0, 0,-3, 5, 2,-2, 0,-3,-2, 1, 0,-3,-1, 0,-1,-2,-1,-2, 0, 3,-1,-4},
+        {-1, 0, 0, 2,-4, 2, 5,-2, 0,-3,-3, 1,-2,-3,-1, 0,-1,-3,-2,-2, 1, 4,-1,-4},
+        { 0,-2, 0,-1,-3,-2,-2, 6,-2,-4,-4,-2,-3,-3,-2, 0,-2,-2,-3,-3,-1,-2,-1,-4},
+        {-2, 0, 1,-1,-3, 0, 0,-2, 8,-3,-3,-1,-2,-1,-2,-1,-2,-2, 2,-3, 0, 0,-1,-4},
+        {-1,-3,-3,-3,-1,-3,-3,-4,-3, 4, 2,-3, 1, 0,-3,-2,-1,-3,-1, 3,-3,-3,-1,-4},
+        {-1,-2,-3,-4,-1,-2,-3,-4,-3, 2, 4,-2, 2, 0,-3,-2,-1,-2,-1, 1,-4,-3,-1,-4},
+        {-1, 2, 0,-1,-3, 1, 1,-2,-1,-3,-2, 5,-1,-3,-1, 0,-1,-3,-2,-2, 0, 1,-1,-4},
+        {-1,-1,-2,-3,-1, 0,-2,-3,-2, 1, 2,-1, 5, 0,-2,-1,-1,-1,-1, 1,-3,-1,-1,-4},
+        {-2,-3,-3,-3,-2,-3,-3,-3,-1, 0, 0,-3, 0, 6,-4,-2,-2, 1, 3,-1,-3,-3,-1,-4},
+        {-1,-2,-2,-1,-3,-1,-1,-2,-2,-3,-3,-1,-2,-4, 7,-1,-1,-4,-3,-2,-2,-1,-2,-4},
+        { 1,-1, 1, 0,-1, 0, 0, 0,-1,-2,-2, 0,-1,-2,-1, 4, 1,-3,-2,-2, 0, 0, 0,-4},
+        { 0,-1, 0,-1,-1,-1,-1,-2,-2,-1,-1,-1,-1,-2,-1, 1, 5,-2,-2, 0,-1,-1, 0,-4},
+        {-3,-3,-4,-4,-2,-2,-3,-2,-2,-3,-2,-3,-1, 1,-4,-3,-2,11, 2,-3,-4,-3,-2,-4},
+        {-2,-2,-2,-3,-2,-1,-2,-3, 2,-1,-1,-2,-1, 3,-3,-2,-2, 2, 7,-1,-3,-2,-1,-4},
+        { 0,-3,-3,-3,-1,-2,-2,-3,-3, 3, 1,-2, 1,-1,-2,-2, 0,-3,-1, 4,-3,-2,-1,-4},
+        {-2,-1, 3, 4,-3, 0, 1,-1, 0,-3,-4, 0,-3,-3,-2, 0,-1,-4,-3,-3, 4, 1,-1,-4},
+        {-1, 0, 0, 1,-3, 3, 4,-2, 0,-3,-3, 1,-1,-3,-1, 0,-1,-3,-2,-2, 1, 4,-1,-4},
+        { 0,-1,-1,-1,-2,-1,-1,-1,-1,-1,-1,-1,-1,-1,-2, 0, 0,-2,-1,-1,-1,-1,-1,-4},
+        {-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4,-4, 1}
+    };
+
+    /**
+     * Substitution scores over upper cased ascii along with the gap
+     * penalties. Gap open is the penalty of a gap of length one.
+     */
+    public static class Scoring {
+        final int[] table = new int[128*128];
+        final int gapOpen;
+        final int gapExtend;
+        final boolean identity;
+
+        Scoring (int gapOpen, int gapExtend, boolean identity) {
+            if (gapOpen > 0 || gapExtend > 0)
+                throw new IllegalArgumentException
+                    ("Gap penalties must not be positive");
+            this.gapOpen = gapOpen;
+            this.gapExtend = gapExtend;
+            this.identity = identity;
+        }
+
+        int score (byte a, byte b) { return table[(a << 7) | b]; }
+
+        public int getGapOpen () { return gapOpen; }
+        public int getGapExtend () { return gapExtend; }
+
+        /**
+         * whether the score is the number of matches less the gap
+         * penalties, i.e., comparable with the sequence length
+         */
+        public boolean isIdentity () { return identity; }
+    }
+
+    /**
+     * Match/mismatch scoring with linear gap
+     */
+    public static Scoring identity (int match, int mismatch, int gap) {
+        Scoring scoring = new Scoring (gap, gap, true);
+        for (int a = 0; a < 128; ++a)
+            for (int b = 0; b < 128; ++b)
+                scoring.table[(a << 7) | b] = a == b ? match : mismatch;
+        return scoring;
+    }
+
+    public static Scoring blosum62 () {
+        return blosum62 (-11, -1);
+    }
+
+    public static Scoring blosum62 (int gapOpen, int gapExtend) {
+        Scoring scoring = new Scoring (gapOpen, gapExtend, false);
+        int x = BLOSUM62_ALPHABET.indexOf('X');
+        int[] index = new int[128];
+        for (int a = 0; a < 128; ++a) {
+            int i = BLOSUM62_ALPHABET.indexOf(a);
+            index[a] = i < 0 ? x : i;
+        }
+        for (int a = 0; a < 128; ++a)
+            for (int b = 0; b < 128; ++b)
+                scoring.table[(a << 7) | b] = BLOSUM62[index[a]][index[b]];
+        return scoring;
+    }
+
+    public static final Scoring IDENTITY = identity (1, 0, -1);
+
+    /**
+     * Upper case the sequence into ascii bytes suitable for scoring
+     */
+    public static byte[] encode (CharSequence seq) {
+        byte[] b = new byte[seq.length()];
+        for (int i = 0; i < b.length; ++i) {
+            char ch = Character.toUpperCase(seq.charAt(i));
+            b[i] = ch < 128 ? (byte)ch : (byte)'?';
+        }
+        return b;
+    }
+
+    static class Workspace {
+        int[] h = new int[0], hp = new int[0];
+        int[] f = new int[0];
+        byte[] trace = new byte[0];
+        char[] qa = new char[0], qs = new char[0], qq = new char[0];
+
+        void ensure (int width, int cells, int len) {
+            if (h.length < width) {
+                h = new int[width];
+                hp = new int[width];
+                f = new int[width];
+            }
+            if (trace.length < cells)
+                trace = new byte[Math.max(cells, trace.length*2)];
+            if (qa.length < len) {
+                qa = new char[len];
+                qs = new char[len];
+                qq = new char[len];
+            }
+        }
+    }
+
+    static final ThreadLocal<Workspace> WORKSPACE =
+        new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue () {
+                return new Workspace ();
+            }
+        };
+
+    final Scoring scoring;
+    final int band;
+
+    public Aligner () {
+        this (IDENTITY, BAND);
+    }
+
+    public Aligner (Scoring scoring, int band) {
+        if (scoring == null)
+            throw new IllegalArgumentException ("Scoring is null");
+        if (band < 0)
+            throw new IllegalArgumentException ("Bogus band "+band);
+        this.scoring = scoring;
+        this.band = band;
+    }
+
+    public Scoring getScoring () { return scoring; }
+    public int getBand () { return band; }
+
+    /**
+     * Global alignment of query[seg.qi,seg.qj) and target[seg.ti,seg.tj);
+     * qb and tb are the encoded query and target respectively
+     */
+    public SequenceIndexer.Alignment align
+        (SequenceIndexer.SEG seg, String query, byte[] qb,
+         String target, byte[] tb) {
+        final int m = seg.qj - seg.qi;
+        final int n = seg.tj - seg.ti;
+        final int qo = seg.qi, to = seg.ti;
+        final int open = scoring.gapOpen, ext = scoring.gapExtend;
+        final int[] table = scoring.table;
+
+        // band of diagonals d = j - i over [lo, hi]
+        final int lo = Math.max(-m, Math.min(0, n - m) - band);
+        final int hi = Math.min(n, Math.max(0, n - m) + band);
+        final int W = hi - lo + 1;
+
+        Workspace ws = WORKSPACE.get();
+        ws.ensure(W + 2, (m+1)*W, m + n);
+        int[] H = ws.h, P = ws.hp, F = ws.f;
+        byte[] T = ws.trace;
+
+        // row 0; band index c = j - i - lo
+        for (int c = 0; c < W; ++c) {
+            int j = c + lo;
+            F[c] = NEG_INF;
+            if (j < 0 || j > n) {
+                P[c] = NEG_INF;
+            }
+            else if (j == 0) {
+                P[c] = 0;
+                T[c] = H_DIAG;
+            }
+            else {
+                P[c] = open + (j-1)*ext;
+                T[c] = (byte)(H_LEFT | (j > 1 ? E_EXTEND : 0));
+            }
+        }
+        P[W] = F[W] = NEG_INF;
+
+        for (int i = 1; i <= m; ++i) {
+            final int row = i*W;
+            final int a = qb[qo+i-1] << 7;
+            int e = NEG_INF, hleft = NEG_INF;
+            for (int c = 0; c < W; ++c) {
+                int j = i + lo + c;
+                if (j < 0 || j > n) {
+                    H[c] = F[c] = NEG_INF;
+                    hleft = e = NEG_INF;
+                    continue;
+                }
+
+                byte tr;
+                if (j == 0) {
+                    int v = open + (i-1)*ext;
+                    H[c] = F[c] = v;
+                    T[row+c] = (byte)(H_UP | (i > 1 ? F_EXTEND : 0));
+                    hleft = v;
+                    e = NEG_INF;
+                    continue;
+                }
+
+                // E: gap in query (left)
+                int eo = hleft + open, ee = e + ext;
+                if (ee > eo) {
+                    e = ee;
+                    tr = E_EXTEND;
+                }
+                else {
+                    e = eo;
+                    tr = 0;
+                }
+
+                // F: gap in target (up); H[i-1][j] is at c+1
+                int fo = P[c+1] + open, fe = F[c+1] + ext;
+                int f;
+                if (fe > fo) {
+                    f = fe;
+                    tr |= F_EXTEND;
+                }
+                else {
+                    f = fo;
+                }
+
+                // diagonal; H[i-1][j-1] is at c
+                int h = P[c] + table[a | tb[to+j-1]];
+                if (h >= f && h >= e) {
+                    tr |= H_DIAG;
+                }
+                else if (f >= e) {
+                    h = f;
+                    tr |= H_UP;
+                }
+                else {
+                    h = e;
+                    tr |= H_LEFT;
+                }
+
+                H[c] = h;
+                F[c] = f;
+                T[row+c] = tr;
+                hleft = h;
+            }
+            H[W] = NEG_INF;
+            F[W] = NEG_INF;
+
+            int[] t = P;
+            P = H;
+            H = t;
+        }
+
+        final int score = P[n - m - lo];
+
+        // traceback from (m, n)
+        char[] qa = ws.qa, qs = ws.qs, qq = ws.qq;
+        int len = 0, matches = 0;
+        int i = m, j = n;
+        int state = H_DIAG;
+        while (i > 0 || j > 0) {
+            byte tr = T[i*W + (j - i - lo)];
+            if (state == H_DIAG) {
+                state = tr & 3;
+                if (state == H_DIAG) {
+                    char ca = query.charAt(qo+i-1);
+                    char cb = target.charAt(to+j-1);
+                    boolean matched = qb[qo+i-1] == tb[to+j-1];
+                    qa[len] = ca;
+                    qs[len] = cb;
+                    qq[len] = matched ? '|' : ' ';
+                    if (matched)
+                        ++matches;
+                    ++len;
+                    --i;
+                    --j;
+                }
+                continue;
+            }
+
+            if (state == H_UP) {
+                qa[len] = query.charAt(qo+i-1);
+                qs[len] = '-';
+                qq[len] = ' ';
+                ++len;
+                if ((tr & F_EXTEND) == 0)
+                    state = H_DIAG;
+                --i;
+            }
+            else {
+                qa[len] = '-';
+                qs[len] = target.charAt(to+j-1);
+                qq[len] = ' ';
+                ++len;
+                if ((tr & E_EXTEND) == 0)
+                    state = H_DIAG;
+                --j;
+            }
+        }
+
+        String sa = reverse (qa, len);
+        String ss = reverse (qs, len);
+        String sq = reverse (qq, len);
+        double iden = (double)(scoring.identity ? score : matches)
+            / Math.max(m, n);
+
+        return new SequenceIndexer.Alignment
+            (seg, sa, ss,
+             sa+String.format("%1$5d - %2$d", seg.qi, seg.qj)
+             +"\n"+sq+"\n"
+             +ss+String.format("%1$5d - %2$d", seg.ti, seg.tj),
+             score, iden, matches);
+    }
+
+    static String reverse (char[] buf, int len) {
+        char[] r = new char[len];
+        for (int k = 0, l = len-1; k < len; ++k, --l)
+            r[k] = buf[l];
+        return new String (r);
+    }
+}
@@ -0,0 +1,659 @@
+package ix.seqaln;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A dedicated k-mer inverted index. Each k-mer is encoded as an int
+ * over a 27 letter alphabet (A-Z plus one code for everything else)
+ * and maps to a posting list of (sequence ordinal, positions) that is
+ * delta and variable byte encoded. Postings are buffered in memory and
+ * flushed into immutable segment files that are memory-mapped for
+ * searching. Sequences are identified internally by ordinal, the order
+ * in which they're added. A manifest, replaced atomically on each
+ * commit, lists the live segments and the number of committed ids;
+ * anything else found in the directory is left over from a crash and
+ * ignored (or removed when opened for writing).
+ */
+public class KmerIndex {
+    static final int MAGIC = 0x4b4d5831; // KMX1
+    static final int MANIFEST_MAGIC = 0x4b4d4d31; // KMM1
+    static final int ALPHABET = 27;
+    // positions are packed into 21 bits when accumulating hits
+    static final int POS_BITS = 21;
+    static final long POS_MASK = (1l << POS_BITS) - 1;
+    public static final int MAX_LENGTH = 1 << POS_BITS;
+
+    static final String IDS_FILE = "ids";
+    static final String MANIFEST_FILE = "manifest";
+    static final String SEGMENT_PREFIX = "seg_";
+    static final String SEGMENT_SUFFIX = ".kmx";
+
+    public static final long FLUSH_THRESHOLD = 32l*1024*1024; // bytes
+    public static final int MAX_SEGMENTS = 8;
+
+    /**
+     * Growable byte array with variable byte encoding
+     */
+    static class ByteBuf {
+        byte[] buf = new byte[16];
+        int size;
+
+        void writeVInt (int v) {
+            if (size + 5 > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length*2, size+5));
+            while ((v & ~0x7f) != 0) {
+                buf[size++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte)v;
+        }
+    }
+
+    /**
+     * Cursor over a variable byte encoded posting list
+     */
+    static abstract class Postings {
+        int pos, end;
+
+        abstract byte get (int i);
+
+        boolean hasNext () { return pos < end; }
+        int readVInt () {
+            byte b = get (pos++);
+            int v = b & 0x7f;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = get (pos++);
+                v |= (b & 0x7f) << shift;
+            }
+            return v;
+        }
+    }
+
+    static class BufPostings extends Postings {
+        final byte[] buf;
+        BufPostings (ByteBuf buf) {
+            this.buf = buf.buf;
+            this.end = buf.size;
+        }
+        byte get (int i) { return buf[i]; }
+    }
+
+    static class Segment {
+        final File file;
+        final int id;
+        final MappedByteBuffer data;
+        final int base; // start of postings data
+        final int ncodes;
+
+        Segment (File file, int id, int ncodes) throws IOException {
+            this.file = file;
+            this.id = id;
+            try (RandomAccessFile raf = new RandomAccessFile (file, "r");
+                 FileChannel fc = raf.getChannel()) {
+                data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            }
+            if (data.getInt(0) != MAGIC)
+                throw new IOException ("Not a k-mer segment: "+file);
+            if (data.getInt(4) != ncodes)
+                throw new IOException ("Segment "+file+" has "
+                                       +data.getInt(4)+" codes; expecting "
+                                       +ncodes);
+            this.ncodes = ncodes;
+            this.base = 8 + 4*(ncodes+1);
+        }
+
+        Postings postings (int code) {
+            final int start = data.getInt(8 + 4*code);
+            final int end = data.getInt(8 + 4*(code+1));
+            Postings p = new Postings () {
+                    byte get (int i) { return data.get(base+i); }
+                };
+            p.pos = start;
+            p.end = end;
+            return p;
+        }
+    }
+
+    /**
+     * Primitive hit accumulator keyed by sequence ordinal. Each hit is
+     * packed into a long as (|i-j|, i, j) where i and j are the query
+     * and target positions respectively so that sorting the packed
+     * values orders the hits by diagonal.
+     */
+    public static class Hits {
+        final long[][] hits;
+        final int[] counts;
+        int[] ordinals = new int[64];
+        int size;
+
+        Hits (int nseqs) {
+            hits = new long[nseqs][];
+            counts = new int[nseqs];
+        }
+
+        void add (int ord, int i, int j) {
+            long[] h = hits[ord];
+            int n = counts[ord];
+            if (h == null) {
+                hits[ord] = h = new long[8];
+                if (size == ordinals.length)
+                    ordinals = Arrays.copyOf(ordinals, size*2);
+                ordinals[size++] = ord;
+            }
+            else if (n == h.length) {
+                hits[ord] = h = Arrays.copyOf(h, n*2);
+            }
+            h[n] = pack (i, j);
+            counts[ord] = n+1;
+        }
+
+        /**
+         * number of sequences with at least one hit
+         */
+        public int size () { return size; }
+        public int ordinal (int k) { return ordinals[k]; }
+        public int count (int ord) { return counts[ord]; }
+
+        /**
+         * packed hits for the given ordinal sorted by diagonal; only
+         * the first count(ord) values are valid
+         */
+        public long[] hits (int ord) {
+            long[] h = hits[ord];
+            if (h != null)
+                Arrays.sort(h, 0, counts[ord]);
+            return h;
+        }
+    }
+
+    public static long pack (int i, int j) {
+        return ((long)Math.abs(i - j) << (2*POS_BITS))
+            | ((long)i << POS_BITS) | j;
+    }
+    public static int queryPos (long hit) {
+        return (int)((hit >>> POS_BITS) & POS_MASK);
+    }
+    public static int targetPos (long hit) {
+        return (int)(hit & POS_MASK);
+    }
+    public static int diagonal (long hit) {
+        return (int)(hit >>> (2*POS_BITS));
+    }
+
+    final File dir;
+    final boolean readOnly;
+    final int K;
+    final int ncodes;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock ();
+    final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    final List<String> ids = new ArrayList<String>();
+
+    ByteBuf[] buffer; // in memory postings per code
+    int[] lastOrd; // last ordinal written per code in the buffer
+    long buffered; // bytes
+    int nextSegment;
+    FileOutputStream idsFile;
+    DataOutputStream idsOut;
+    long flushThreshold = FLUSH_THRESHOLD;
+
+    public KmerIndex (File dir, boolean readOnly) throws IOException {
+        this (dir, readOnly, 3);
+    }
+
+    public KmerIndex (File dir, boolean readOnly, int K) throws IOException {
+        if (K <= 0 || Math.pow(ALPHABET, K) > Integer.MAX_VALUE/4)
+            throw new IllegalArgumentException ("Bogus K value "+K);
+
+        this.dir = dir;
+        this.readOnly = readOnly;
+        this.K = K;
+        int n = 1;
+        for (int i = 0; i < K; ++i)
+            n *= ALPHABET;
+        this.ncodes = n;
+
+        if (!readOnly)
+            dir.mkdirs();
+        else if (!dir.exists())
+            return; // nothing indexed yet
+        if (!dir.isDirectory())
+            throw new IllegalArgumentException ("Not a directory: "+dir);
+
+        File idf = new File (dir, IDS_FILE);
+        if (idf.exists()) {
+            try (DataInputStream dis = new DataInputStream
+                 (new BufferedInputStream (new FileInputStream (idf)))) {
+                for (;;)
+                    ids.add(dis.readUTF());
+            }
+            catch (EOFException ex) {
+                // done (possibly a partial id from a crash)
+            }
+        }
+
+        File[] files = dir.listFiles(new FilenameFilter () {
+                public boolean accept (File d, String name) {
+                    return name.startsWith(SEGMENT_PREFIX);
+                }
+            });
+        Map<Integer, File> found = new TreeMap<Integer, File>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SEGMENT_SUFFIX))
+                found.put(Integer.parseInt
+                          (name.substring(SEGMENT_PREFIX.length(),
+                                          name.length()
+                                          - SEGMENT_SUFFIX.length())), f);
+            else if (!readOnly)
+                f.delete(); // partially written
+        }
+
+        Collection<Integer> live = found.keySet();
+        int committed = ids.size();
+        File mf = new File (dir, MANIFEST_FILE);
+        if (mf.exists()) {
+            try (DataInputStream dis = new DataInputStream
+                 (new BufferedInputStream (new FileInputStream (mf)))) {
+                if (dis.readInt() != MANIFEST_MAGIC || dis.readInt() != ncodes)
+                    throw new IOException ("Bogus manifest: "+mf);
+                committed = dis.readInt();
+                live = new ArrayList<Integer>();
+                for (int nsegs = dis.readInt(); --nsegs >= 0; )
+                    live.add(dis.readInt());
+            }
+            if (committed > ids.size())
+                throw new IOException
+                    ("Manifest has "+committed+" ids but only "+ids.size()
+                     +" are available: "+idf);
+        }
+
+        for (Map.Entry<Integer, File> me : found.entrySet()) {
+            int id = me.getKey();
+            if (live.contains(id))
+                segments.add(new Segment (me.getValue(), id, ncodes));
+            else if (!readOnly)
+                me.getValue().delete(); // e.g., merged but not yet removed
+            nextSegment = Math.max(nextSegment, id+1);
+        }
+        if (segments.size() != live.size())
+            throw new IOException ("Missing segment(s) in "+dir);
+
+        // ids past the last commit have no postings
+        boolean truncate = ids.size() > committed;
+        while (ids.size() > committed)
+            ids.remove(ids.size()-1);
+
+        if (!readOnly) {
+            if (truncate)
+                writeIds (idf);
+            idsFile = new FileOutputStream (idf, true);
+            idsOut = new DataOutputStream
+                (new BufferedOutputStream (idsFile));
+            resetBuffer ();
+            if (!mf.exists())
+                writeManifest ();
+        }
+    }
+
+    void writeIds (File idf) throws IOException {
+        File tmp = new File (dir, IDS_FILE+".tmp");
+        try (FileOutputStream fos = new FileOutputStream (tmp)) {
+            DataOutputStream dos = new DataOutputStream
+                (new BufferedOutputStream (fos));
+            for (String id : ids)
+                dos.writeUTF(id);
+            dos.flush();
+            fos.getFD().sync();
+        }
+        replace (tmp, idf);
+    }
+
+    /**
+     * Record the committed state; the ids must have been synced and
+     * the segments written by now
+     */
+    void writeManifest () throws IOException {
+        File tmp = new File (dir, MANIFEST_FILE+".tmp");
+        try (FileOutputStream fos = new FileOutputStream (tmp)) {
+            DataOutputStream dos = new DataOutputStream
+                (new BufferedOutputStream (fos));
+            dos.writeInt(MANIFEST_MAGIC);
+            dos.writeInt(ncodes);
+            dos.writeInt(ids.size());
+            dos.writeInt(segments.size());
+            for (Segment seg : segments)
+                dos.writeInt(seg.id);
+            dos.flush();
+            fos.getFD().sync();
+        }
+        replace (tmp, new File (dir, MANIFEST_FILE));
+    }
+
+    void replace (File src, File dst) throws IOException {
+        Files.move(src.toPath(), dst.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        // make the rename itself durable
+        try (FileChannel fc = FileChannel.open
+             (dir.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        }
+        catch (IOException ex) {
+            // not supported on this platform
+        }
+    }
+
+    void resetBuffer () {
+        buffer = new ByteBuf[ncodes];
+        lastOrd = new int[ncodes];
+        buffered = 0l;
+    }
+
+    /**
+     * Whether anything has ever been committed to the given directory
+     */
+    public static boolean exists (File dir) {
+        return new File (dir, MANIFEST_FILE).exists()
+            || new File (dir, IDS_FILE).exists();
+    }
+
+    public int getK () { return K; }
+    public File getDir () { return dir; }
+
+    public void setFlushThreshold (long flushThreshold) {
+        if (flushThreshold <= 0l)
+            throw new IllegalArgumentException
+                ("Bogus flush threshold "+flushThreshold);
+        this.flushThreshold = flushThreshold;
+    }
+    public long getFlushThreshold () { return flushThreshold; }
+
+    public int size () {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getId (int ord) {
+        lock.readLock().lock();
+        try {
+            return ids.get(ord);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount () { return segments.size(); }
+
+    static int code (char ch) {
+        ch = Character.toUpperCase(ch);
+        return ch >= 'A' && ch <= 'Z' ? ch - 'A' + 1 : 0;
+    }
+
+    /**
+     * Encode every k-mer of the sequence as (code << POS_BITS | pos)
+     * sorted by code and then by position
+     */
+    long[] encode (CharSequence seq) {
+        int len = seq.length() - K + 1;
+        if (len <= 0)
+            return new long[0];
+        if (seq.length() > MAX_LENGTH)
+            throw new IllegalArgumentException
+                ("Sequence is too long ("+seq.length()+"); max length is "
+                 +MAX_LENGTH);
+
+        long[] kmers = new long[len];
+        int mod = ncodes / ALPHABET;
+        int code = 0;
+        for (int i = 0; i < K - 1; ++i)
+            code = code * ALPHABET + code (seq.charAt(i));
+        for (int i = 0; i < len; ++i) {
+            code = (code % mod) * ALPHABET + code (seq.charAt(i+K-1));
+            kmers[i] = ((long)code << POS_BITS) | i;
+        }
+        Arrays.sort(kmers);
+        return kmers;
+    }
+
+    /**
+     * Add a sequence and return its ordinal
+     */
+    public int add (String id, CharSequence seq) throws IOException {
+        if (readOnly)
+            throw new IllegalStateException ("Index is read-only!");
+
+        long[] kmers = encode (seq);
+        lock.writeLock().lock();
+        try {
+            int ord = ids.size();
+            for (int i = 0; i < kmers.length; ) {
+                int code = (int)(kmers[i] >>> POS_BITS);
+                int j = i;
+                while (j < kmers.length
+                       && (int)(kmers[j] >>> POS_BITS) == code)
+                    ++j;
+
+                ByteBuf buf = buffer[code];
+                if (buf == null)
+                    buffer[code] = buf = new ByteBuf ();
+                int size = buf.size;
+                buf.writeVInt(ord - lastOrd[code]);
+                buf.writeVInt(j - i);
+                for (int k = i, prev = 0; k < j; ++k) {
+                    int pos = (int)(kmers[k] & POS_MASK);
+                    buf.writeVInt(pos - prev);
+                    prev = pos;
+                }
+                lastOrd[code] = ord;
+                buffered += buf.size - size;
+                i = j;
+            }
+
+            ids.add(id);
+            idsOut.writeUTF(id);
+
+            if (buffered >= flushThreshold)
+                flush ();
+
+            return ord;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the in-memory postings out as a new segment
+     */
+    public void commit () throws IOException {
+        if (readOnly)
+            return;
+
+        lock.writeLock().lock();
+        try {
+            flush ();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // must be called with the write lock held
+    void flush () throws IOException {
+        idsOut.flush();
+        idsFile.getFD().sync();
+        if (buffered > 0l) {
+            Postings[] postings = new Postings[ncodes];
+            for (int c = 0; c < ncodes; ++c)
+                if (buffer[c] != null)
+                    postings[c] = new BufPostings (buffer[c]);
+            // the buffer encodes ordinals relative to the start of the
+            // buffer, which is the same as what a segment does
+            segments.add(writeSegment (new Postings[][]{ postings }));
+            resetBuffer ();
+        }
+        writeManifest ();
+
+        if (segments.size() > MAX_SEGMENTS)
+            merge ();
+    }
+
+    /**
+     * Merge all segments into a single one
+     */
+    public void merge () throws IOException {
+        if (readOnly)
+            throw new IllegalStateException ("Index is read-only!");
+        
+        lock.writeLock().lock();
+        try {
+            if (segments.size() < 2)
+                return;
+
+            List<Segment> old = new ArrayList<Segment>(segments);
+            Postings[][] postings = new Postings[old.size()][ncodes];
+            for (int s = 0; s < old.size(); ++s)
+                for (int c = 0; c < ncodes; ++c)
+                    postings[s][c] = old.get(s).postings(c);
+            Segment seg = writeSegment (postings);
+
+            segments.clear();
+            segments.add(seg);
+            // the old segments are garbage only once this is durable
+            writeManifest ();
+            for (Segment s : old)
+                if (!s.file.delete())
+                    s.file.deleteOnExit();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write one segment out of the given sources of postings; the
+     * postings within each source are delta encoded from ordinal 0 and
+     * the sources are in ordinal order.
+     */
+    Segment writeSegment (Postings[][] sources) throws IOException {
+        int id = nextSegment++;
+        File tmp = new File (dir, SEGMENT_PREFIX+id+".tmp");
+        File file = new File (dir, SEGMENT_PREFIX+id+SEGMENT_SUFFIX);
+
+        int header = 8 + 4*(ncodes+1);
+        ByteBuffer offsets = ByteBuffer.allocate(header);
+        offsets.putInt(MAGIC);
+        offsets.putInt(ncodes);
+        try (FileChannel fc = new RandomAccessFile (tmp, "rw").getChannel()) {
+            fc.truncate(0l);
+            fc.position(header);
+            // channel streams aren't buffered
+            OutputStream os = new BufferedOutputStream
+                (Channels.newOutputStream(fc), 1<<16);
+            ByteBuf buf = new ByteBuf ();
+            long total = 0l;
+            for (int c = 0; c < ncodes; ++c) {
+                offsets.putInt((int)total);
+                buf.size = 0;
+                int prev = 0;
+                for (Postings[] src : sources) {
+                    Postings p = src[c];
+                    if (p == null)
+                        continue;
+                    int ord = 0;
+                    while (p.hasNext()) {
+                        ord += p.readVInt();
+                        int npos = p.readVInt();
+                        buf.writeVInt(ord - prev);
+                        buf.writeVInt(npos);
+                        for (int k = 0; k < npos; ++k)
+                            buf.writeVInt(p.readVInt());
+                        prev = ord;
+                    }
+                }
+                os.write(buf.buf, 0, buf.size);
+                total += buf.size;
+                if (total > Integer.MAX_VALUE - header)
+                    throw new IOException ("Segment is too large!");
+            }
+            offsets.putInt((int)total);
+            os.flush();
+
+            offsets.flip();
+            fc.write(offsets, 0l);
+            fc.force(true);
+        }
+
+        if (!tmp.renameTo(file))
+            throw new IOException ("Can't rename "+tmp+" to "+file);
+
+        return new Segment (file, id, ncodes);
+    }
+
+    /**
+     * Find all k-mer hits between the query and the indexed sequences
+     */
+    public Hits search (CharSequence query) {
+        long[] kmers = encode (query);
+        lock.readLock().lock();
+        try {
+            Hits hits = new Hits (ids.size());
+
+            for (int i = 0; i < kmers.length; ) {
+                int code = (int)(kmers[i] >>> POS_BITS);
+                int j = i;
+                while (j < kmers.length
+                       && (int)(kmers[j] >>> POS_BITS) == code)
+                    ++j;
+
+                for (Segment seg : segments)
+                    collect (hits, seg.postings(code), kmers, i, j);
+                if (buffer != null && buffer[code] != null)
+                    collect (hits, new BufPostings (buffer[code]),
+                             kmers, i, j);
+                i = j;
+            }
+            return hits;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static void collect (Hits hits, Postings p, long[] kmers, int from, int to) {
+        int ord = 0;
+        while (p.hasNext()) {
+            ord += p.readVInt();
+            int npos = p.readVInt();
+            for (int k = 0, pos = 0; k < npos; ++k) {
+                pos += p.readVInt();
+                for (int q = from; q < to; ++q)
+                    hits.add(ord, (int)(kmers[q] & POS_MASK), pos);
+            }
+        }
+    }
+
+    public void close () throws IOException {
+        if (!readOnly && idsOut != null) {
+            commit ();
+            idsOut.close();
+        }
+        segments.clear();
+    }
+}
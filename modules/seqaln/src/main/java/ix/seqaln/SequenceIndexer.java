@@ -6,6 +6,7 @@ import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.StringField;
@@ -28,6 +29,7 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
@@ -41,6 +43,7 @@ import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.NoLockFactory;
 import org.apache.lucene.util.Version;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Bits;
 
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.Analyzer;
@@ -48,6 +51,7 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.DisjunctionMaxQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.BooleanQuery;
@@ -72,6 +76,9 @@ import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.Statistics;
 
 public class SequenceIndexer {
+    private static final Logger logger =
+        Logger.getLogger(SequenceIndexer.class.getName());
+
     static final String CACHE_NAME =
         SequenceIndexer.class.getName()+".Cache";
     static final Version LUCENE_VERSION = Version.LATEST;
@@ -79,32 +86,6 @@ public class SequenceIndexer {
     static final CacheManager CACHE_MANAGER = CacheManager.getInstance();
     static final Ehcache CACHE = CACHE_MANAGER.addCacheIfAbsent(CACHE_NAME);
 
-    static class HSP implements Comparable<HSP> {
-        public String kmer;
-        public int i, j;
-
-        HSP (String kmer, int i, int j) {
-            this.kmer = kmer;
-            this.i = i;
-            this.j = j;
-        }
-        public int gap () { return Math.abs(i - j); }
-        public String toString () { return kmer+"["+i+","+j+"]"; }
-        public int compareTo (HSP hsp) {
-            int d = gap () - hsp.gap();
-            if (d == 0) {
-                d = i - hsp.i;
-            }
-            if (d == 0) {
-                d = j - hsp.j;
-            }
-            if (d == 0) {
-                d = kmer.compareTo(hsp.kmer);
-            }
-            return d;
-        }
-    }
-
     public static class SEG implements Comparable<SEG>, Serializable {
         public int qi, qj;
         public int ti, tj;
@@ -164,16 +145,18 @@ public class SequenceIndexer {
         public final String alignment; // full alignment string
         public final int score;
         public final double iden;
+        public final int matches; // number of identical positions
 
         Alignment (SEG segment,
                    String query, String target,
-                   String alignment, int score, double iden) {
+                   String alignment, int score, double iden, int matches) {
             this.segment = segment;
             this.query = query;
             this.target = target;
             this.alignment = alignment;
             this.score = score;
             this.iden = iden;
+            this.matches = matches;
         }
         
         public int compareTo (Alignment aln) {
@@ -200,6 +183,7 @@ public class SequenceIndexer {
         public final String id;
         public final CharSequence target;
         public final List<Alignment> alignments = new ArrayList<Alignment>();
+        public double score; // best alignment score relative to length
 
         Result () {
             query = null;
@@ -214,6 +198,8 @@ public class SequenceIndexer {
     }
 
     static final Result POISON_RESULT = new Result ();
+    // aligners are immutable and keep their workspace per thread
+    static final Aligner DEFAULT_ALIGNER = new Aligner ();
 
     public static class ResultEnumeration implements Enumeration<Result> {
         final BlockingQueue<Result> queue;
@@ -255,17 +241,35 @@ public class SequenceIndexer {
 
     private File baseDir;
     private Directory indexDir;
-    private Directory kmerDir;    
     private IndexWriter indexWriter;
-    private IndexWriter kmerWriter;    
-    private DirectoryReader _kmerReader;
-    private DirectoryReader _indexReader;    
+    private KmerIndex kmerIndex;
+    private SearcherManager searcherManager;
     private Analyzer indexAnalyzer;
 
     private ExecutorService threadPool;
+    private ForkJoinPool forkJoin = acquireForkJoin ();
     private boolean localThreadPool = false;
 
+    // alignment pool shared by all instances; shut down with the last one
+    private static ForkJoinPool sharedForkJoin;
+    private static int forkJoinUsers;
+
+    static synchronized ForkJoinPool acquireForkJoin () {
+        if (sharedForkJoin == null)
+            sharedForkJoin = new ForkJoinPool ();
+        ++forkJoinUsers;
+        return sharedForkJoin;
+    }
+
+    static synchronized void releaseForkJoin () {
+        if (--forkJoinUsers == 0) {
+            sharedForkJoin.shutdown();
+            sharedForkJoin = null;
+        }
+    }
+
     private AtomicLong lastModified = new AtomicLong (0);
+    private volatile Aligner aligner = new Aligner ();
     
     public static SequenceIndexer openReadOnly (File dir) throws IOException {
         return new SequenceIndexer (dir);
@@ -296,31 +300,87 @@ public class SequenceIndexer {
         File index = new File (dir, "index");
         if (!index.exists())
             index.mkdirs();
-        File kmer = new File (dir, "kmer");
-        if (!kmer.exists())
-            kmer.mkdirs();
 
         indexAnalyzer = createIndexAnalyzer ();
         indexDir = new NIOFSDirectory(index, NoLockFactory.getNoLockFactory());
-        kmerDir = new NIOFSDirectory (kmer, NoLockFactory.getNoLockFactory());
         if (!readOnly) {
             indexWriter = new IndexWriter (indexDir, new IndexWriterConfig 
                                            (LUCENE_VERSION, indexAnalyzer));
-            kmerWriter = new IndexWriter
-                (kmerDir, new IndexWriterConfig
-                 (LUCENE_VERSION, indexAnalyzer));
-            _kmerReader = DirectoryReader.open(kmerWriter, true);
-            _indexReader = DirectoryReader.open(indexWriter, true);
+            searcherManager = new SearcherManager (indexWriter, true, null);
         }
         else {
-            _kmerReader = DirectoryReader.open(kmerDir);
-            _indexReader = DirectoryReader.open(indexDir);
+            searcherManager = new SearcherManager (indexDir, null);
         }
+
+        File kmers = new File (dir, "kmers");
+        if (readOnly && !KmerIndex.exists(kmers)) {
+            logger.warning(kmers+": no k-mer index; open the index for "
+                           +"writing to rebuild it");
+        }
+        else if (!KmerIndex.exists(kmers)) {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                if (searcher.getIndexReader().numDocs() > 0)
+                    rebuildKmers (kmers, searcher.getIndexReader());
+            }
+            finally {
+                searcherManager.release(searcher);
+            }
+        }
+        kmerIndex = new KmerIndex (kmers, readOnly);
         
         this.baseDir = dir;
         this.threadPool = threadPool;   
     }
 
+    /**
+     * K-mer postings used to live in a lucene index under "kmer"; the
+     * new index is built once from the sequences stored in the main
+     * index. It's built aside and moved in place when done, so a crash
+     * along the way just means starting over; the old index is removed
+     * only then.
+     */
+    void rebuildKmers (File kmers, IndexReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        File tmp = new File (kmers.getParentFile(), kmers.getName()+".tmp");
+        if (tmp.exists()) {
+            for (File f : tmp.listFiles())
+                f.delete();
+        }
+        
+        KmerIndex kmx = new KmerIndex (tmp, false);
+        try {
+            Bits live = MultiFields.getLiveDocs(reader);
+            for (int i = 0; i < reader.maxDoc(); ++i) {
+                if (live != null && !live.get(i))
+                    continue;
+                Document doc = reader.document(i);
+                String id = doc.get(FIELD_ID);
+                String seq = doc.get(FIELD_SEQ);
+                if (id != null && seq != null)
+                    kmx.add(id, seq);
+            }
+        }
+        finally {
+            kmx.close();
+        }
+
+        if (!tmp.renameTo(kmers))
+            throw new IOException ("Can't rename "+tmp+" to "+kmers);
+        logger.info(kmers+": "+kmx.size()+" sequence(s) reindexed in "
+                    +(System.currentTimeMillis()-start)+"ms");
+
+        File old = new File (kmers.getParentFile(), "kmer");
+        if (old.isDirectory()) {
+            for (File f : old.listFiles())
+                f.delete();
+            if (old.delete())
+                logger.info(old+": old k-mer index removed");
+            else
+                logger.warning(old+": can't remove old k-mer index");
+        }
+    }
+
     static Analyzer createIndexAnalyzer () {
         Map<String, Analyzer> fields = new HashMap<String, Analyzer>();
         fields.put(FIELD_ID, new KeywordAnalyzer ());
@@ -329,54 +389,52 @@ public class SequenceIndexer {
             (new StandardAnalyzer (LUCENE_VERSION), fields);
     }
 
-    protected synchronized DirectoryReader getKmerReader () throws IOException {
-        DirectoryReader reader = DirectoryReader.openIfChanged(_kmerReader);
-        if (reader != null) {
-            _kmerReader.close();
-            _kmerReader = reader;
-        }
-        return _kmerReader;
+    /**
+     * The searcher has to be handed back with releaseIndexSearcher once
+     * done; its reader isn't closed while it's in use, even if a newer
+     * one has been opened in the meantime
+     */
+    protected IndexSearcher getIndexSearcher () throws IOException {
+        searcherManager.maybeRefresh();
+        return searcherManager.acquire();
     }
 
-    protected synchronized DirectoryReader getIndexReader ()
+    protected void releaseIndexSearcher (IndexSearcher searcher)
         throws IOException {
-        DirectoryReader reader = DirectoryReader.openIfChanged(_indexReader);
-        if (reader != null) {
-            _indexReader.close();
-            _indexReader = reader;
-        }
-        return _indexReader;
-    }
-
-    protected IndexSearcher getIndexSearcher () throws IOException {
-        return new IndexSearcher (getIndexReader ());
+        searcherManager.release(searcher);
     }
     
-    protected IndexSearcher getKmerSearcher () throws IOException {
-        return new IndexSearcher (getKmerReader ());
-    }
+    public KmerIndex getKmerIndex () { return kmerIndex; }
 
     public File getBasePath () { return baseDir; }
+
+    /**
+     * Alignment scoring and band used for the HSP segments; the default
+     * is identity scoring with linear gap penalty
+     */
+    public void setAligner (Aligner aligner) {
+        if (aligner == null)
+            throw new IllegalArgumentException ("Aligner is null");
+        this.aligner = aligner;
+    }
+    public Aligner getAligner () { return aligner; }
     
     public void shutdown () {
         try {
-            if (_kmerReader != null)
-                _kmerReader.close();
-            if (_indexReader != null)
-                _indexReader.close();
+            searcherManager.close();
             if (indexWriter != null)
                 indexWriter.close();
-            if (kmerWriter != null)
-                kmerWriter.close();
-            kmerDir.close();
+            kmerIndex.close();
             indexDir.close();
-
-            if (localThreadPool)
-                threadPool.shutdown();
         }
         catch (IOException ex) {
             ex.printStackTrace();
         }
+        finally {
+            if (localThreadPool)
+                threadPool.shutdown();
+            releaseForkJoin ();
+        }
     }
 
     public void add (String id, CharSequence seq)
@@ -392,21 +450,7 @@ public class SequenceIndexer {
             doc.add(new IntField (FIELD_LENGTH, seq.length(), NO));
             doc.add(new StoredField (FIELD_SEQ, seq.toString()));
             indexWriter.addDocument(doc);
-            
-            Kmers kmers = Kmers.create(seq);
-            for (String kmer : kmers.kmers()) {
-                BitSet positions = kmers.positions(kmer);
-                StringField kmerf = new StringField (FIELD_KMER, kmer, YES);
-                doc = new Document ();
-                doc.add(idf);
-                doc.add(kmerf);
-                //System.err.println(kmer+": "+positions);
-                for (int i = positions.nextSetBit(0);
-                     i>=0; i = positions.nextSetBit(i+1)) {
-                    doc.add(new IntField (FIELD_POSITION, i, YES));
-                }
-                kmerWriter.addDocument(doc);
-            }
+            kmerIndex.add(id, seq);
         }
         finally {
             lastModified.set(System.currentTimeMillis());
@@ -423,157 +467,263 @@ public class SequenceIndexer {
         return search (query, identity, 3);
     }
     
+    public ResultEnumeration search (CharSequence query,
+                                     double identity, int gap) {
+        return search (query, identity, gap, 0);
+    }
+
+    /**
+     * If topK is positive, results are streamed best first and the
+     * search stops as soon as the top K results are known; otherwise
+     * each result is streamed as soon as it's scored, in target id
+     * order.
+     */
     public ResultEnumeration search (final CharSequence query,
-                                     final double identity, final int gap) {
+                                     final double identity, final int gap,
+                                     final int topK) {
         final BlockingQueue<Result> out = new LinkedBlockingQueue<Result>();
         threadPool.submit(new Runnable () {
                 public void run () {
                     try {
-                        search (out, query, identity, gap);
-                        out.put(POISON_RESULT); // finish
+                        search (out, query, identity, gap, topK);
                     }
                     catch (Exception ex) {
                         ex.printStackTrace();
                     }
+                    finally {
+                        try {
+                            out.put(POISON_RESULT); // finish
+                        }
+                        catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
                 }
             });
         
         return new ResultEnumeration (out);
     }
 
-    protected void search (BlockingQueue<Result> results,
-                           CharSequence query, double identity, int gap)
-        throws Exception {
+    /**
+     * A target with k-mer hits along with its chained segments and an
+     * upper bound on its identity score
+     */
+    static class Candidate implements Comparable<Candidate> {
+        final String id;
+        final List<SEG> segments;
+        final double bound;
 
-        final IndexSearcher searcher = getKmerSearcher ();
-        Kmers kmers = Kmers.create(query);
-        final int K = kmers.getK();
-        
-        int ndocs = searcher.getIndexReader().numDocs();
-        final Map<String, List<HSP>> hsp = new TreeMap<String, List<HSP>>();
-        for (String kmer : kmers.kmers()) {
-            TermQuery tq = new TermQuery (new Term (FIELD_KMER, kmer));
-            TopDocs docs = searcher.search(tq, ndocs);
-            BitSet positions = kmers.positions(kmer);
-            for (int i = 0; i < docs.totalHits; ++i) {
-                Document doc = searcher.doc(docs.scoreDocs[i].doc);
-                final String id = doc.get(FIELD_ID);
-                
-                List<HSP> hits = hsp.get(id);
-                if (hits == null) {
-                    hits = new ArrayList<HSP>();
-                    hsp.put(id, hits);
-                }
-                
-                IndexableField[] pos = doc.getFields(FIELD_POSITION);
-                for (int j = 0; j < pos.length; ++j) {
-                    int k = pos[j].numericValue().intValue();
-                    for (int l = positions.nextSetBit(0);
-                         l >= 0; l = positions.nextSetBit(l+1)) {
-                        hits.add(new HSP (kmer, l, k));
-                    }
-                }
-            }
+        Candidate (String id, List<SEG> segments, double bound) {
+            this.id = id;
+            this.segments = segments;
+            this.bound = bound;
         }
 
-        // process in the background and return immediately
-        String qs = query.toString();
-        for (Map.Entry<String, List<HSP>> me : hsp.entrySet()) {
-            String seq = getSeq (me.getKey());
-            Result result = new Result (me.getKey(), qs, seq);
-            /*
-              System.err.println(" Query: "+query);
-              System.err.println("Target: "+seq);
-            */
-            Collections.sort(me.getValue());
-            
-            HSP bgn = null, end = null;
-            List<SEG> segments = new ArrayList<SEG>();
-            for (HSP h : me.getValue()) {
-                //System.err.println("  "+h);
-                if (end == null) {
-                    bgn = h;
-                }
-                else {
-                    if (h.i < end.i || h.j < end.j
-                        || ((h.i - (end.i+K)) > gap
-                            && (h.j - (end.j+K)) > gap)
-                        || h.gap() - end.gap() > gap
-                        ) {
-                        //System.err.println(" ** start: "+bgn+" end: "+end);
-                        // now do global alignment of the subsequence
-                        segments.add(new SEG (bgn.i, end.i+K, bgn.j, end.j+K));
-                        bgn = h;
-                    }
-                }
-                end = h;
+        public int compareTo (Candidate c) {
+            if (bound > c.bound) return -1;
+            if (bound < c.bound) return 1;
+            return id.compareTo(c.id);
+        }
+    }
+
+    static final Comparator<Candidate> BY_ID = new Comparator<Candidate>() {
+            public int compare (Candidate c1, Candidate c2) {
+                return c1.id.compareTo(c2.id);
             }
-            //System.err.println(" ** start: "+bgn+" end: "+end);
-            segments.add(new SEG (bgn.i, end.i+K, bgn.j, end.j+K));
+        };
 
-            // now check to see if the segments can be merged
-            Collections.sort(segments);
-            /*
-            System.err.println("** SEGMENTS **");
+    static final Comparator<Result> BEST_FIRST = new Comparator<Result>() {
+            public int compare (Result r1, Result r2) {
+                if (r1.score > r2.score) return -1;
+                if (r1.score < r2.score) return 1;
+                return r1.id.compareTo(r2.id);
+            }
+        };
+
+    protected void search (BlockingQueue<Result> results,
+                           CharSequence query, double identity, int gap)
+        throws Exception {
+        search (results, query, identity, gap, 0);
+    }
+    
+    protected void search (BlockingQueue<Result> results,
+                           final CharSequence query, final double identity,
+                           int gap, int topK) throws Exception {
+        final int K = kmerIndex.getK();
+        KmerIndex.Hits hits = kmerIndex.search(query);
+
+        final Map<String, Integer> hsp = new HashMap<String, Integer>();
+        for (int k = 0; k < hits.size(); ++k) {
+            int ord = hits.ordinal(k);
+            hsp.put(kmerIndex.getId(ord), ord);
+        }
+
+        // chain the hits into segments; the alignment score of a
+        // segment can't be more than its shorter side and the target
+        // is at least as long as its last hit, which gives an upper
+        // bound on the identity without looking at the sequence
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (Map.Entry<String, Integer> me : hsp.entrySet()) {
+            int ord = me.getValue();
+            List<SEG> segments = chain (hits.hits(ord), hits.count(ord), K, gap);
+            int max = 0, tlen = 0;
             for (SEG seg : segments) {
-                System.err.println(seg);
+                max = Math.max(max, Math.min(seg.qj - seg.qi, seg.tj - seg.ti));
+                tlen = Math.max(tlen, seg.tj);
             }
-            */
-            
-            List<SEG> remove = new ArrayList<SEG>();
-            for (int i = 0; i < segments.size(); ++i) {
-                SEG seg = segments.get(i);
-                for (int j = i+1; j < segments.size(); ++j) {
-                    SEG s = segments.get(j);
-                    if (null != seg.merge(s, gap)) {
-                        //System.err.println("merging "+seg+" and "+s);
-                        remove.add(s);
-                    }
-                }
+            double bound = (double)max/Math.min(query.length(), tlen);
+            if (bound >= identity)
+                candidates.add(new Candidate (me.getKey(), segments, bound));
+        }
+        if (topK > 0)
+            Collections.sort(candidates);
+        else
+            Collections.sort(candidates, BY_ID);
+
+        final String qs = query.toString();
+        final byte[] qb = Aligner.encode(qs);
+        final Aligner aligner = this.aligner;
+        PriorityQueue<Result> best = new PriorityQueue<Result>(11, BEST_FIRST);
+        int batch = Math.max(1, 4*forkJoin.getParallelism());
+        int emitted = 0;
+        for (int c = 0; c < candidates.size()
+                 && (topK <= 0 || emitted < topK); ) {
+            List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+            for (int end = Math.min(c+batch, candidates.size());
+                 c < end; ++c) {
+                final Candidate cand = candidates.get(c);
+                tasks.add(new Callable<Result> () {
+                        public Result call () {
+                            return score (cand, qs, qb, aligner, identity);
+                        }
+                    });
             }
 
-            for (SEG s : remove)
-                segments.remove(s);
+            for (Future<Result> f : forkJoin.invokeAll(tasks)) {
+                Result r = f.get();
+                if (r == null)
+                    continue;
+                if (topK > 0)
+                    best.add(r);
+                else
+                    results.put(r); // no need to hold anything back
+            }
 
-            //System.err.println("** ALIGNMENTS for "+me.getKey()+" **");
-            int max = 0;
-            for (SEG seg : segments) {
-                //System.err.println(seg);
-                Alignment aln = align (seg, qs, seq);
-                if (aln.score > max) {
-                    //System.err.println(aln);
-                    max = aln.score;
-                }
-                result.alignments.add(aln);
+            // nothing that's left can do better than this
+            double next = c < candidates.size()
+                ? candidates.get(c).bound : -1.;
+            while (!best.isEmpty() && best.peek().score >= next
+                   && (topK <= 0 || emitted < topK)) {
+                results.put(best.poll());
+                ++emitted;
             }
+        }
+    }
 
-            double score = (double)max/Math.min(query.length(), seq.length());
-            if (score >= identity) {
-                Collections.sort(result.alignments);
-                results.put(result);
+    /**
+     * Chain packed hits sorted by diagonal into segments and merge
+     * those that overlap
+     */
+    static List<SEG> chain (long[] h, int nh, int K, int gap) {
+        long bgn = h[0], end = h[0];
+        List<SEG> segments = new ArrayList<SEG>();
+        for (int k = 1; k < nh; ++k) {
+            int hi = KmerIndex.queryPos(h[k]);
+            int hj = KmerIndex.targetPos(h[k]);
+            int ei = KmerIndex.queryPos(end);
+            int ej = KmerIndex.targetPos(end);
+            if (hi < ei || hj < ej
+                || ((hi - (ei+K)) > gap && (hj - (ej+K)) > gap)
+                || KmerIndex.diagonal(h[k])
+                - KmerIndex.diagonal(end) > gap) {
+                // now do global alignment of the subsequence
+                segments.add(segment (bgn, end, K));
+                bgn = h[k];
             }
-            else {
-                //System.err.println(me.getKey()+": "+score);
+            end = h[k];
+        }
+        segments.add(segment (bgn, end, K));
+
+        // now check to see if the segments can be merged
+        Collections.sort(segments);
+        
+        List<SEG> remove = new ArrayList<SEG>();
+        for (int i = 0; i < segments.size(); ++i) {
+            SEG seg = segments.get(i);
+            for (int j = i+1; j < segments.size(); ++j) {
+                SEG s = segments.get(j);
+                if (null != seg.merge(s, gap)) {
+                    //System.err.println("merging "+seg+" and "+s);
+                    remove.add(s);
+                }
             }
         }
+
+        for (SEG s : remove)
+            segments.remove(s);
+
+        return segments;
+    }
+
+    /**
+     * Align the candidate's segments; returns null if the candidate
+     * doesn't make the identity cutoff
+     */
+    Result score (Candidate cand, String qs, byte[] qb,
+                  Aligner aligner, double identity) {
+        String seq = getSeq (cand.id);
+        if (seq == null)
+            return null;
+        
+        byte[] sb = Aligner.encode(seq);
+        Result result = new Result (cand.id, qs, seq);
+        int max = 0;
+        for (SEG seg : cand.segments) {
+            Alignment aln = aligner.align(seg, qs, qb, seq, sb);
+            // substitution matrix scores aren't comparable with
+            // the sequence length, so use the matches instead
+            int score = aligner.getScoring().isIdentity()
+                ? aln.score : aln.matches;
+            if (score > max)
+                max = score;
+            result.alignments.add(aln);
+        }
+
+        result.score = (double)max/Math.min(qs.length(), seq.length());
+        if (result.score < identity)
+            return null;
+        
+        Collections.sort(result.alignments);
+        return result;
+    }
+
+    static SEG segment (long bgn, long end, int K) {
+        return new SEG (KmerIndex.queryPos(bgn), KmerIndex.queryPos(end)+K,
+                        KmerIndex.targetPos(bgn), KmerIndex.targetPos(end)+K);
     }
 
     protected String getSeq (final String id) {
         try {
-            final IndexSearcher indexer = getIndexSearcher ();
             return getOrElse
                 (getClass().getName()+"/"+FIELD_SEQ+"/"
                  +id, new Callable<String> () {
                          public String call () throws Exception {
                              //System.err.println("Cache missed: "+id);
-                             TopDocs docs = indexer.search
-                                 (new TermQuery (new Term (FIELD_ID, id)), 1);
-                             if (docs.totalHits > 0) {
-                                 Document d = indexer.doc
-                                     (docs.scoreDocs[0].doc);
-                                 return d.get(FIELD_SEQ);
+                             IndexSearcher indexer = getIndexSearcher ();
+                             try {
+                                 TopDocs docs = indexer.search
+                                     (new TermQuery
+                                      (new Term (FIELD_ID, id)), 1);
+                                 if (docs.totalHits > 0) {
+                                     Document d = indexer.doc
+                                         (docs.scoreDocs[0].doc);
+                                     return d.get(FIELD_SEQ);
+                                 }
+                                 return null;
+                             }
+                             finally {
+                                 releaseIndexSearcher (indexer);
                              }
-                             return null;
                          }
                      });
         }
@@ -584,86 +734,8 @@ public class SequenceIndexer {
     }
 
     static Alignment align (SEG seg, String query, String target) {
-        return align (seg, query, target, 1, -1);
-    }
-
-    /**
-     * do global alignment on subsequences that have been extracted
-     * by the HSP segments
-     */
-    static Alignment align (SEG seg, String query, String target, 
-                            int match, int gap) {
-        String q = query.substring(seg.qi, seg.qj);
-        String s = target.substring(seg.ti, seg.tj);
-
-        /*
-        System.err.println("** aligning subsequences...");
-        System.err.println(q);
-        System.err.println(s);
-        */
-        
-        int[][] M = new int[q.length()+1][s.length()+1];
-        for (int i = 0; i <= q.length(); ++i)
-            M[i][0] = gap*i;
-        for (int i = 0; i <= s.length(); ++i)
-            M[0][i] = gap*i;
-        for (int i = 1; i <= q.length(); ++i) {
-            char a = Character.toUpperCase(q.charAt(i-1));
-            for (int j = 1; j <= s.length(); ++j) {
-                char b = Character.toUpperCase(s.charAt(j-1));
-                int mat = M[i-1][j-1] + (a == b ? match : 0);
-                int del = M[i-1][j] + gap;
-                int ins = M[i][j-1] + gap;
-                M[i][j] = Math.max(mat, Math.max(del, ins));
-            }
-        }
-        StringBuilder qa = new StringBuilder ();
-        StringBuilder qs = new StringBuilder ();
-        StringBuilder qq = new StringBuilder ();
-        int i = q.length();
-        int j = s.length();
-        while (i > 0 && j > 0) {
-            char a = q.charAt(i-1);
-            char b = s.charAt(j-1);
-            boolean matched =
-                Character.toUpperCase(a) == Character.toUpperCase(b);
-            
-            if (i > 0 && j > 0 && M[i][j] == M[i-1][j-1]
-                + (matched ? match : 0)) {
-                qa.insert(0, a);
-                qs.insert(0, b);
-                qq.insert(0, matched ? '|' : ' ');
-                --i;
-                --j;
-            }
-            else if (i > 0 && M[i][j] == M[i-1][j] + gap) {
-                qa.insert(0, a);
-                qs.insert(0, '-');
-                qq.insert(0, ' ');
-                --i;
-            }
-            else {
-                qa.insert(0, '-');
-                qs.insert(0, b);
-                qq.insert(0, ' ');
-                --j;
-            }
-        }
-
-        /*
-        System.err.println("** score: "+M[q.length()][s.length()]);
-        System.err.println(qa);
-        System.err.println(qq);
-        System.err.println(qs);
-        */
-
-        int score = M[q.length()][s.length()];
-        return new Alignment (seg, qa.toString(), qs.toString(),
-                              qa+String.format("%1$5d - %2$d", seg.qi, seg.qj)
-                              +"\n"+qq+"\n"
-                              +qs+String.format("%1$5d - %2$d", seg.ti,seg.tj),
-                              score, (double)score/Math.max(q.length(),
-                                                            s.length()));
+        return DEFAULT_ALIGNER.align(seg, query, Aligner.encode(query),
+                                     target, Aligner.encode(target));
     }
 
     static <T> T getOrElse (String key, Callable<T> generator)
@@ -0,0 +1,202 @@
+package ix.seqaln;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Time per alignment of the banded kernel against the full matrix
+ * alignment it replaced, on the protein sequences of a FASTA file (e.g.,
+ * the UniProt targets). Each sequence is aligned against a homolog made
+ * of it with a few substitutions and short indels, which is what the
+ * HSP segments of a search mostly look like, and against the next
+ * sequence of the file. This isn't part of the test suite, run it with
+ * <pre>
+ *   seqaln/test:runMain ix.seqaln.AlignerBenchmark FASTA [max [rounds]]
+ * </pre>
+ */
+public class AlignerBenchmark {
+    static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+    static long sink;
+
+    static List<String> read (File file, int max) throws IOException {
+        List<String> seqs = new ArrayList<String>();
+        BufferedReader br = new BufferedReader (new FileReader (file));
+        try {
+            StringBuilder seq = new StringBuilder ();
+            for (String line; (line = br.readLine()) != null
+                     && seqs.size() < max; ) {
+                if (line.startsWith(">")) {
+                    if (seq.length() > 0)
+                        seqs.add(seq.toString());
+                    seq.setLength(0);
+                }
+                else {
+                    seq.append(line.trim());
+                }
+            }
+            if (seq.length() > 0 && seqs.size() < max)
+                seqs.add(seq.toString());
+        }
+        finally {
+            br.close();
+        }
+        return seqs;
+    }
+
+    static String mutate (Random rand, String seq) {
+        StringBuilder sb = new StringBuilder (seq);
+        int edits = 1 + seq.length()/50;
+        for (int e = 0; e < edits && sb.length() > 4; ++e) {
+            int p = rand.nextInt(sb.length());
+            switch (rand.nextInt(4)) {
+            case 0:
+                sb.insert(p, RESIDUES.charAt(rand.nextInt(RESIDUES.length())));
+                break;
+            case 1:
+                sb.deleteCharAt(p);
+                break;
+            default:
+                sb.setCharAt(p, RESIDUES.charAt
+                             (rand.nextInt(RESIDUES.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * SequenceIndexer.align as it was before the banded kernel: a full
+     * (q+1)x(s+1) matrix per segment and a StringBuilder.insert(0, ...)
+     * traceback; returns the score
+     */
+    static int legacy (SequenceIndexer.SEG seg, String query, String target) {
+        final int match = 1, gap = -1;
+        String q = query.substring(seg.qi, seg.qj);
+        String s = target.substring(seg.ti, seg.tj);
+
+        int[][] M = new int[q.length()+1][s.length()+1];
+        for (int i = 0; i <= q.length(); ++i)
+            M[i][0] = gap*i;
+        for (int i = 0; i <= s.length(); ++i)
+            M[0][i] = gap*i;
+        for (int i = 1; i <= q.length(); ++i) {
+            char a = Character.toUpperCase(q.charAt(i-1));
+            for (int j = 1; j <= s.length(); ++j) {
+                char b = Character.toUpperCase(s.charAt(j-1));
+                int mat = M[i-1][j-1] + (a == b ? match : 0);
+                int del = M[i-1][j] + gap;
+                int ins = M[i][j-1] + gap;
+                M[i][j] = Math.max(mat, Math.max(del, ins));
+            }
+        }
+        StringBuilder qa = new StringBuilder ();
+        StringBuilder qs = new StringBuilder ();
+        StringBuilder qq = new StringBuilder ();
+        int i = q.length();
+        int j = s.length();
+        while (i > 0 && j > 0) {
+            char a = q.charAt(i-1);
+            char b = s.charAt(j-1);
+            boolean matched =
+                Character.toUpperCase(a) == Character.toUpperCase(b);
+            if (M[i][j] == M[i-1][j-1] + (matched ? match : 0)) {
+                qa.insert(0, a);
+                qs.insert(0, b);
+                qq.insert(0, matched ? '|' : ' ');
+                --i;
+                --j;
+            }
+            else if (M[i][j] == M[i-1][j] + gap) {
+                qa.insert(0, a);
+                qs.insert(0, '-');
+                qq.insert(0, ' ');
+                --i;
+            }
+            else {
+                qa.insert(0, '-');
+                qs.insert(0, b);
+                qq.insert(0, ' ');
+                --j;
+            }
+        }
+        // as the old Alignment did; kept so none of this is optimized away
+        sink += (qa+"\n"+qq+"\n"+qs).length();
+        return M[q.length()][s.length()];
+    }
+
+    static SequenceIndexer.SEG seg (String query, String target) {
+        return new SequenceIndexer.SEG (0, query.length(), 0, target.length());
+    }
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length == 0) {
+            System.err.println("Usage: AlignerBenchmark FASTA [max [rounds]]");
+            System.exit(1);
+        }
+
+        int max = argv.length > 1 ? Integer.parseInt(argv[1]) : 500;
+        int rounds = argv.length > 2 ? Integer.parseInt(argv[2]) : 3;
+        List<String> seqs = read (new File (argv[0]), max);
+        if (seqs.size() < 2) {
+            System.err.println(argv[0]+": not enough sequences");
+            System.exit(1);
+        }
+
+        Random rand = new Random (1l);
+        List<String[]> pairs = new ArrayList<String[]>();
+        long cells = 0;
+        for (int i = 0; i < seqs.size(); ++i) {
+            String seq = seqs.get(i);
+            String[][] p = {
+                { seq, mutate (rand, seq) },
+                { seq, seqs.get((i + 1) % seqs.size()) }
+            };
+            for (String[] pair : p) {
+                pairs.add(pair);
+                cells += (long)pair[0].length() * pair[1].length();
+            }
+        }
+
+        // encoded once per sequence as SequenceIndexer does
+        List<byte[][]> encoded = new ArrayList<byte[][]>();
+        for (String[] pair : pairs)
+            encoded.add(new byte[][]{
+                    Aligner.encode(pair[0]), Aligner.encode(pair[1])
+                });
+
+        Aligner aligner = new Aligner ();
+        int agree = 0, homologs = 0;
+        for (int i = 0; i < pairs.size(); i += 2) {
+            String[] pair = pairs.get(i);
+            SequenceIndexer.SEG seg = seg (pair[0], pair[1]);
+            int score = aligner.align(seg, pair[0], encoded.get(i)[0],
+                                      pair[1], encoded.get(i)[1]).score;
+            if (score == legacy (seg, pair[0], pair[1]))
+                ++agree;
+            ++homologs;
+        }
+        System.out.println(seqs.size()+" sequences, "+pairs.size()
+                           +" alignments, "+(cells/1000000)+"M cells; "
+                           +"banded score is optimal for "+agree+"/"
+                           +homologs+" homologs");
+
+        for (int r = 0; r < rounds; ++r) {
+            long start = System.nanoTime();
+            for (String[] pair : pairs)
+                legacy (seg (pair[0], pair[1]), pair[0], pair[1]);
+            double old = 1e-3*(System.nanoTime() - start) / pairs.size();
+
+            start = System.nanoTime();
+            for (int i = 0; i < pairs.size(); ++i) {
+                String[] pair = pairs.get(i);
+                aligner.align(seg (pair[0], pair[1]),
+                              pair[0], encoded.get(i)[0],
+                              pair[1], encoded.get(i)[1]);
+            }
+            double banded = 1e-3*(System.nanoTime() - start) / pairs.size();
+
+            System.out.println(String.format
+                               ("legacy %1$10.1fus   banded %2$10.1fus"
+                                +"   per alignment", old, banded));
+        }
+    }
+}
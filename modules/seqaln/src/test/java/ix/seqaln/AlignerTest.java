@@ -0,0 +1,222 @@
+package ix.seqaln;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The banded aligner against a full (unbanded) Gotoh alignment, and
+ * its traceback against the score it reports
+ */
+public class AlignerTest {
+    static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+    static String random (Random rand, int len) {
+        StringBuilder sb = new StringBuilder ();
+        for (int i = 0; i < len; ++i)
+            sb.append(RESIDUES.charAt(rand.nextInt(RESIDUES.length())));
+        return sb.toString();
+    }
+
+    // a few substitutions and short indels
+    static String mutate (Random rand, String seq, int edits) {
+        StringBuilder sb = new StringBuilder (seq);
+        for (int e = 0; e < edits && sb.length() > 4; ++e) {
+            int p = rand.nextInt(sb.length());
+            switch (rand.nextInt(3)) {
+            case 0:
+                sb.setCharAt(p, RESIDUES.charAt
+                             (rand.nextInt(RESIDUES.length())));
+                break;
+            case 1:
+                sb.insert(p, random (rand, 1 + rand.nextInt(2)));
+                break;
+            default:
+                sb.delete(p, Math.min(sb.length(), p + 1 + rand.nextInt(2)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Score of the optimal global alignment over the full matrices
+     */
+    static int gotoh (byte[] a, byte[] b, Aligner.Scoring s) {
+        final int NEG = Integer.MIN_VALUE / 4;
+        int m = a.length, n = b.length;
+        int[][] H = new int[m+1][n+1], E = new int[m+1][n+1],
+            F = new int[m+1][n+1];
+        for (int i = 0; i <= m; ++i)
+            for (int j = 0; j <= n; ++j) {
+                if (i == 0 && j == 0) {
+                    E[i][j] = F[i][j] = NEG;
+                    continue;
+                }
+                E[i][j] = j > 0 ? Math.max(H[i][j-1] + s.gapOpen,
+                                           E[i][j-1] + s.gapExtend) : NEG;
+                F[i][j] = i > 0 ? Math.max(H[i-1][j] + s.gapOpen,
+                                           F[i-1][j] + s.gapExtend) : NEG;
+                int h = Math.max(E[i][j], F[i][j]);
+                if (i > 0 && j > 0)
+                    h = Math.max(h, H[i-1][j-1] + s.score(a[i-1], b[j-1]));
+                H[i][j] = h;
+            }
+        return H[m][n];
+    }
+
+    /**
+     * Score of the given alignment rows
+     */
+    static int score (String qa, String ta, Aligner.Scoring s) {
+        int score = 0;
+        for (int k = 0; k < qa.length(); ++k) {
+            char a = qa.charAt(k), b = ta.charAt(k);
+            if (a == '-')
+                score += k > 0 && qa.charAt(k-1) == '-'
+                    ? s.gapExtend : s.gapOpen;
+            else if (b == '-')
+                score += k > 0 && ta.charAt(k-1) == '-'
+                    ? s.gapExtend : s.gapOpen;
+            else
+                score += s.score((byte)Character.toUpperCase(a),
+                                 (byte)Character.toUpperCase(b));
+        }
+        return score;
+    }
+
+    static SequenceIndexer.Alignment align
+        (Aligner aligner, String query, String target) {
+        return aligner.align
+            (new SequenceIndexer.SEG (0, query.length(), 0, target.length()),
+             query, Aligner.encode(query), target, Aligner.encode(target));
+    }
+
+    static void assertConsistent (SequenceIndexer.Alignment aln,
+                                  String query, String target,
+                                  Aligner.Scoring s) {
+        assertEquals(aln.query.length(), aln.target.length());
+        assertEquals(query, aln.query.replace("-", ""));
+        assertEquals(target, aln.target.replace("-", ""));
+        assertEquals(aln.score, score (aln.query, aln.target, s));
+
+        int matches = 0;
+        for (int k = 0; k < aln.query.length(); ++k)
+            if (aln.query.charAt(k) != '-'
+                && Character.toUpperCase(aln.query.charAt(k))
+                == Character.toUpperCase(aln.target.charAt(k)))
+                ++matches;
+        assertEquals(matches, aln.matches);
+    }
+
+    @Test
+    public void identical () {
+        String seq = "MKTAYIAKQRQISFVKSHFSRQ";
+        Aligner aligner = new Aligner ();
+        SequenceIndexer.Alignment aln = align (aligner, seq, seq.toLowerCase());
+        assertEquals(seq.length(), aln.score);
+        assertEquals(seq.length(), aln.matches);
+        assertEquals(1., aln.iden, 1e-9);
+        assertEquals(seq, aln.query);
+        assertEquals(seq.toLowerCase(), aln.target);
+    }
+
+    @Test
+    public void singleGap () {
+        Aligner aligner = new Aligner ();
+        SequenceIndexer.Alignment aln =
+            align (aligner, "ACDEFGHIKL", "ACDEGHIKL");
+        assertEquals("ACDEFGHIKL", aln.query);
+        assertEquals("ACDE-GHIKL", aln.target);
+        assertEquals(8, aln.score); // 9 matches and a gap
+    }
+
+    @Test
+    public void fullBandMatchesGotoh () {
+        Random rand = new Random (1l);
+        Aligner.Scoring[] scorings = {
+            Aligner.IDENTITY, Aligner.identity(2, -1, -2),
+            Aligner.blosum62(), Aligner.blosum62(-5, -5)
+        };
+        for (Aligner.Scoring s : scorings) {
+            for (int t = 0; t < 50; ++t) {
+                String q = random (rand, 1 + rand.nextInt(40));
+                String r = random (rand, 1 + rand.nextInt(40));
+                // wide enough to cover every cell
+                Aligner aligner = new Aligner (s, 80);
+                SequenceIndexer.Alignment aln = align (aligner, q, r);
+                assertEquals(q+" vs "+r, gotoh (Aligner.encode(q),
+                                                Aligner.encode(r), s),
+                             aln.score);
+                assertConsistent (aln, q, r, s);
+            }
+        }
+    }
+
+    @Test
+    public void narrowBandOnSimilarSequences () {
+        Random rand = new Random (2l);
+        Aligner.Scoring s = Aligner.blosum62();
+        Aligner aligner = new Aligner (s, Aligner.BAND);
+        for (int t = 0; t < 100; ++t) {
+            String q = random (rand, 50 + rand.nextInt(150));
+            String r = mutate (rand, q, 1 + rand.nextInt(4));
+            SequenceIndexer.Alignment aln = align (aligner, q, r);
+            // a few short indels stay well within the band
+            assertEquals(gotoh (Aligner.encode(q), Aligner.encode(r), s),
+                         aln.score);
+            assertConsistent (aln, q, r, s);
+        }
+    }
+
+    @Test
+    public void bandNeverBeatsFull () {
+        Random rand = new Random (3l);
+        Aligner.Scoring s = Aligner.IDENTITY;
+        for (int band = 0; band < 4; ++band) {
+            Aligner aligner = new Aligner (s, band);
+            for (int t = 0; t < 30; ++t) {
+                String q = random (rand, 10 + rand.nextInt(30));
+                String r = random (rand, 10 + rand.nextInt(30));
+                SequenceIndexer.Alignment aln = align (aligner, q, r);
+                assertTrue(aln.score <= gotoh (Aligner.encode(q),
+                                               Aligner.encode(r), s));
+                assertConsistent (aln, q, r, s);
+            }
+        }
+    }
+
+    @Test
+    public void segment () {
+        String query = "xxxxACDEFGHIKLyyy";
+        String target = "zzACDEFGHIKL";
+        SequenceIndexer.Alignment aln = new Aligner ().align
+            (new SequenceIndexer.SEG (4, 14, 2, 12),
+             query, Aligner.encode(query), target, Aligner.encode(target));
+        assertEquals("ACDEFGHIKL", aln.query);
+        assertEquals("ACDEFGHIKL", aln.target);
+        assertEquals(10, aln.score);
+    }
+
+    @Test
+    public void bogusArguments () {
+        try {
+            new Aligner (null, 1);
+            fail ("Aligner without a scoring");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+        try {
+            new Aligner (Aligner.IDENTITY, -1);
+            fail ("Aligner with a negative band");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+        try {
+            Aligner.identity(1, 0, 1);
+            fail ("Scoring with a positive gap penalty");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ix.seqaln;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Hits of the k-mer index against a brute force scan of the sequences,
+ * through the in-memory buffer, segments, merges and reopening
+ */
+public class KmerIndexTest {
+    static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+    static String random (Random rand, int len) {
+        StringBuilder sb = new StringBuilder ();
+        for (int i = 0; i < len; ++i)
+            sb.append(RESIDUES.charAt(rand.nextInt(RESIDUES.length())));
+        return sb.toString();
+    }
+
+    static List<String> sequences (long seed, int count) {
+        Random rand = new Random (seed);
+        List<String> seqs = new ArrayList<String>();
+        String motif = random (rand, 12);
+        for (int i = 0; i < count; ++i) {
+            String seq = random (rand, 20 + rand.nextInt(200));
+            if (i % 3 == 0) {
+                // make sure there's something in common
+                int p = rand.nextInt(seq.length());
+                seq = seq.substring(0, p) + motif + seq.substring(p);
+            }
+            seqs.add(i % 5 == 0 ? seq.toLowerCase() : seq);
+        }
+        return seqs;
+    }
+
+    static File tempDir () throws IOException {
+        File dir = File.createTempFile("kmx", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    static void delete (File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    // query position:target position of all shared k-mers
+    static List<String> expected (String query, String seq, int K) {
+        List<String> hits = new ArrayList<String>();
+        for (int i = 0; i + K <= query.length(); ++i)
+            for (int j = 0; j + K <= seq.length(); ++j) {
+                boolean same = true;
+                for (int k = 0; k < K && same; ++k)
+                    same = KmerIndex.code(query.charAt(i+k))
+                        == KmerIndex.code(seq.charAt(j+k));
+                if (same)
+                    hits.add(i+":"+j);
+            }
+        Collections.sort(hits);
+        return hits;
+    }
+
+    static void assertHits (KmerIndex index, List<String> seqs,
+                            String query) {
+        KmerIndex.Hits hits = index.search(query);
+        Map<Integer, List<String>> found = new HashMap<Integer, List<String>>();
+        for (int k = 0; k < hits.size(); ++k) {
+            int ord = hits.ordinal(k);
+            long[] h = hits.hits(ord);
+            List<String> list = new ArrayList<String>();
+            for (int n = 0; n < hits.count(ord); ++n) {
+                list.add(KmerIndex.queryPos(h[n])+":"
+                         +KmerIndex.targetPos(h[n]));
+                if (n > 0)
+                    assertTrue("Hits aren't sorted by diagonal",
+                               KmerIndex.diagonal(h[n-1])
+                               <= KmerIndex.diagonal(h[n]));
+            }
+            Collections.sort(list);
+            found.put(ord, list);
+        }
+
+        for (int ord = 0; ord < seqs.size(); ++ord) {
+            List<String> exp = expected (query, seqs.get(ord), index.getK());
+            List<String> act = found.get(ord);
+            assertEquals("Hits of sequence "+ord, exp,
+                         act != null ? act : new ArrayList<String>());
+        }
+    }
+
+    static void add (KmerIndex index, List<String> seqs) throws IOException {
+        for (int i = 0; i < seqs.size(); ++i)
+            assertEquals(i, index.add("seq"+i, seqs.get(i)));
+    }
+
+    @Test
+    public void packedHits () {
+        long hit = KmerIndex.pack(12345, 678);
+        assertEquals(12345, KmerIndex.queryPos(hit));
+        assertEquals(678, KmerIndex.targetPos(hit));
+        assertEquals(12345 - 678, KmerIndex.diagonal(hit));
+        assertTrue(KmerIndex.pack(5, 5) < KmerIndex.pack(0, 1));
+    }
+
+    @Test
+    public void bufferedAndCommitted () throws IOException {
+        File dir = tempDir ();
+        try {
+            List<String> seqs = sequences (1l, 60);
+            KmerIndex index = new KmerIndex (dir, false);
+            add (index, seqs);
+            assertEquals(0, index.getSegmentCount());
+            for (int i = 0; i < seqs.size(); i += 7)
+                assertHits (index, seqs, seqs.get(i));
+
+            index.commit();
+            assertEquals(1, index.getSegmentCount());
+            assertEquals(seqs.size(), index.size());
+            for (int i = 0; i < seqs.size(); i += 7)
+                assertHits (index, seqs, seqs.get(i));
+            assertEquals("seq42", index.getId(42));
+            index.close();
+        }
+        finally {
+            delete (dir);
+        }
+    }
+
+    @Test
+    public void segmentsAndMerge () throws IOException {
+        File dir = tempDir ();
+        try {
+            List<String> seqs = sequences (2l, 200);
+            KmerIndex index = new KmerIndex (dir, false, 4);
+            index.setFlushThreshold(512l);
+            add (index, seqs);
+            // flushing beyond MAX_SEGMENTS merges them
+            assertTrue(index.getSegmentCount() <= KmerIndex.MAX_SEGMENTS);
+            for (int i = 0; i < seqs.size(); i += 13)
+                assertHits (index, seqs, seqs.get(i));
+
+            index.merge();
+            assertEquals(1, index.getSegmentCount());
+            for (int i = 0; i < seqs.size(); i += 13)
+                assertHits (index, seqs, seqs.get(i));
+            index.close();
+        }
+        finally {
+            delete (dir);
+        }
+    }
+
+    @Test
+    public void reopen () throws IOException {
+        File dir = tempDir ();
+        try {
+            List<String> seqs = sequences (3l, 80);
+            KmerIndex index = new KmerIndex (dir, false);
+            index.setFlushThreshold(2048l);
+            add (index, seqs);
+            index.close();
+            assertTrue(KmerIndex.exists(dir));
+
+            KmerIndex reader = new KmerIndex (dir, true);
+            assertEquals(seqs.size(), reader.size());
+            for (int i = 0; i < seqs.size(); i += 9)
+                assertHits (reader, seqs, seqs.get(i));
+            try {
+                reader.add("bogus", "ACDEF");
+                fail ("Read-only index accepts new sequences");
+            }
+            catch (IllegalStateException ex) {
+            }
+            reader.close();
+        }
+        finally {
+            delete (dir);
+        }
+    }
+
+    @Test
+    public void uncommittedAreDropped () throws IOException {
+        File dir = tempDir ();
+        try {
+            List<String> seqs = sequences (4l, 40);
+            KmerIndex index = new KmerIndex (dir, false);
+            add (index, seqs.subList(0, 30));
+            index.commit();
+            for (int i = 30; i < seqs.size(); ++i)
+                index.add("seq"+i, seqs.get(i));
+            // ids are written as they're added, but there's no commit
+            index.idsOut.flush();
+
+            KmerIndex reopened = new KmerIndex (dir, false);
+            assertEquals(30, reopened.size());
+            assertHits (reopened, seqs.subList(0, 30), seqs.get(3));
+            reopened.close();
+            index.idsOut.close();
+        }
+        finally {
+            delete (dir);
+        }
+    }
+
+    @Test
+    public void shortSequences () throws IOException {
+        File dir = tempDir ();
+        try {
+            KmerIndex index = new KmerIndex (dir, false);
+            index.add("short", "AC");
+            index.add("long", "ACDACD");
+            index.commit();
+            assertEquals(0, index.search("AC").size());
+            KmerIndex.Hits hits = index.search("XACD");
+            assertEquals(1, hits.size());
+            assertEquals(1, hits.ordinal(0));
+            assertEquals(2, hits.count(1));
+            index.close();
+        }
+        finally {
+            delete (dir);
+        }
+    }
+}
@@ -19,7 +19,6 @@ import chemaxon.util.MolHandler;
 import lychi.SMIRKS;
 import lychi.LyChIStandardizer;
 import lychi.util.UnionFind;
-import lychi.util.GrayCode;
 import lychi.util.ChemUtil;
 
 import tripod.util.MolShortestPath;
@@ -91,6 +90,13 @@ public class MolecularFramework {
     };
 
 
+    // shared by all instances for the parallel ring set enumeration
+    static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+    // ring sets enumerated per task
+    static final int GRAIN = 64;
+    // ring sets are bitmasks
+    static final int MAX_RINGS = 62;
+
     private Molecule mol;
     private FragmentType type;
     private volatile int[] fingerprint; // fingerprint of the input molecule
@@ -113,6 +119,11 @@ public class MolecularFramework {
     private volatile ConcurrentMap<String, Molecule> linkers = 
         new ConcurrentHashMap<String, Molecule>();
 
+    // codes of the fragments generated so far; a fragment seen before
+    //  (from another ring set) isn't processed again
+    private volatile ConcurrentMap<String, Boolean> seen =
+        new ConcurrentHashMap<String, Boolean>();
+
     // number of threads to use
     private int nthreads = 1;
     private final ReentrantLock lock = new ReentrantLock ();
@@ -251,6 +262,7 @@ public class MolecularFramework {
 
         fragments.clear();
         linkers.clear();
+        seen.clear();
     }
 
     static int[] generateFingerprint (Molecule mol) {
@@ -294,6 +306,9 @@ public class MolecularFramework {
 
     public FragmentType getFragmentType () { return type; }
     public void setMaxNumRings (int max) {
+        if (max < 0 || max > MAX_RINGS)
+            throw new IllegalArgumentException
+                ("Bogus max number of rings: "+max);
         maxNumRings = max;
     }
     public int getMaxNumRings () { return maxNumRings; }
@@ -392,91 +407,79 @@ public class MolecularFramework {
         }
     }
 
-    protected void generateFragments (final Molecule mol, final int[][] rings) {
-        GrayCode g = GrayCode.createBinaryGrayCode
-            (Math.min(rings.length, maxNumRings));
+    /*
+     * The ring sets are enumerated in Gray code order, i.e., the k-th
+     * ring set is k ^ (k >>> 1) with bit i set for the i-th ring
+     */
+    protected void generateFragments (Molecule mol, int[][] rings) {
+        long n = 1l << Math.min(rings.length, maxNumRings);
+        for (long k = 1; k < n; ++k) {
+            generateFragment (mol, rings, k ^ (k >>> 1));
+        }
+    }
 
-        g.addObserver(new Observer () {
-                public void update (Observable obs, Object arg) {
-                    int[] g = (int[])arg;
+    /**
+     * Ring sets [lo, hi) in Gray code order; ranges larger than GRAIN
+     * are split in half so that idle workers can steal them
+     */
+    class RingSets extends RecursiveAction {
+        final Molecule mol;
+        final int[][] rings;
+        final long lo, hi;
+
+        RingSets (Molecule mol, int[][] rings, long lo, long hi) {
+            this.mol = mol;
+            this.rings = rings;
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-                    final List<int[]> comps = new ArrayList<int[]>();
-                    BitSet set = new BitSet ();
-                    for (int i = 0; i < g.length; ++i) {
-                        if (g[i] != 0) {
-                            comps.add(rings[i]);
-                            set.set(i);
-                        }
+        @Override
+        protected void compute () {
+            if (hi - lo <= GRAIN) {
+                for (long k = lo; k < hi; ++k) {
+                    long set = k ^ (k >>> 1);
+                    try {
+                        generateFragment (mol, rings, set);
                     }
-
-                    if (!comps.isEmpty()) {
-                        if (debug) {
-                            logger.info("Ring set "+set);
-                        }
-
-                        generateFragment (mol, comps);
+                    catch (Exception ex) {
+                        logger.log(Level.SEVERE, "Can't generate fragment "
+                                   +"for ring set "+Long.toBinaryString(set),
+                                   ex);
                     }
                 }
-            });
-        g.generate();
+            }
+            else {
+                long mid = (lo + hi) >>> 1;
+                invokeAll (new RingSets (mol, rings, lo, mid),
+                           new RingSets (mol, rings, mid, hi));
+            }
+        }
     }
 
-    protected void generateFragmentsThreaded (final Molecule mol, 
-                                              final int[][] rings) {
-        GrayCode g = GrayCode.createBinaryGrayCode
-            (Math.min(rings.length, maxNumRings));
-
-        final ExecutorService threadPool = 
-            Executors.newFixedThreadPool(nthreads);
-        final List<Future> tasks = new ArrayList<Future>();
-
-        g.addObserver(new Observer () {
-                public void update (Observable obs, Object arg) {
-                    int[] g = (int[])arg;
-
-                    final List<int[]> comps = new ArrayList<int[]>();
-                    BitSet set = new BitSet ();
-                    for (int i = 0; i < g.length; ++i) {
-                        if (g[i] != 0) {
-                            comps.add(rings[i]);
-                            set.set(i);
-                        }
-                    }
-
-                    if (!comps.isEmpty()) {
-                        if (debug) {
-                            logger.info("Ring set "+set);
-                        }
-
-                        Future f = threadPool.submit
-                            (new Runnable () {
-                                    public void run () {
-                                        generateFragment (mol, comps);
-                                    }
-                                });
-                        tasks.add(f);
-                    }
-                }
-            });
-        g.generate();
+    protected void generateFragmentsThreaded (Molecule mol, int[][] rings) {
+        long n = 1l << Math.min(rings.length, maxNumRings);
+        RingSets task = new RingSets (mol, rings, 1, n);
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke(); // e.g., from generateFragments (List)
+        }
+        else {
+            POOL.invoke(task);
+        }
+    }
 
-        // wait for threads to finish
-        for (Future f : tasks) {
-            try {
-                if (!f.isDone()) {
-                    f.get();
-                }
-            }
-            catch (Exception ex) {
-                logger.log(Level.SEVERE, "Thread exception", ex);
+    protected void generateFragment (Molecule mol, int[][] rings, long set) {
+        int[][] comps = new int[Long.bitCount(set)][];
+        for (int i = 0, j = 0; j < comps.length; ++i) {
+            if ((set & (1l << i)) != 0) {
+                comps[j++] = rings[i];
             }
         }
 
-        try {
-            threadPool.shutdown();
-        }
-        catch (SecurityException ex) { // ignore if we can't shutdown
+        if (debug) {
+            logger.info("Ring set "+Long.toBinaryString(set));
         }
+        generateFragment (mol, Arrays.asList(comps));
     }
 
     protected void generateFragment (Molecule mol, List<int[]> comps) {
@@ -526,16 +529,19 @@ public class MolecularFramework {
     protected Molecule addFragment (Molecule f) {
         f.aromatize();
         String frag = ChemUtil.canonicalSMILES(f, false);
+        /*
+         * if generateAtomMapping flag is set, we 
+         * also consider the same fragment with 
+         * different atom mapping
+         */
+        String code = generateAtomMapping
+            ? f.toFormat("smiles:q"+(keepStereo?"":"0")) : frag;
+        if (seen.putIfAbsent(code, Boolean.TRUE) != null) {
+            return null; // everything that follows has been done
+        }
 
         if (!notList.contains(frag)) {
-            /*
-             * if generateAtomMapping flag is set, we 
-             * also consider the same fragment with 
-             * different atom mapping
-             */
-            if (generateAtomMapping) {
-                frag = f.toFormat("smiles:q"+(keepStereo?"":"0"));
-            }
+            frag = code;
             try {
                 MolHandler mh = new MolHandler (frag);
                 // this ensure the Molecule instance is in the same order
@@ -1143,6 +1149,60 @@ public class MolecularFramework {
         return null;
     }
 
+    /**
+     * A new instance with the same settings as this one
+     */
+    public MolecularFramework copy () {
+        MolecularFramework mf = new MolecularFramework (type);
+        mf.generateAtomMapping = generateAtomMapping;
+        mf.keepFusedRings = keepFusedRings;
+        mf.notList = new HashSet<String>(notList);
+        mf.maxNumRings = maxNumRings;
+        mf.minFragSize = minFragSize;
+        mf.doLinker = doLinker;
+        mf.keepStereo = keepStereo;
+        mf.nthreads = nthreads;
+        return mf;
+    }
+
+    /**
+     * Generate the fragments of each of the given molecules in parallel
+     * with the settings of this instance (which itself is left alone);
+     * the fragments of each molecule, keyed as in getFragmentAsSmiles,
+     * are returned in the order of the molecules. A molecule that can't
+     * be processed has no fragments.
+     */
+    public List<Map<String, Molecule>> generateFragments
+        (List<Molecule> mols) {
+        List<Callable<Map<String, Molecule>>> tasks =
+            new ArrayList<Callable<Map<String, Molecule>>>();
+        for (final Molecule m : mols) {
+            tasks.add(new Callable<Map<String, Molecule>> () {
+                    public Map<String, Molecule> call () {
+                        MolecularFramework mf = copy ();
+                        mf.setMolecule(m);
+                        mf.run();
+                        return mf.fragments;
+                    }
+                });
+        }
+
+        List<Map<String, Molecule>> results =
+            new ArrayList<Map<String, Molecule>>();
+        List<Future<Map<String, Molecule>>> futures = POOL.invokeAll(tasks);
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                results.add(futures.get(i).get());
+            }
+            catch (Exception ex) {
+                logger.log(Level.WARNING, "Can't process "
+                           +mols.get(i).getName(), ex);
+                results.add(new HashMap<String, Molecule>());
+            }
+        }
+        return results;
+    }
+
     public static MolecularFramework createMurckoInstance () {
         return new MolecularFramework (FragmentType.FRAG_MURCKO);
     }
@@ -118,6 +118,11 @@ public class BuildInfo {
   val seqaln = Project("seqaln", file("modules/seqaln"))
     .settings(commonSettings:_*).settings(
     libraryDependencies ++= commonDependencies,
+    // not a play project, so there's no play test harness
+    libraryDependencies ++= Seq(
+      "junit" % "junit" % "4.12" % "test"
+        ,"com.novocode" % "junit-interface" % "0.11" % "test"
+    ),
     javacOptions in (doc) ++= javaDocOptions,
     javacOptions in (compile) ++= javaBuildOptions,
     mainClass in (Compile,run) := Some("ix.seqaln.SequenceIndexer")
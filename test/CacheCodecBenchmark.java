@@ -0,0 +1,111 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import ix.core.plugins.CacheCodec;
+
+/**
+ * Size and encode/decode times of the cache entry codecs against the
+ * legacy format (Java serialization + gzip) on a synthetic entry; this
+ * isn't part of the test suite, run it with
+ * <pre>
+ *   test:runMain CacheCodecBenchmark [rows [rounds]]
+ * </pre>
+ */
+public class CacheCodecBenchmark {
+    interface Bench {
+        byte[] encode (Object obj) throws Exception;
+        Object decode (byte[] data) throws Exception;
+    }
+
+    static byte[] legacy (Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        ObjectOutputStream oos = new ObjectOutputStream
+            (new GZIPOutputStream (bytes));
+        oos.writeObject(obj);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    static Object sample (Random rand, int size) {
+        String[] words = {
+            "kinase", "receptor", "GPCR", "ion channel", "Tclin", "Tchem",
+            "Tbio", "Tdark", "<td class=\"value\">", "</td>", "<a href=\"",
+            "\">", "</a>", "disease", "ligand", "expression", "tissue"
+        };
+        List<Object> rows = new ArrayList<Object>();
+        for (int i = 0; i < size; ++i) {
+            Map<String, Object> row = new LinkedHashMap<String, Object>();
+            StringBuilder sb = new StringBuilder ();
+            for (int j = 0; j < 20; ++j)
+                sb.append(words[rand.nextInt(words.length)]).append(' ');
+            row.put("id", (long)rand.nextInt(100000));
+            row.put("name", "Target "+rand.nextInt(20000));
+            row.put("html", sb.toString());
+            row.put("score", rand.nextDouble());
+            row.put("novelty", rand.nextFloat());
+            row.put("public", rand.nextBoolean());
+            List<Object> values = new ArrayList<Object>();
+            for (int j = 0; j < 10; ++j)
+                values.add(rand.nextInt(1000));
+            row.put("values", values);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    static void bench (String name, Bench bench, Object obj, int rounds)
+        throws Exception {
+        byte[] data = bench.encode(obj);
+        for (int i = 0; i < rounds/10; ++i) // warm up
+            bench.decode(bench.encode(obj));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            data = bench.encode(obj);
+        double enc = 1e-6*(System.nanoTime() - start) / rounds;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i)
+            bench.decode(data);
+        double dec = 1e-6*(System.nanoTime() - start) / rounds;
+
+        System.out.println(String.format
+                           ("%1$-16s %2$10d bytes %3$9.3fms encode "
+                            +"%4$9.3fms decode", name, data.length, enc, dec));
+    }
+
+    public static void main (String[] argv) throws Exception {
+        int rows = argv.length > 0 ? Integer.parseInt(argv[0]) : 1000;
+        int rounds = argv.length > 1 ? Integer.parseInt(argv[1]) : 100;
+        Object obj = sample (new Random (1l), rows);
+
+        bench ("legacy", new Bench () {
+                public byte[] encode (Object obj) throws Exception {
+                    return legacy (obj);
+                }
+                public Object decode (byte[] data) throws Exception {
+                    return CacheCodec.decode(data);
+                }
+            }, obj, rounds);
+
+        String[] names = { "", "+lz4", "+deflate" };
+        int[] compressions = {
+            CacheCodec.NONE, CacheCodec.LZ4, CacheCodec.DEFLATE
+        };
+        for (final CacheCodec codec
+                 : new CacheCodec[]{ CacheCodec.JAVA, CacheCodec.BINARY }) {
+            for (int i = 0; i < compressions.length; ++i) {
+                final int compression = compressions[i];
+                bench (codec.getName()+names[i], new Bench () {
+                        public byte[] encode (Object obj) throws Exception {
+                            return codec.encode(obj, compression);
+                        }
+                        public Object decode (byte[] data) throws Exception {
+                            return CacheCodec.decode(data);
+                        }
+                    }, obj, rounds);
+            }
+        }
+    }
+}
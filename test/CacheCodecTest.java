@@ -0,0 +1,252 @@
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import ix.core.plugins.CacheCodec;
+import ix.utils.LZ4Block;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of the cache entry codecs and the LZ4 block format
+ */
+public class CacheCodecTest {
+    static final int[] COMPRESSIONS = {
+        CacheCodec.NONE, CacheCodec.LZ4, CacheCodec.DEFLATE
+    };
+
+    public static class Point {
+        final int x, y;
+        Point (int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+        @Override
+        public boolean equals (Object obj) {
+            return obj instanceof Point
+                && ((Point)obj).x == x && ((Point)obj).y == y;
+        }
+        @Override
+        public int hashCode () { return 31*x + y; }
+    }
+
+    static class PointSerializer
+        extends CacheCodec.BinaryCodec.Serializer<Point> {
+        int version = 1;
+        @Override
+        public int getVersion () { return version; }
+        public void write (CacheCodec.BinaryCodec.Output out, Point p)
+            throws IOException {
+            out.writeVarInt(p.x);
+            out.writeVarInt(p.y);
+        }
+        public Point read (CacheCodec.BinaryCodec.Input in)
+            throws IOException {
+            return new Point (in.readVarInt(), in.readVarInt());
+        }
+    }
+
+    // stands in for a persistent entity
+    public static class Bean {
+        final Long id;
+        Bean (Long id) {
+            this.id = id;
+        }
+    }
+
+    static final PointSerializer POINT = new PointSerializer ();
+    static {
+        CacheCodec.BINARY.register(1000, Point.class, POINT);
+    }
+
+    static Object sample () {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("string", "kinase \u00e9\u4e2d");
+        row.put("int", -12345);
+        row.put("long", Long.MIN_VALUE);
+        row.put("double", Math.PI);
+        row.put("float", 1.5f);
+        row.put("true", true);
+        row.put("false", false);
+        row.put("short", (short)-7);
+        row.put("byte", (byte)3);
+        row.put("char", 'x');
+        row.put("null", null);
+        row.put("list", new ArrayList<Object>(Arrays.asList(1, "two", 3l)));
+        row.put("set", new HashSet<Object>(Arrays.asList("a", "b")));
+        row.put("sorted", new TreeSet<Object>(Arrays.asList(3, 1, 2)));
+        row.put("map", new TreeMap<Object, Object>
+                (Collections.singletonMap("k", "v")));
+        row.put("point", new Point (3, 4));
+        row.put("date", new Date (1234567890l)); // java serialization
+
+        List<Object> rows = new ArrayList<Object>();
+        for (int i = 0; i < 100; ++i)
+            rows.add(row);
+        return rows;
+    }
+
+    static Object roundTrip (Object obj, int compression) throws Exception {
+        return CacheCodec.decode
+            (CacheCodec.BINARY.encode(obj, compression));
+    }
+
+    @Test
+    public void binaryRoundTrip () throws Exception {
+        Object obj = sample ();
+        for (int c : COMPRESSIONS)
+            assertThat(roundTrip (obj, c)).isEqualTo(obj);
+    }
+
+    @Test
+    public void javaRoundTrip () throws Exception {
+        Object obj = sample ().toString();
+        for (int c : COMPRESSIONS)
+            assertThat(CacheCodec.decode(CacheCodec.JAVA.encode(obj, c)))
+                .isEqualTo(obj);
+    }
+
+    @Test
+    public void bytesRoundTrip () throws Exception {
+        byte[] b = new byte[1000];
+        new Random (1l).nextBytes(b);
+        for (int c : COMPRESSIONS)
+            assertThat((byte[])roundTrip (b, c)).isEqualTo(b);
+    }
+
+    @Test
+    public void sharedReferences () throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        Point p = new Point (1, 2);
+        list.add(p);
+        list.add(p);
+        List decoded = (List)roundTrip (list, CacheCodec.NONE);
+        assertThat(decoded.get(0)).isEqualTo(p);
+        assertThat(decoded.get(0) == decoded.get(1)).isTrue();
+    }
+
+    @Test
+    public void deflateIsSmaller () throws Exception {
+        Object obj = sample ();
+        int none = CacheCodec.BINARY.encode(obj, CacheCodec.NONE).length;
+        int lz4 = CacheCodec.BINARY.encode(obj, CacheCodec.LZ4).length;
+        int deflate =
+            CacheCodec.BINARY.encode(obj, CacheCodec.DEFLATE).length;
+        assertThat(lz4).isLessThan(none);
+        assertThat(deflate).isLessThan(lz4);
+    }
+
+    @Test
+    public void staleSerializerVersion () throws Exception {
+        byte[] data = CacheCodec.BINARY.encode(new Point (1, 2));
+        POINT.version = 2;
+        try {
+            CacheCodec.decode(data);
+            fail ("Entry of an old serializer version is decoded");
+        }
+        catch (CacheCodec.StaleEntryException ex) {
+        }
+        finally {
+            POINT.version = 1;
+        }
+    }
+
+    @Test
+    public void legacyEntry () throws Exception {
+        Object obj = sample ().toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        ObjectOutputStream oos = new ObjectOutputStream
+            (new GZIPOutputStream (bytes));
+        oos.writeObject(obj);
+        oos.close();
+        assertThat(CacheCodec.decode(bytes.toByteArray())).isEqualTo(obj);
+    }
+
+    @Test
+    public void entityReferences () throws Exception {
+        final Map<Long, Bean> beans = new HashMap<Long, Bean>();
+        beans.put(1l, new Bean (1l));
+        beans.put(2l, new Bean (2l));
+        final List<Collection> queries = new ArrayList<Collection>();
+        CacheCodec.BINARY.setEntityResolver
+            (new CacheCodec.BinaryCodec.EntityResolver () {
+                    public Object getId (Object obj) {
+                        return obj instanceof Bean ? ((Bean)obj).id : null;
+                    }
+                    public Map<Object, Object> findAll (String cls,
+                                                        Collection ids) {
+                        assertThat(cls).isEqualTo(Bean.class.getName());
+                        queries.add(new ArrayList (ids));
+                        Map<Object, Object> found =
+                            new HashMap<Object, Object>();
+                        for (Object id : ids)
+                            if (beans.containsKey(id))
+                                found.put(id, beans.get(id));
+                        return found;
+                    }
+                });
+        try {
+            List<Object> list = new ArrayList<Object>();
+            list.add(beans.get(1l));
+            list.add(beans.get(2l));
+            list.add(beans.get(1l));
+            list.add(new Bean (2l)); // another copy of the same entity
+            List decoded = (List)roundTrip (list, CacheCodec.DEFLATE);
+            assertThat(decoded).hasSize(4);
+            assertThat(decoded.get(0)).isSameAs(beans.get(1l));
+            assertThat(decoded.get(1)).isSameAs(beans.get(2l));
+            assertThat(decoded.get(2)).isSameAs(beans.get(1l));
+            assertThat(decoded.get(3)).isSameAs(beans.get(2l));
+            // one lookup for all references of the class
+            assertThat(queries).hasSize(1);
+            assertThat(queries.get(0)).containsOnly(1l, 2l);
+
+            byte[] data = CacheCodec.BINARY.encode(list);
+            beans.remove(2l);
+            try {
+                CacheCodec.decode(data);
+                fail ("Entry referencing a deleted entity is decoded");
+            }
+            catch (CacheCodec.StaleEntryException ex) {
+            }
+        }
+        finally {
+            CacheCodec.BINARY.setEntityResolver(null);
+        }
+    }
+
+    @Test
+    public void lz4RoundTrip () throws Exception {
+        Random rand = new Random (1l);
+        for (int len : new int[]{ 0, 1, 12, 13, 100, 70000 }) {
+            byte[] random = new byte[len];
+            rand.nextBytes(random);
+            byte[] repeats = new byte[len];
+            for (int i = 0; i < len; ++i)
+                repeats[i] = (byte)"GPCR kinase ".charAt(i % 12);
+
+            for (byte[] b : new byte[][]{ random, repeats }) {
+                byte[] z = LZ4Block.compress(b);
+                assertThat(z.length)
+                    .isLessThanOrEqualTo(LZ4Block.maxCompressedLength(len));
+                assertThat(LZ4Block.decompress(z, 0, z.length, len))
+                    .isEqualTo(b);
+            }
+        }
+    }
+
+    @Test
+    public void lz4Corrupted () throws Exception {
+        byte[] b = sample ().toString().getBytes("utf-8");
+        byte[] z = LZ4Block.compress(b);
+        try {
+            LZ4Block.decompress(z, 0, z.length/2, b.length);
+            fail ("Truncated block is decompressed");
+        }
+        catch (IOException ex) {
+        }
+    }
+}
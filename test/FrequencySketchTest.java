@@ -0,0 +1,88 @@
+import org.junit.Test;
+
+import java.util.*;
+
+import ix.core.plugins.FrequencySketch;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Frequency estimates of the TinyLFU sketch of the cache regions
+ */
+public class FrequencySketchTest {
+
+    @Test
+    public void unseenKeys () {
+        FrequencySketch sketch = new FrequencySketch (1000);
+        for (int i = 0; i < 100; ++i)
+            assertThat(sketch.frequency("key"+i)).isEqualTo(0);
+    }
+
+    @Test
+    public void saturates () {
+        FrequencySketch sketch = new FrequencySketch (1000);
+        for (int i = 1; i <= 20; ++i) {
+            sketch.increment("hot");
+            assertThat(sketch.frequency("hot")).isEqualTo(Math.min(15, i));
+        }
+    }
+
+    @Test
+    public void neverUnderestimates () {
+        // count-min: collisions can only add to a count
+        FrequencySketch sketch = new FrequencySketch (512);
+        Random rand = new Random (1l);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 300; ++i) {
+            String key = "key"+i;
+            int n = rand.nextInt(10);
+            for (int k = 0; k < n; ++k)
+                sketch.increment(key);
+            counts.put(key, n);
+        }
+        // well short of the sample size, so nothing has aged yet
+        for (Map.Entry<String, Integer> me : counts.entrySet())
+            assertThat(sketch.frequency(me.getKey()))
+                .isGreaterThanOrEqualTo(me.getValue());
+    }
+
+    @Test
+    public void hotOverOneOffs () {
+        FrequencySketch sketch = new FrequencySketch (1000);
+        Random rand = new Random (2l);
+        for (int i = 0; i < 5000; ++i) {
+            sketch.increment("query"+rand.nextInt(20)); // popular
+            sketch.increment("once"+i); // one-off
+        }
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < 20; ++i)
+            min = Math.min(min, sketch.frequency("query"+i));
+        assertThat(min).isGreaterThan(2);
+        for (int i = 0; i < 100; ++i)
+            assertThat(sketch.frequency("once"+i)).isLessThan(min);
+    }
+
+    @Test
+    public void ages () {
+        FrequencySketch sketch = new FrequencySketch (64);
+        for (int i = 0; i < 15; ++i)
+            sketch.increment("old");
+        assertThat(sketch.frequency("old")).isEqualTo(15);
+        // enough distinct keys to reach the sample size and halve
+        // the counters
+        for (int i = 0; i < 10000; ++i)
+            sketch.increment("new"+i);
+        assertThat(sketch.frequency("old")).isLessThanOrEqualTo(8);
+    }
+
+    @Test
+    public void bogusSize () {
+        try {
+            new FrequencySketch (0);
+            fail ("Sketch of no entries");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+    }
+}
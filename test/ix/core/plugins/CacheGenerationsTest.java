@@ -0,0 +1,162 @@
+package ix.core.plugins;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Generations and dependency scopes that IxCache entries are validated
+ * against
+ */
+public class CacheGenerationsTest {
+    static class Base {}
+    static class Derived extends Base {}
+    static class Other {}
+
+    static Set<String> deps (String... deps) {
+        return new HashSet<String>(Arrays.asList(deps));
+    }
+
+    static long epoch (String... deps) {
+        return CacheGenerations.epoch(deps (deps));
+    }
+
+    static String kind (Class cls) { return cls.getName(); }
+    static String id (Class cls, Object id) {
+        return CacheGenerations.key(cls, id);
+    }
+
+    // generations are wall clock times; make sure a change comes later
+    static void tick () throws InterruptedException {
+        Thread.sleep(2l);
+    }
+
+    @Test
+    public void bumpCoversSuperclasses () throws Exception {
+        long base = epoch (kind (Base.class));
+        long derived = epoch (kind (Derived.class));
+        long other = epoch (kind (Other.class));
+        tick ();
+        CacheGenerations.bump(Derived.class);
+        assertThat(epoch (kind (Derived.class))).isGreaterThan(derived);
+        assertThat(epoch (kind (Base.class))).isGreaterThan(base);
+        assertThat(epoch (kind (Other.class))).isEqualTo(other);
+
+        // but not the other way around
+        base = epoch (kind (Base.class));
+        derived = epoch (kind (Derived.class));
+        tick ();
+        CacheGenerations.bump(Base.class);
+        assertThat(epoch (kind (Base.class))).isGreaterThan(base);
+        assertThat(epoch (kind (Derived.class))).isEqualTo(derived);
+        assertThat(CacheGenerations.getGeneration(Base.class))
+            .isEqualTo(epoch (kind (Base.class)));
+    }
+
+    @Test
+    public void bumpById () throws Exception {
+        long one = epoch (id (Derived.class, 1l));
+        long two = epoch (id (Derived.class, 2l));
+        long base = epoch (kind (Base.class));
+        tick ();
+        CacheGenerations.bump(Derived.class, 1l);
+        assertThat(epoch (id (Derived.class, 1l))).isGreaterThan(one);
+        assertThat(epoch (id (Derived.class, 2l))).isEqualTo(two);
+        // an entity change is a change of its kind too
+        assertThat(epoch (kind (Base.class))).isGreaterThan(base);
+    }
+
+    @Test
+    public void unknownDependsOnEverything () throws Exception {
+        long none = CacheGenerations.epoch(null);
+        long empty = epoch ();
+        long any = epoch (CacheGenerations.ANY, kind (Derived.class));
+        tick ();
+        CacheGenerations.bump(Other.class);
+        assertThat(CacheGenerations.epoch(null)).isGreaterThan(none);
+        assertThat(epoch ()).isGreaterThan(empty);
+        assertThat(epoch (CacheGenerations.ANY, kind (Derived.class)))
+            .isGreaterThan(any);
+        assertThat(CacheGenerations.getLastModified())
+            .isEqualTo(CacheGenerations.epoch(null));
+    }
+
+    @Test
+    public void idFloorAfterMaxIds () throws Exception {
+        long never = epoch (id (Other.class, -1l));
+        long other = epoch (kind (Other.class));
+        tick ();
+        for (int i = 0; i <= CacheGenerations.MAX_IDS; ++i)
+            CacheGenerations.bump(Derived.class, i);
+        assertThat(CacheGenerations.getTrackedIdCount())
+            .isLessThanOrEqualTo(CacheGenerations.MAX_IDS);
+        // the dropped generations could have been any id's
+        assertThat(epoch (id (Other.class, -1l))).isGreaterThan(never);
+        // whereas kinds are still tracked
+        assertThat(epoch (kind (Other.class))).isEqualTo(other);
+    }
+
+    @Test
+    public void floorCoversEverything () throws Exception {
+        long other = epoch (kind (Other.class));
+        long one = epoch (id (Other.class, 1l));
+        tick ();
+        long now = System.currentTimeMillis();
+        CacheGenerations.floor(now);
+        assertThat(epoch (kind (Other.class))).isGreaterThan(other);
+        assertThat(epoch (id (Other.class, 1l))).isGreaterThan(one);
+        assertThat(CacheGenerations.getGeneration(Other.class))
+            .isGreaterThanOrEqualTo(now);
+    }
+
+    @Test
+    public void nestedScopes () {
+        assertThat(CacheGenerations.isTracking()).isFalse();
+        CacheGenerations.depends(Other.class); // nothing to record it
+
+        Set<String> outer = CacheGenerations.begin();
+        assertThat(outer).isNull();
+        assertThat(CacheGenerations.isTracking()).isTrue();
+        CacheGenerations.depends(Base.class);
+
+        Set<String> inner = CacheGenerations.begin();
+        assertThat(inner).containsOnly(kind (Base.class));
+        CacheGenerations.depends(Derived.class, 1l);
+        Set<String> innerDeps = CacheGenerations.end(inner);
+        assertThat(innerDeps).containsOnly(id (Derived.class, 1l));
+
+        // a null id is the same as the kind
+        CacheGenerations.depends(Other.class, null);
+        Set<String> outerDeps = CacheGenerations.end(outer);
+        assertThat(outerDeps).containsOnly
+            (kind (Base.class), id (Derived.class, 1l), kind (Other.class));
+        assertThat(CacheGenerations.isTracking()).isFalse();
+    }
+
+    @Test
+    public void inheritedDependencies () {
+        Set<String> outer = CacheGenerations.begin();
+        // e.g., a cached entry that's reused by the value being generated
+        CacheGenerations.inherit
+            (deps (kind (Base.class), id (Other.class, 2l)));
+        CacheGenerations.inherit(null);
+        CacheGenerations.dependsOnAll();
+        assertThat(CacheGenerations.end(outer)).containsOnly
+            (kind (Base.class), id (Other.class, 2l), CacheGenerations.ANY);
+    }
+
+    @Test
+    public void scopesArePerThread () throws Exception {
+        Set<String> outer = CacheGenerations.begin();
+        Thread t = new Thread (new Runnable () {
+                public void run () {
+                    CacheGenerations.depends(Other.class);
+                }
+            });
+        t.start();
+        t.join();
+        assertThat(CacheGenerations.end(outer)).isEmpty();
+    }
+}
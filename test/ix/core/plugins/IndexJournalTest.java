@@ -0,0 +1,176 @@
+package ix.core.plugins;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.apache.lucene.document.Document;
+
+import ix.core.models.Keyword;
+import ix.core.search.TextIndexer;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Generations of the index journal: await returns only once everything
+ * up to the generation is in the index, and never hangs on a dead
+ * journal
+ */
+public class IndexJournalTest {
+    // index updates go through one at a time as permits are released
+    static class GatedIndexer extends TextIndexer {
+        final Semaphore gate = new Semaphore (0);
+
+        GatedIndexer (File dir) throws IOException {
+            super (dir);
+        }
+
+        void pass () {
+            gate.acquireUninterruptibly();
+        }
+
+        @Override
+        public void addDoc (Document doc) throws IOException {
+            pass ();
+            super.addDoc(doc);
+        }
+
+        @Override
+        public void updateDocs (List entities, List<Document> docs)
+            throws IOException {
+            pass ();
+            super.updateDocs(entities, docs);
+        }
+
+        @Override
+        public void remove (Object entity) throws Exception {
+            pass ();
+            super.remove(entity);
+        }
+    }
+
+    GatedIndexer indexer;
+    IndexJournal journal;
+
+    static Keyword keyword (long id, String term) {
+        Keyword kw = new Keyword ("IndexJournalTest", term);
+        kw.id = id;
+        return kw;
+    }
+
+    @Before
+    public void setup () throws Exception {
+        indexer = new GatedIndexer
+            (Files.createTempDirectory("journal").toFile());
+        journal = new IndexJournal (indexer);
+        journal.setLinger(0l);
+    }
+
+    @After
+    public void teardown () {
+        indexer.gate.release(1000);
+        journal.shutdown();
+        indexer.shutdown();
+    }
+
+    @Test
+    public void awaitUntilApplied () throws Exception {
+        journal.start();
+        long gen = journal.update(keyword (1l, "one"));
+        assertThat(gen).isEqualTo(journal.getGeneration());
+        assertThat(journal.await(gen, 200l)).isFalse();
+        assertThat(journal.getAppliedGeneration()).isLessThan(gen);
+
+        indexer.gate.release();
+        assertThat(journal.await(gen, 10000l)).isTrue();
+        assertThat(journal.getAppliedGeneration()).isEqualTo(gen);
+        assertThat(journal.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void appliedInGenerationOrder () throws Exception {
+        // appended before the journal runs so they're all pending
+        long g1 = journal.update(keyword (1l, "one"));
+        long g2 = journal.update(keyword (2l, "two"));
+        long g3 = journal.update(keyword (1l, "one again"));
+        assertThat(g1).isLessThan(g2);
+        assertThat(g2).isLessThan(g3);
+        assertThat(journal.getCoalescedCount()).isEqualTo(1l);
+        assertThat(journal.getPendingCount()).isEqualTo(2);
+
+        journal.setBatchSize(1);
+        journal.start();
+        // the entity of g1 and g3 goes first, but g2 is still pending
+        // so only g1 counts as applied
+        indexer.gate.release();
+        assertThat(journal.await(g1, 10000l)).isTrue();
+        assertThat(journal.await(g2, 200l)).isFalse();
+        assertThat(journal.await(g3, 0l)).isFalse();
+        assertThat(journal.getAppliedGeneration()).isEqualTo(g1);
+
+        indexer.gate.release();
+        assertThat(journal.await(g3, 10000l)).isTrue();
+        assertThat(journal.await(g2, 0l)).isTrue();
+        assertThat(journal.getBatchCount()).isEqualTo(2l);
+    }
+
+    @Test
+    public void syncWaitsForEverything () throws Exception {
+        journal.start();
+        for (long id = 1; id <= 10; ++id)
+            journal.update(keyword (id, "term "+id));
+        indexer.gate.release(10);
+        assertThat(journal.sync(10000l)).isTrue();
+        assertThat(journal.getAppliedGeneration())
+            .isEqualTo(journal.getGeneration());
+        assertThat(journal.getFailureCount()).isEqualTo(0l);
+    }
+
+    @Test
+    public void shutdownDrains () throws Exception {
+        journal.start();
+        long gen = journal.update(keyword (1l, "one"));
+        indexer.gate.release();
+        journal.shutdown();
+        assertThat(journal.getAppliedGeneration()).isEqualTo(gen);
+        assertThat(journal.isDead()).isFalse();
+        try {
+            journal.update(keyword (2l, "two"));
+            fail ("Journal took an update after shutdown");
+        }
+        catch (IllegalStateException ex) {
+        }
+    }
+
+    @Test
+    public void deadJournal () throws Exception {
+        journal.start();
+        long gen = journal.update(keyword (1l, "one"));
+        indexer.gate.release();
+        assertThat(journal.await(gen, 10000l)).isTrue();
+
+        // the background thread goes away without a shutdown
+        journal.threadPool.shutdownNow();
+        for (int i = 0; i < 500 && !journal.isDead(); ++i)
+            Thread.sleep(10l);
+        assertThat(journal.isDead()).isTrue();
+
+        long start = System.currentTimeMillis();
+        assertThat(journal.await(gen+1, 10000l)).isFalse();
+        assertThat(System.currentTimeMillis() - start).isLessThan(5000l);
+        try {
+            journal.update(keyword (2l, "two"));
+            fail ("Dead journal took an update");
+        }
+        catch (IllegalStateException ex) {
+            // callers index directly instead
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ix.core.plugins;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Single flight of the cache generators: concurrent misses on the same
+ * key share one computation
+ */
+public class IxCacheFlightTest {
+    final ConcurrentMap<String, IxCache.Flight> inflight =
+        new ConcurrentHashMap<String, IxCache.Flight>();
+    final AtomicLong coalesced = new AtomicLong ();
+    final AtomicInteger calls = new AtomicInteger ();
+
+    // runs once released, counting its calls
+    Callable<Object> task (final CountDownLatch release, final Object value) {
+        return new Callable<Object> () {
+            public Object call () throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                if (value instanceof Exception)
+                    throw (Exception)value;
+                return value;
+            }
+        };
+    }
+
+    List<Future<Object>> join (ExecutorService threads, int n,
+                               final String key,
+                               final Callable<Object> task) {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < n; ++i)
+            futures.add(threads.submit(new Callable<Object> () {
+                    public Object call () throws Exception {
+                        return IxCache.join(inflight, coalesced, key, task);
+                    }
+                }));
+        return futures;
+    }
+
+    // all but the leader are waiting on its flight
+    void awaitFollowers (long n) throws InterruptedException {
+        for (int i = 0; i < 500 && coalesced.get() < n; ++i)
+            Thread.sleep(10l);
+        assertThat(coalesced.get()).isEqualTo(n);
+    }
+
+    @Test
+    public void coalescesConcurrentMisses () throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch release = new CountDownLatch (1);
+            List<Future<Object>> futures =
+                join (threads, 8, "key", task (release, "value"));
+            awaitFollowers (7l);
+            assertThat(inflight).hasSize(1);
+            release.countDown();
+
+            for (Future<Object> f : futures)
+                assertThat(f.get(10l, TimeUnit.SECONDS)).isEqualTo("value");
+            assertThat(calls.get()).isEqualTo(1);
+            assertThat(inflight).isEmpty();
+        }
+        finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sharesFailure () throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch release = new CountDownLatch (1);
+            List<Future<Object>> futures = join
+                (threads, 4, "key", task (release, new IOException ("bogus")));
+            awaitFollowers (3l);
+            release.countDown();
+
+            for (Future<Object> f : futures) {
+                try {
+                    f.get(10l, TimeUnit.SECONDS);
+                    fail ("Failed generator returned a value");
+                }
+                catch (ExecutionException ex) {
+                    assertThat(ex.getCause()).isInstanceOf(IOException.class);
+                }
+            }
+            assertThat(calls.get()).isEqualTo(1);
+            assertThat(inflight).isEmpty();
+
+            // a failure isn't remembered; the next miss runs again
+            assertThat(IxCache.join(inflight, coalesced, "key",
+                                    task (release, "value")))
+                .isEqualTo("value");
+            assertThat(calls.get()).isEqualTo(2);
+        }
+        finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void distinctKeys () throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            CountDownLatch release = new CountDownLatch (1);
+            Callable<Object> task = task (release, "value");
+            List<Future<Object>> futures = join (threads, 1, "a", task);
+            futures.addAll(join (threads, 1, "b", task));
+            for (int i = 0; i < 500 && calls.get() < 2; ++i)
+                Thread.sleep(10l);
+            assertThat(calls.get()).isEqualTo(2);
+            release.countDown();
+
+            for (Future<Object> f : futures)
+                assertThat(f.get(10l, TimeUnit.SECONDS)).isEqualTo("value");
+            assertThat(coalesced.get()).isEqualTo(0l);
+        }
+        finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reentrant () throws Exception {
+        // a generator that needs its own key, e.g., through a helper
+        // that goes through the cache, mustn't wait on itself
+        Callable<Object> task = new Callable<Object> () {
+            public Object call () throws Exception {
+                if (calls.incrementAndGet() == 1)
+                    return "outer "+IxCache.join(inflight, coalesced,
+                                                 "key", this);
+                return "inner";
+            }
+        };
+        assertThat(IxCache.join(inflight, coalesced, "key", task))
+            .isEqualTo("outer inner");
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(coalesced.get()).isEqualTo(0l);
+        assertThat(inflight).isEmpty();
+    }
+}
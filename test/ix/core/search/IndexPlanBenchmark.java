@@ -0,0 +1,286 @@
+package ix.core.search;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.*;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.facet.FacetField;
+import org.apache.lucene.index.IndexableField;
+
+import ix.core.models.*;
+import ix.idg.models.Target;
+
+import static org.apache.lucene.document.Field.Store.NO;
+import static org.apache.lucene.document.Field.Store.YES;
+
+/**
+ * Time to instrument in-memory Target graphs into documents with the
+ * precompiled index plans against the reflective traversal they
+ * replaced (getFields/getMethods and annotation lookups on every
+ * entity); this isn't part of the test suite, run it with
+ * <pre>
+ *   test:runMain ix.core.search.IndexPlanBenchmark [targets [rounds]]
+ * </pre>
+ */
+public class IndexPlanBenchmark {
+    /**
+     * TextIndexer.instrument as it was before index plans; indexField
+     * now takes the attributes of an Indexable as an IndexSpec, which
+     * is read here from the annotation on every call as before
+     */
+    static class LegacyIndexer extends TextIndexer {
+        LegacyIndexer (File dir) throws java.io.IOException {
+            super (dir);
+        }
+
+        @Override
+        protected void instrument (LinkedList<String> path,
+                                   Set indexed, Object entity,
+                                   List<IndexableField> ixFields) {
+            if (indexed.contains(entity))
+                return;
+
+            indexed.add(entity);
+            try {
+                Class cls = entity.getClass();
+                ixFields.add(new FacetField (DIM_CLASS, cls.getName()));
+
+                DynamicFacet dyna =
+                    (DynamicFacet)cls.getAnnotation(DynamicFacet.class);
+                String facetLabel = null;
+                String facetValue = null;
+
+                for (Field f : cls.getFields()) {
+                    Indexable indexable =
+                        (Indexable)f.getAnnotation(Indexable.class);
+                    if (indexable == null)
+                        indexable = defaultIndexable;
+
+                    int mods = f.getModifiers();
+                    if (!indexable.indexed()
+                        || Modifier.isStatic(mods)
+                        || Modifier.isTransient(mods))
+                        continue;
+
+                    path.push(f.getName());
+                    try {
+                        Class type = f.getType();
+                        Object value = f.get(entity);
+
+                        if (f.getAnnotation(Id.class) != null) {
+                            if (value != null) {
+                                String kind = entity.getClass().getName();
+                                if (value instanceof Long)
+                                    ixFields.add(new LongField
+                                                 (kind+"._id",
+                                                  (Long)value, YES));
+                                else
+                                    ixFields.add(new StringField
+                                                 (kind+"._id",
+                                                  value.toString(), YES));
+                                ixFields.add(new StringField
+                                             (kind+".id",
+                                              value.toString(), NO));
+                            }
+                        }
+                        else if (value == null) {
+                        }
+                        else if (dyna != null
+                                 && f.getName().equals(dyna.label())) {
+                            facetLabel = value.toString();
+                        }
+                        else if (dyna != null
+                                 && f.getName().equals(dyna.value())) {
+                            facetValue = value.toString();
+                        }
+                        else if (type.isPrimitive()) {
+                            indexField (ixFields, new IndexSpec (indexable),
+                                        path, value);
+                        }
+                        else if (type.isArray()) {
+                            int len = Array.getLength(value);
+                            for (int i = 0; i < len; ++i) {
+                                path.push(String.valueOf(i));
+                                instrument (path, indexed,
+                                            Array.get(value, i), ixFields);
+                                path.pop();
+                            }
+                        }
+                        else if (Collection.class.isAssignableFrom(type)) {
+                            Iterator it = ((Collection)value).iterator();
+                            for (int i = 0; it.hasNext(); ++i) {
+                                path.push(String.valueOf(i));
+                                instrument (path, indexed, it.next(),
+                                            ixFields);
+                                path.pop();
+                            }
+                        }
+                        else if (value.getClass()
+                                 .isAnnotationPresent(Entity.class)) {
+                            instrument (path, indexed, value, ixFields);
+                        }
+                        else {
+                            indexField (ixFields, new IndexSpec (indexable),
+                                        path, value);
+                        }
+                    }
+                    catch (Exception ex) {
+                    }
+                    path.pop();
+                }
+
+                if (facetLabel != null && facetValue != null) {
+                    dynamicFacet (ixFields, facetLabel, facetValue);
+                }
+                else if (Value.class.isAssignableFrom(cls)) {
+                    Value v = (Value)entity;
+                    path.push(v.label);
+                    indexField (ixFields, defaultSpec, path, v.getValue());
+                    path.pop();
+                }
+
+                for (Method m : entity.getClass().getMethods()) {
+                    Indexable indexable =
+                        (Indexable)m.getAnnotation(Indexable.class);
+                    if (indexable != null && indexable.indexed()
+                        && m.getParameterTypes().length == 0) {
+                        Object value = m.invoke(entity);
+                        if (value != null) {
+                            String name = m.getName();
+                            if (name.startsWith("get"))
+                                name = name.substring(3);
+                            indexField (ixFields, new IndexSpec (indexable),
+                                        Arrays.asList(name), value);
+                        }
+                    }
+                }
+            }
+            catch (Exception ex) {
+            }
+        }
+    }
+
+    static final String[] FAMILIES = {
+        "GPCR", "Kinase", "Ion Channel", "Nuclear Receptor", "Enzyme"
+    };
+    static final String[] LABELS = {
+        "UniProt Keyword", "GO Component", "GO Process", "GO Function",
+        "GTEx Tissue", "HPA Protein Tissue", "IDG Disease", "Reactome"
+    };
+
+    static List<Target> targets (Random rand, int n) {
+        Target.TDL[] tdls = Target.TDL.values();
+        List<Target> targets = new ArrayList<Target>();
+        long id = 0;
+        for (int i = 0; i < n; ++i) {
+            Target t = new Target ();
+            t.id = ++id;
+            t.name = "Target protein "+i;
+            t.description = "Description of target "+i
+                +" along with some more words to analyze";
+            t.idgFamily = FAMILIES[rand.nextInt(FAMILIES.length)];
+            t.idgTDL = tdls[rand.nextInt(tdls.length)];
+            t.novelty = rand.nextDouble();
+            t.antibodyCount = rand.nextInt(500);
+            t.pubmedCount = rand.nextInt(2000);
+            t.jensenScore = 10*rand.nextDouble();
+            t.patentCount = rand.nextInt(100);
+
+            for (int j = 0; j < 5; ++j) {
+                Keyword kw = new Keyword ("UniProt Gene", "GENE"+i+"_"+j);
+                kw.id = ++id;
+                t.synonyms.add(kw);
+            }
+            for (int j = 0; j < 40; ++j) {
+                String label = LABELS[rand.nextInt(LABELS.length)];
+                Value v;
+                switch (j % 3) {
+                case 0: v = new Keyword (label, "term "+rand.nextInt(300));
+                    break;
+                case 1: v = new Text (label, "some text "+rand.nextInt(300));
+                    break;
+                default: v = new VNum (label, rand.nextDouble());
+                }
+                v.id = ++id;
+                t.properties.add(v);
+            }
+            for (int j = 0; j < 10; ++j) {
+                XRef ref = new XRef ("ix.idg.models.Ligand",
+                                     (long)rand.nextInt(10000));
+                ref.id = ++id;
+                Keyword kw = new Keyword ("IDG Ligand", "Ligand "+j);
+                kw.id = ++id;
+                ref.properties.add(kw);
+                VNum act = new VNum ("Activity", rand.nextDouble());
+                act.id = ++id;
+                ref.properties.add(act);
+                t.links.add(ref);
+            }
+            targets.add(t);
+        }
+        return targets;
+    }
+
+    static Map<String, Integer> fields (Document doc) {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (IndexableField f : doc.getFields()) {
+            Integer c = counts.get(f.name());
+            counts.put(f.name(), c == null ? 1 : c+1);
+        }
+        return counts;
+    }
+
+    static double bench (TextIndexer indexer, List<Target> targets,
+                         int rounds) {
+        for (int r = 0; r < Math.max(1, rounds/5); ++r) // warm up
+            for (Target t : targets)
+                indexer.createDoc(t);
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; ++r)
+            for (Target t : targets)
+                indexer.createDoc(t);
+        return 1e-3*(System.nanoTime() - start) / (rounds*targets.size());
+    }
+
+    public static void main (String[] argv) throws Exception {
+        int n = argv.length > 0 ? Integer.parseInt(argv[0]) : 500;
+        int rounds = argv.length > 1 ? Integer.parseInt(argv[1]) : 20;
+        List<Target> targets = targets (new Random (1l), n);
+
+        TextIndexer plan = new TextIndexer
+            (Files.createTempDirectory("plan").toFile());
+        TextIndexer legacy = new LegacyIndexer
+            (Files.createTempDirectory("legacy").toFile());
+        try {
+            // both paths have to produce the same documents
+            for (Target t : targets)
+                if (!fields (plan.createDoc(t))
+                    .equals(fields (legacy.createDoc(t))))
+                    throw new IllegalStateException
+                        ("Documents of target "+t.id+" differ");
+
+            for (int i = 0; i < 3; ++i) {
+                System.out.println(String.format
+                                   ("legacy %1$9.1fus/target   "
+                                    +"plan %2$9.1fus/target",
+                                    bench (legacy, targets, rounds),
+                                    bench (plan, targets, rounds)));
+            }
+        }
+        finally {
+            plan.shutdown();
+            legacy.shutdown();
+        }
+    }
+}